@@ -0,0 +1,583 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSAligner.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * This class aligns frames to a reference frame, and produces difference images, for transient detection.
+ * The translation between a frame and the reference is found by phase correlation: both are mean subtracted,
+ * windowed (Hann) and zero padded to a power of two, transformed with FITSFFT, and the normalised cross power
+ * spectrum inverse transformed. The position of its peak is the shift; a parabola through the peak and
+ * its neighbours gives the sub-pixel part. The frame is then resampled (bilinearly) onto the reference grid,
+ * and the reference subtracted.
+ * <p>
+ * The reference's transform is computed once, in setReference, and re-used for each frame aligned.
+ * Shifts are in display coordinates (y increases downwards), as used by FITSImage.getValue.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSFFT
+ */
+public class FITSAligner
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of rows resampled by each parallel task.
+	 */
+	protected final static int STRIP_HEIGHT = 32;
+	/**
+	 * The reference image.
+	 */
+	protected FITSImage reference = null;
+	/**
+	 * The real parts of the reference's transform.
+	 */
+	protected double referenceRe[] = null;
+	/**
+	 * The imaginary parts of the reference's transform.
+	 */
+	protected double referenceIm[] = null;
+	/**
+	 * The FFT plan, for the padded reference size.
+	 * @see FITSFFT#getPlan
+	 */
+	protected FITSFFT plan = null;
+	/**
+	 * The number of threads to use, 0 for the default.
+	 */
+	protected int threadCount = 0;
+	/**
+	 * Whether to apply a Hann window before transforming, to suppress the edges of the frames.
+	 */
+	protected boolean windowEnabled = true;
+	/**
+	 * The value given to pixels of the aligned frame (and difference image) that fall outside the frame.
+	 */
+	protected float blankValue = 0.0f;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSAligner()
+	{
+		super();
+	}
+
+	/**
+	 * Set the number of threads to use.
+	 * @param n The number of threads, 0 (or less) to use the default thread count.
+	 * @see #threadCount
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Set whether a Hann window is applied before transforming. This takes effect at the next setReference.
+	 * @param b true to window the frames.
+	 * @see #windowEnabled
+	 */
+	public void setWindowEnabled(boolean b)
+	{
+		windowEnabled = b;
+	}
+
+	/**
+	 * Set the value given to pixels that fall outside the shifted frame.
+	 * @param v The blank value.
+	 * @see #blankValue
+	 */
+	public void setBlankValue(float v)
+	{
+		blankValue = v;
+	}
+
+	/**
+	 * Set the reference frame, and compute its transform.
+	 * @param image The reference frame.
+	 * @exception FITSException Thrown if the image has no data or no valid pixels, or a parallel task fails.
+	 * @see #reference
+	 * @see #prepare
+	 */
+	public void setReference(FITSImage image) throws FITSException
+	{
+		double re[],im[];
+
+		if(image.getDataArray() == null)
+		{
+			throw new FITSException(this.getClass().getName()+":setReference:Reference has no data.");
+		}
+		plan = FITSFFT.getPlan(FITSFFT.getPaddedSize(image.getWidth()),
+				       FITSFFT.getPaddedSize(image.getHeight()));
+		re = new double[plan.getWidth()*plan.getHeight()];
+		im = new double[plan.getWidth()*plan.getHeight()];
+		prepare(image,re);
+		plan.forward(re,im,threadCount);
+		reference = image;
+		referenceRe = re;
+		referenceIm = im;
+	}
+
+	/**
+	 * Get the reference frame.
+	 * @return The reference frame, or null if none has been set.
+	 */
+	public FITSImage getReference()
+	{
+		return reference;
+	}
+
+	/**
+	 * Find the shift of a frame relative to the reference. Pixel (x,y) of the reference is at
+	 * (x+shift.getX(),y+shift.getY()) in the frame.
+	 * @param image The frame, the same size as the reference.
+	 * @return The shift, in display coordinates.
+	 * @exception FITSException Thrown if there is no reference, the frame is a different size or has no valid
+	 *            pixels, the correlation peak is not finite, or a parallel task fails.
+	 * @see #checkImage
+	 * @see #findPeak
+	 */
+	public Shift findShift(FITSImage image) throws FITSException
+	{
+		double re[],im[];
+		double r,i,magnitude;
+
+		checkImage(image,"findShift");
+		re = new double[referenceRe.length];
+		im = new double[referenceIm.length];
+		prepare(image,re);
+		plan.forward(re,im,threadCount);
+		// normalised cross power spectrum: conj(reference) * image / |conj(reference) * image|
+		for(int k = 0; k < re.length; k++)
+		{
+			r = (referenceRe[k]*re[k])+(referenceIm[k]*im[k]);
+			i = (referenceRe[k]*im[k])-(referenceIm[k]*re[k]);
+			magnitude = Math.sqrt((r*r)+(i*i));
+			if(magnitude > 0.0)
+			{
+				re[k] = r/magnitude;
+				im[k] = i/magnitude;
+			}
+			else
+			{
+				re[k] = 0.0;
+				im[k] = 0.0;
+			}
+		}
+		plan.inverse(re,im,threadCount);
+		return findPeak(re,plan.getWidth(),plan.getHeight());
+	}
+
+	/**
+	 * Resample a frame onto the reference grid, so that it lines up with the reference.
+	 * @param image The frame.
+	 * @param shift The shift of the frame relative to the reference, from findShift.
+	 * @return The aligned frame, with the reference's header values, and minimum/maximum set.
+	 * @exception FITSException Thrown if there is no reference, the frame is a different size, or a parallel
+	 *            task fails.
+	 * @see #resample(FITSImage,Shift,boolean)
+	 */
+	public FITSImage resample(FITSImage image,Shift shift) throws FITSException
+	{
+		return resample(image,shift,false);
+	}
+
+	/**
+	 * Find the shift of a frame relative to the reference, and resample it onto the reference grid.
+	 * @param image The frame.
+	 * @return The aligned frame, with the reference's header values, and minimum/maximum set.
+	 * @exception FITSException Thrown if there is no reference, the frame is a different size, or a parallel
+	 *            task fails.
+	 * @see #findShift
+	 * @see #resample(FITSImage,Shift)
+	 */
+	public FITSImage align(FITSImage image) throws FITSException
+	{
+		return resample(image,findShift(image),false);
+	}
+
+	/**
+	 * Align a frame to the reference, and subtract the reference. Pixels outside the shifted frame
+	 * are set to the blank value.
+	 * @param image The frame.
+	 * @return The difference image, with the reference's header values, and minimum/maximum set.
+	 * @exception FITSException Thrown if there is no reference, the frame is a different size, or a parallel
+	 *            task fails.
+	 * @see #findShift
+	 * @see #resample(FITSImage,Shift,boolean)
+	 */
+	public FITSImage difference(FITSImage image) throws FITSException
+	{
+		return resample(image,findShift(image),true);
+	}
+
+	/**
+	 * Resample a frame onto the reference grid, optionally subtracting the reference. Strips of rows are
+	 * resampled in parallel.
+	 * @param image The frame.
+	 * @param shift The shift of the frame relative to the reference.
+	 * @param subtract true to subtract the reference.
+	 * @return The resampled (or difference) frame, with the reference's header values, and minimum/maximum set.
+	 * @exception FITSException Thrown if there is no reference, the frame is a different size, or a parallel
+	 *            task fails.
+	 * @see #interpolate
+	 * @see #STRIP_HEIGHT
+	 */
+	protected FITSImage resample(FITSImage image,Shift shift,final boolean subtract) throws FITSException
+	{
+		FITSImage output = null;
+		final float imageArray[];
+		final float referenceArray[];
+		final float outputArray[];
+		final int width,height;
+		final double dx,dy;
+
+		checkImage(image,"resample");
+		width = image.getWidth();
+		height = image.getHeight();
+		imageArray = image.getDataArray();
+		referenceArray = reference.getDataArray();
+		outputArray = new float[width*height];
+		// data array rows are in FITS order, display y is reversed
+		dx = shift.getX();
+		dy = -shift.getY();
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,STRIP_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index)
+			{
+				float value;
+				int end;
+
+				end = Math.min((index+1)*STRIP_HEIGHT,height);
+				for(int y = index*STRIP_HEIGHT; y < end; y++)
+				{
+					for(int x = 0; x < width; x++)
+					{
+						value = interpolate(imageArray,width,height,x+dx,y+dy);
+						if(Float.isNaN(value))
+							value = blankValue;
+						else if(subtract)
+							value -= referenceArray[(y*width)+x];
+						outputArray[(y*width)+x] = value;
+					}
+				}
+			}
+		});
+		output = new FITSImage(width,height,outputArray);
+		if(reference.headerCards != null)
+			output.parseHeader(reference.headerCards);
+		else if(reference.header != null)
+			output.parseHeader(reference.header);
+		output.setMinMaxPixelValue();
+		return output;
+	}
+
+	/**
+	 * Check a reference has been set, and a frame is the same size as it.
+	 * @param image The frame.
+	 * @param methodName The calling method, for the error message.
+	 * @exception FITSException Thrown if there is no reference, the frame has no data, or is a different size.
+	 */
+	protected void checkImage(FITSImage image,String methodName) throws FITSException
+	{
+		if(reference == null)
+		{
+			throw new FITSException(this.getClass().getName()+":"+methodName+":No reference set.");
+		}
+		if(image.getDataArray() == null)
+		{
+			throw new FITSException(this.getClass().getName()+":"+methodName+":Image has no data.");
+		}
+		if((image.getWidth() != reference.getWidth())||(image.getHeight() != reference.getHeight()))
+		{
+			throw new FITSException(this.getClass().getName()+":"+methodName+":Image dimensions "+
+						image.getWidth()+" x "+image.getHeight()+
+						" do not match reference dimensions "+reference.getWidth()+" x "+
+						reference.getHeight()+".");
+		}
+	}
+
+	/**
+	 * Copy a frame into the (zeroed) real array of a transform, mean subtracted and, if enabled, windowed.
+	 * The frame occupies the bottom left of the padded array. Blank (NaN) pixels are left out of the mean,
+	 * and set to 0 (the mean), so they do not contribute to the correlation.
+	 * @param image The frame.
+	 * @param re The real array, plan width * plan height.
+	 * @exception FITSException Thrown if every pixel of the frame is blank.
+	 * @see #windowEnabled
+	 */
+	protected void prepare(FITSImage image,double re[]) throws FITSException
+	{
+		float dataArray[];
+		double xWindow[],yWindow[];
+		double mean;
+		float value;
+		int width,height,paddedWidth,count;
+
+		dataArray = image.getDataArray();
+		width = image.getWidth();
+		height = image.getHeight();
+		paddedWidth = plan.getWidth();
+		mean = 0.0;
+		count = 0;
+		for(int i = 0; i < dataArray.length; i++)
+		{
+			if(Float.isNaN(dataArray[i]) == false)
+			{
+				mean += dataArray[i];
+				count++;
+			}
+		}
+		if(count == 0)
+		{
+			throw new FITSException(this.getClass().getName()+":prepare:Image has no valid (non-blank) pixels.");
+		}
+		mean /= count;
+		xWindow = createWindow(width);
+		yWindow = createWindow(height);
+		for(int y = 0; y < height; y++)
+		{
+			for(int x = 0; x < width; x++)
+			{
+				value = dataArray[(y*width)+x];
+				if(Float.isNaN(value))
+					re[(y*paddedWidth)+x] = 0.0;
+				else
+					re[(y*paddedWidth)+x] = (value-mean)*xWindow[x]*yWindow[y];
+			}
+		}
+	}
+
+	/**
+	 * Create a one dimensional window: Hann if the window is enabled, otherwise all ones.
+	 * @param n The length of the window.
+	 * @return The window.
+	 * @see #windowEnabled
+	 */
+	protected double[] createWindow(int n)
+	{
+		double window[];
+
+		window = new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			if(windowEnabled && (n > 1))
+				window[i] = 0.5*(1.0-Math.cos((2.0*Math.PI*i)/(n-1)));
+			else
+				window[i] = 1.0;
+		}
+		return window;
+	}
+
+	/**
+	 * Find the peak of a correlation surface, to sub-pixel accuracy.
+	 * @param correlation The correlation surface (real part of the inverse transform), width*height.
+	 * @param width The width of the surface.
+	 * @param height The height of the surface.
+	 * @return The shift, in display coordinates, and the peak height.
+	 * @exception FITSException Thrown if the peak is not finite (e.g. the frames have no valid pixels).
+	 * @see #fitParabola
+	 */
+	protected Shift findPeak(double correlation[],int width,int height) throws FITSException
+	{
+		double dx,dy;
+		int peakIndex,peakX,peakY;
+
+		peakIndex = 0;
+		for(int i = 1; i < correlation.length; i++)
+		{
+			if(correlation[i] > correlation[peakIndex])
+				peakIndex = i;
+		}
+		if(Double.isNaN(correlation[peakIndex])||Double.isInfinite(correlation[peakIndex]))
+		{
+			throw new FITSException(this.getClass().getName()+":findPeak:Correlation peak is not finite:"+
+						correlation[peakIndex]);
+		}
+		peakX = peakIndex % width;
+		peakY = peakIndex / width;
+		dx = peakX+fitParabola(correlation[(peakY*width)+((peakX+width-1)%width)],correlation[peakIndex],
+				       correlation[(peakY*width)+((peakX+1)%width)]);
+		dy = peakY+fitParabola(correlation[(((peakY+height-1)%height)*width)+peakX],correlation[peakIndex],
+				       correlation[(((peakY+1)%height)*width)+peakX]);
+		// shifts of more than half the padded size wrap around to negative shifts
+		if(dx > width/2)
+			dx -= width;
+		if(dy > height/2)
+			dy -= height;
+		return new Shift(dx,-dy,correlation[peakIndex]);
+	}
+
+	/**
+	 * Fit a parabola through three equally spaced points, and return the offset of its vertex from the
+	 * middle point.
+	 * @param left The value left of the peak.
+	 * @param centre The peak value.
+	 * @param right The value right of the peak.
+	 * @return The offset, between -0.5 and 0.5, or 0 if the points are not a peak.
+	 */
+	protected static double fitParabola(double left,double centre,double right)
+	{
+		double denominator,offset;
+
+		denominator = left-(2.0*centre)+right;
+		if(denominator >= 0.0)
+			return 0.0;
+		offset = (left-right)/(2.0*denominator);
+		return Math.max(-0.5,Math.min(0.5,offset));
+	}
+
+	/**
+	 * Bilinearly interpolate a data array.
+	 * @param dataArray The data array, in FITS row order.
+	 * @param width The width of the array.
+	 * @param height The height of the array.
+	 * @param x The x position, in array coordinates.
+	 * @param y The y position, in array (FITS row) coordinates.
+	 * @return The interpolated value, or NaN if the position is outside the array.
+	 */
+	protected static float interpolate(float dataArray[],int width,int height,double x,double y)
+	{
+		double fx,fy;
+		int x0,y0,x1,y1;
+
+		if((x < 0.0)||(y < 0.0)||(x > width-1)||(y > height-1))
+			return Float.NaN;
+		x0 = (int)x;
+		y0 = (int)y;
+		x1 = Math.min(x0+1,width-1);
+		y1 = Math.min(y0+1,height-1);
+		fx = x-x0;
+		fy = y-y0;
+		return (float)((dataArray[(y0*width)+x0]*(1.0-fx)*(1.0-fy))+(dataArray[(y0*width)+x1]*fx*(1.0-fy))+
+			       (dataArray[(y1*width)+x0]*(1.0-fx)*fy)+(dataArray[(y1*width)+x1]*fx*fy));
+	}
+
+	/**
+	 * The shift of a frame relative to the reference.
+	 */
+	public static class Shift
+	{
+		/**
+		 * The x shift, in pixels.
+		 */
+		protected double x;
+		/**
+		 * The y shift, in pixels, in display coordinates (y increases downwards).
+		 */
+		protected double y;
+		/**
+		 * The height of the correlation peak, between 0 and 1. Low values mean the match is poor.
+		 */
+		protected double peak;
+
+		/**
+		 * Constructor.
+		 * @param sx The x shift.
+		 * @param sy The y shift, in display coordinates.
+		 * @param p The height of the correlation peak.
+		 */
+		public Shift(double sx,double sy,double p)
+		{
+			super();
+			x = sx;
+			y = sy;
+			peak = p;
+		}
+
+		/**
+		 * Get the x shift.
+		 * @return The shift, in pixels.
+		 */
+		public double getX()
+		{
+			return x;
+		}
+
+		/**
+		 * Get the y shift.
+		 * @return The shift, in pixels, in display coordinates (y increases downwards).
+		 */
+		public double getY()
+		{
+			return y;
+		}
+
+		/**
+		 * Get the height of the correlation peak.
+		 * @return The peak height, between 0 and 1.
+		 */
+		public double getPeak()
+		{
+			return peak;
+		}
+
+		/**
+		 * Return a string describing the shift.
+		 * @return The string.
+		 */
+		public String toString()
+		{
+			return "Shift: x = "+x+" y = "+y+" peak = "+peak;
+		}
+	}
+
+	/**
+	 * Test main method. Aligns a frame to a reference, prints the shift, and saves the difference image.
+	 * @param args The command line arguments: the reference filename, the frame filename and the
+	 *        output filename.
+	 */
+	public static void main(String args[])
+	{
+		FITSAligner aligner = null;
+		FITSImage referenceImage = null;
+		FITSImage image = null;
+		Shift shift = null;
+
+		if(args.length != 3)
+		{
+			System.err.println("java org.estar.fits.FITSAligner <reference> <frame> <difference>");
+			System.exit(1);
+		}
+		try
+		{
+			referenceImage = new FITSImage();
+			referenceImage.load(args[0]);
+			image = new FITSImage();
+			image.load(args[1]);
+			aligner = new FITSAligner();
+			aligner.setReference(referenceImage);
+			shift = aligner.findShift(image);
+			System.out.println(shift);
+			aligner.resample(image,shift,true).save(args[2]);
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSAligner failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,589 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSBackground.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * This class estimates a spatially varying background and noise (RMS) map for a loaded FITSImage,
+ * in the manner of SExtractor. The image is divided into a mesh of square cells. In each cell the pixels
+ * are iteratively 3 sigma clipped about the median, and the background is estimated as the mode
+ * (2.5*median - 1.5*mean), or the median if the cell is crowded. The mesh is then median filtered,
+ * and interpolated (bilinearly, between cell centres) to give the background at any pixel.
+ * <p>
+ * Cells are computed in parallel. Only the mesh is stored: the full resolution background is computed
+ * on demand, a row or pixel at a time, unless createBackgroundImage is called.
+ * <p>
+ * Row based methods use FITS row order (row 0 is the bottom of the displayed image), pixel based methods use the
+ * same display coordinates as FITSImage.getValue.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FITSBackground
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The minimum fraction of a cell's pixels that must survive clipping for the cell to be used.
+	 * Cells with less are filled in from their neighbours.
+	 */
+	protected final static double MIN_CELL_FRACTION = 0.5;
+	/**
+	 * The size of each mesh cell, in pixels.
+	 */
+	protected int meshSize = 64;
+	/**
+	 * The size of the median filter applied to the mesh, in cells.
+	 */
+	protected int filterSize = 3;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * The width of the image the background was computed for.
+	 */
+	protected int width = 0;
+	/**
+	 * The height of the image the background was computed for.
+	 */
+	protected int height = 0;
+	/**
+	 * The number of mesh cells in X.
+	 */
+	protected int meshWidth = 0;
+	/**
+	 * The number of mesh cells in Y.
+	 */
+	protected int meshHeight = 0;
+	/**
+	 * The background of each mesh cell, in FITS row order (cell row 0 is at the bottom).
+	 */
+	protected float meshBackground[] = null;
+	/**
+	 * The RMS of each mesh cell, in FITS row order.
+	 */
+	protected float meshRms[] = null;
+	/**
+	 * The full resolution background image, created on demand.
+	 * @see #createBackgroundImage
+	 */
+	protected FITSImage backgroundImage = null;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSBackground()
+	{
+		super();
+	}
+
+	/**
+	 * Set the size of each mesh cell.
+	 * @param s The size, in pixels, must be at least 2.
+	 * @exception IllegalArgumentException Thrown if s is less than 2.
+	 * @see #meshSize
+	 */
+	public void setMeshSize(int s) throws IllegalArgumentException
+	{
+		if(s < 2)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setMeshSize:Illegal size:"+s);
+		}
+		meshSize = s;
+	}
+
+	/**
+	 * Set the size of the median filter applied to the mesh.
+	 * @param s The size, in cells. 1 means no filtering. Must be odd.
+	 * @exception IllegalArgumentException Thrown if s is less than 1, or even.
+	 * @see #filterSize
+	 */
+	public void setFilterSize(int s) throws IllegalArgumentException
+	{
+		if((s < 1)||((s % 2) == 0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setFilterSize:Illegal size:"+s);
+		}
+		filterSize = s;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Compute the background mesh for the specified image.
+	 * @param image The image. It's data must have been loaded.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @see #computeCell
+	 * @see #fillEmptyCells
+	 * @see #filterMesh
+	 */
+	public void compute(FITSImage image) throws FITSException
+	{
+		final float dataArray[];
+		long startTime;
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":compute:Image has no data.");
+		}
+		startTime = FITSMetrics.start();
+		width = image.getWidth();
+		height = image.getHeight();
+		meshWidth = FITSParallel.getChunkCount(width,meshSize);
+		meshHeight = FITSParallel.getChunkCount(height,meshSize);
+		meshBackground = new float[meshWidth*meshHeight];
+		meshRms = new float[meshWidth*meshHeight];
+		backgroundImage = null;
+		FITSParallel.run(threadCount,meshHeight,new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				float buffer[];
+
+				buffer = new float[meshSize*meshSize];
+				for(int cx = 0; cx < meshWidth; cx++)
+					computeCell(dataArray,cx,index,buffer);
+			}
+		});
+		fillEmptyCells(meshBackground);
+		fillEmptyCells(meshRms);
+		if(filterSize > 1)
+		{
+			meshBackground = filterMesh(meshBackground);
+			meshRms = filterMesh(meshRms);
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_STATS,startTime);
+	}
+
+	/**
+	 * Compute the background and RMS of one mesh cell. If too few pixels survive clipping, NaN is stored.
+	 * @param dataArray The image data.
+	 * @param cx The cell X index.
+	 * @param cy The cell Y index (FITS row order).
+	 * @param buffer A scratch buffer of at least meshSize*meshSize elements.
+	 * @see #meshBackground
+	 * @see #meshRms
+	 */
+	protected void computeCell(float dataArray[],int cx,int cy,float buffer[])
+	{
+		double median,mean,sum,sigma,mode;
+		int x0,x1,y0,y1,n,start,end,newStart,newEnd,rowIndex,cellIndex;
+
+		x0 = cx*meshSize;
+		x1 = Math.min(width,x0+meshSize);
+		y0 = cy*meshSize;
+		y1 = Math.min(height,y0+meshSize);
+		cellIndex = (cy*meshWidth)+cx;
+		n = 0;
+		for(int y = y0; y < y1; y++)
+		{
+			rowIndex = y*width;
+			for(int x = x0; x < x1; x++)
+			{
+				if(Float.isNaN(dataArray[rowIndex+x]) == false)
+					buffer[n++] = dataArray[rowIndex+x];
+			}
+		}
+		if(n < 3)
+		{
+			meshBackground[cellIndex] = Float.NaN;
+			meshRms[cellIndex] = Float.NaN;
+			return;
+		}
+		Arrays.sort(buffer,0,n);
+		start = 0;
+		end = n;
+		median = FITSImageStacker.median(buffer,start,end);
+		mean = FITSImageStacker.mean(buffer,start,end);
+		sigma = 0.0;
+		for(int iteration = 0; iteration < 10; iteration++)
+		{
+			median = FITSImageStacker.median(buffer,start,end);
+			mean = FITSImageStacker.mean(buffer,start,end);
+			sum = 0.0;
+			for(int i = start; i < end; i++)
+				sum += (buffer[i]-mean)*(buffer[i]-mean);
+			sigma = Math.sqrt(sum/Math.max(1,end-start-1));
+			newStart = start;
+			while((newStart < end)&&(buffer[newStart] < median-(3.0*sigma)))
+				newStart++;
+			newEnd = end;
+			while((newEnd > newStart)&&(buffer[newEnd-1] > median+(3.0*sigma)))
+				newEnd--;
+			if(((newStart == start)&&(newEnd == end))||((newEnd-newStart) < 3))
+				break;
+			start = newStart;
+			end = newEnd;
+		}
+		if((end-start) < (MIN_CELL_FRACTION*(x1-x0)*(y1-y0)))
+		{
+			meshBackground[cellIndex] = Float.NaN;
+			meshRms[cellIndex] = Float.NaN;
+			return;
+		}
+		// SExtractor: use the mode estimate unless the cell is crowded
+		if((sigma > 0.0)&&(Math.abs(mean-median)/sigma >= 0.3))
+			mode = median;
+		else
+			mode = (2.5*median)-(1.5*mean);
+		meshBackground[cellIndex] = (float)mode;
+		meshRms[cellIndex] = (float)sigma;
+	}
+
+	/**
+	 * Replace NaN (unusable) cells in the mesh with the mean of the nearest usable cells, searching outwards
+	 * in square rings. If no cell is usable, all are set to 0.
+	 * @param mesh The mesh to fill in.
+	 */
+	protected void fillEmptyCells(float mesh[])
+	{
+		float filled[];
+		double sum;
+		int n,ring,maxRing;
+
+		filled = mesh.clone();
+		maxRing = Math.max(meshWidth,meshHeight);
+		for(int cy = 0; cy < meshHeight; cy++)
+		{
+			for(int cx = 0; cx < meshWidth; cx++)
+			{
+				if(Float.isNaN(mesh[(cy*meshWidth)+cx]) == false)
+					continue;
+				sum = 0.0;
+				n = 0;
+				for(ring = 1; (ring <= maxRing)&&(n == 0); ring++)
+				{
+					for(int y = cy-ring; y <= cy+ring; y++)
+					{
+						for(int x = cx-ring; x <= cx+ring; x++)
+						{
+							if((Math.abs(x-cx) != ring)&&(Math.abs(y-cy) != ring))
+								continue;
+							if((x < 0)||(y < 0)||(x >= meshWidth)||(y >= meshHeight))
+								continue;
+							if(Float.isNaN(mesh[(y*meshWidth)+x]))
+								continue;
+							sum += mesh[(y*meshWidth)+x];
+							n++;
+						}
+					}
+				}
+				filled[(cy*meshWidth)+cx] = (n > 0) ? (float)(sum/n) : 0.0f;
+			}
+		}
+		System.arraycopy(filled,0,mesh,0,mesh.length);
+	}
+
+	/**
+	 * Median filter the mesh, with a filterSize x filterSize box. The box is clipped at the mesh edges.
+	 * @param mesh The mesh to filter.
+	 * @return A new filtered mesh.
+	 * @see #filterSize
+	 */
+	protected float[] filterMesh(float mesh[])
+	{
+		float filtered[];
+		float values[];
+		int half,n;
+
+		filtered = new float[mesh.length];
+		values = new float[filterSize*filterSize];
+		half = filterSize/2;
+		for(int cy = 0; cy < meshHeight; cy++)
+		{
+			for(int cx = 0; cx < meshWidth; cx++)
+			{
+				n = 0;
+				for(int y = Math.max(0,cy-half); y <= Math.min(meshHeight-1,cy+half); y++)
+				{
+					for(int x = Math.max(0,cx-half); x <= Math.min(meshWidth-1,cx+half); x++)
+						values[n++] = mesh[(y*meshWidth)+x];
+				}
+				Arrays.sort(values,0,n);
+				filtered[(cy*meshWidth)+cx] = (float)FITSImageStacker.median(values,0,n);
+			}
+		}
+		return filtered;
+	}
+
+	/**
+	 * Get the width of the image the background was computed for.
+	 * @return The width, or 0 if the background has not been computed.
+	 * @see #width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the image the background was computed for.
+	 * @return The height, or 0 if the background has not been computed.
+	 * @see #height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Get the number of mesh cells in X.
+	 * @return The mesh width.
+	 * @see #meshWidth
+	 */
+	public int getMeshWidth()
+	{
+		return meshWidth;
+	}
+
+	/**
+	 * Get the number of mesh cells in Y.
+	 * @return The mesh height.
+	 * @see #meshHeight
+	 */
+	public int getMeshHeight()
+	{
+		return meshHeight;
+	}
+
+	/**
+	 * Get the sub-sampled background mesh. The array is <b>NOT</b> copied, and is in FITS row order.
+	 * @return The background of each cell, meshWidth*meshHeight elements.
+	 * @see #meshBackground
+	 */
+	public float[] getMeshBackground()
+	{
+		return meshBackground;
+	}
+
+	/**
+	 * Get the sub-sampled RMS mesh. The array is <b>NOT</b> copied, and is in FITS row order.
+	 * @return The RMS of each cell, meshWidth*meshHeight elements.
+	 * @see #meshRms
+	 */
+	public float[] getMeshRms()
+	{
+		return meshRms;
+	}
+
+	/**
+	 * Get the global background, the median of the background mesh.
+	 * @return The global background.
+	 * @see #meshBackground
+	 */
+	public double getGlobalBackground()
+	{
+		return meshMedian(meshBackground);
+	}
+
+	/**
+	 * Get the global RMS, the median of the RMS mesh.
+	 * @return The global RMS.
+	 * @see #meshRms
+	 */
+	public double getGlobalRms()
+	{
+		return meshMedian(meshRms);
+	}
+
+	/**
+	 * Get the interpolated background at a pixel.
+	 * @param x The x position, in the same coordinates as FITSImage.getValue.
+	 * @param y The y position, in the same coordinates as FITSImage.getValue.
+	 * @return The background.
+	 * @see #interpolate
+	 */
+	public float getBackground(int x,int y)
+	{
+		return interpolate(meshBackground,x,height-(y+1));
+	}
+
+	/**
+	 * Get the interpolated RMS at a pixel.
+	 * @param x The x position, in the same coordinates as FITSImage.getValue.
+	 * @param y The y position, in the same coordinates as FITSImage.getValue.
+	 * @return The RMS.
+	 * @see #interpolate
+	 */
+	public float getRms(int x,int y)
+	{
+		return interpolate(meshRms,x,height-(y+1));
+	}
+
+	/**
+	 * Get the interpolated background for a whole image row.
+	 * @param row The row, in FITS row order.
+	 * @param buffer A buffer of at least width elements to put the row in. Can be null.
+	 * @return The buffer, which is allocated if the passed in buffer was null or too small.
+	 * @see #interpolateRow
+	 */
+	public float[] getBackgroundRow(int row,float buffer[])
+	{
+		return interpolateRow(meshBackground,row,buffer);
+	}
+
+	/**
+	 * Get the interpolated RMS for a whole image row.
+	 * @param row The row, in FITS row order.
+	 * @param buffer A buffer of at least width elements to put the row in. Can be null.
+	 * @return The buffer, which is allocated if the passed in buffer was null or too small.
+	 * @see #interpolateRow
+	 */
+	public float[] getRmsRow(int row,float buffer[])
+	{
+		return interpolateRow(meshRms,row,buffer);
+	}
+
+	/**
+	 * Create (once) and return a full resolution background image. This doubles the memory used by
+	 * the image, so on large frames the row and pixel methods should be used instead.
+	 * @return The full resolution background, as a FITSImage of the same size as the input.
+	 * @see #backgroundImage
+	 * @see #getBackgroundRow
+	 */
+	public synchronized FITSImage createBackgroundImage()
+	{
+		float dataArray[];
+		float rowBuffer[];
+
+		if(backgroundImage != null)
+			return backgroundImage;
+		dataArray = new float[width*height];
+		rowBuffer = new float[width];
+		for(int row = 0; row < height; row++)
+		{
+			getBackgroundRow(row,rowBuffer);
+			System.arraycopy(rowBuffer,0,dataArray,row*width,width);
+		}
+		backgroundImage = new FITSImage(width,height,dataArray);
+		backgroundImage.setMinMaxPixelValue();
+		return backgroundImage;
+	}
+
+	/**
+	 * Bilinearly interpolate the mesh at a pixel, between cell centres. Beyond the outermost cell centres
+	 * the edge values are used.
+	 * @param mesh The mesh to interpolate.
+	 * @param x The x pixel position.
+	 * @param row The y pixel position, in FITS row order.
+	 * @return The interpolated value.
+	 */
+	protected float interpolate(float mesh[],int x,int row)
+	{
+		double fx,fy,wx,wy,v0,v1;
+		int cx0,cy0,cx1,cy1;
+
+		fx = clamp(((x+0.5)/meshSize)-0.5,meshWidth);
+		fy = clamp(((row+0.5)/meshSize)-0.5,meshHeight);
+		cx0 = (int)fx;
+		cy0 = (int)fy;
+		cx1 = Math.min(cx0+1,meshWidth-1);
+		cy1 = Math.min(cy0+1,meshHeight-1);
+		wx = fx-cx0;
+		wy = fy-cy0;
+		v0 = (mesh[(cy0*meshWidth)+cx0]*(1.0-wx))+(mesh[(cy0*meshWidth)+cx1]*wx);
+		v1 = (mesh[(cy1*meshWidth)+cx0]*(1.0-wx))+(mesh[(cy1*meshWidth)+cx1]*wx);
+		return (float)((v0*(1.0-wy))+(v1*wy));
+	}
+
+	/**
+	 * Bilinearly interpolate the mesh along a whole row.
+	 * @param mesh The mesh to interpolate.
+	 * @param row The row, in FITS row order.
+	 * @param buffer A buffer of at least width elements to put the row in. Can be null.
+	 * @return The buffer, which is allocated if the passed in buffer was null or too small.
+	 * @see #interpolate
+	 */
+	protected float[] interpolateRow(float mesh[],int row,float buffer[])
+	{
+		float meshRow[];
+		double fx,fy,wx,wy;
+		int cx0,cx1,cy0,cy1;
+
+		if((buffer == null)||(buffer.length < width))
+			buffer = new float[width];
+		// interpolate in y once per cell column
+		fy = clamp(((row+0.5)/meshSize)-0.5,meshHeight);
+		cy0 = (int)fy;
+		cy1 = Math.min(cy0+1,meshHeight-1);
+		wy = fy-cy0;
+		meshRow = new float[meshWidth];
+		for(int cx = 0; cx < meshWidth; cx++)
+		{
+			meshRow[cx] = (float)((mesh[(cy0*meshWidth)+cx]*(1.0-wy))+
+					      (mesh[(cy1*meshWidth)+cx]*wy));
+		}
+		for(int x = 0; x < width; x++)
+		{
+			fx = clamp(((x+0.5)/meshSize)-0.5,meshWidth);
+			cx0 = (int)fx;
+			cx1 = Math.min(cx0+1,meshWidth-1);
+			wx = fx-cx0;
+			buffer[x] = (float)((meshRow[cx0]*(1.0-wx))+(meshRow[cx1]*wx));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Clamp a fractional cell position to the range 0..n-1.
+	 * @param f The fractional cell position.
+	 * @param n The number of cells.
+	 * @return The clamped position.
+	 */
+	protected static double clamp(double f,int n)
+	{
+		if(f < 0.0)
+			return 0.0;
+		if(f > (n-1))
+			return (double)(n-1);
+		return f;
+	}
+
+	/**
+	 * Return the median of a mesh.
+	 * @param mesh The mesh.
+	 * @return The median, or 0 if the mesh has not been computed.
+	 */
+	protected static double meshMedian(float mesh[])
+	{
+		float values[];
+
+		if((mesh == null)||(mesh.length == 0))
+			return 0.0;
+		values = mesh.clone();
+		Arrays.sort(values);
+		return FITSImageStacker.median(values,0,values.length);
+	}
+}
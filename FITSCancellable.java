@@ -0,0 +1,39 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCancellable.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * Interface implemented by objects that can tell a long running operation to stop early. The operation
+ * polls isCancelled at convenient points (e.g. once per row), and abandons its work when it returns true.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#createImageSource(float,float,org.estar.fits.FITSCancellable)
+ * @see FITSRenderService
+ */
+public interface FITSCancellable
+{
+	/**
+	 * Get whether the operation has been cancelled.
+	 * @return true if the operation should stop.
+	 */
+	public boolean isCancelled();
+}
@@ -0,0 +1,294 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCard.java
+// $Header$
+package org.estar.fits;
+
+import java.text.*;
+import java.util.*;
+import org.eso.fits.*;
+
+/**
+ * This class contains static methods to format 80 character FITS header cards (keyword records),
+ * in the fixed format described in the FITS standard.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FITSCard
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The length of a FITS header card.
+	 */
+	public final static int CARD_LENGTH = 80;
+	/**
+	 * The length of a FITS block (logical record). Headers and data are padded to a multiple of this.
+	 */
+	public final static int BLOCK_LENGTH = 2880;
+	/**
+	 * The number of cards in a FITS block.
+	 */
+	public final static int CARDS_PER_BLOCK = BLOCK_LENGTH/CARD_LENGTH;
+	/**
+	 * The maximum length of a quoted string value, between the quotes, after doubling quotes within it:
+	 * the card less the keyword, value indicator and quotes.
+	 */
+	public final static int MAXIMUM_STRING_LENGTH = CARD_LENGTH-12;
+	/**
+	 * The date format used for date values.
+	 */
+	public final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+	/**
+	 * Format a logical (boolean) card. The value is right justified in column 30.
+	 * @param name The keyword name.
+	 * @param value The value.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 * @see #formatFixed
+	 */
+	public static String formatLogical(String name,boolean value,String comment)
+	{
+		return formatFixed(name,value ? "T" : "F",comment);
+	}
+
+	/**
+	 * Format an integer card. The value is right justified in column 30.
+	 * @param name The keyword name.
+	 * @param value The value.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 * @see #formatFixed
+	 */
+	public static String formatInteger(String name,long value,String comment)
+	{
+		return formatFixed(name,Long.toString(value),comment);
+	}
+
+	/**
+	 * Format a real (floating point) card. The value is right justified in column 30, using
+	 * an exponent if needed to fit in 20 characters.
+	 * @param name The keyword name.
+	 * @param value The value.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 * @exception IllegalArgumentException Thrown if the value is NaN or infinite, which FITS cannot represent.
+	 * @see #formatFixed
+	 */
+	public static String formatReal(String name,double value,String comment) throws IllegalArgumentException
+	{
+		String s = null;
+
+		if(Double.isNaN(value)||Double.isInfinite(value))
+		{
+			throw new IllegalArgumentException("org.estar.fits.FITSCard:formatReal:Keyword "+name+
+							   " has an illegal value:"+value);
+		}
+		s = Double.toString(value);
+		if(s.length() > 20)
+			s = new DecimalFormat("0.0###########E0").format(value);
+		// Double.toString uses 'E', which the standard allows
+		return formatFixed(name,s,comment);
+	}
+
+	/**
+	 * Format a character string card. The string is quoted, single quotes within it are doubled, and
+	 * it is padded to at least 8 characters. A string too long for the card is truncated inside the quotes,
+	 * to MAXIMUM_STRING_LENGTH characters (a doubled quote is not split), so the card stays valid. The comment
+	 * is truncated at the end of the card.
+	 * @param name The keyword name.
+	 * @param value The value.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 * @see #MAXIMUM_STRING_LENGTH
+	 */
+	public static String formatString(String name,String value,String comment)
+	{
+		StringBuffer sb = null;
+		StringBuffer valueBuffer = null;
+
+		valueBuffer = new StringBuffer();
+		valueBuffer.append('\'');
+		for(int i = 0; i < value.length(); i++)
+		{
+			if(value.charAt(i) == '\'')
+			{
+				if(valueBuffer.length()+2 > MAXIMUM_STRING_LENGTH+1)
+					break;
+				valueBuffer.append('\'');
+			}
+			else if(valueBuffer.length()+1 > MAXIMUM_STRING_LENGTH+1)
+				break;
+			valueBuffer.append(value.charAt(i));
+		}
+		while(valueBuffer.length() < 9)
+			valueBuffer.append(' ');
+		valueBuffer.append('\'');
+		sb = new StringBuffer();
+		sb.append(padName(name));
+		sb.append("= ");
+		sb.append(valueBuffer.toString());
+		appendComment(sb,comment);
+		return pad(sb);
+	}
+
+	/**
+	 * Format a date card, as a string value in the FITS ISO-8601 format in UTC.
+	 * @param name The keyword name.
+	 * @param value The value.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 * @see #DATE_FORMAT
+	 */
+	public static String formatDate(String name,Date value,String comment)
+	{
+		SimpleDateFormat dateFormat = null;
+
+		dateFormat = new SimpleDateFormat(DATE_FORMAT);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return formatString(name,dateFormat.format(value),comment);
+	}
+
+	/**
+	 * Format a commentary card (COMMENT, HISTORY or blank keyword), with no value indicator.
+	 * @param name The keyword name.
+	 * @param text The text.
+	 * @return The 80 character card.
+	 */
+	public static String formatCommentary(String name,String text)
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append(padName(name));
+		if(text != null)
+			sb.append(text);
+		return pad(sb);
+	}
+
+	/**
+	 * Format the END card.
+	 * @return The 80 character END card.
+	 */
+	public static String formatEnd()
+	{
+		return pad(new StringBuffer("END"));
+	}
+
+	/**
+	 * Format a jfits keyword, according to it's type.
+	 * @param keyword The keyword.
+	 * @return The 80 character card.
+	 */
+	public static String formatKeyword(FitsKeyword keyword)
+	{
+		switch(keyword.getType())
+		{
+			case FitsKeyword.BOOLEAN:
+				return formatLogical(keyword.getName(),keyword.getBool(),keyword.getComment());
+			case FitsKeyword.INTEGER:
+				return formatInteger(keyword.getName(),keyword.getInt(),keyword.getComment());
+			case FitsKeyword.REAL:
+				return formatReal(keyword.getName(),keyword.getReal(),keyword.getComment());
+			case FitsKeyword.STRING:
+				return formatString(keyword.getName(),keyword.getString(),keyword.getComment());
+			case FitsKeyword.DATE:
+				if(keyword.getDate() != null)
+				{
+					return formatDate(keyword.getName(),keyword.getDate(),
+							  keyword.getComment());
+				}
+				return formatString(keyword.getName(),keyword.getString(),keyword.getComment());
+			case FitsKeyword.COMMENT:
+				return formatCommentary(keyword.getName(),keyword.getString());
+			case FitsKeyword.NONE:
+			default:
+				return formatCommentary(keyword.getName(),keyword.getComment());
+		}
+	}
+
+	/**
+	 * Format a card whose value is a fixed format token right justified in column 30.
+	 * @param name The keyword name.
+	 * @param value The value token.
+	 * @param comment The comment, can be null.
+	 * @return The 80 character card.
+	 */
+	protected static String formatFixed(String name,String value,String comment)
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append(padName(name));
+		sb.append("= ");
+		for(int i = value.length(); i < 20; i++)
+			sb.append(' ');
+		sb.append(value);
+		appendComment(sb,comment);
+		return pad(sb);
+	}
+
+	/**
+	 * Append a comment to a card being built, if there is one.
+	 * @param sb The card being built.
+	 * @param comment The comment, can be null.
+	 */
+	protected static void appendComment(StringBuffer sb,String comment)
+	{
+		if((comment != null)&&(comment.length() > 0))
+		{
+			sb.append(" / ");
+			sb.append(comment);
+		}
+	}
+
+	/**
+	 * Pad a keyword name to 8 characters.
+	 * @param name The keyword name.
+	 * @return The padded name.
+	 */
+	protected static String padName(String name)
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer(name.toUpperCase());
+		while(sb.length() < 8)
+			sb.append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * Pad (or truncate) a card to 80 characters.
+	 * @param sb The card being built.
+	 * @return The 80 character card.
+	 * @see #CARD_LENGTH
+	 */
+	protected static String pad(StringBuffer sb)
+	{
+		while(sb.length() < CARD_LENGTH)
+			sb.append(' ');
+		if(sb.length() > CARD_LENGTH)
+			sb.setLength(CARD_LENGTH);
+		return sb.toString();
+	}
+}
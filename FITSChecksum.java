@@ -0,0 +1,610 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSChecksum.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * FITS CHECKSUM and DATASUM support. The checksum of a sequence of bytes is the 32 bit ones' complement sum
+ * of its big endian 32 bit words. DATASUM is the checksum of an HDU's data, as an unsigned decimal string;
+ * CHECKSUM is a 16 character ASCII encoding chosen so that the checksum of the whole HDU (header and data)
+ * is -0 (all ones).
+ * <p>
+ * An instance accumulates a checksum as bytes are passed to update. Ones' complement addition is associative
+ * and commutative, so checksums of separate chunks can be combined with add, which is how verify sums large
+ * files in parallel.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSChecksumInputStream
+ * @see FITSRowWriter#setChecksumEnabled
+ */
+public class FITSChecksum
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The value of CHECKSUM written into a header before the real checksum is known.
+	 */
+	public final static String ZERO_CHECKSUM = "0000000000000000";
+	/**
+	 * The number of bytes summed by each parallel task of verify, a whole number of FITS blocks.
+	 */
+	protected final static int CHUNK_LENGTH = 1024*FITSCard.BLOCK_LENGTH;
+	/**
+	 * Characters that are not allowed in an encoded checksum (punctuation between the digits and letters).
+	 */
+	protected final static int EXCLUDE_LIST[] = {0x3a,0x3b,0x3c,0x3d,0x3e,0x3f,0x40,
+						     0x5b,0x5c,0x5d,0x5e,0x5f,0x60};
+	/**
+	 * A mask of the low 32 bits.
+	 */
+	protected final static long MASK_32 = 0xffffffffL;
+	/**
+	 * The buffer used by each verify thread.
+	 */
+	private static ThreadLocal<ByteBuffer> chunkBuffer = new ThreadLocal<ByteBuffer>()
+	{
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(CHUNK_LENGTH);
+		}
+	};
+	/**
+	 * The checksum so far, unfolded (may exceed 32 bits).
+	 */
+	protected long sum = 0L;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSChecksum()
+	{
+		super();
+	}
+
+	/**
+	 * Add bytes to the checksum.
+	 * @param buffer The bytes.
+	 * @param offset The index of the first byte.
+	 * @param length The number of bytes, a multiple of 4.
+	 * @exception IllegalArgumentException Thrown if the length is not a multiple of 4.
+	 */
+	public void update(byte buffer[],int offset,int length) throws IllegalArgumentException
+	{
+		long s;
+		int end;
+
+		if((length % 4) != 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":update:Length "+length+
+							   " is not a multiple of 4.");
+		}
+		s = 0L;
+		end = offset+length;
+		for(int i = offset; i < end; i += 4)
+		{
+			s += (((long)(buffer[i] & 0xff)) << 24)|((buffer[i+1] & 0xff) << 16)|
+				((buffer[i+2] & 0xff) << 8)|(buffer[i+3] & 0xff);
+		}
+		add(s);
+	}
+
+	/**
+	 * Add the remaining bytes of a buffer to the checksum. The buffer's position is moved to its limit.
+	 * @param buffer The buffer, with a multiple of 4 bytes remaining.
+	 * @exception IllegalArgumentException Thrown if the number of bytes remaining is not a multiple of 4.
+	 */
+	public void update(ByteBuffer buffer) throws IllegalArgumentException
+	{
+		IntBuffer intBuffer = null;
+		long s;
+
+		if((buffer.remaining() % 4) != 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":update:Length "+
+							   buffer.remaining()+" is not a multiple of 4.");
+		}
+		intBuffer = buffer.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+		s = 0L;
+		while(intBuffer.hasRemaining())
+			s += intBuffer.get() & MASK_32;
+		buffer.position(buffer.limit());
+		add(s);
+	}
+
+	/**
+	 * Add another checksum (e.g. of a following chunk) to this one.
+	 * @param value The other checksum.
+	 */
+	public void add(long value)
+	{
+		sum = add(sum,value);
+	}
+
+	/**
+	 * Get the checksum.
+	 * @return The 32 bit checksum, as an unsigned value.
+	 */
+	public long getValue()
+	{
+		return fold(sum);
+	}
+
+	/**
+	 * Reset the checksum to 0.
+	 */
+	public void reset()
+	{
+		sum = 0L;
+	}
+
+	/**
+	 * Ones' complement addition of two checksums.
+	 * @param a A checksum (unfolded sums of up to 2^31 words are allowed).
+	 * @param b Another checksum.
+	 * @return The 32 bit sum.
+	 */
+	public static long add(long a,long b)
+	{
+		return fold(fold(a)+fold(b));
+	}
+
+	/**
+	 * Fold the carries above 32 bits back into the low 32 bits (end around carry).
+	 * @param value The unfolded sum.
+	 * @return The 32 bit ones' complement sum.
+	 */
+	protected static long fold(long value)
+	{
+		while((value >>> 32) != 0)
+			value = (value & MASK_32)+(value >>> 32);
+		return value;
+	}
+
+	/**
+	 * Encode a checksum as the 16 character CHECKSUM keyword value. The value written into a header is
+	 * encode(~hduSum), where hduSum is the checksum of the HDU with CHECKSUM set to ZERO_CHECKSUM: each
+	 * byte is spread over four characters offset from '0', so that replacing ZERO_CHECKSUM with the encoded
+	 * string adds ~hduSum to the HDU's checksum, making it -0.
+	 * @param value The value to encode (usually the complement of the HDU checksum).
+	 * @return The 16 character string.
+	 * @see #ZERO_CHECKSUM
+	 */
+	public static String encode(long value)
+	{
+		char ascii[];
+		int ch[];
+		int asc[];
+		int b,quotient,remainder;
+		boolean check;
+
+		ch = new int[4];
+		asc = new int[16];
+		for(int i = 0; i < 4; i++)
+		{
+			b = (int)((value >>> ((3-i)*8)) & 0xff);
+			quotient = (b/4)+'0';
+			remainder = b % 4;
+			for(int j = 0; j < 4; j++)
+				ch[j] = quotient;
+			ch[0] += remainder;
+			// move characters out of the punctuation ranges, in pairs so the sum is unchanged
+			check = true;
+			while(check)
+			{
+				check = false;
+				for(int k = 0; k < EXCLUDE_LIST.length; k++)
+				{
+					for(int j = 0; j < 4; j += 2)
+					{
+						if((ch[j] == EXCLUDE_LIST[k])||(ch[j+1] == EXCLUDE_LIST[k]))
+						{
+							ch[j]++;
+							ch[j+1]--;
+							check = true;
+						}
+					}
+				}
+			}
+			for(int j = 0; j < 4; j++)
+				asc[(4*j)+i] = ch[j];
+		}
+		// rotate right by one, so the string lines up with the 32 bit words of the card
+		ascii = new char[16];
+		for(int i = 0; i < 16; i++)
+			ascii[i] = (char)asc[(i+15) % 16];
+		return new String(ascii);
+	}
+
+	/**
+	 * Get whether an HDU checksum is -0 (or +0), i.e. the HDU's CHECKSUM is correct.
+	 * @param hduSum The checksum of the whole HDU, header and data.
+	 * @return true if the checksum is valid.
+	 */
+	public static boolean isValidHDUSum(long hduSum)
+	{
+		hduSum = fold(hduSum);
+		return (hduSum == MASK_32)||(hduSum == 0L);
+	}
+
+	/**
+	 * Verify every HDU of a file, using the default number of threads.
+	 * @param file The file.
+	 * @return The HDUs, with their checksums and CHECKSUM/DATASUM keyword values.
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not FITS, or a parallel task fails.
+	 * @see #verify(java.io.File,int)
+	 */
+	public static List<HDU> verify(File file) throws IOException,FITSException
+	{
+		return verify(file,0);
+	}
+
+	/**
+	 * Verify every HDU of a file. The headers are read first, to find where each HDU starts and ends;
+	 * then the file is split into chunks which are summed in parallel with positional FileChannel reads,
+	 * and the chunk sums combined into HDU sums. The file is read once.
+	 * @param file The file.
+	 * @param threadCount The number of threads, 0 (or less) for the default thread count.
+	 * @return The HDUs, with their checksums and CHECKSUM/DATASUM keyword values. Use HDU.isChecksumValid
+	 *         and HDU.isDatasumValid to check them.
+	 * @exception IOException Thrown if reading fails, or the file ends before the last HDU's data.
+	 * @exception FITSException Thrown if the file is not FITS, or a parallel task fails.
+	 * @see #readHDUList
+	 * @see #CHUNK_LENGTH
+	 */
+	public static List<HDU> verify(File file,int threadCount) throws IOException,FITSException
+	{
+		RandomAccessFile randomAccessFile = null;
+		final FileChannel channel;
+		final List<HDU> hduList;
+		final List<long[]> chunkList;
+		final long chunkSumList[];
+		HDU hdu = null;
+		long start,end,length;
+
+		randomAccessFile = new RandomAccessFile(file,"r");
+		try
+		{
+			hduList = readHDUList(randomAccessFile);
+			channel = randomAccessFile.getChannel();
+			// chunk list entries: {hdu index, 0 for header or 1 for data, start offset, length}
+			chunkList = new Vector<long[]>();
+			for(int i = 0; i < hduList.size(); i++)
+			{
+				hdu = hduList.get(i);
+				chunkList.add(new long[] {i,0,hdu.getOffset(),hdu.getHeaderLength()});
+				start = hdu.getOffset()+hdu.getHeaderLength();
+				end = start+hdu.getDataLength();
+				while(start < end)
+				{
+					length = Math.min(CHUNK_LENGTH,end-start);
+					chunkList.add(new long[] {i,1,start,length});
+					start += length;
+				}
+			}
+			chunkSumList = new long[chunkList.size()];
+			FITSParallel.run(threadCount,chunkList.size(),new FITSParallel.Task()
+			{
+				public void run(int index) throws Exception
+				{
+					long chunk[] = chunkList.get(index);
+
+					chunkSumList[index] = sum(channel,chunk[2],(int)chunk[3]);
+				}
+			});
+			for(int c = 0; c < chunkList.size(); c++)
+			{
+				hdu = hduList.get((int)chunkList.get(c)[0]);
+				if(chunkList.get(c)[1] == 0)
+					hdu.headerSum = add(hdu.headerSum,chunkSumList[c]);
+				else
+					hdu.dataSum = add(hdu.dataSum,chunkSumList[c]);
+			}
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		return hduList;
+	}
+
+	/**
+	 * Read the headers of every HDU in a file, to find where each starts and ends.
+	 * @param randomAccessFile The file.
+	 * @return The HDUs, with offsets, lengths and CHECKSUM/DATASUM keyword values set, but not sums.
+	 * @exception IOException Thrown if reading fails, or the file ends before the last HDU's data.
+	 * @exception FITSException Thrown if the file does not start with a FITS header.
+	 * @see FITSHeaderCards#read
+	 */
+	protected static List<HDU> readHDUList(RandomAccessFile randomAccessFile) throws IOException,FITSException
+	{
+		List<HDU> hduList = null;
+		FITSHeaderCards cards = null;
+		HDU hdu = null;
+		long offset,fileLength;
+
+		hduList = new Vector<HDU>();
+		fileLength = randomAccessFile.length();
+		offset = 0L;
+		while(offset < fileLength)
+		{
+			randomAccessFile.seek(offset);
+			cards = FITSHeaderCards.read(randomAccessFile);
+			hdu = new HDU(hduList.size(),offset,cards);
+			if(offset+hdu.getHeaderLength()+hdu.getDataLength() > fileLength)
+			{
+				throw new EOFException("org.estar.fits.FITSChecksum:readHDUList:HDU "+hdu.getIndex()+
+						       " data ends at "+(offset+hdu.getHeaderLength()+
+						       hdu.getDataLength())+" but the file is "+fileLength+" bytes long.");
+			}
+			hduList.add(hdu);
+			offset += hdu.getHeaderLength()+hdu.getDataLength();
+		}
+		return hduList;
+	}
+
+	/**
+	 * Sum a region of a file, using this thread's chunk buffer.
+	 * @param channel The file channel, read with positional reads so it can be shared between threads.
+	 * @param position The offset of the region.
+	 * @param length The length of the region, at most CHUNK_LENGTH and a multiple of 4.
+	 * @return The checksum of the region.
+	 * @exception IOException Thrown if reading fails, or the file ends before the end of the region.
+	 */
+	protected static long sum(FileChannel channel,long position,int length) throws IOException
+	{
+		FITSChecksum checksum = null;
+		ByteBuffer buffer = null;
+		int n;
+
+		buffer = chunkBuffer.get();
+		buffer.clear();
+		buffer.limit(length);
+		while(buffer.hasRemaining())
+		{
+			n = channel.read(buffer,position+buffer.position());
+			if(n < 0)
+			{
+				throw new EOFException("org.estar.fits.FITSChecksum:sum:File ended at "+
+						       (position+buffer.position())+".");
+			}
+		}
+		FITSMetrics.recordBytesRead(length);
+		buffer.flip();
+		checksum = new FITSChecksum();
+		checksum.update(buffer);
+		return checksum.getValue();
+	}
+
+	/**
+	 * The position, checksums and CHECKSUM/DATASUM keyword values of one HDU.
+	 */
+	public static class HDU
+	{
+		/**
+		 * The index of the HDU in the file, 0 for the primary HDU.
+		 */
+		protected int index;
+		/**
+		 * The offset of the HDU's header in the file.
+		 */
+		protected long offset;
+		/**
+		 * The length of the header, a whole number of blocks.
+		 */
+		protected long headerLength;
+		/**
+		 * The length of the data, a whole number of blocks.
+		 */
+		protected long dataLength;
+		/**
+		 * The checksum of the header.
+		 */
+		protected long headerSum = 0L;
+		/**
+		 * The checksum of the data.
+		 */
+		protected long dataSum = 0L;
+		/**
+		 * The value of the CHECKSUM keyword, or null if there is none.
+		 */
+		protected String checksumKeyword = null;
+		/**
+		 * The value of the DATASUM keyword, or null if there is none.
+		 */
+		protected String datasumKeyword = null;
+
+		/**
+		 * Constructor.
+		 * @param i The index of the HDU in the file.
+		 * @param o The offset of the HDU in the file.
+		 * @param cards The HDU's header.
+		 * @see FITSHeaderCards#getDataBlockCount
+		 */
+		public HDU(int i,long o,FITSHeaderCards cards)
+		{
+			super();
+			index = i;
+			offset = o;
+			headerLength = ((long)cards.getBlockCount())*FITSCard.BLOCK_LENGTH;
+			dataLength = cards.getDataBlockCount()*FITSCard.BLOCK_LENGTH;
+			if(cards.containsKeyword("CHECKSUM"))
+				checksumKeyword = cards.getString("CHECKSUM");
+			if(cards.containsKeyword("DATASUM"))
+				datasumKeyword = cards.getString("DATASUM");
+		}
+
+		/**
+		 * Get the index of the HDU in the file.
+		 * @return The index, 0 for the primary HDU.
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		/**
+		 * Get the offset of the HDU in the file.
+		 * @return The offset, in bytes.
+		 */
+		public long getOffset()
+		{
+			return offset;
+		}
+
+		/**
+		 * Get the length of the header, a whole number of blocks.
+		 * @return The length, in bytes.
+		 */
+		public long getHeaderLength()
+		{
+			return headerLength;
+		}
+
+		/**
+		 * Get the length of the data, a whole number of blocks.
+		 * @return The length, in bytes.
+		 */
+		public long getDataLength()
+		{
+			return dataLength;
+		}
+
+		/**
+		 * Get the checksum of the data, as stored in DATASUM.
+		 * @return The checksum.
+		 */
+		public long getDataSum()
+		{
+			return dataSum;
+		}
+
+		/**
+		 * Get the checksum of the whole HDU. This is -0 (0xffffffff) if CHECKSUM is correct.
+		 * @return The checksum.
+		 */
+		public long getHDUSum()
+		{
+			return add(headerSum,dataSum);
+		}
+
+		/**
+		 * Get whether the header has a CHECKSUM keyword.
+		 * @return true if it has.
+		 */
+		public boolean hasChecksum()
+		{
+			return checksumKeyword != null;
+		}
+
+		/**
+		 * Get whether the header has a DATASUM keyword.
+		 * @return true if it has.
+		 */
+		public boolean hasDatasum()
+		{
+			return datasumKeyword != null;
+		}
+
+		/**
+		 * Get whether the HDU's checksum is correct.
+		 * @return true if the header has a CHECKSUM keyword, and the HDU sums to -0.
+		 * @see FITSChecksum#isValidHDUSum
+		 */
+		public boolean isChecksumValid()
+		{
+			return hasChecksum() && isValidHDUSum(getHDUSum());
+		}
+
+		/**
+		 * Get whether the data's checksum matches DATASUM.
+		 * @return true if the header has a DATASUM keyword, and its value is the data's checksum.
+		 */
+		public boolean isDatasumValid()
+		{
+			if(hasDatasum() == false)
+				return false;
+			try
+			{
+				return Long.parseLong(datasumKeyword.trim()) == dataSum;
+			}
+			catch(NumberFormatException e)
+			{
+				return false;
+			}
+		}
+
+		/**
+		 * Return a string describing the HDU's checksums.
+		 * @return The string.
+		 */
+		public String toString()
+		{
+			return "HDU "+index+": offset="+offset+" header="+headerLength+" data="+dataLength+
+				" datasum="+dataSum+" ("+(hasDatasum() ? (isDatasumValid() ? "ok" : "BAD") : "none")+
+				") checksum="+Long.toHexString(getHDUSum())+" ("+
+				(hasChecksum() ? (isChecksumValid() ? "ok" : "BAD") : "none")+")";
+		}
+	}
+
+	/**
+	 * Test main method. Verifies the checksums of each file on the command line.
+	 * @param args The filenames.
+	 */
+	public static void main(String args[])
+	{
+		List<HDU> hduList = null;
+		long startTime;
+		long byteCount;
+
+		if(args.length < 1)
+		{
+			System.err.println("java org.estar.fits.FITSChecksum <filename> ...");
+			System.exit(1);
+		}
+		try
+		{
+			for(int i = 0; i < args.length; i++)
+			{
+				startTime = System.nanoTime();
+				hduList = verify(new File(args[i]));
+				byteCount = new File(args[i]).length();
+				System.out.println(args[i]+": "+(((double)byteCount)/(1024.0*1024.0))/
+						   ((System.nanoTime()-startTime)/1.0e9)+" Mb/s");
+				for(int j = 0; j < hduList.size(); j++)
+					System.out.println("\t"+hduList.get(j));
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSChecksum failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSChecksumInputStream.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An input stream that computes the checksums of each HDU of a FITS file as it is read, so CHECKSUM and
+ * DATASUM can be verified while a file is loaded, without reading it a second time. The stream follows the
+ * FITS structure itself: each 2880 byte block is summed as it passes; header blocks are kept until the END
+ * card, then parsed to find the length of the data that follows.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSChecksum
+ * @see FITSImage#load(java.lang.String,boolean)
+ */
+public class FITSChecksumInputStream extends FilterInputStream
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The block being filled.
+	 */
+	protected byte block[] = null;
+	/**
+	 * The number of bytes in the block being filled.
+	 */
+	protected int blockFill = 0;
+	/**
+	 * The number of bytes that have passed through the stream.
+	 */
+	protected long position = 0L;
+	/**
+	 * Whether the stream is in a header (or between HDUs), rather than in data.
+	 */
+	protected boolean inHeader = true;
+	/**
+	 * Whether the stream has found something that is not a FITS header, and has stopped following the file.
+	 */
+	protected boolean stopped = false;
+	/**
+	 * The blocks of the header being read.
+	 */
+	protected byte headerBuffer[] = null;
+	/**
+	 * The number of blocks of the header being read.
+	 */
+	protected int headerBlockCount = 0;
+	/**
+	 * The checksum of the header being read.
+	 */
+	protected long headerSum = 0L;
+	/**
+	 * The offset of the header being read.
+	 */
+	protected long headerOffset = 0L;
+	/**
+	 * The number of data blocks of the current HDU still to be read.
+	 */
+	protected long dataBlocksRemaining = 0L;
+	/**
+	 * The HDUs whose headers have been read.
+	 */
+	protected List<FITSChecksum.HDU> hduList = null;
+	/**
+	 * The number of HDUs that have been completely read.
+	 */
+	protected int completeCount = 0;
+
+	/**
+	 * Constructor.
+	 * @param is The stream to read from, positioned at the start of a FITS file.
+	 */
+	public FITSChecksumInputStream(InputStream is)
+	{
+		super(is);
+		block = new byte[FITSCard.BLOCK_LENGTH];
+		headerBuffer = new byte[FITSCard.BLOCK_LENGTH];
+		hduList = new Vector<FITSChecksum.HDU>();
+	}
+
+	/**
+	 * Read a byte.
+	 * @return The byte, or -1 at the end of the stream.
+	 * @exception IOException Thrown if reading fails.
+	 * @see #update
+	 */
+	public int read() throws IOException
+	{
+		int b;
+
+		b = in.read();
+		if(b >= 0)
+		{
+			block[blockFill++] = (byte)b;
+			position++;
+			if(blockFill == block.length)
+				endBlock();
+		}
+		return b;
+	}
+
+	/**
+	 * Read bytes.
+	 * @param buffer The buffer to read into.
+	 * @param offset The index in the buffer to read into.
+	 * @param length The maximum number of bytes to read.
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @exception IOException Thrown if reading fails.
+	 * @see #update
+	 */
+	public int read(byte buffer[],int offset,int length) throws IOException
+	{
+		int n;
+
+		n = in.read(buffer,offset,length);
+		if(n > 0)
+			update(buffer,offset,n);
+		return n;
+	}
+
+	/**
+	 * Skip bytes. The bytes are read, so they are included in the checksums.
+	 * @param n The number of bytes to skip.
+	 * @return The number of bytes skipped.
+	 * @exception IOException Thrown if reading fails.
+	 */
+	public long skip(long n) throws IOException
+	{
+		byte buffer[];
+		long skipped;
+		int count;
+
+		buffer = new byte[(int)Math.min(n,FITSCard.BLOCK_LENGTH)];
+		skipped = 0L;
+		while(skipped < n)
+		{
+			count = read(buffer,0,(int)Math.min(n-skipped,buffer.length));
+			if(count < 0)
+				break;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Mark is not supported, as bytes read again would be summed twice.
+	 * @return false.
+	 */
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * Get the HDUs whose headers have been read. The sums of an HDU are only complete once its data has been
+	 * read, see isComplete.
+	 * @return The HDUs.
+	 */
+	public List<FITSChecksum.HDU> getHDUList()
+	{
+		return hduList;
+	}
+
+	/**
+	 * Get whether an HDU has been completely read, so its sums are final.
+	 * @param index The index of the HDU, 0 for the primary HDU.
+	 * @return true if the HDU has been completely read.
+	 */
+	public boolean isComplete(int index)
+	{
+		return index < completeCount;
+	}
+
+	/**
+	 * Read the rest of an HDU, e.g. the padding after the data that the loader did not need.
+	 * @param index The index of the HDU, 0 for the primary HDU.
+	 * @exception IOException Thrown if reading fails, or the stream ends before the end of the HDU.
+	 * @see #isComplete
+	 */
+	public void readToEnd(int index) throws IOException
+	{
+		byte buffer[];
+
+		buffer = new byte[FITSCard.BLOCK_LENGTH];
+		while((isComplete(index) == false)&&(stopped == false))
+		{
+			if(read(buffer,0,FITSCard.BLOCK_LENGTH-blockFill) < 0)
+			{
+				throw new EOFException(this.getClass().getName()+":readToEnd:Stream ended at "+position+
+						       " before the end of HDU "+index+".");
+			}
+		}
+	}
+
+	/**
+	 * Verify the CHECKSUM and DATASUM of an HDU. The rest of the HDU is read first, if necessary.
+	 * Keywords that are not in the header are not checked.
+	 * @param index The index of the HDU, 0 for the primary HDU.
+	 * @return The HDU, so the caller can see which keywords were present.
+	 * @exception IOException Thrown if reading fails, or the stream ends before the end of the HDU.
+	 * @exception FITSException Thrown if the HDU does not exist, or CHECKSUM or DATASUM is wrong.
+	 * @see #readToEnd
+	 */
+	public FITSChecksum.HDU verify(int index) throws IOException,FITSException
+	{
+		FITSChecksum.HDU hdu = null;
+
+		readToEnd(index);
+		if(index >= hduList.size())
+		{
+			throw new FITSException(this.getClass().getName()+":verify:No HDU "+index+" in stream.");
+		}
+		hdu = hduList.get(index);
+		if(hdu.hasDatasum() && (hdu.isDatasumValid() == false))
+		{
+			throw new FITSException(this.getClass().getName()+":verify:DATASUM mismatch:"+hdu);
+		}
+		if(hdu.hasChecksum() && (hdu.isChecksumValid() == false))
+		{
+			throw new FITSException(this.getClass().getName()+":verify:CHECKSUM mismatch:"+hdu);
+		}
+		return hdu;
+	}
+
+	/**
+	 * Pass bytes that have been read through the block buffer, summing each block as it is filled.
+	 * @param buffer The bytes.
+	 * @param offset The index of the first byte.
+	 * @param length The number of bytes.
+	 * @see #endBlock
+	 */
+	protected void update(byte buffer[],int offset,int length)
+	{
+		int n;
+
+		while(length > 0)
+		{
+			n = Math.min(length,block.length-blockFill);
+			System.arraycopy(buffer,offset,block,blockFill,n);
+			blockFill += n;
+			position += n;
+			offset += n;
+			length -= n;
+			if(blockFill == block.length)
+				endBlock();
+		}
+	}
+
+	/**
+	 * Sum a completed block, and add it to the current header or data.
+	 * @see #endHeaderBlock
+	 */
+	protected void endBlock()
+	{
+		FITSChecksum checksum = null;
+		FITSChecksum.HDU hdu = null;
+
+		blockFill = 0;
+		if(stopped)
+			return;
+		checksum = new FITSChecksum();
+		checksum.update(block,0,block.length);
+		if(inHeader)
+			endHeaderBlock(checksum.getValue());
+		else
+		{
+			hdu = hduList.get(hduList.size()-1);
+			hdu.dataSum = FITSChecksum.add(hdu.dataSum,checksum.getValue());
+			dataBlocksRemaining--;
+			if(dataBlocksRemaining == 0)
+				endHDU();
+		}
+	}
+
+	/**
+	 * Add a completed header block to the header. If it contains the END card, the header is parsed,
+	 * and the stream moves on to the data. If the first block of a header does not start with SIMPLE or
+	 * XTENSION (e.g. trailing padding after the last HDU), the stream stops following the file.
+	 * @param sum The checksum of the block.
+	 * @see #headerBuffer
+	 * @see FITSHeaderCards#isEndCard
+	 */
+	protected void endHeaderBlock(long sum)
+	{
+		FITSChecksum.HDU hdu = null;
+		FITSHeaderCards cards = null;
+		byte newBuffer[];
+		int cardCount;
+
+		if(headerBlockCount == 0)
+		{
+			if((FITSHeaderCards.startsWith(block,0,"SIMPLE  ") == false)&&
+			   (FITSHeaderCards.startsWith(block,0,"XTENSION") == false))
+			{
+				stopped = true;
+				return;
+			}
+			headerOffset = position-FITSCard.BLOCK_LENGTH;
+			headerSum = 0L;
+		}
+		if(headerBuffer.length < ((headerBlockCount+1)*FITSCard.BLOCK_LENGTH))
+		{
+			newBuffer = new byte[headerBuffer.length*2];
+			System.arraycopy(headerBuffer,0,newBuffer,0,headerBlockCount*FITSCard.BLOCK_LENGTH);
+			headerBuffer = newBuffer;
+		}
+		System.arraycopy(block,0,headerBuffer,headerBlockCount*FITSCard.BLOCK_LENGTH,FITSCard.BLOCK_LENGTH);
+		headerSum = FITSChecksum.add(headerSum,sum);
+		for(int c = 0; c < FITSCard.CARDS_PER_BLOCK; c++)
+		{
+			if(FITSHeaderCards.isEndCard(block,c*FITSCard.CARD_LENGTH))
+			{
+				cardCount = (headerBlockCount*FITSCard.CARDS_PER_BLOCK)+c;
+				cards = new FITSHeaderCards(FITSHeaderCards.trimBuffer(headerBuffer,cardCount),cardCount);
+				hdu = new FITSChecksum.HDU(hduList.size(),headerOffset,cards);
+				hdu.headerSum = headerSum;
+				hduList.add(hdu);
+				headerBlockCount = 0;
+				dataBlocksRemaining = cards.getDataBlockCount();
+				if(dataBlocksRemaining == 0)
+					endHDU();
+				else
+					inHeader = false;
+				return;
+			}
+		}
+		headerBlockCount++;
+	}
+
+	/**
+	 * Finish the current HDU, and expect another header.
+	 */
+	protected void endHDU()
+	{
+		completeCount = hduList.size();
+		inHeader = true;
+		headerBlockCount = 0;
+	}
+}
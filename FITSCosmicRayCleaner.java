@@ -0,0 +1,756 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCosmicRayCleaner.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * Detects and cleans cosmic rays in a FITSImage, by Laplacian edge detection (van Dokkum, 2001,
+ * PASP 113, 1420: "L.A.Cosmic"). Each iteration:
+ * <ul>
+ * <li>L+ is the Laplacian of the image subsampled by 2, with negative values clipped, rebinned.
+ * <li>S is L+ in units of the noise expected from the 5x5 median of the image, the gain and the read noise,
+ *     and S' is S minus its 5x5 median, which removes the smooth response to stars and galaxies.
+ * <li>Candidates have S' above sigmaClip, and S' over the fine structure image F (the 3x3 median minus the 7x7
+ *     median of that, in noise units) above objectLimit, which rejects the cores of stars.
+ * <li>The candidates are grown to neighbours with S' above sigmaClip, then to their neighbours with S' above
+ *     sigmaFraction*sigmaClip.
+ * <li>Cosmic ray pixels are replaced by the median of the surrounding 5x5 pixels that are not cosmic rays
+ *     (7x7, if there are none).
+ * </ul>
+ * Iteration stops when no new cosmic rays are found, or after maxIterationCount iterations. The image should
+ * not be sky subtracted, as the sky is part of the noise model.
+ * <p>
+ * The image is cleaned in square tiles, in parallel. Each tile is cleaned with a halo of surrounding pixels,
+ * wide enough for every step of every iteration, so tiles are independent and the result does not depend on
+ * the tile size; temporary memory is a few tile sized arrays per thread. Medians used only to test
+ * thresholds are computed only where the threshold can be passed.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSCosmicRayResult
+ */
+public class FITSCosmicRayCleaner
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The default size of the square tiles cleaned by each parallel task, in pixels.
+	 */
+	public final static int DEFAULT_TILE_SIZE = 256;
+	/**
+	 * The width of halo needed by each iteration: Laplacian and 5x5 median of S (S', 4 pixels, also the
+	 * 3x3 and 7x7 medians of F), two growing steps, and the cleaning median, which is 7x7 (3 pixels) where
+	 * a 5x5 window has no good pixels.
+	 */
+	protected final static int HALO_PER_ITERATION = 9;
+	/**
+	 * The minimum value of the fine structure image, in noise units, so S'/F stays finite.
+	 */
+	protected final static double MIN_FINE_STRUCTURE = 0.01;
+	/**
+	 * The detector gain, in electrons per ADU.
+	 */
+	protected double gain = 1.0;
+	/**
+	 * The detector read noise, in electrons.
+	 */
+	protected double readNoise = 6.5;
+	/**
+	 * The detection limit of S', in sigma.
+	 */
+	protected double sigmaClip = 4.5;
+	/**
+	 * The fraction of sigmaClip used as the detection limit for neighbouring pixels.
+	 */
+	protected double sigmaFraction = 0.3;
+	/**
+	 * The minimum contrast between the Laplacian image and the fine structure image.
+	 */
+	protected double objectLimit = 5.0;
+	/**
+	 * The maximum number of iterations.
+	 */
+	protected int maxIterationCount = 4;
+	/**
+	 * The size of the square tiles cleaned by each parallel task.
+	 */
+	protected int tileSize = DEFAULT_TILE_SIZE;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSCosmicRayCleaner()
+	{
+		super();
+	}
+
+	/**
+	 * Set the detector characteristics used in the noise model.
+	 * @param g The gain, in electrons per ADU.
+	 * @param r The read noise, in electrons.
+	 * @exception IllegalArgumentException Thrown if the gain is not positive, or the read noise is negative.
+	 * @see #gain
+	 * @see #readNoise
+	 */
+	public void setDetector(double g,double r) throws IllegalArgumentException
+	{
+		if((g <= 0.0)||(r < 0.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setDetector:Illegal gain "+g+
+							   " or read noise "+r+".");
+		}
+		gain = g;
+		readNoise = r;
+	}
+
+	/**
+	 * Set the detection limits.
+	 * @param clip The detection limit of S', in sigma (L.A.Cosmic sigclip, default 4.5).
+	 * @param fraction The fraction of clip used for neighbouring pixels (sigfrac, default 0.3).
+	 * @param limit The minimum contrast between the Laplacian and fine structure images (objlim, default 5).
+	 * @exception IllegalArgumentException Thrown if a value is not positive, or the fraction is above 1.
+	 * @see #sigmaClip
+	 * @see #sigmaFraction
+	 * @see #objectLimit
+	 */
+	public void setLimits(double clip,double fraction,double limit) throws IllegalArgumentException
+	{
+		if((clip <= 0.0)||(fraction <= 0.0)||(fraction > 1.0)||(limit <= 0.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setLimits:Illegal limits:"+
+							   clip+","+fraction+","+limit);
+		}
+		sigmaClip = clip;
+		sigmaFraction = fraction;
+		objectLimit = limit;
+	}
+
+	/**
+	 * Set the maximum number of iterations. More iterations find the fainter pixels of long tracks, but the
+	 * halo, and so the work per tile, grows with the count.
+	 * @param n The number of iterations, at least 1.
+	 * @exception IllegalArgumentException Thrown if n is less than 1.
+	 * @see #maxIterationCount
+	 */
+	public void setMaxIterationCount(int n) throws IllegalArgumentException
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setMaxIterationCount:"+
+							   "Illegal count:"+n);
+		}
+		maxIterationCount = n;
+	}
+
+	/**
+	 * Set the size of the tiles cleaned by each parallel task.
+	 * @param s The tile size, in pixels.
+	 * @exception IllegalArgumentException Thrown if the size is less than 1.
+	 * @see #tileSize
+	 */
+	public void setTileSize(int s) throws IllegalArgumentException
+	{
+		if(s < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setTileSize:Illegal size:"+s);
+		}
+		tileSize = s;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Detect and clean the cosmic rays in an image. The image is not changed.
+	 * @param image The image to clean. It's data must have been loaded.
+	 * @return The result, holding a cleaned copy of the image, with the same metadata, and the cosmic ray mask.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @see #cleanTile
+	 */
+	public FITSCosmicRayResult clean(FITSImage image) throws FITSException
+	{
+		final FITSCosmicRayResult result;
+		final float dataArray[],cleanArray[];
+		final int width,height,tileCountX;
+		FITSImage cleanImage = null;
+		long startTime;
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":clean:Image has no data.");
+		}
+		startTime = System.nanoTime();
+		width = image.getWidth();
+		height = image.getHeight();
+		cleanArray = new float[dataArray.length];
+		tileCountX = FITSParallel.getChunkCount(width,tileSize);
+		result = new FITSCosmicRayResult(width,height);
+		FITSParallel.run(threadCount,tileCountX*FITSParallel.getChunkCount(height,tileSize),
+				 new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				int x0,y0,iterationCount;
+
+				x0 = (index % tileCountX)*tileSize;
+				y0 = (index/tileCountX)*tileSize;
+				iterationCount = cleanTile(dataArray,width,height,x0,y0,Math.min(width,x0+tileSize)-1,
+							   Math.min(height,y0+tileSize)-1,cleanArray,result);
+				synchronized(result)
+				{
+					result.iterationCount = Math.max(result.iterationCount,iterationCount);
+				}
+			}
+		});
+		cleanImage = new FITSImage(width,height,cleanArray);
+		cleanImage.fcRA = image.fcRA;
+		cleanImage.fcDec = image.fcDec;
+		cleanImage.xPlateScale = image.xPlateScale;
+		cleanImage.yPlateScale = image.yPlateScale;
+		cleanImage.objectName = image.objectName;
+		cleanImage.dateObs = image.dateObs;
+		cleanImage.header = image.header;
+		cleanImage.headerCards = image.headerCards;
+		cleanImage.bitpix = image.bitpix;
+		cleanImage.bscale = image.bscale;
+		cleanImage.bzero = image.bzero;
+		cleanImage.blank = image.blank;
+		cleanImage.blankEnabled = image.blankEnabled;
+		cleanImage.setMinMaxPixelValue();
+		result.image = cleanImage;
+		result.elapsedNanos = System.nanoTime()-startTime;
+		return result;
+	}
+
+	/**
+	 * Return a string describing the cleaner.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": gain="+gain+" readNoise="+readNoise+" sigmaClip="+sigmaClip+
+			" sigmaFraction="+sigmaFraction+" objectLimit="+objectLimit+" iterations="+maxIterationCount;
+	}
+
+	/**
+	 * Clean one tile. The tile and its halo are copied into a work region, which is iteratively cleaned;
+	 * then the tile (without the halo) is copied to the destination, and its cosmic ray pixels set in the
+	 * result's mask. Coordinates are in FITS row order.
+	 * @param src The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param x0 The first column of the tile.
+	 * @param y0 The first row of the tile.
+	 * @param x1 The last column of the tile.
+	 * @param y1 The last row of the tile.
+	 * @param dst The cleaned image data to fill in.
+	 * @param result The result whose mask is set. It is locked while the mask is set.
+	 * @return The number of iterations done.
+	 * @see #findCosmicRays
+	 * @see #replaceCosmicRays
+	 */
+	protected int cleanTile(float src[],int width,int height,int x0,int y0,int x1,int y1,float dst[],
+				FITSCosmicRayResult result)
+	{
+		Region region = null;
+		int halo,iteration;
+
+		halo = HALO_PER_ITERATION*maxIterationCount;
+		region = new Region(Math.max(0,x0-halo),Math.max(0,y0-halo),Math.min(width-1,x1+halo),
+				    Math.min(height-1,y1+halo));
+		for(int y = 0; y < region.height; y++)
+		{
+			System.arraycopy(src,((region.y0+y)*width)+region.x0,region.work,y*region.width,region.width);
+		}
+		iteration = 0;
+		while(iteration < maxIterationCount)
+		{
+			iteration++;
+			if(findCosmicRays(region) == 0)
+				break;
+			replaceCosmicRays(region);
+		}
+		for(int y = y0; y <= y1; y++)
+		{
+			System.arraycopy(region.work,((y-region.y0)*region.width)+(x0-region.x0),dst,(y*width)+x0,
+					 (x1-x0)+1);
+		}
+		synchronized(result)
+		{
+			for(int y = y0; y <= y1; y++)
+			{
+				for(int x = x0; x <= x1; x++)
+				{
+					if(region.mask[((y-region.y0)*region.width)+(x-region.x0)])
+						result.mask.set((y*width)+x);
+				}
+			}
+		}
+		return iteration;
+	}
+
+	/**
+	 * Find the cosmic rays in a region's work image that are not already in its mask, and add them.
+	 * @param region The region.
+	 * @return The number of new cosmic ray pixels.
+	 * @see #laplacian
+	 */
+	protected int findCosmicRays(Region region)
+	{
+		float scratch[];
+		double lowLimit,fine;
+		float median;
+		int w,h,i,newCount;
+
+		w = region.width;
+		h = region.height;
+		scratch = new float[49];
+		lowLimit = sigmaFraction*sigmaClip;
+		// S = L+/2N, the factor 2 as the Laplacian of the subsampled image is half that of the image
+		for(int y = 0; y < h; y++)
+		{
+			for(int x = 0; x < w; x++)
+			{
+				i = (y*w)+x;
+				region.noise[i] = Float.NaN;
+				region.s[i] = 0.0f;
+				region.fineDone[i] = false;
+				region.candidate[i] = false;
+				region.grow[i] = false;
+				if(laplacian(region.work,w,h,x,y,region.lPlus,i) <= 0.0f)
+					continue;
+				median = windowMedian(region.work,w,h,x,y,2,null,scratch);
+				if(Float.isNaN(median))
+					continue;
+				region.noise[i] = (float)(Math.sqrt((Math.max(median,0.0f)*gain)+(readNoise*readNoise))/gain);
+				region.s[i] = (float)(region.lPlus[i]/(2.0*region.noise[i]));
+			}
+		}
+		// S' = S - med5(S), which is at most S (S is not negative), so only needed where S passes the low limit
+		for(int y = 0; y < h; y++)
+		{
+			for(int x = 0; x < w; x++)
+			{
+				i = (y*w)+x;
+				if(region.s[i] > lowLimit)
+					region.sPrime[i] = region.s[i]-windowMedian(region.s,w,h,x,y,2,null,scratch);
+				else
+					region.sPrime[i] = 0.0f;
+			}
+		}
+		// candidates: S' above the limit, and not the sharp core of a star
+		for(i = 0; i < w*h; i++)
+		{
+			if((region.sPrime[i] <= sigmaClip)||region.mask[i])
+				continue;
+			fine = fineStructure(region,i % w,i/w,scratch)/region.noise[i];
+			region.candidate[i] = (region.sPrime[i]/Math.max(fine,MIN_FINE_STRUCTURE)) > objectLimit;
+		}
+		// grow to neighbours above the limit, then to their neighbours above the low limit
+		for(int y = 0; y < h; y++)
+		{
+			for(int x = 0; x < w; x++)
+			{
+				i = (y*w)+x;
+				region.grow[i] = (region.sPrime[i] > sigmaClip)&&hasNeighbour(region.candidate,w,h,x,y);
+			}
+		}
+		newCount = 0;
+		for(int y = 0; y < h; y++)
+		{
+			for(int x = 0; x < w; x++)
+			{
+				i = (y*w)+x;
+				// candidate is reused for the final selection, as it is no longer needed
+				region.candidate[i] = (region.mask[i] == false)&&(region.sPrime[i] > lowLimit)&&
+					hasNeighbour(region.grow,w,h,x,y);
+			}
+		}
+		for(i = 0; i < w*h; i++)
+		{
+			if(region.candidate[i])
+			{
+				region.mask[i] = true;
+				newCount++;
+			}
+		}
+		return newCount;
+	}
+
+	/**
+	 * Replace every cosmic ray pixel in a region by the median of the surrounding 5x5 pixels that are not
+	 * cosmic rays or blank (7x7, if there are none). The replacements are computed before any is made.
+	 * @param region The region.
+	 */
+	protected void replaceCosmicRays(Region region)
+	{
+		float scratch[];
+		float median;
+		int w,h,i;
+
+		w = region.width;
+		h = region.height;
+		scratch = new float[49];
+		for(int y = 0; y < h; y++)
+		{
+			for(int x = 0; x < w; x++)
+			{
+				i = (y*w)+x;
+				if(region.mask[i] == false)
+					continue;
+				median = windowMedian(region.work,w,h,x,y,2,region.mask,scratch);
+				if(Float.isNaN(median))
+					median = windowMedian(region.work,w,h,x,y,3,region.mask,scratch);
+				// lPlus is free until the next iteration
+				region.lPlus[i] = Float.isNaN(median) ? region.work[i] : median;
+			}
+		}
+		for(i = 0; i < w*h; i++)
+		{
+			if(region.mask[i])
+				region.work[i] = region.lPlus[i];
+		}
+	}
+
+	/**
+	 * Compute L+ at a pixel: the Laplacian of the image subsampled by 2 (each pixel becoming 2x2), with negative
+	 * values clipped to 0, rebinned back to the pixel. Each subpixel's Laplacian is 2v minus the two
+	 * neighbouring pixels it touches. Off region or blank neighbours are taken to equal the pixel.
+	 * @param a The image.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @param x The column.
+	 * @param y The row.
+	 * @param lPlus The array to put L+ in.
+	 * @param i The index of the pixel, y*w+x.
+	 * @return L+ at the pixel.
+	 */
+	protected static float laplacian(float a[],int w,int h,int x,int y,float lPlus[],int i)
+	{
+		float v,left,right,up,down,sum;
+
+		v = a[i];
+		if(Float.isNaN(v))
+		{
+			lPlus[i] = 0.0f;
+			return 0.0f;
+		}
+		left = (x > 0) ? a[i-1] : v;
+		right = (x < w-1) ? a[i+1] : v;
+		down = (y > 0) ? a[i-w] : v;
+		up = (y < h-1) ? a[i+w] : v;
+		left = Float.isNaN(left) ? v : left;
+		right = Float.isNaN(right) ? v : right;
+		down = Float.isNaN(down) ? v : down;
+		up = Float.isNaN(up) ? v : up;
+		sum = Math.max(0.0f,(2.0f*v)-left-down)+Math.max(0.0f,(2.0f*v)-right-down)+
+			Math.max(0.0f,(2.0f*v)-left-up)+Math.max(0.0f,(2.0f*v)-right-up);
+		lPlus[i] = sum/4.0f;
+		return lPlus[i];
+	}
+
+	/**
+	 * Get the fine structure image at a pixel: the 3x3 median minus the 7x7 median of the 3x3 median image.
+	 * The 3x3 medians are cached in the region, as neighbouring candidates share them.
+	 * @param region The region.
+	 * @param x The column.
+	 * @param y The row.
+	 * @param scratch A scratch buffer of at least 49 values.
+	 * @return The fine structure value, in ADU.
+	 */
+	protected float fineStructure(Region region,int x,int y,float scratch[])
+	{
+		float median3[];
+		int w,h,j,n;
+
+		w = region.width;
+		h = region.height;
+		median3 = new float[49];
+		n = 0;
+		for(int yy = Math.max(0,y-3); yy <= Math.min(h-1,y+3); yy++)
+		{
+			for(int xx = Math.max(0,x-3); xx <= Math.min(w-1,x+3); xx++)
+			{
+				j = (yy*w)+xx;
+				if(region.fineDone[j] == false)
+				{
+					region.median3[j] = windowMedian(region.work,w,h,xx,yy,1,null,scratch);
+					region.fineDone[j] = true;
+				}
+				if(Float.isNaN(region.median3[j]) == false)
+					median3[n++] = region.median3[j];
+			}
+		}
+		return region.median3[(y*w)+x]-median(median3,n);
+	}
+
+	/**
+	 * Get whether a pixel, or any of its 8 neighbours, is set.
+	 * @param a The flags.
+	 * @param w The width of the flag image.
+	 * @param h The height of the flag image.
+	 * @param x The column.
+	 * @param y The row.
+	 * @return true if any is set.
+	 */
+	protected static boolean hasNeighbour(boolean a[],int w,int h,int x,int y)
+	{
+		for(int yy = Math.max(0,y-1); yy <= Math.min(h-1,y+1); yy++)
+		{
+			for(int xx = Math.max(0,x-1); xx <= Math.min(w-1,x+1); xx++)
+			{
+				if(a[(yy*w)+xx])
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the median of a square window of an image, clipped to the image, excluding blank and masked
+	 * pixels.
+	 * @param a The image.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @param x The column of the window centre.
+	 * @param y The row of the window centre.
+	 * @param r The half size of the window (the window is 2r+1 square).
+	 * @param exclude Pixels to exclude, can be null.
+	 * @param scratch A scratch buffer of at least (2r+1)^2 values.
+	 * @return The median, or NaN if every pixel is excluded.
+	 * @see #median
+	 */
+	protected static float windowMedian(float a[],int w,int h,int x,int y,int r,boolean exclude[],
+					    float scratch[])
+	{
+		float v;
+		int n,j;
+
+		n = 0;
+		for(int yy = Math.max(0,y-r); yy <= Math.min(h-1,y+r); yy++)
+		{
+			for(int xx = Math.max(0,x-r); xx <= Math.min(w-1,x+r); xx++)
+			{
+				j = (yy*w)+xx;
+				v = a[j];
+				if(Float.isNaN(v)||((exclude != null)&&exclude[j]))
+					continue;
+				scratch[n++] = v;
+			}
+		}
+		return median(scratch,n);
+	}
+
+	/**
+	 * Get the median of values, by quickselect. The values are reordered.
+	 * @param v The values.
+	 * @param n The number of values.
+	 * @return The median (the mean of the middle two, for an even number), or NaN if n is 0.
+	 */
+	protected static float median(float v[],int n)
+	{
+		float pivot,t,lowerMax;
+		int left,right,i,j,k;
+
+		if(n == 0)
+			return Float.NaN;
+		k = n/2;
+		left = 0;
+		right = n-1;
+		while(right > left)
+		{
+			pivot = v[(left+right)>>>1];
+			i = left;
+			j = right;
+			while(i <= j)
+			{
+				while(v[i] < pivot)
+					i++;
+				while(v[j] > pivot)
+					j--;
+				if(i <= j)
+				{
+					t = v[i];
+					v[i] = v[j];
+					v[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j)
+				right = j;
+			else if(k >= i)
+				left = i;
+			else
+				break;
+		}
+		if((n % 2) == 1)
+			return v[k];
+		// the values below k are all no greater than v[k]
+		lowerMax = v[0];
+		for(i = 1; i < k; i++)
+			lowerMax = Math.max(lowerMax,v[i]);
+		return (lowerMax+v[k])/2.0f;
+	}
+
+	/**
+	 * The work arrays for cleaning one tile with its halo, in FITS row order.
+	 */
+	protected static class Region
+	{
+		/**
+		 * The first column of the region in the image.
+		 */
+		protected int x0;
+		/**
+		 * The first row of the region in the image.
+		 */
+		protected int y0;
+		/**
+		 * The width of the region.
+		 */
+		protected int width;
+		/**
+		 * The height of the region.
+		 */
+		protected int height;
+		/**
+		 * The image being cleaned.
+		 */
+		protected float work[] = null;
+		/**
+		 * L+, the clipped Laplacian (reused for replacement values).
+		 */
+		protected float lPlus[] = null;
+		/**
+		 * The noise expected at each pixel, in ADU, or NaN where not needed.
+		 */
+		protected float noise[] = null;
+		/**
+		 * The Laplacian in noise units.
+		 */
+		protected float s[] = null;
+		/**
+		 * S minus its 5x5 median, or 0 where S is below the low limit.
+		 */
+		protected float sPrime[] = null;
+		/**
+		 * The 3x3 median image, computed where needed.
+		 */
+		protected float median3[] = null;
+		/**
+		 * Whether median3 has been computed at each pixel.
+		 */
+		protected boolean fineDone[] = null;
+		/**
+		 * The candidates of the current iteration.
+		 */
+		protected boolean candidate[] = null;
+		/**
+		 * The candidates grown to neighbours above the limit.
+		 */
+		protected boolean grow[] = null;
+		/**
+		 * The cosmic ray pixels found so far.
+		 */
+		protected boolean mask[] = null;
+
+		/**
+		 * Constructor. Allocates the work arrays.
+		 * @param rx0 The first column of the region.
+		 * @param ry0 The first row of the region.
+		 * @param rx1 The last column of the region.
+		 * @param ry1 The last row of the region.
+		 */
+		protected Region(int rx0,int ry0,int rx1,int ry1)
+		{
+			super();
+			x0 = rx0;
+			y0 = ry0;
+			width = (rx1-rx0)+1;
+			height = (ry1-ry0)+1;
+			work = new float[width*height];
+			lPlus = new float[width*height];
+			noise = new float[width*height];
+			s = new float[width*height];
+			sPrime = new float[width*height];
+			median3 = new float[width*height];
+			fineDone = new boolean[width*height];
+			candidate = new boolean[width*height];
+			grow = new boolean[width*height];
+			mask = new boolean[width*height];
+		}
+	}
+
+	/**
+	 * Test main method. Cleans a FITS image, printing the number of cosmic ray pixels found, and optionally
+	 * writes the cleaned image.
+	 * @param args The command line arguments: the input filename, the gain, the read noise, and optionally
+	 *        the output filename.
+	 */
+	public static void main(String args[])
+	{
+		FITSCosmicRayCleaner cleaner = null;
+		FITSCosmicRayResult result = null;
+		FITSImage image = null;
+
+		if(args.length < 3)
+		{
+			System.err.println("java org.estar.fits.FITSCosmicRayCleaner <filename> <gain> <read noise> "+
+					   "[<output filename>]");
+			System.exit(1);
+		}
+		try
+		{
+			image = new FITSImage();
+			image.load(args[0]);
+			cleaner = new FITSCosmicRayCleaner();
+			cleaner.setDetector(Double.parseDouble(args[1]),Double.parseDouble(args[2]));
+			result = cleaner.clean(image);
+			System.out.println(result);
+			if(args.length > 3)
+				new FITSImageWriter().write(result.getImage(),new java.io.File(args[3]));
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSCosmicRayCleaner failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCosmicRayResult.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * This class holds the results of cosmic ray cleaning: the cleaned image, and a mask of the pixels that were
+ * found to be cosmic rays, as a bit set with one bit per pixel.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSCosmicRayCleaner
+ */
+public class FITSCosmicRayResult
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The cleaned image.
+	 */
+	FITSImage image = null;
+	/**
+	 * The cosmic ray mask, indexed as the image's data array (FITS row order, row*width+x).
+	 */
+	BitSet mask = null;
+	/**
+	 * The number of iterations done by the tile that needed the most.
+	 */
+	int iterationCount = 0;
+	/**
+	 * The time taken to do the cleaning, in nanoseconds.
+	 */
+	long elapsedNanos = 0;
+
+	/**
+	 * Constructor. The cleaned image is set once it has been filled.
+	 * @param width The width of the image being cleaned.
+	 * @param height The height of the image being cleaned.
+	 * @see #image
+	 * @see #mask
+	 */
+	FITSCosmicRayResult(int width,int height)
+	{
+		super();
+		mask = new BitSet(width*height);
+	}
+
+	/**
+	 * Get the cleaned image.
+	 * @return The image.
+	 * @see #image
+	 */
+	public FITSImage getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Get the cosmic ray mask. The mask is <b>NOT</b> copied.
+	 * @return The mask, with a bit set for each cosmic ray pixel, indexed as the image's data array.
+	 * @see #mask
+	 */
+	public BitSet getMask()
+	{
+		return mask;
+	}
+
+	/**
+	 * Get whether a pixel was found to be a cosmic ray.
+	 * @param x The x position on the displayed image.
+	 * @param y The y position on the displayed image.
+	 * @return true if the pixel is a cosmic ray, false if not or out of range.
+	 * @see FITSImage#getValue
+	 */
+	public boolean isCosmicRay(int x,int y)
+	{
+		if((x < 0)||(x >= image.getWidth())||(y < 0)||(y >= image.getHeight()))
+			return false;
+		return mask.get(((image.getHeight()-(y+1))*image.getWidth())+x);
+	}
+
+	/**
+	 * Get the number of cosmic ray pixels found.
+	 * @return The number of pixels.
+	 */
+	public int getCosmicRayCount()
+	{
+		return mask.cardinality();
+	}
+
+	/**
+	 * Get the number of detection and cleaning iterations done, by the tile that needed the most.
+	 * @return The number of iterations.
+	 * @see #iterationCount
+	 */
+	public int getIterationCount()
+	{
+		return iterationCount;
+	}
+
+	/**
+	 * Get the time taken to do the cleaning.
+	 * @return The elapsed time, in nanoseconds.
+	 * @see #elapsedNanos
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	/**
+	 * Get the throughput of the cleaning.
+	 * @return The number of pixels cleaned per second.
+	 * @see #elapsedNanos
+	 */
+	public double getPixelsPerSecond()
+	{
+		if(elapsedNanos <= 0)
+			return 0.0;
+		return (((double)image.getWidth())*image.getHeight())/(((double)elapsedNanos)/1.0e9);
+	}
+
+	/**
+	 * Return a string describing the result.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": cosmic ray pixels="+getCosmicRayCount()+" iterations="+
+			iterationCount+" pixels/s="+getPixelsPerSecond();
+	}
+}
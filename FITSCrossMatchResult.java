@@ -0,0 +1,191 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCrossMatchResult.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * This class holds the results of a cross-match, as primitive arrays. Each matched position can have any number
+ * of catalogue matches, so the matches of all positions are held in one pair of arrays, with the matches of
+ * position i from offset[i] to offset[i+1] (exclusive), in order of increasing separation.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSCrossMatcher
+ */
+public class FITSCrossMatchResult
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of positions matched.
+	 */
+	int count = 0;
+	/**
+	 * The index in the match arrays of the first match of each position, with a final entry holding the total
+	 * number of matches (count+1 entries).
+	 */
+	int offset[];
+	/**
+	 * The catalogue index of each match.
+	 */
+	int catalogueIndex[];
+	/**
+	 * The separation of each match, in arc-seconds.
+	 */
+	double separation[];
+	/**
+	 * The time taken to do the match, in nanoseconds.
+	 */
+	long elapsedNanos = 0;
+
+	/**
+	 * Constructor. The match arrays are allocated by the matcher, once the number of matches is known.
+	 * @param n The number of positions.
+	 * @see #count
+	 */
+	FITSCrossMatchResult(int n)
+	{
+		super();
+		count = n;
+		offset = new int[n+1];
+		catalogueIndex = new int[0];
+		separation = new double[0];
+	}
+
+	/**
+	 * Get the number of positions matched.
+	 * @return The number of positions.
+	 * @see #count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the total number of matches, of all positions.
+	 * @return The number of matches.
+	 * @see #offset
+	 */
+	public int getTotalMatchCount()
+	{
+		return offset[count];
+	}
+
+	/**
+	 * Get the number of catalogue matches of a position.
+	 * @param i The index of the position.
+	 * @return The number of matches.
+	 * @see #offset
+	 */
+	public int getMatchCount(int i)
+	{
+		return offset[i+1]-offset[i];
+	}
+
+	/**
+	 * Get the catalogue index of the nearest match of a position.
+	 * @param i The index of the position.
+	 * @return The catalogue index, or -1 if the position has no match.
+	 */
+	public int getNearestIndex(int i)
+	{
+		if(offset[i+1] == offset[i])
+			return -1;
+		return catalogueIndex[offset[i]];
+	}
+
+	/**
+	 * Get the separation of the nearest match of a position.
+	 * @param i The index of the position.
+	 * @return The separation in arc-seconds, or NaN if the position has no match.
+	 */
+	public double getNearestSeparation(int i)
+	{
+		if(offset[i+1] == offset[i])
+			return Double.NaN;
+		return separation[offset[i]];
+	}
+
+	/**
+	 * Get the array of match offsets. The array is <b>NOT</b> copied.
+	 * @return The offset array, of getCount()+1 entries.
+	 * @see #offset
+	 */
+	public int[] getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Get the array of catalogue indices of the matches. The array is <b>NOT</b> copied.
+	 * @return The catalogue index array.
+	 * @see #catalogueIndex
+	 */
+	public int[] getCatalogueIndex()
+	{
+		return catalogueIndex;
+	}
+
+	/**
+	 * Get the array of separations of the matches. The array is <b>NOT</b> copied.
+	 * @return The separation array, in arc-seconds.
+	 * @see #separation
+	 */
+	public double[] getSeparation()
+	{
+		return separation;
+	}
+
+	/**
+	 * Get the time taken to do the match.
+	 * @return The elapsed time, in nanoseconds.
+	 * @see #elapsedNanos
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	/**
+	 * Get the throughput of the match.
+	 * @return The number of positions matched per second.
+	 * @see #count
+	 * @see #elapsedNanos
+	 */
+	public double getPositionsPerSecond()
+	{
+		if(elapsedNanos <= 0)
+			return 0.0;
+		return ((double)count)/(((double)elapsedNanos)/1.0e9);
+	}
+
+	/**
+	 * Return a string describing the result.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": count="+count+" matches="+offset[count]+
+			" positions/s="+getPositionsPerSecond();
+	}
+}
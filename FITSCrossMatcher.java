@@ -0,0 +1,727 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSCrossMatcher.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+import org.estar.astrometry.*;
+
+/**
+ * Cross-matches sky positions (e.g. detections converted with FITSImage.getPosition) against a reference
+ * catalogue. The catalogue is indexed once, in a k-d tree on the unit vectors of its positions, so each match
+ * is a tree search rather than a pass over the whole catalogue, and there is no problem at RA = 0/360 or at the
+ * poles. Distances are compared as squared chord lengths between unit vectors, which are monotonic in
+ * angular separation.
+ * <p>
+ * The tree is implicit: the catalogue's unit vectors are permuted into one primitive array, each node being the
+ * median of its range, so there are no node objects. Ranges of at most LEAF_SIZE positions are searched
+ * directly. A matcher is not modified by matching, so one matcher can be used by several threads; each match
+ * call itself matches its positions in parallel.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSCrossMatchResult
+ */
+public class FITSCrossMatcher
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The maximum number of positions in a leaf range, searched directly.
+	 */
+	protected final static int LEAF_SIZE = 8;
+	/**
+	 * The number of positions matched by each parallel task.
+	 */
+	protected final static int POSITIONS_PER_TASK = 256;
+	/**
+	 * The depth of the tree built before the subtrees are built in parallel (2^depth subtrees).
+	 */
+	protected final static int PARALLEL_BUILD_DEPTH = 4;
+	/**
+	 * The number of catalogue positions.
+	 */
+	protected int count = 0;
+	/**
+	 * The unit vectors of the catalogue positions, in tree order: x,y,z of position i at 3i,3i+1,3i+2.
+	 */
+	protected double vectorList[] = null;
+	/**
+	 * The catalogue index of each position, in tree order.
+	 */
+	protected int indexList[] = null;
+	/**
+	 * The axis (0, 1 or 2) each node splits on, indexed by the node's position in tree order.
+	 */
+	protected byte axisList[] = null;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+
+	/**
+	 * Constructor. Builds the index of the catalogue. The arrays are not kept.
+	 * @param ra The catalogue RAs, in degrees.
+	 * @param dec The catalogue declinations, in degrees.
+	 * @exception FITSException Thrown if the array lengths differ, or building the index fails.
+	 * @see #build
+	 */
+	public FITSCrossMatcher(double ra[],double dec[]) throws FITSException
+	{
+		this(ra,dec,0);
+	}
+
+	/**
+	 * Constructor. Builds the index of the catalogue. The arrays are not kept.
+	 * @param ra The catalogue RAs, in degrees.
+	 * @param dec The catalogue declinations, in degrees.
+	 * @param n The number of threads used to build the index, and to match. If less than 1, the default
+	 *        thread count is used.
+	 * @exception FITSException Thrown if the array lengths differ, or building the index fails.
+	 * @see #build
+	 */
+	public FITSCrossMatcher(double ra[],double dec[],int n) throws FITSException
+	{
+		super();
+		if(ra.length != dec.length)
+		{
+			throw new FITSException(this.getClass().getName()+":Array lengths differ:ra:"+ra.length+
+						":dec:"+dec.length);
+		}
+		threadCount = n;
+		count = ra.length;
+		vectorList = new double[3*count];
+		indexList = new int[count];
+		axisList = new byte[count];
+		for(int i = 0; i < count; i++)
+		{
+			toVector(ra[i],dec[i],vectorList,3*i);
+			indexList[i] = i;
+		}
+		build();
+	}
+
+	/**
+	 * Set the number of threads used to match.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Get the number of catalogue positions.
+	 * @return The number of positions.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Find the nearest catalogue position to each of a list of positions, within a maximum separation.
+	 * @param ra The RAs to match, in degrees.
+	 * @param dec The declinations to match, in degrees.
+	 * @param radius The maximum separation, in arc-seconds.
+	 * @return The result, with at most one match per position.
+	 * @exception FITSException Thrown if the array lengths differ, or a parallel task fails.
+	 * @see #match
+	 */
+	public FITSCrossMatchResult matchNearest(double ra[],double dec[],double radius) throws FITSException
+	{
+		return match(ra,dec,radius,true);
+	}
+
+	/**
+	 * Find every catalogue position within a maximum separation of each of a list of positions.
+	 * @param ra The RAs to match, in degrees.
+	 * @param dec The declinations to match, in degrees.
+	 * @param radius The maximum separation, in arc-seconds.
+	 * @return The result, with each position's matches in order of increasing separation.
+	 * @exception FITSException Thrown if the array lengths differ, or a parallel task fails.
+	 * @see #match
+	 */
+	public FITSCrossMatchResult matchWithin(double ra[],double dec[],double radius) throws FITSException
+	{
+		return match(ra,dec,radius,false);
+	}
+
+	/**
+	 * Find the nearest catalogue position to each source detected on an image, within a maximum separation.
+	 * Source positions are converted to RA/Dec with the image's pixel to sky mapping.
+	 * @param sources The sources.
+	 * @param image The image the sources were detected on.
+	 * @param radius The maximum separation, in arc-seconds.
+	 * @return The result, indexed as the source list, with at most one match per source.
+	 * @exception FITSException Thrown if the image has no field centre, or a parallel task fails.
+	 * @see FITSSourceList#getPosition
+	 * @see #matchNearest(double[],double[],double)
+	 */
+	public FITSCrossMatchResult matchNearest(FITSSourceList sources,FITSImage image,double radius)
+		throws FITSException
+	{
+		CelestialObject position = null;
+		double ra[],dec[];
+
+		ra = new double[sources.getCount()];
+		dec = new double[sources.getCount()];
+		for(int i = 0; i < sources.getCount(); i++)
+		{
+			position = sources.getPosition(image,i);
+			if(position == null)
+			{
+				throw new FITSException(this.getClass().getName()+":matchNearest:Image has no field centre.");
+			}
+			ra[i] = position.getRA().toArcSeconds()/3600.0;
+			dec[i] = position.getDec().toArcSeconds()/3600.0;
+		}
+		return matchNearest(ra,dec,radius);
+	}
+
+	/**
+	 * Return a string describing the matcher.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": count="+count;
+	}
+
+	/**
+	 * Match a list of positions. Positions are matched in parallel, in tasks of POSITIONS_PER_TASK; each task
+	 * collects its matches, which are then joined in position order.
+	 * @param ra The RAs to match, in degrees.
+	 * @param dec The declinations to match, in degrees.
+	 * @param radius The maximum separation, in arc-seconds.
+	 * @param nearestOnly true to find only the nearest match of each position, false for all within radius.
+	 * @return The result.
+	 * @exception FITSException Thrown if the array lengths differ, or a parallel task fails.
+	 * @see Search
+	 */
+	protected FITSCrossMatchResult match(final double ra[],final double dec[],double radius,
+					     final boolean nearestOnly) throws FITSException
+	{
+		final FITSCrossMatchResult result;
+		final Search searchList[];
+		final double maxDistance2;
+		int taskCount,total;
+		long startTime;
+
+		if(ra.length != dec.length)
+		{
+			throw new FITSException(this.getClass().getName()+":match:Array lengths differ:ra:"+ra.length+
+						":dec:"+dec.length);
+		}
+		startTime = System.nanoTime();
+		maxDistance2 = toChord2(radius);
+		result = new FITSCrossMatchResult(ra.length);
+		taskCount = FITSParallel.getChunkCount(ra.length,POSITIONS_PER_TASK);
+		searchList = new Search[taskCount];
+		FITSParallel.run(threadCount,taskCount,new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				Search search = null;
+				double vector[];
+				int end;
+
+				search = new Search();
+				vector = new double[3];
+				end = Math.min(ra.length,(index+1)*POSITIONS_PER_TASK);
+				for(int i = index*POSITIONS_PER_TASK; i < end; i++)
+				{
+					toVector(ra[i],dec[i],vector,0);
+					search.start(vector,maxDistance2);
+					if(nearestOnly)
+					{
+						searchNearest(0,count,search);
+						if(search.bestIndex >= 0)
+							search.add(search.bestIndex,search.bestDistance2);
+					}
+					else
+					{
+						searchWithin(0,count,search);
+						search.sortMatches();
+					}
+					result.offset[i+1] = search.matchCount;
+				}
+				searchList[index] = search;
+			}
+		});
+		// offset[i+1] holds the running match count of position i within its task, make it global
+		total = 0;
+		for(int t = 0; t < taskCount; t++)
+		{
+			for(int i = t*POSITIONS_PER_TASK; i < Math.min(ra.length,(t+1)*POSITIONS_PER_TASK); i++)
+				result.offset[i+1] += total;
+			total += searchList[t].matchCount;
+		}
+		result.catalogueIndex = new int[total];
+		result.separation = new double[total];
+		total = 0;
+		for(int t = 0; t < taskCount; t++)
+		{
+			for(int m = 0; m < searchList[t].matchCount; m++)
+			{
+				result.catalogueIndex[total] = indexList[searchList[t].matchList[m]];
+				result.separation[total] = toSeparation(searchList[t].distance2List[m]);
+				total++;
+			}
+		}
+		result.elapsedNanos = System.nanoTime()-startTime;
+		return result;
+	}
+
+	/**
+	 * Search a range of the tree for the nearest position to the search vector, closer than the search's best.
+	 * @param lo The start of the range, in tree order.
+	 * @param hi The end of the range (exclusive).
+	 * @param search The search, whose best position is updated.
+	 */
+	protected void searchNearest(int lo,int hi,Search search)
+	{
+		double diff,d2;
+		int mid;
+
+		if((hi-lo) <= LEAF_SIZE)
+		{
+			for(int i = lo; i < hi; i++)
+			{
+				d2 = distance2(i,search.vector);
+				if(d2 < search.bestDistance2)
+				{
+					search.bestDistance2 = d2;
+					search.bestIndex = i;
+				}
+			}
+			return;
+		}
+		mid = (lo+hi)>>>1;
+		d2 = distance2(mid,search.vector);
+		if(d2 < search.bestDistance2)
+		{
+			search.bestDistance2 = d2;
+			search.bestIndex = mid;
+		}
+		diff = search.vector[axisList[mid]]-vectorList[(3*mid)+axisList[mid]];
+		if(diff < 0.0)
+		{
+			searchNearest(lo,mid,search);
+			if((diff*diff) < search.bestDistance2)
+				searchNearest(mid+1,hi,search);
+		}
+		else
+		{
+			searchNearest(mid+1,hi,search);
+			if((diff*diff) < search.bestDistance2)
+				searchNearest(lo,mid,search);
+		}
+	}
+
+	/**
+	 * Search a range of the tree for every position within the search's maximum distance of its vector.
+	 * @param lo The start of the range, in tree order.
+	 * @param hi The end of the range (exclusive).
+	 * @param search The search, to which matches are added.
+	 */
+	protected void searchWithin(int lo,int hi,Search search)
+	{
+		double diff,d2;
+		int mid;
+
+		if((hi-lo) <= LEAF_SIZE)
+		{
+			for(int i = lo; i < hi; i++)
+			{
+				d2 = distance2(i,search.vector);
+				if(d2 <= search.maxDistance2)
+					search.add(i,d2);
+			}
+			return;
+		}
+		mid = (lo+hi)>>>1;
+		d2 = distance2(mid,search.vector);
+		if(d2 <= search.maxDistance2)
+			search.add(mid,d2);
+		diff = search.vector[axisList[mid]]-vectorList[(3*mid)+axisList[mid]];
+		if((diff <= 0.0)||((diff*diff) <= search.maxDistance2))
+			searchWithin(lo,mid,search);
+		if((diff >= 0.0)||((diff*diff) <= search.maxDistance2))
+			searchWithin(mid+1,hi,search);
+	}
+
+	/**
+	 * Build the tree. The top PARALLEL_BUILD_DEPTH levels are built in the calling thread, then the subtrees
+	 * below them in parallel.
+	 * @exception FITSException Thrown if a parallel task fails.
+	 * @see #build(int,int,int,java.util.List)
+	 */
+	protected void build() throws FITSException
+	{
+		final List<int[]> rangeList = new Vector<int[]>();
+
+		build(0,count,PARALLEL_BUILD_DEPTH,rangeList);
+		FITSParallel.run(threadCount,rangeList.size(),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				int range[] = rangeList.get(index);
+
+				build(range[0],range[1],-1,null);
+			}
+		});
+	}
+
+	/**
+	 * Build the tree over a range: the range is split at its median along the axis of greatest spread, and each
+	 * half built in turn.
+	 * @param lo The start of the range, in tree order.
+	 * @param hi The end of the range (exclusive).
+	 * @param depth The number of levels to build before stopping and adding the remaining ranges to
+	 *        rangeList, or -1 to build the whole range.
+	 * @param rangeList The list to add unbuilt ranges to ({lo,hi}), if depth is not -1.
+	 * @see #select
+	 */
+	protected void build(int lo,int hi,int depth,List<int[]> rangeList)
+	{
+		double min[],max[];
+		int axis,mid;
+
+		if((hi-lo) <= LEAF_SIZE)
+			return;
+		if(depth == 0)
+		{
+			rangeList.add(new int[] {lo,hi});
+			return;
+		}
+		min = new double[] {Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE};
+		max = new double[] {-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE};
+		for(int i = lo; i < hi; i++)
+		{
+			for(int a = 0; a < 3; a++)
+			{
+				min[a] = Math.min(min[a],vectorList[(3*i)+a]);
+				max[a] = Math.max(max[a],vectorList[(3*i)+a]);
+			}
+		}
+		axis = 0;
+		for(int a = 1; a < 3; a++)
+		{
+			if((max[a]-min[a]) > (max[axis]-min[axis]))
+				axis = a;
+		}
+		mid = (lo+hi)>>>1;
+		select(lo,hi,mid,axis);
+		axisList[mid] = (byte)axis;
+		build(lo,mid,(depth > 0) ? depth-1 : -1,rangeList);
+		build(mid+1,hi,(depth > 0) ? depth-1 : -1,rangeList);
+	}
+
+	/**
+	 * Partially sort a range so that position k has the value along axis it would have if the range were
+	 * sorted, with lesser or equal values before it and greater or equal after it (quickselect).
+	 * @param lo The start of the range.
+	 * @param hi The end of the range (exclusive).
+	 * @param k The position to select.
+	 * @param axis The axis to sort on.
+	 */
+	protected void select(int lo,int hi,int k,int axis)
+	{
+		double pivot;
+		int left,right,i,j;
+
+		left = lo;
+		right = hi-1;
+		while(right > left)
+		{
+			pivot = vectorList[(3*((left+right)>>>1))+axis];
+			i = left;
+			j = right;
+			while(i <= j)
+			{
+				while(vectorList[(3*i)+axis] < pivot)
+					i++;
+				while(vectorList[(3*j)+axis] > pivot)
+					j--;
+				if(i <= j)
+				{
+					swap(i,j);
+					i++;
+					j--;
+				}
+			}
+			if(k <= j)
+				right = j;
+			else if(k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Swap two positions in tree order.
+	 * @param i The first position.
+	 * @param j The second position.
+	 */
+	protected void swap(int i,int j)
+	{
+		double v;
+		int index;
+
+		for(int a = 0; a < 3; a++)
+		{
+			v = vectorList[(3*i)+a];
+			vectorList[(3*i)+a] = vectorList[(3*j)+a];
+			vectorList[(3*j)+a] = v;
+		}
+		index = indexList[i];
+		indexList[i] = indexList[j];
+		indexList[j] = index;
+	}
+
+	/**
+	 * Get the squared chord distance between a position in the tree and a unit vector.
+	 * @param i The position, in tree order.
+	 * @param vector The unit vector.
+	 * @return The squared distance.
+	 */
+	protected double distance2(int i,double vector[])
+	{
+		double dx,dy,dz;
+
+		dx = vectorList[3*i]-vector[0];
+		dy = vectorList[(3*i)+1]-vector[1];
+		dz = vectorList[(3*i)+2]-vector[2];
+		return (dx*dx)+(dy*dy)+(dz*dz);
+	}
+
+	/**
+	 * Convert an RA and declination to a unit vector.
+	 * @param ra The RA, in degrees.
+	 * @param dec The declination, in degrees.
+	 * @param vector The array to put the vector in.
+	 * @param offset The index in the array of the x component.
+	 */
+	protected static void toVector(double ra,double dec,double vector[],int offset)
+	{
+		double raRadians,decRadians,cosDec;
+
+		raRadians = Math.toRadians(ra);
+		decRadians = Math.toRadians(dec);
+		cosDec = Math.cos(decRadians);
+		vector[offset] = cosDec*Math.cos(raRadians);
+		vector[offset+1] = cosDec*Math.sin(raRadians);
+		vector[offset+2] = Math.sin(decRadians);
+	}
+
+	/**
+	 * Convert an angular separation to a squared chord length between unit vectors.
+	 * @param separation The separation, in arc-seconds.
+	 * @return The squared chord length, (2 sin(separation/2))^2.
+	 */
+	protected static double toChord2(double separation)
+	{
+		double chord;
+
+		chord = 2.0*Math.sin(Math.toRadians(separation/3600.0)/2.0);
+		return chord*chord;
+	}
+
+	/**
+	 * Convert a squared chord length between unit vectors to an angular separation.
+	 * @param chord2 The squared chord length.
+	 * @return The separation, in arc-seconds.
+	 */
+	protected static double toSeparation(double chord2)
+	{
+		return Math.toDegrees(2.0*Math.asin(Math.min(1.0,Math.sqrt(chord2)/2.0)))*3600.0;
+	}
+
+	/**
+	 * The state of the searches done by one parallel task: the vector being matched, the best match so far
+	 * (nearest matching), and the matches found by the task, as growable primitive arrays.
+	 */
+	protected static class Search
+	{
+		/**
+		 * The unit vector being matched.
+		 */
+		protected double vector[] = null;
+		/**
+		 * The maximum squared chord distance of a match.
+		 */
+		protected double maxDistance2;
+		/**
+		 * The squared distance of the nearest position found so far.
+		 */
+		protected double bestDistance2;
+		/**
+		 * The tree position of the nearest position found so far, or -1.
+		 */
+		protected int bestIndex;
+		/**
+		 * The tree positions of the matches found.
+		 */
+		protected int matchList[] = null;
+		/**
+		 * The squared distances of the matches found.
+		 */
+		protected double distance2List[] = null;
+		/**
+		 * The number of matches found.
+		 */
+		protected int matchCount = 0;
+		/**
+		 * The number of matches found before the current search started.
+		 */
+		protected int startCount = 0;
+
+		/**
+		 * Constructor.
+		 */
+		protected Search()
+		{
+			super();
+			matchList = new int[POSITIONS_PER_TASK];
+			distance2List = new double[POSITIONS_PER_TASK];
+		}
+
+		/**
+		 * Start a search.
+		 * @param v The unit vector to match.
+		 * @param max The maximum squared chord distance of a match.
+		 */
+		protected void start(double v[],double max)
+		{
+			vector = v;
+			maxDistance2 = max;
+			// a nearest search only accepts positions closer than this
+			bestDistance2 = Math.nextUp(max);
+			bestIndex = -1;
+			startCount = matchCount;
+		}
+
+		/**
+		 * Add a match.
+		 * @param i The tree position of the match.
+		 * @param d2 The squared distance of the match.
+		 */
+		protected void add(int i,double d2)
+		{
+			if(matchCount == matchList.length)
+			{
+				matchList = Arrays.copyOf(matchList,matchList.length*2);
+				distance2List = Arrays.copyOf(distance2List,distance2List.length*2);
+			}
+			matchList[matchCount] = i;
+			distance2List[matchCount] = d2;
+			matchCount++;
+		}
+
+		/**
+		 * Sort the matches of the current search in order of increasing distance (insertion sort, as there
+		 * are usually few).
+		 */
+		protected void sortMatches()
+		{
+			double d2;
+			int i,j,k;
+
+			for(i = startCount+1; i < matchCount; i++)
+			{
+				d2 = distance2List[i];
+				j = matchList[i];
+				k = i-1;
+				while((k >= startCount)&&(distance2List[k] > d2))
+				{
+					distance2List[k+1] = distance2List[k];
+					matchList[k+1] = matchList[k];
+					k--;
+				}
+				distance2List[k+1] = d2;
+				matchList[k+1] = j;
+			}
+		}
+	}
+
+	/**
+	 * Test main method. Matches a random catalogue against jittered copies of some of its positions,
+	 * printing the time taken to build the index and match.
+	 * @param args The command line arguments: optionally the catalogue size and the number of positions.
+	 */
+	public static void main(String args[])
+	{
+		FITSCrossMatcher matcher = null;
+		FITSCrossMatchResult result = null;
+		Random random = null;
+		double catalogueRA[],catalogueDec[],ra[],dec[];
+		long startTime;
+		int catalogueCount,positionCount,correctCount,j;
+
+		try
+		{
+			catalogueCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+			positionCount = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+			random = new Random(1);
+			catalogueRA = new double[catalogueCount];
+			catalogueDec = new double[catalogueCount];
+			for(int i = 0; i < catalogueCount; i++)
+			{
+				catalogueRA[i] = random.nextDouble()*360.0;
+				catalogueDec[i] = Math.toDegrees(Math.asin((random.nextDouble()*2.0)-1.0));
+			}
+			ra = new double[positionCount];
+			dec = new double[positionCount];
+			for(int i = 0; i < positionCount; i++)
+			{
+				j = (int)(((long)i*catalogueCount)/positionCount);
+				ra[i] = catalogueRA[j]+(random.nextGaussian()*0.1/3600.0);
+				dec[i] = catalogueDec[j]+(random.nextGaussian()*0.1/3600.0);
+			}
+			startTime = System.nanoTime();
+			matcher = new FITSCrossMatcher(catalogueRA,catalogueDec);
+			System.out.println("Built index of "+catalogueCount+" in "+
+					   ((System.nanoTime()-startTime)/1000000.0)+" ms.");
+			result = matcher.matchNearest(ra,dec,2.0);
+			correctCount = 0;
+			for(int i = 0; i < positionCount; i++)
+			{
+				if(result.getNearestIndex(i) == (int)(((long)i*catalogueCount)/positionCount))
+					correctCount++;
+			}
+			System.out.println(result+": correct="+correctCount);
+			result = matcher.matchWithin(ra,dec,60.0);
+			System.out.println(result);
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSCrossMatcher failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,536 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSDataDecoder.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Decodes FITS image data (big endian, any BITPIX) into float pixel values, applying BSCALE and BZERO and
+ * mapping BLANK integer values to NaN. There is a separate kernel for each BITPIX, working on a ByteBuffer view
+ * of the data (ShortBuffer, IntBuffer etc), so there is no per-pixel type switch; unscaled float data is a bulk
+ * copy. Large data units are split into chunks that are read and decoded concurrently.
+ * <p>
+ * A decoder holds no per-call state, so one decoder can be used by several threads.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#load(java.lang.String)
+ * @see FITSRowReader
+ */
+public class FITSDataDecoder
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of bytes decoded by each parallel task, a whole number of FITS blocks (and so of pixels,
+	 * whatever the BITPIX).
+	 */
+	protected final static int CHUNK_LENGTH = 128*FITSCard.BLOCK_LENGTH;
+	/**
+	 * The buffer used by each thread when reading from a file.
+	 */
+	private static ThreadLocal<ByteBuffer> chunkBuffer = new ThreadLocal<ByteBuffer>()
+	{
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(CHUNK_LENGTH);
+		}
+	};
+	/**
+	 * The BITPIX of the data: 8, 16, 32, 64, -32 or -64.
+	 */
+	protected int bitpix;
+	/**
+	 * The number of bytes per pixel.
+	 */
+	protected int bytesPerPixel;
+	/**
+	 * The BSCALE of the data.
+	 */
+	protected double bscale = 1.0;
+	/**
+	 * The BZERO of the data.
+	 */
+	protected double bzero = 0.0;
+	/**
+	 * Whether the data is scaled, i.e. BSCALE is not 1 or BZERO is not 0.
+	 */
+	protected boolean scaled = false;
+	/**
+	 * The BLANK value of integer data.
+	 * @see #blankEnabled
+	 */
+	protected long blank = 0L;
+	/**
+	 * Whether the data has a BLANK value.
+	 */
+	protected boolean blankEnabled = false;
+	/**
+	 * The number of threads used to decode. If less than 1, the default thread count is used.
+	 */
+	protected int threadCount = 0;
+
+	/**
+	 * Constructor.
+	 * @param b The BITPIX of the data.
+	 * @param scale The BSCALE of the data.
+	 * @param zero The BZERO of the data.
+	 * @exception IllegalArgumentException Thrown if the BITPIX is illegal.
+	 */
+	public FITSDataDecoder(int b,double scale,double zero) throws IllegalArgumentException
+	{
+		super();
+		if((b != 8)&&(b != 16)&&(b != 32)&&(b != 64)&&(b != -32)&&(b != -64))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Illegal BITPIX:"+b);
+		}
+		bitpix = b;
+		bytesPerPixel = Math.abs(b)/8;
+		bscale = scale;
+		bzero = zero;
+		scaled = (bscale != 1.0)||(bzero != 0.0);
+	}
+
+	/**
+	 * Create a decoder for the data of an HDU, from the BITPIX, BSCALE, BZERO and BLANK keywords of its header.
+	 * @param cards The header.
+	 * @return The decoder.
+	 * @exception FITSException Thrown if the BITPIX is missing or illegal.
+	 */
+	public static FITSDataDecoder create(FITSHeaderCards cards) throws FITSException
+	{
+		FITSDataDecoder decoder = null;
+
+		if(cards.containsKeyword("BITPIX") == false)
+		{
+			throw new FITSException("org.estar.fits.FITSDataDecoder:create:No BITPIX keyword.");
+		}
+		try
+		{
+			decoder = new FITSDataDecoder(cards.getInt("BITPIX"),
+						      cards.containsKeyword("BSCALE") ? cards.getDouble("BSCALE") : 1.0,
+						      cards.getDouble("BZERO"));
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new FITSException("org.estar.fits.FITSDataDecoder:create:"+e,e);
+		}
+		if(cards.containsKeyword("BLANK"))
+			decoder.setBlank(cards.getLong("BLANK"));
+		return decoder;
+	}
+
+	/**
+	 * Set the BLANK value. Array values equal to it are decoded as NaN. Ignored for float data (BITPIX
+	 * -32 and -64), where undefined values are already NaN.
+	 * @param b The BLANK value, as stored in the file (before scaling).
+	 * @see #blank
+	 * @see #blankEnabled
+	 */
+	public void setBlank(long b)
+	{
+		blank = b;
+		blankEnabled = (bitpix > 0);
+	}
+
+	/**
+	 * Set the number of threads used to decode.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Get the BITPIX of the data.
+	 * @return The BITPIX.
+	 */
+	public int getBitpix()
+	{
+		return bitpix;
+	}
+
+	/**
+	 * Get the number of bytes per pixel of the data.
+	 * @return The number of bytes, |BITPIX|/8.
+	 */
+	public int getBytesPerPixel()
+	{
+		return bytesPerPixel;
+	}
+
+	/**
+	 * Read and decode pixels from a file, splitting them into chunks read (with positional reads) and decoded
+	 * concurrently.
+	 * @param channel The file channel. It is only read with positional reads, so its position is unchanged.
+	 * @param position The offset in the file of the first pixel.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 * @exception FITSException Thrown if reading fails, or the file ends before the last pixel.
+	 * @see #CHUNK_LENGTH
+	 * @see #read(java.nio.channels.FileChannel,long,float[],int,int,java.nio.ByteBuffer)
+	 */
+	public void read(final FileChannel channel,final long position,final float dst[],final int offset,
+			 final int count) throws FITSException
+	{
+		final int chunkPixelCount;
+
+		chunkPixelCount = CHUNK_LENGTH/bytesPerPixel;
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(count,chunkPixelCount),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				int start = index*chunkPixelCount;
+
+				read(channel,position+(((long)start)*bytesPerPixel),dst,offset+start,
+				     Math.min(chunkPixelCount,count-start),chunkBuffer.get());
+			}
+		});
+		FITSMetrics.recordBytesRead(((long)count)*bytesPerPixel);
+	}
+
+	/**
+	 * Read and decode pixels from a stream. The stream is read sequentially, a group of chunks at a time,
+	 * and the chunks of each group are decoded concurrently.
+	 * @param di The input, positioned at the first pixel.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 * @exception IOException Thrown if reading fails, or the input ends before the last pixel.
+	 * @exception FITSException Thrown if decoding fails.
+	 * @see #decodeParallel
+	 */
+	public void read(DataInput di,float dst[],int offset,int count) throws IOException,FITSException
+	{
+		byte buffer[];
+		int groupPixelCount,n;
+
+		groupPixelCount = (16*CHUNK_LENGTH)/bytesPerPixel;
+		buffer = new byte[Math.min(count,groupPixelCount)*bytesPerPixel];
+		for(int start = 0; start < count; start += n)
+		{
+			n = Math.min(groupPixelCount,count-start);
+			di.readFully(buffer,0,n*bytesPerPixel);
+			decodeParallel(ByteBuffer.wrap(buffer,0,n*bytesPerPixel),dst,offset+start,n);
+		}
+		FITSMetrics.recordBytesRead(((long)count)*bytesPerPixel);
+	}
+
+	/**
+	 * Decode pixels from a buffer, splitting them into chunks decoded concurrently.
+	 * @param src The buffer, positioned at the first pixel. Its position is unchanged.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 * @exception FITSException Thrown if the buffer has fewer than count pixels remaining.
+	 * @see #decode
+	 */
+	public void decodeParallel(final ByteBuffer src,final float dst[],final int offset,final int count)
+		throws FITSException
+	{
+		final int chunkPixelCount;
+
+		if(src.remaining() < (((long)count)*bytesPerPixel))
+		{
+			throw new FITSException(this.getClass().getName()+":decodeParallel:Buffer has "+src.remaining()+
+						" bytes, "+count+" pixels need "+(((long)count)*bytesPerPixel)+".");
+		}
+		chunkPixelCount = CHUNK_LENGTH/bytesPerPixel;
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(count,chunkPixelCount),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				ByteBuffer chunk = null;
+				int start = index*chunkPixelCount;
+
+				chunk = src.duplicate();
+				chunk.position(src.position()+(start*bytesPerPixel));
+				decode(chunk,dst,offset+start,Math.min(chunkPixelCount,count-start));
+			}
+		});
+	}
+
+	/**
+	 * Decode pixels from a buffer, in the calling thread. The kernel for the BITPIX is used.
+	 * @param src The buffer, positioned at the first pixel. Its position is unchanged.
+	 *        Its byte order is ignored, FITS data is always big endian.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 * @exception BufferUnderflowException Thrown if the buffer has fewer than count pixels remaining.
+	 */
+	public void decode(ByteBuffer src,float dst[],int offset,int count) throws BufferUnderflowException
+	{
+		src = src.slice().order(ByteOrder.BIG_ENDIAN);
+		if(src.remaining() < (((long)count)*bytesPerPixel))
+			throw new BufferUnderflowException();
+		switch(bitpix)
+		{
+			case 8:
+				decode8(src,dst,offset,count);
+				break;
+			case 16:
+				decode16(src.asShortBuffer(),dst,offset,count);
+				break;
+			case 32:
+				decode32(src.asIntBuffer(),dst,offset,count);
+				break;
+			case 64:
+				decode64(src.asLongBuffer(),dst,offset,count);
+				break;
+			case -32:
+				decodeFloat(src.asFloatBuffer(),dst,offset,count);
+				break;
+			case -64:
+				decodeDouble(src.asDoubleBuffer(),dst,offset,count);
+				break;
+		}
+	}
+
+	/**
+	 * Read a chunk of a file into a buffer, and decode it.
+	 * @param channel The file channel.
+	 * @param position The offset in the file of the first pixel.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels, at most CHUNK_LENGTH/bytesPerPixel.
+	 * @param buffer The buffer to read into, of at least CHUNK_LENGTH bytes.
+	 * @exception IOException Thrown if reading fails, or the file ends before the last pixel.
+	 * @see #decode
+	 */
+	protected void read(FileChannel channel,long position,float dst[],int offset,int count,ByteBuffer buffer)
+		throws IOException
+	{
+		int n;
+
+		buffer.clear();
+		buffer.limit(count*bytesPerPixel);
+		while(buffer.hasRemaining())
+		{
+			n = channel.read(buffer,position+buffer.position());
+			if(n < 0)
+			{
+				throw new EOFException(this.getClass().getName()+":read:File ended at "+
+						       (position+buffer.position())+".");
+			}
+		}
+		buffer.flip();
+		decode(buffer,dst,offset,count);
+	}
+
+	/**
+	 * Decode kernel for BITPIX 8 (unsigned bytes).
+	 * @param src The bytes.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decode8(ByteBuffer src,float dst[],int offset,int count)
+	{
+		float scale,zero;
+		int value;
+
+		scale = (float)bscale;
+		zero = (float)bzero;
+		for(int i = 0; i < count; i++)
+		{
+			value = src.get(i) & 0xff;
+			if(blankEnabled && (value == blank))
+				dst[offset+i] = Float.NaN;
+			else if(scaled)
+				dst[offset+i] = zero+(scale*value);
+			else
+				dst[offset+i] = value;
+		}
+	}
+
+	/**
+	 * Decode kernel for BITPIX 16.
+	 * @param src The values.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decode16(ShortBuffer src,float dst[],int offset,int count)
+	{
+		float scale,zero;
+		short value,blankValue;
+
+		scale = (float)bscale;
+		zero = (float)bzero;
+		if(blankEnabled && (blank >= Short.MIN_VALUE) && (blank <= Short.MAX_VALUE))
+		{
+			blankValue = (short)blank;
+			for(int i = 0; i < count; i++)
+			{
+				value = src.get(i);
+				dst[offset+i] = (value == blankValue) ? Float.NaN : zero+(scale*value);
+			}
+		}
+		else if(scaled)
+		{
+			for(int i = 0; i < count; i++)
+				dst[offset+i] = zero+(scale*src.get(i));
+		}
+		else
+		{
+			for(int i = 0; i < count; i++)
+				dst[offset+i] = src.get(i);
+		}
+	}
+
+	/**
+	 * Decode kernel for BITPIX 32. Scaling is done in double precision, as 32 bit integers do not fit a float.
+	 * @param src The values.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decode32(IntBuffer src,float dst[],int offset,int count)
+	{
+		int value;
+
+		for(int i = 0; i < count; i++)
+		{
+			value = src.get(i);
+			if(blankEnabled && (value == blank))
+				dst[offset+i] = Float.NaN;
+			else if(scaled)
+				dst[offset+i] = (float)(bzero+(bscale*value));
+			else
+				dst[offset+i] = value;
+		}
+	}
+
+	/**
+	 * Decode kernel for BITPIX 64. Scaling is done in double precision.
+	 * @param src The values.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decode64(LongBuffer src,float dst[],int offset,int count)
+	{
+		long value;
+
+		for(int i = 0; i < count; i++)
+		{
+			value = src.get(i);
+			if(blankEnabled && (value == blank))
+				dst[offset+i] = Float.NaN;
+			else if(scaled)
+				dst[offset+i] = (float)(bzero+(bscale*value));
+			else
+				dst[offset+i] = value;
+		}
+	}
+
+	/**
+	 * Decode kernel for BITPIX -32. Unscaled data is copied in bulk.
+	 * @param src The values.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decodeFloat(FloatBuffer src,float dst[],int offset,int count)
+	{
+		float scale,zero;
+
+		src.get(dst,offset,count);
+		if(scaled)
+		{
+			scale = (float)bscale;
+			zero = (float)bzero;
+			for(int i = offset; i < offset+count; i++)
+				dst[i] = zero+(scale*dst[i]);
+		}
+	}
+
+	/**
+	 * Decode kernel for BITPIX -64. Scaling is done in double precision.
+	 * @param src The values.
+	 * @param dst The array to decode into.
+	 * @param offset The index in dst of the first pixel.
+	 * @param count The number of pixels.
+	 */
+	protected void decodeDouble(DoubleBuffer src,float dst[],int offset,int count)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			if(scaled)
+				dst[offset+i] = (float)(bzero+(bscale*src.get(i)));
+			else
+				dst[offset+i] = (float)src.get(i);
+		}
+	}
+
+	/**
+	 * Test program: decodes a FITS file's primary HDU a number of times and prints the throughput.
+	 * @param args The filename, and optionally the number of repeats and the number of threads.
+	 */
+	public static void main(String args[])
+	{
+		RandomAccessFile randomAccessFile = null;
+		FITSHeaderCards cards = null;
+		FITSDataDecoder decoder = null;
+		float dataArray[];
+		long startTime,dataOffset;
+		int repeatCount,pixelCount;
+
+		if(args.length < 1)
+		{
+			System.err.println("java org.estar.fits.FITSDataDecoder <filename> [<repeats> [<threads>]]");
+			System.exit(1);
+		}
+		try
+		{
+			repeatCount = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+			randomAccessFile = new RandomAccessFile(args[0],"r");
+			cards = FITSHeaderCards.read(randomAccessFile);
+			dataOffset = randomAccessFile.getFilePointer();
+			decoder = create(cards);
+			if(args.length > 2)
+				decoder.setThreadCount(Integer.parseInt(args[2]));
+			pixelCount = (int)(cards.getDataLength()/decoder.getBytesPerPixel());
+			dataArray = new float[pixelCount];
+			startTime = System.nanoTime();
+			for(int i = 0; i < repeatCount; i++)
+				decoder.read(randomAccessFile.getChannel(),dataOffset,dataArray,0,pixelCount);
+			System.out.println(args[0]+": BITPIX "+decoder.getBitpix()+": "+pixelCount+" pixels: "+
+				(((double)pixelCount)*decoder.getBytesPerPixel()*repeatCount*1000.0/
+				 (System.nanoTime()-startTime))+" Mb/s");
+			randomAccessFile.close();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,397 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSFFT.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Two dimensional complex Fast Fourier Transform, of a width x height array where both dimensions are powers
+ * of two. Data is held in separate real and imaginary double arrays, in row order (index = (y*width)+x).
+ * An instance is a plan for one size: the bit reversal permutations and twiddle factors are computed once,
+ * and the plan is not modified afterwards, so can be used by any number of threads at once. Plans are cached,
+ * see getPlan.
+ * <p>
+ * The row transforms, then the column transforms, are run in parallel over FITSParallel.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSParallel
+ */
+public class FITSFFT
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of rows (or columns) transformed by each parallel task.
+	 */
+	protected final static int CHUNK_SIZE = 16;
+	/**
+	 * The maximum number of plans kept by getPlan.
+	 */
+	protected final static int MAXIMUM_PLAN_COUNT = 16;
+	/**
+	 * Cache of plans, keyed by "width x height".
+	 * @see #getPlan
+	 */
+	private static Map<String,FITSFFT> planMap = new ConcurrentHashMap<String,FITSFFT>();
+	/**
+	 * The width of the arrays transformed.
+	 */
+	protected int width;
+	/**
+	 * The height of the arrays transformed.
+	 */
+	protected int height;
+	/**
+	 * The bit reversal permutation of a row.
+	 */
+	protected int rowReverseList[] = null;
+	/**
+	 * The bit reversal permutation of a column.
+	 */
+	protected int columnReverseList[] = null;
+	/**
+	 * The cosine twiddle factors of a row transform, cos(2 pi k / width), for k < width/2.
+	 */
+	protected double rowCosList[] = null;
+	/**
+	 * The sine twiddle factors of a row transform, sin(2 pi k / width), for k < width/2.
+	 */
+	protected double rowSinList[] = null;
+	/**
+	 * The cosine twiddle factors of a column transform, cos(2 pi k / height), for k < height/2.
+	 */
+	protected double columnCosList[] = null;
+	/**
+	 * The sine twiddle factors of a column transform, sin(2 pi k / height), for k < height/2.
+	 */
+	protected double columnSinList[] = null;
+
+	/**
+	 * Constructor. Computes the plan for the specified size.
+	 * @param w The width, a power of two.
+	 * @param h The height, a power of two.
+	 * @exception IllegalArgumentException Thrown if either dimension is not a power of two.
+	 * @see #getPlan
+	 */
+	public FITSFFT(int w,int h) throws IllegalArgumentException
+	{
+		super();
+		if((isPowerOfTwo(w) == false)||(isPowerOfTwo(h) == false))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Dimensions "+w+" x "+h+
+							   " are not powers of two.");
+		}
+		width = w;
+		height = h;
+		rowReverseList = createReverseList(w);
+		columnReverseList = createReverseList(h);
+		rowCosList = createTwiddleList(w,true);
+		rowSinList = createTwiddleList(w,false);
+		columnCosList = createTwiddleList(h,true);
+		columnSinList = createTwiddleList(h,false);
+	}
+
+	/**
+	 * Get a plan for the specified size. Plans are cached, so repeated transforms of the same size
+	 * re-use the same plan.
+	 * @param w The width, a power of two.
+	 * @param h The height, a power of two.
+	 * @return The plan.
+	 * @exception IllegalArgumentException Thrown if either dimension is not a power of two.
+	 * @see #planMap
+	 */
+	public static FITSFFT getPlan(int w,int h) throws IllegalArgumentException
+	{
+		FITSFFT plan = null;
+		String key = null;
+
+		key = w+" x "+h;
+		plan = planMap.get(key);
+		if(plan == null)
+		{
+			plan = new FITSFFT(w,h);
+			if(planMap.size() >= MAXIMUM_PLAN_COUNT)
+				planMap.clear();
+			planMap.put(key,plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Get the smallest power of two greater than or equal to n.
+	 * @param n The number, at least 1.
+	 * @return The power of two.
+	 */
+	public static int getPaddedSize(int n)
+	{
+		int size;
+
+		size = 1;
+		while(size < n)
+			size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Get whether n is a (positive) power of two.
+	 * @param n The number.
+	 * @return true if n is a power of two.
+	 */
+	public static boolean isPowerOfTwo(int n)
+	{
+		return (n > 0)&&((n & (n-1)) == 0);
+	}
+
+	/**
+	 * Get the width of the arrays transformed.
+	 * @return The width.
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the arrays transformed.
+	 * @return The height.
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Forward transform, in place, using the default number of threads.
+	 * @param re The real parts, width*height of them.
+	 * @param im The imaginary parts, width*height of them.
+	 * @exception FITSException Thrown if the arrays are the wrong length, or a parallel task fails.
+	 * @see #transform
+	 */
+	public void forward(double re[],double im[]) throws FITSException
+	{
+		transform(re,im,false,0);
+	}
+
+	/**
+	 * Forward transform, in place.
+	 * @param re The real parts, width*height of them.
+	 * @param im The imaginary parts, width*height of them.
+	 * @param threadCount The number of threads to use, 0 (or less) for the default thread count.
+	 * @exception FITSException Thrown if the arrays are the wrong length, or a parallel task fails.
+	 * @see #transform
+	 */
+	public void forward(double re[],double im[],int threadCount) throws FITSException
+	{
+		transform(re,im,false,threadCount);
+	}
+
+	/**
+	 * Inverse transform, in place, using the default number of threads. The result is scaled by
+	 * 1/(width*height), so inverse(forward(a)) = a.
+	 * @param re The real parts, width*height of them.
+	 * @param im The imaginary parts, width*height of them.
+	 * @exception FITSException Thrown if the arrays are the wrong length, or a parallel task fails.
+	 * @see #transform
+	 */
+	public void inverse(double re[],double im[]) throws FITSException
+	{
+		transform(re,im,true,0);
+	}
+
+	/**
+	 * Inverse transform, in place. The result is scaled by 1/(width*height), so inverse(forward(a)) = a.
+	 * @param re The real parts, width*height of them.
+	 * @param im The imaginary parts, width*height of them.
+	 * @param threadCount The number of threads to use, 0 (or less) for the default thread count.
+	 * @exception FITSException Thrown if the arrays are the wrong length, or a parallel task fails.
+	 * @see #transform
+	 */
+	public void inverse(double re[],double im[],int threadCount) throws FITSException
+	{
+		transform(re,im,true,threadCount);
+	}
+
+	/**
+	 * Transform, in place: the rows are transformed, then the columns, each in parallel.
+	 * @param re The real parts, width*height of them.
+	 * @param im The imaginary parts, width*height of them.
+	 * @param inverse true for the inverse transform.
+	 * @param threadCount The number of threads to use, 0 (or less) for the default thread count.
+	 * @exception FITSException Thrown if the arrays are the wrong length, or a parallel task fails.
+	 * @see FITSParallel#run
+	 */
+	protected void transform(final double re[],final double im[],final boolean inverse,int threadCount)
+		throws FITSException
+	{
+		final double scale;
+
+		if((re.length != width*height)||(im.length != width*height))
+		{
+			throw new FITSException(this.getClass().getName()+":transform:Array lengths "+re.length+","+
+						im.length+" do not match plan "+width+" x "+height+".");
+		}
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,CHUNK_SIZE),new FITSParallel.Task()
+		{
+			public void run(int index)
+			{
+				int end;
+
+				end = Math.min((index+1)*CHUNK_SIZE,height);
+				for(int y = index*CHUNK_SIZE; y < end; y++)
+				{
+					transform1D(re,im,y*width,width,rowReverseList,rowCosList,rowSinList,
+						    inverse);
+				}
+			}
+		});
+		scale = inverse ? 1.0/(((double)width)*height) : 1.0;
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(width,CHUNK_SIZE),new FITSParallel.Task()
+		{
+			public void run(int index)
+			{
+				double columnRe[] = new double[height];
+				double columnIm[] = new double[height];
+				int end;
+
+				end = Math.min((index+1)*CHUNK_SIZE,width);
+				for(int x = index*CHUNK_SIZE; x < end; x++)
+				{
+					for(int y = 0; y < height; y++)
+					{
+						columnRe[y] = re[(y*width)+x];
+						columnIm[y] = im[(y*width)+x];
+					}
+					transform1D(columnRe,columnIm,0,height,columnReverseList,columnCosList,
+						    columnSinList,inverse);
+					for(int y = 0; y < height; y++)
+					{
+						re[(y*width)+x] = columnRe[y]*scale;
+						im[(y*width)+x] = columnIm[y]*scale;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * One dimensional iterative radix-2 transform, in place, of n contiguous elements.
+	 * The elements are permuted into bit reversed order, then combined with butterflies.
+	 * @param re The real parts.
+	 * @param im The imaginary parts.
+	 * @param offset The index of the first element.
+	 * @param n The number of elements, a power of two.
+	 * @param reverseList The bit reversal permutation for n.
+	 * @param cosList The cosine twiddle factors for n.
+	 * @param sinList The sine twiddle factors for n.
+	 * @param inverse true for the inverse transform (unscaled).
+	 */
+	protected static void transform1D(double re[],double im[],int offset,int n,int reverseList[],
+					  double cosList[],double sinList[],boolean inverse)
+	{
+		double tr,ti,wr,wi;
+		int j,half,step,i0,i1;
+
+		for(int i = 0; i < n; i++)
+		{
+			j = reverseList[i];
+			if(j > i)
+			{
+				tr = re[offset+i];
+				re[offset+i] = re[offset+j];
+				re[offset+j] = tr;
+				ti = im[offset+i];
+				im[offset+i] = im[offset+j];
+				im[offset+j] = ti;
+			}
+		}
+		for(int size = 2; size <= n; size <<= 1)
+		{
+			half = size >> 1;
+			step = n/size;
+			for(int start = 0; start < n; start += size)
+			{
+				for(int k = 0; k < half; k++)
+				{
+					wr = cosList[k*step];
+					// forward transform uses exp(-i theta), inverse exp(+i theta)
+					wi = inverse ? sinList[k*step] : -sinList[k*step];
+					i0 = offset+start+k;
+					i1 = i0+half;
+					tr = (re[i1]*wr)-(im[i1]*wi);
+					ti = (re[i1]*wi)+(im[i1]*wr);
+					re[i1] = re[i0]-tr;
+					im[i1] = im[i0]-ti;
+					re[i0] += tr;
+					im[i0] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create the bit reversal permutation for n elements.
+	 * @param n The number of elements, a power of two.
+	 * @return The permutation.
+	 */
+	protected static int[] createReverseList(int n)
+	{
+		int list[];
+		int bits,reversed;
+
+		list = new int[n];
+		bits = Integer.numberOfTrailingZeros(n);
+		for(int i = 0; i < n; i++)
+		{
+			reversed = 0;
+			for(int b = 0; b < bits; b++)
+			{
+				if((i & (1 << b)) != 0)
+					reversed |= 1 << (bits-1-b);
+			}
+			list[i] = reversed;
+		}
+		return list;
+	}
+
+	/**
+	 * Create the twiddle factors for an n element transform.
+	 * @param n The number of elements, a power of two.
+	 * @param cos true for the cosines, false for the sines.
+	 * @return The n/2 twiddle factors (at least 1).
+	 */
+	protected static double[] createTwiddleList(int n,boolean cos)
+	{
+		double list[];
+		double theta;
+
+		list = new double[Math.max(n/2,1)];
+		for(int k = 0; k < list.length; k++)
+		{
+			theta = (2.0*Math.PI*k)/n;
+			list[k] = cos ? Math.cos(theta) : Math.sin(theta);
+		}
+		return list;
+	}
+}
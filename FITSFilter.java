@@ -0,0 +1,1172 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSFilter.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * Filters FITSImage pixel buffers: Gaussian and box smoothing, median filtering, convolution with an
+ * arbitrary kernel, and unsharp masking. Each filter returns a new image, with the metadata of the original.
+ * <ul>
+ * <li>Gaussian and box filters are separable, and run as a horizontal then a vertical pass. The vertical pass
+ *     accumulates whole rows, so neither pass reads down columns. Box filters use running sums, so their cost
+ *     does not depend on the size.
+ * <li>The median filter keeps a running histogram of the window as it slides along each row (Huang's method),
+ *     updating it by a column at each step. Values are quantised to MEDIAN_LEVEL_COUNT levels between the
+ *     image minimum and maximum, so integer data with fewer levels than that is filtered exactly.
+ * <li>Large kernels are convolved by FFT, in tiles (overlap-save), so memory does not grow with the image.
+ *     With METHOD_AUTOMATIC the method is chosen by comparing the cost of the direct and FFT methods for the
+ *     kernel size, see chooseMethod.
+ * </ul>
+ * Blank (NaN) pixels and pixels off the image are treated as missing: the kernel weights of the pixels that
+ * are present are renormalised (normalised convolution), so there is no darkening at the edges or around
+ * blank pixels. Output pixels with no pixels present are NaN. Kernels are in FITS row order, of odd size,
+ * centred on the middle element.
+ * <p>
+ * Rows (and FFT tiles) are processed in parallel, and each thread reuses its scratch buffers.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSFFT
+ */
+public class FITSFilter
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Convolution method: chosen by kernel size.
+	 * @see #chooseMethod
+	 */
+	public final static int METHOD_AUTOMATIC = 0;
+	/**
+	 * Convolution method: direct summation.
+	 */
+	public final static int METHOD_DIRECT = 1;
+	/**
+	 * Convolution method: by FFT.
+	 */
+	public final static int METHOD_FFT = 2;
+	/**
+	 * The number of levels values are quantised to by the median filter.
+	 */
+	public final static int MEDIAN_LEVEL_COUNT = 65536;
+	/**
+	 * The number of rows processed by each parallel task.
+	 */
+	protected final static int BAND_HEIGHT = 32;
+	/**
+	 * The minimum size of the FFT tiles.
+	 */
+	protected final static int MIN_FFT_SIZE = 256;
+	/**
+	 * The cost of FFT convolution per element per log2(size) of each transform, relative to one kernel
+	 * element of a separable pass. Measured, including the transform's overheads.
+	 */
+	protected final static double FFT_COST_FACTOR = 7.0;
+	/**
+	 * The cost of one kernel element of two dimensional direct convolution, relative to one of a separable
+	 * pass, which accumulates whole rows. Measured.
+	 */
+	protected final static double DIRECT_COST_FACTOR = 2.5;
+	/**
+	 * The number of median levels in each coarse histogram bin.
+	 */
+	protected final static int MEDIAN_COARSE_SIZE = 256;
+	/**
+	 * The convolution method.
+	 * @see #METHOD_AUTOMATIC
+	 * @see #METHOD_DIRECT
+	 * @see #METHOD_FFT
+	 */
+	protected int method = METHOD_AUTOMATIC;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * Per thread scratch buffers, reused between rows, tiles and calls.
+	 */
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+	{
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSFilter()
+	{
+		super();
+	}
+
+	/**
+	 * Set the convolution method.
+	 * @param m The method, one of METHOD_AUTOMATIC, METHOD_DIRECT or METHOD_FFT.
+	 * @exception IllegalArgumentException Thrown if the method is not one of those.
+	 * @see #method
+	 */
+	public void setMethod(int m) throws IllegalArgumentException
+	{
+		if((m != METHOD_AUTOMATIC)&&(m != METHOD_DIRECT)&&(m != METHOD_FFT))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setMethod:Illegal method:"+m);
+		}
+		method = m;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Smooth an image with a Gaussian.
+	 * @param image The image to filter. It's data must have been loaded.
+	 * @param sigma The standard deviation of the Gaussian, in pixels.
+	 * @return A new, filtered, image.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @exception IllegalArgumentException Thrown if sigma is not positive.
+	 * @see #createGaussianKernel
+	 * @see #convolveSeparable
+	 */
+	public FITSImage gaussian(FITSImage image,double sigma) throws FITSException,IllegalArgumentException
+	{
+		float kernel[],kernel2D[];
+		float dataArray[];
+
+		dataArray = getDataArray(image,"gaussian");
+		kernel = createGaussianKernel(sigma);
+		if(chooseMethod(image.getWidth(),image.getHeight(),kernel.length,kernel.length,true) == METHOD_FFT)
+		{
+			kernel2D = new float[kernel.length*kernel.length];
+			for(int j = 0; j < kernel.length; j++)
+			{
+				for(int i = 0; i < kernel.length; i++)
+					kernel2D[(j*kernel.length)+i] = kernel[i]*kernel[j];
+			}
+			return createImage(image,convolveFFT(dataArray,image.getWidth(),image.getHeight(),kernel2D,
+							     kernel.length,kernel.length));
+		}
+		return createImage(image,convolveSeparable(dataArray,image.getWidth(),image.getHeight(),kernel,
+							   kernel));
+	}
+
+	/**
+	 * Smooth an image with a square box (mean) filter.
+	 * @param image The image to filter. It's data must have been loaded.
+	 * @param size The size of the box, in pixels, odd.
+	 * @return A new, filtered, image.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @exception IllegalArgumentException Thrown if the size is not a positive odd number.
+	 * @see #boxPass
+	 */
+	public FITSImage box(FITSImage image,int size) throws FITSException,IllegalArgumentException
+	{
+		final float dataArray[],sum[],count[],result[];
+		final int width,height,radius;
+
+		dataArray = getDataArray(image,"box");
+		checkSize("box",size);
+		width = image.getWidth();
+		height = image.getHeight();
+		radius = size/2;
+		sum = new float[width*height];
+		count = new float[width*height];
+		result = new float[width*height];
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				for(int y = index*BAND_HEIGHT; y < Math.min(height,(index+1)*BAND_HEIGHT); y++)
+					boxRow(dataArray,width,y,radius,sum,count);
+			}
+		});
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				boxColumns(sum,count,width,height,index*BAND_HEIGHT,
+					   Math.min(height,(index+1)*BAND_HEIGHT),radius,result);
+			}
+		});
+		return createImage(image,result);
+	}
+
+	/**
+	 * Median filter an image.
+	 * @param image The image to filter. It's data must have been loaded.
+	 * @param size The size of the square window, in pixels, odd.
+	 * @return A new, filtered, image. Where the window has an even number of values (at the edges, or with
+	 *         blank pixels), the lower of the middle two is used.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @exception IllegalArgumentException Thrown if the size is not a positive odd number.
+	 * @see #medianRow
+	 */
+	public FITSImage median(FITSImage image,int size) throws FITSException,IllegalArgumentException
+	{
+		final float dataArray[],result[];
+		final int levelList[];
+		final int width,height,radius;
+		final float minValue,step;
+		float min,max;
+		boolean integral;
+
+		dataArray = getDataArray(image,"median");
+		checkSize("median",size);
+		width = image.getWidth();
+		height = image.getHeight();
+		radius = size/2;
+		min = Float.MAX_VALUE;
+		max = -Float.MAX_VALUE;
+		integral = true;
+		for(int i = 0; i < dataArray.length; i++)
+		{
+			if(Float.isNaN(dataArray[i]))
+				continue;
+			min = Math.min(min,dataArray[i]);
+			max = Math.max(max,dataArray[i]);
+			integral = integral && (dataArray[i] == (float)Math.rint(dataArray[i]));
+		}
+		result = new float[width*height];
+		if(min > max)
+		{
+			java.util.Arrays.fill(result,Float.NaN);
+			return createImage(image,result);
+		}
+		minValue = min;
+		if(integral && ((max-min) < MEDIAN_LEVEL_COUNT))
+			step = 1.0f;
+		else
+			step = Math.max((max-min)/(MEDIAN_LEVEL_COUNT-1),Float.MIN_NORMAL);
+		levelList = new int[dataArray.length];
+		for(int i = 0; i < dataArray.length; i++)
+		{
+			if(Float.isNaN(dataArray[i]))
+				levelList[i] = -1;
+			else
+			{
+				levelList[i] = Math.min(MEDIAN_LEVEL_COUNT-1,
+							(int)Math.floor(((dataArray[i]-minValue)/step)+0.5f));
+			}
+		}
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				for(int y = index*BAND_HEIGHT; y < Math.min(height,(index+1)*BAND_HEIGHT); y++)
+					medianRow(levelList,width,height,y,radius,minValue,step,result);
+			}
+		});
+		return createImage(image,result);
+	}
+
+	/**
+	 * Convolve an image with a kernel, e.g. a PSF for matched filtering. If the kernel sums to (nearly) 0,
+	 * as a derivative kernel does, missing pixels are taken as 0 rather than renormalised.
+	 * @param image The image to filter. It's data must have been loaded.
+	 * @param kernel The kernel, in FITS row order (kernel[(j*kw)+i]).
+	 * @param kw The width of the kernel, odd.
+	 * @param kh The height of the kernel, odd.
+	 * @return A new, filtered, image.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @exception IllegalArgumentException Thrown if a kernel size is not a positive odd number, or the kernel
+	 *            is the wrong length.
+	 * @see #chooseMethod
+	 * @see #convolveDirect
+	 * @see #convolveFFT
+	 */
+	public FITSImage convolve(FITSImage image,float kernel[],int kw,int kh)
+		throws FITSException,IllegalArgumentException
+	{
+		float dataArray[];
+
+		dataArray = getDataArray(image,"convolve");
+		checkSize("convolve",kw);
+		checkSize("convolve",kh);
+		if(kernel.length != (kw*kh))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":convolve:Kernel length "+
+							   kernel.length+" does not match size "+kw+" x "+kh+".");
+		}
+		if(chooseMethod(image.getWidth(),image.getHeight(),kw,kh,false) == METHOD_FFT)
+			return createImage(image,convolveFFT(dataArray,image.getWidth(),image.getHeight(),kernel,kw,kh));
+		return createImage(image,convolveDirect(dataArray,image.getWidth(),image.getHeight(),kernel,kw,kh));
+	}
+
+	/**
+	 * Sharpen an image by unsharp masking: the image plus amount times the difference between the image and
+	 * a Gaussian smoothed copy.
+	 * @param image The image to filter. It's data must have been loaded.
+	 * @param sigma The standard deviation of the Gaussian, in pixels.
+	 * @param amount The amount of sharpening, e.g. 1.
+	 * @return A new, filtered, image.
+	 * @exception FITSException Thrown if the image has no data, or a parallel task fails.
+	 * @exception IllegalArgumentException Thrown if sigma is not positive.
+	 * @see #gaussian
+	 */
+	public FITSImage unsharpMask(FITSImage image,double sigma,double amount)
+		throws FITSException,IllegalArgumentException
+	{
+		FITSImage smoothed = null;
+		float dataArray[],smoothArray[],sharpArray[];
+
+		dataArray = getDataArray(image,"unsharpMask");
+		smoothed = gaussian(image,sigma);
+		smoothArray = smoothed.getDataArray();
+		sharpArray = new float[smoothArray.length];
+		for(int i = 0; i < sharpArray.length; i++)
+			sharpArray[i] = (float)(dataArray[i]+(amount*(dataArray[i]-smoothArray[i])));
+		return createImage(image,sharpArray);
+	}
+
+	/**
+	 * Choose the convolution method for a kernel. With METHOD_AUTOMATIC, the cost per pixel of direct
+	 * convolution (the kernel size for a separable kernel, twice for the two passes, or its weighted area) is
+	 * compared with that of FFT convolution in tiles (two transforms of each tile, over its output pixels).
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param kw The width of the kernel.
+	 * @param kh The height of the kernel.
+	 * @param separable Whether the kernel is separable.
+	 * @return METHOD_DIRECT or METHOD_FFT.
+	 * @see #method
+	 * @see #getFFTSize
+	 */
+	public int chooseMethod(int width,int height,int kw,int kh,boolean separable)
+	{
+		double directCost,fftCost;
+		int n;
+
+		if(method != METHOD_AUTOMATIC)
+			return method;
+		directCost = separable ? (kw+kh) : (DIRECT_COST_FACTOR*kw*kh);
+		n = getFFTSize(kw,kh);
+		fftCost = FFT_COST_FACTOR*2.0*((double)n*n)*(Math.log((double)n*n)/Math.log(2.0))/
+			(((double)Math.min(n-kw+1,width))*Math.min(n-kh+1,height));
+		return (fftCost < directCost) ? METHOD_FFT : METHOD_DIRECT;
+	}
+
+	/**
+	 * Create a normalised one dimensional Gaussian kernel, truncated at 4 sigma.
+	 * @param sigma The standard deviation, in pixels.
+	 * @return The kernel, of odd length 2*ceil(4*sigma)+1.
+	 * @exception IllegalArgumentException Thrown if sigma is not positive.
+	 */
+	public static float[] createGaussianKernel(double sigma) throws IllegalArgumentException
+	{
+		double weightList[];
+		float kernel[];
+		double sum;
+		int radius;
+
+		if(!(sigma > 0.0))
+		{
+			throw new IllegalArgumentException("org.estar.fits.FITSFilter:createGaussianKernel:"+
+							   "Illegal sigma:"+sigma);
+		}
+		radius = (int)Math.ceil(4.0*sigma);
+		weightList = new double[(2*radius)+1];
+		sum = 0.0;
+		for(int i = 0; i < weightList.length; i++)
+		{
+			weightList[i] = Math.exp(-((i-radius)*(i-radius))/(2.0*sigma*sigma));
+			sum += weightList[i];
+		}
+		kernel = new float[weightList.length];
+		for(int i = 0; i < kernel.length; i++)
+			kernel[i] = (float)(weightList[i]/sum);
+		return kernel;
+	}
+
+	/**
+	 * Return a string describing the filter.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": method="+method+" threads="+threadCount;
+	}
+
+	/**
+	 * Convolve with a separable kernel, directly: a horizontal pass over each row, then a vertical pass
+	 * accumulating whole rows. If the image has blank pixels the kernel weights present are accumulated
+	 * alongside; otherwise only the off image weights are missing, and they are known for each row and column.
+	 * @param src The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param kx The horizontal kernel, odd length.
+	 * @param ky The vertical kernel, odd length.
+	 * @return The filtered data.
+	 * @exception FITSException Thrown if a parallel task fails.
+	 */
+	protected float[] convolveSeparable(final float src[],final int width,final int height,final float kx[],
+					    final float ky[]) throws FITSException
+	{
+		final float sum[],weight[],result[],xNorm[],yNorm[];
+		final boolean blank;
+
+		blank = hasBlank(src);
+		sum = new float[width*height];
+		weight = blank ? new float[width*height] : null;
+		result = new float[width*height];
+		xNorm = createEdgeNorm(kx,width);
+		yNorm = createEdgeNorm(ky,height);
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				int radius,offset,xi;
+				double s,w;
+				float v;
+
+				radius = kx.length/2;
+				for(int y = index*BAND_HEIGHT; y < Math.min(height,(index+1)*BAND_HEIGHT); y++)
+				{
+					offset = y*width;
+					for(int x = 0; x < width; x++)
+					{
+						s = 0.0;
+						w = 0.0;
+						for(int i = Math.max(0,x+radius-(width-1)); i < Math.min(kx.length,x+radius+1); i++)
+						{
+							xi = (x+radius)-i;
+							v = src[offset+xi];
+							if(blank && Float.isNaN(v))
+								continue;
+							s += kx[i]*v;
+							w += kx[i];
+						}
+						sum[offset+x] = (float)s;
+						if(blank)
+							weight[offset+x] = (float)w;
+					}
+				}
+			}
+		});
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				Scratch s = scratch.get();
+				double rowSum[],rowWeight[];
+				int radius,offset;
+				float k;
+
+				rowSum = s.getDoubleList(0,width);
+				rowWeight = s.getDoubleList(1,width);
+				radius = ky.length/2;
+				for(int y = index*BAND_HEIGHT; y < Math.min(height,(index+1)*BAND_HEIGHT); y++)
+				{
+					java.util.Arrays.fill(rowSum,0,width,0.0);
+					if(blank)
+						java.util.Arrays.fill(rowWeight,0,width,0.0);
+					for(int j = Math.max(0,y+radius-(height-1)); j < Math.min(ky.length,y+radius+1); j++)
+					{
+						offset = ((y+radius)-j)*width;
+						k = ky[j];
+						for(int x = 0; x < width; x++)
+							rowSum[x] += k*sum[offset+x];
+						if(blank)
+						{
+							for(int x = 0; x < width; x++)
+								rowWeight[x] += k*weight[offset+x];
+						}
+					}
+					offset = y*width;
+					for(int x = 0; x < width; x++)
+					{
+						if(blank)
+						{
+							result[offset+x] = (rowWeight[x] > 0.0) ? (float)(rowSum[x]/rowWeight[x]) :
+								Float.NaN;
+						}
+						else
+							result[offset+x] = (float)(rowSum[x]/(xNorm[x]*yNorm[y]));
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Convolve with a kernel, directly.
+	 * @param src The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param kernel The kernel.
+	 * @param kw The width of the kernel, odd.
+	 * @param kh The height of the kernel, odd.
+	 * @return The filtered data.
+	 * @exception FITSException Thrown if a parallel task fails.
+	 * @see #isNormalised
+	 */
+	protected float[] convolveDirect(final float src[],final int width,final int height,final float kernel[],
+					 final int kw,final int kh) throws FITSException
+	{
+		final float result[];
+		final double kernelSum;
+		final boolean normalise;
+
+		result = new float[width*height];
+		kernelSum = getSum(kernel);
+		normalise = isNormalised(kernel);
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,BAND_HEIGHT),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				double s,w;
+				float v,k;
+				int rx,ry,offset;
+
+				rx = kw/2;
+				ry = kh/2;
+				for(int y = index*BAND_HEIGHT; y < Math.min(height,(index+1)*BAND_HEIGHT); y++)
+				{
+					for(int x = 0; x < width; x++)
+					{
+						s = 0.0;
+						w = 0.0;
+						for(int j = Math.max(0,y+ry-(height-1)); j < Math.min(kh,y+ry+1); j++)
+						{
+							offset = ((y+ry)-j)*width;
+							for(int i = Math.max(0,x+rx-(width-1)); i < Math.min(kw,x+rx+1); i++)
+							{
+								v = src[offset+(x+rx)-i];
+								if(Float.isNaN(v))
+									continue;
+								k = kernel[(j*kw)+i];
+								s += k*v;
+								w += k;
+							}
+						}
+						result[(y*width)+x] = normalise ? normalise(s,w,kernelSum) : (float)s;
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Convolve with a kernel by FFT, in square tiles (overlap-save). Each tile of the output is computed from
+	 * the tile of the image extended by the kernel's half size on each side, so tiles are independent and are
+	 * computed in parallel, each transform in one thread. The image values and their presence (1, or 0 for
+	 * blank or off image) are transformed together, as the real and imaginary parts, and multiplied by the
+	 * kernel's transform, which is computed once.
+	 * @param src The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param kernel The kernel.
+	 * @param kw The width of the kernel, odd.
+	 * @param kh The height of the kernel, odd.
+	 * @return The filtered data.
+	 * @exception FITSException Thrown if a transform or parallel task fails.
+	 * @see #getFFTSize
+	 * @see FITSFFT
+	 */
+	protected float[] convolveFFT(final float src[],final int width,final int height,final float kernel[],
+				      final int kw,final int kh) throws FITSException
+	{
+		final FITSFFT plan;
+		final float result[];
+		final double kernelRe[],kernelIm[];
+		final double kernelSum;
+		final boolean normalise;
+		final int n,tileWidth,tileHeight,tileCountX;
+
+		result = new float[width*height];
+		kernelSum = getSum(kernel);
+		normalise = isNormalised(kernel);
+		n = getFFTSize(kw,kh);
+		plan = FITSFFT.getPlan(n,n);
+		tileWidth = (n-kw)+1;
+		tileHeight = (n-kh)+1;
+		// the kernel, with its centre at (0,0), wrapping
+		kernelRe = new double[n*n];
+		kernelIm = new double[n*n];
+		for(int j = 0; j < kh; j++)
+		{
+			for(int i = 0; i < kw; i++)
+				kernelRe[((((j-(kh/2))+n) % n)*n)+(((i-(kw/2))+n) % n)] = kernel[(j*kw)+i];
+		}
+		plan.forward(kernelRe,kernelIm,threadCount);
+		tileCountX = FITSParallel.getChunkCount(width,tileWidth);
+		FITSParallel.run(threadCount,tileCountX*FITSParallel.getChunkCount(height,tileHeight),
+				 new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				Scratch s = scratch.get();
+				double re[],im[];
+				double a,b;
+				float v;
+				int ox,oy,x,y,bx0,by0;
+
+				re = s.getTransformList(0,n*n);
+				im = s.getTransformList(1,n*n);
+				ox = (index % tileCountX)*tileWidth;
+				oy = (index/tileCountX)*tileHeight;
+				// block origin in the image
+				bx0 = ox-(kw/2);
+				by0 = oy-(kh/2);
+				for(int by = 0; by < n; by++)
+				{
+					y = by0+by;
+					for(int bx = 0; bx < n; bx++)
+					{
+						x = bx0+bx;
+						v = ((x >= 0)&&(x < width)&&(y >= 0)&&(y < height)) ? src[(y*width)+x] : Float.NaN;
+						re[(by*n)+bx] = Float.isNaN(v) ? 0.0 : v;
+						im[(by*n)+bx] = Float.isNaN(v) ? 0.0 : 1.0;
+					}
+				}
+				plan.forward(re,im,1);
+				for(int i = 0; i < n*n; i++)
+				{
+					a = re[i];
+					b = im[i];
+					re[i] = (a*kernelRe[i])-(b*kernelIm[i]);
+					im[i] = (a*kernelIm[i])+(b*kernelRe[i]);
+				}
+				plan.inverse(re,im,1);
+				for(int ty = 0; ty < Math.min(tileHeight,height-oy); ty++)
+				{
+					for(int tx = 0; tx < Math.min(tileWidth,width-ox); tx++)
+					{
+						a = re[((ty+(kh/2))*n)+tx+(kw/2)];
+						b = im[((ty+(kh/2))*n)+tx+(kw/2)];
+						result[((oy+ty)*width)+ox+tx] = normalise ? normalise(a,b,kernelSum) : (float)a;
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Box filter one row: the sum and number of the pixels present in the window around each pixel, by
+	 * a running sum.
+	 * @param src The image data.
+	 * @param width The width of the image.
+	 * @param y The row.
+	 * @param radius The half size of the box.
+	 * @param sum The array to put the sums in.
+	 * @param count The array to put the numbers of pixels in.
+	 */
+	protected void boxRow(float src[],int width,int y,int radius,float sum[],float count[])
+	{
+		double s;
+		float v;
+		int offset,n;
+
+		offset = y*width;
+		s = 0.0;
+		n = 0;
+		for(int x = 0; x < Math.min(radius,width); x++)
+		{
+			v = src[offset+x];
+			if(Float.isNaN(v) == false)
+			{
+				s += v;
+				n++;
+			}
+		}
+		for(int x = 0; x < width; x++)
+		{
+			if((x+radius) < width)
+			{
+				v = src[offset+x+radius];
+				if(Float.isNaN(v) == false)
+				{
+					s += v;
+					n++;
+				}
+			}
+			if((x-radius-1) >= 0)
+			{
+				v = src[offset+x-radius-1];
+				if(Float.isNaN(v) == false)
+				{
+					s -= v;
+					n--;
+				}
+			}
+			sum[offset+x] = (float)s;
+			count[offset+x] = n;
+		}
+	}
+
+	/**
+	 * Box filter a band of rows vertically, from the row sums and counts, by running sums of whole rows.
+	 * @param sum The row sums.
+	 * @param count The row counts.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param y0 The first row of the band.
+	 * @param y1 The row after the last row of the band.
+	 * @param radius The half size of the box.
+	 * @param result The array to put the means in.
+	 */
+	protected void boxColumns(float sum[],float count[],int width,int height,int y0,int y1,int radius,
+				  float result[])
+	{
+		Scratch s = null;
+		double rowSum[],rowCount[];
+		int offset;
+
+		s = scratch.get();
+		rowSum = s.getDoubleList(0,width);
+		rowCount = s.getDoubleList(1,width);
+		java.util.Arrays.fill(rowSum,0,width,0.0);
+		java.util.Arrays.fill(rowCount,0,width,0.0);
+		for(int y = Math.max(0,y0-radius-1); y < Math.min(height,y0+radius); y++)
+			addRow(sum,count,width,y,1.0,rowSum,rowCount);
+		for(int y = y0; y < y1; y++)
+		{
+			if((y+radius) < height)
+				addRow(sum,count,width,y+radius,1.0,rowSum,rowCount);
+			if((y-radius-1) >= 0)
+				addRow(sum,count,width,y-radius-1,-1.0,rowSum,rowCount);
+			offset = y*width;
+			for(int x = 0; x < width; x++)
+			{
+				// counts are whole numbers, so the running count is exact
+				result[offset+x] = (rowCount[x] > 0.5) ? (float)(rowSum[x]/rowCount[x]) : Float.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Add (or subtract) a row of sums and counts to the running totals.
+	 * @param sum The row sums.
+	 * @param count The row counts.
+	 * @param width The width of the image.
+	 * @param y The row to add.
+	 * @param sign 1 to add, -1 to subtract.
+	 * @param rowSum The running sums.
+	 * @param rowCount The running counts.
+	 */
+	protected static void addRow(float sum[],float count[],int width,int y,double sign,double rowSum[],
+				     double rowCount[])
+	{
+		int offset;
+
+		offset = y*width;
+		for(int x = 0; x < width; x++)
+		{
+			rowSum[x] += sign*sum[offset+x];
+			rowCount[x] += sign*count[offset+x];
+		}
+	}
+
+	/**
+	 * Median filter one row. The histogram of the window's levels is updated by a column as the window moves
+	 * along the row (Huang's method). The coarse bin holding the median is tracked from the previous one,
+	 * with the number of values in the coarse bins below it, and the median level found by scanning the fine
+	 * levels of that bin only. The window is removed from the histogram at the end of the row, leaving it
+	 * empty for the next.
+	 * @param levelList The quantised image, -1 for blank pixels.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param y The row.
+	 * @param radius The half size of the window.
+	 * @param minValue The value of level 0.
+	 * @param step The value of each level.
+	 * @param result The array to put the medians in.
+	 */
+	protected void medianRow(int levelList[],int width,int height,int y,int radius,float minValue,float step,
+				 float result[])
+	{
+		Scratch s = null;
+		int histogram[],coarse[];
+		int y0,y1,bin,below,count,target,m;
+
+		s = scratch.get();
+		histogram = s.getIntList(0,MEDIAN_LEVEL_COUNT);
+		coarse = s.getIntList(1,MEDIAN_LEVEL_COUNT/MEDIAN_COARSE_SIZE);
+		y0 = Math.max(0,y-radius);
+		y1 = Math.min(height-1,y+radius);
+		count = 0;
+		for(int x = 0; x < Math.min(radius,width); x++)
+			count += updateColumn(levelList,width,x,y0,y1,1,histogram,coarse);
+		bin = 0;
+		below = 0;
+		for(int x = 0; x < width; x++)
+		{
+			// keep below, the number of values in the coarse bins below bin, up to date
+			if((x+radius) < width)
+			{
+				count += updateColumn(levelList,width,x+radius,y0,y1,1,histogram,coarse);
+				below += countBelow(levelList,width,x+radius,y0,y1,bin);
+			}
+			if((x-radius-1) >= 0)
+			{
+				count -= updateColumn(levelList,width,x-radius-1,y0,y1,-1,histogram,coarse);
+				below -= countBelow(levelList,width,x-radius-1,y0,y1,bin);
+			}
+			if(count == 0)
+			{
+				result[(y*width)+x] = Float.NaN;
+				continue;
+			}
+			target = (count-1)/2;
+			while((below+coarse[bin]) <= target)
+			{
+				below += coarse[bin];
+				bin++;
+			}
+			while(below > target)
+			{
+				bin--;
+				below -= coarse[bin];
+			}
+			m = bin*MEDIAN_COARSE_SIZE;
+			for(int n = below+histogram[m]; n <= target; n += histogram[m])
+				m++;
+			result[(y*width)+x] = minValue+(m*step);
+		}
+		for(int x = Math.max(0,width-1-radius); x < width; x++)
+			updateColumn(levelList,width,x,y0,y1,-1,histogram,coarse);
+	}
+
+	/**
+	 * Count the values in a column of the window in coarse median bins below a bin.
+	 * @param levelList The quantised image, -1 for blank pixels.
+	 * @param width The width of the image.
+	 * @param x The column.
+	 * @param y0 The first row of the window.
+	 * @param y1 The last row of the window.
+	 * @param bin The coarse bin.
+	 * @return The number of values.
+	 */
+	protected static int countBelow(int levelList[],int width,int x,int y0,int y1,int bin)
+	{
+		int level,n;
+
+		n = 0;
+		for(int y = y0; y <= y1; y++)
+		{
+			level = levelList[(y*width)+x];
+			if((level >= 0)&&((level/MEDIAN_COARSE_SIZE) < bin))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Add (or remove) a column of the window to the median histograms.
+	 * @param levelList The quantised image, -1 for blank pixels.
+	 * @param width The width of the image.
+	 * @param x The column.
+	 * @param y0 The first row of the window.
+	 * @param y1 The last row of the window.
+	 * @param sign 1 to add, -1 to remove.
+	 * @param histogram The histogram of levels.
+	 * @param coarse The coarse histogram of levels.
+	 * @return The number of values (not blank) added or removed.
+	 */
+	protected static int updateColumn(int levelList[],int width,int x,int y0,int y1,int sign,int histogram[],
+					  int coarse[])
+	{
+		int level,n;
+
+		n = 0;
+		for(int y = y0; y <= y1; y++)
+		{
+			level = levelList[(y*width)+x];
+			if(level < 0)
+				continue;
+			histogram[level] += sign;
+			coarse[level/MEDIAN_COARSE_SIZE] += sign;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the size of the FFT tiles for a kernel: the smallest power of two at least twice the kernel size,
+	 * and at least MIN_FFT_SIZE.
+	 * @param kw The width of the kernel.
+	 * @param kh The height of the kernel.
+	 * @return The tile size.
+	 */
+	protected static int getFFTSize(int kw,int kh)
+	{
+		return Math.max(MIN_FFT_SIZE,FITSFFT.getPaddedSize(2*Math.max(kw,kh)));
+	}
+
+	/**
+	 * Get the sums of the present kernel weights, at each position along an axis, for a kernel with no
+	 * blank pixels: the kernel sum, less the weights that fall off the image.
+	 * @param kernel The kernel.
+	 * @param n The length of the axis.
+	 * @return The sums.
+	 */
+	protected static float[] createEdgeNorm(float kernel[],int n)
+	{
+		float norm[];
+		double sum;
+		int radius;
+
+		radius = kernel.length/2;
+		norm = new float[n];
+		for(int x = 0; x < n; x++)
+		{
+			sum = 0.0;
+			for(int i = Math.max(0,x+radius-(n-1)); i < Math.min(kernel.length,x+radius+1); i++)
+				sum += kernel[i];
+			norm[x] = (float)sum;
+		}
+		return norm;
+	}
+
+	/**
+	 * Get the result of a normalised convolution: the sum scaled from the weight present to the full
+	 * kernel sum.
+	 * @param sum The weighted sum of the pixels present.
+	 * @param weight The sum of the kernel weights of the pixels present.
+	 * @param kernelSum The sum of the kernel.
+	 * @return The result, or NaN if (almost) no weight is present.
+	 */
+	protected static float normalise(double sum,double weight,double kernelSum)
+	{
+		if((weight/kernelSum) <= 1.0e-6)
+			return Float.NaN;
+		return (float)(sum*kernelSum/weight);
+	}
+
+	/**
+	 * Get whether convolution with a kernel is normalised, i.e. whether its sum is not (nearly) 0.
+	 * @param kernel The kernel.
+	 * @return true if the sum of the kernel is more than 1e-6 of the sum of its absolute values.
+	 */
+	protected static boolean isNormalised(float kernel[])
+	{
+		double absoluteSum;
+
+		absoluteSum = 0.0;
+		for(int i = 0; i < kernel.length; i++)
+			absoluteSum += Math.abs(kernel[i]);
+		return Math.abs(getSum(kernel)) > (1.0e-6*absoluteSum);
+	}
+
+	/**
+	 * Get the sum of a kernel.
+	 * @param kernel The kernel.
+	 * @return The sum.
+	 */
+	protected static double getSum(float kernel[])
+	{
+		double sum;
+
+		sum = 0.0;
+		for(int i = 0; i < kernel.length; i++)
+			sum += kernel[i];
+		return sum;
+	}
+
+	/**
+	 * Get whether an array has blank (NaN) values.
+	 * @param a The array.
+	 * @return true if any value is NaN.
+	 */
+	protected static boolean hasBlank(float a[])
+	{
+		for(int i = 0; i < a.length; i++)
+		{
+			if(Float.isNaN(a[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get an image's data array, checking it has been loaded.
+	 * @param image The image.
+	 * @param methodName The calling method, for the error message.
+	 * @return The data array.
+	 * @exception FITSException Thrown if the image has no data.
+	 */
+	protected float[] getDataArray(FITSImage image,String methodName) throws FITSException
+	{
+		float dataArray[];
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":"+methodName+":Image has no data.");
+		}
+		return dataArray;
+	}
+
+	/**
+	 * Check a filter size is a positive odd number.
+	 * @param methodName The calling method, for the error message.
+	 * @param size The size.
+	 * @exception IllegalArgumentException Thrown if the size is not a positive odd number.
+	 */
+	protected void checkSize(String methodName,int size) throws IllegalArgumentException
+	{
+		if((size < 1)||((size % 2) == 0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":"+methodName+
+							   ":Size must be a positive odd number:"+size);
+		}
+	}
+
+	/**
+	 * Create the image returned by a filter, with the metadata of the original.
+	 * @param image The original image.
+	 * @param dataArray The filtered data.
+	 * @return The new image, with its minimum and maximum pixel values set.
+	 */
+	protected FITSImage createImage(FITSImage image,float dataArray[])
+	{
+		FITSImage result = null;
+
+		result = new FITSImage(image.getWidth(),image.getHeight(),dataArray);
+		result.fcRA = image.fcRA;
+		result.fcDec = image.fcDec;
+		result.xPlateScale = image.xPlateScale;
+		result.yPlateScale = image.yPlateScale;
+		result.objectName = image.objectName;
+		result.dateObs = image.dateObs;
+		result.header = image.header;
+		result.headerCards = image.headerCards;
+		result.bitpix = -32;
+		result.setMinMaxPixelValue();
+		return result;
+	}
+
+	/**
+	 * Scratch buffers for one thread, grown as needed.
+	 */
+	protected static class Scratch
+	{
+		/**
+		 * The double buffers.
+		 */
+		protected double doubleList[][] = new double[2][];
+		/**
+		 * The int buffers.
+		 */
+		protected int intList[][] = new int[2][];
+		/**
+		 * The transform buffers.
+		 */
+		protected double transformList[][] = new double[2][];
+
+		/**
+		 * Get a double buffer of at least n elements. Its contents are undefined.
+		 * @param index Which buffer.
+		 * @param n The number of elements needed.
+		 * @return The buffer.
+		 */
+		protected double[] getDoubleList(int index,int n)
+		{
+			if((doubleList[index] == null)||(doubleList[index].length < n))
+				doubleList[index] = new double[n];
+			return doubleList[index];
+		}
+
+		/**
+		 * Get a transform buffer of exactly n elements, as FITSFFT requires. Its contents are undefined.
+		 * @param index Which buffer.
+		 * @param n The number of elements needed.
+		 * @return The buffer.
+		 */
+		protected double[] getTransformList(int index,int n)
+		{
+			if((transformList[index] == null)||(transformList[index].length != n))
+				transformList[index] = new double[n];
+			return transformList[index];
+		}
+
+		/**
+		 * Get an int buffer of at least n elements. A new buffer is zeroed; a reused one is returned as it
+		 * was left.
+		 * @param index Which buffer.
+		 * @param n The number of elements needed.
+		 * @return The buffer.
+		 */
+		protected int[] getIntList(int index,int n)
+		{
+			if((intList[index] == null)||(intList[index].length < n))
+				intList[index] = new int[n];
+			return intList[index];
+		}
+	}
+
+	/**
+	 * Test main method. Filters a FITS image, printing the time taken, and optionally writes the result.
+	 * @param args The command line arguments: the filename, the filter (gaussian, box, median or unsharp),
+	 *        the size (sigma for gaussian and unsharp), and optionally the output filename.
+	 */
+	public static void main(String args[])
+	{
+		FITSFilter filter = null;
+		FITSImage image = null;
+		FITSImage result = null;
+		long startTime;
+
+		if(args.length < 3)
+		{
+			System.err.println("java org.estar.fits.FITSFilter <filename> <gaussian|box|median|unsharp> <size> "+
+					   "[<output filename>]");
+			System.exit(1);
+		}
+		try
+		{
+			image = new FITSImage();
+			image.load(args[0]);
+			filter = new FITSFilter();
+			startTime = System.nanoTime();
+			if(args[1].equals("box"))
+				result = filter.box(image,Integer.parseInt(args[2]));
+			else if(args[1].equals("median"))
+				result = filter.median(image,Integer.parseInt(args[2]));
+			else if(args[1].equals("unsharp"))
+				result = filter.unsharpMask(image,Double.parseDouble(args[2]),1.0);
+			else
+				result = filter.gaussian(image,Double.parseDouble(args[2]));
+			System.out.println(args[1]+" "+args[2]+" took "+((System.nanoTime()-startTime)/1000000.0)+" ms.");
+			if(args.length > 3)
+				new FITSImageWriter().write(result,new java.io.File(args[3]));
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSFilter failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSFrame.java
+// $Header$
+package org.estar.fits;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A FITS frame file, and what has been read from it so far: the header, the image, its statistics and a
+ * preview rendering. Frames are passed between the stages of a FITSIngestPipeline; each stage fills in
+ * its part, and the fields are published to the next stage through the pipeline's queues.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSIngestPipeline
+ */
+public class FITSFrame
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The frame's file.
+	 */
+	protected File file = null;
+	/**
+	 * The loaded header.
+	 */
+	protected FITSHeaderLoader header = null;
+	/**
+	 * The loaded image.
+	 */
+	protected FITSImage image = null;
+	/**
+	 * A preview rendering of the image.
+	 */
+	protected MemoryImageSource preview = null;
+	/**
+	 * The number of times reading the frame has been retried, as the file was incomplete.
+	 */
+	protected int retryCount = 0;
+	/**
+	 * When the frame was first seen, System.nanoTime.
+	 */
+	protected long createTime = 0L;
+
+	/**
+	 * Constructor.
+	 * @param f The frame's file.
+	 */
+	public FITSFrame(File f)
+	{
+		super();
+		file = f;
+		createTime = System.nanoTime();
+	}
+
+	/**
+	 * Get the frame's file.
+	 * @return The file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Get the loaded header.
+	 * @return The header, or null if it has not been loaded.
+	 */
+	public FITSHeaderLoader getHeader()
+	{
+		return header;
+	}
+
+	/**
+	 * Get the loaded image.
+	 * @return The image, or null if it has not been loaded.
+	 */
+	public FITSImage getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Get the preview rendering of the image.
+	 * @return The preview, or null if it has not been rendered.
+	 */
+	public MemoryImageSource getPreview()
+	{
+		return preview;
+	}
+
+	/**
+	 * Get the number of times reading the frame was retried, as the file was incomplete.
+	 * @return The retry count.
+	 */
+	public int getRetryCount()
+	{
+		return retryCount;
+	}
+
+	/**
+	 * Get the date of observation, from the header's DATE-OBS keyword.
+	 * @return The date, or null if there is no header or no DATE-OBS.
+	 */
+	public Date getDateObs()
+	{
+		if(header == null)
+			return null;
+		return header.getKeywordValueDate("DATE-OBS");
+	}
+
+	/**
+	 * Get the time since the frame was first seen.
+	 * @return The age, in nanoseconds.
+	 */
+	public long getAgeNanos()
+	{
+		return System.nanoTime()-createTime;
+	}
+
+	/**
+	 * Return a string describing the frame.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+":"+file+((image != null) ? (" "+image.getWidth()+" x "+
+									     image.getHeight()) : "");
+	}
+}
@@ -0,0 +1,747 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSFrameCache.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A cache of loaded frames, for stepping through a sequence of frames (e.g. a night's observations).
+ * When a frame is got, the next few frames in the direction of travel are loaded, and their previews
+ * rendered, in the background on a pool of low priority threads, so that stepping to the next frame
+ * usually finds it already loaded. Prefetched frames are decoded on their prefetch thread only, so they do not
+ * compete with foreground work for the shared decode threads. Frames are evicted, least recently used first,
+ * when the memory they use exceeds a budget; the frame just got and the frames being prefetched are not
+ * evicted. A prefetch reserves the memory its frame will use, from the header, before loading the data.
+ * <p>
+ * The sequence is ordered by filename, or by the DATE-OBS keyword.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSFrame
+ */
+public class FITSFrameCache
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Order constant: order the frames by filename.
+	 */
+	public final static int ORDER_FILENAME = 0;
+	/**
+	 * Order constant: order the frames by DATE-OBS. Frames without a DATE-OBS go at the end, by filename.
+	 */
+	public final static int ORDER_DATE_OBS = 1;
+	/**
+	 * The default memory budget, in bytes.
+	 */
+	public final static long DEFAULT_MEMORY_BUDGET = 256L*1024L*1024L;
+	/**
+	 * The default number of frames to prefetch.
+	 */
+	public final static int DEFAULT_PREFETCH_COUNT = 3;
+	/**
+	 * The frames' files, in sequence order.
+	 */
+	protected List<File> fileList = null;
+	/**
+	 * The cache entries, keyed by file, in access order (least recently used first).
+	 */
+	protected LinkedHashMap<File,Entry> entryMap = null;
+	/**
+	 * The pool of threads prefetching frames.
+	 */
+	protected ExecutorService executor = null;
+	/**
+	 * The number of frames to prefetch after (or before, when stepping backwards) the frame got.
+	 */
+	protected int prefetchCount = DEFAULT_PREFETCH_COUNT;
+	/**
+	 * The maximum number of bytes of loaded frames to keep.
+	 */
+	protected long memoryBudget = DEFAULT_MEMORY_BUDGET;
+	/**
+	 * The number of bytes used by the loaded frames in the cache.
+	 */
+	protected long memoryUsed = 0L;
+	/**
+	 * Whether to render a preview of each frame.
+	 */
+	protected boolean renderEnabled = true;
+	/**
+	 * The index of the frame last got, or -1.
+	 */
+	protected int currentIndex = -1;
+	/**
+	 * The direction of travel through the sequence, 1 forwards or -1 backwards.
+	 */
+	protected int direction = 1;
+	/**
+	 * The number of gets that found the frame in the cache.
+	 */
+	protected long hitCount = 0L;
+	/**
+	 * The number of gets that had to load the frame.
+	 */
+	protected long missCount = 0L;
+
+	/**
+	 * Constructor. One prefetch thread is used.
+	 * @param files The frames' files.
+	 * @param order How to order the files, ORDER_FILENAME or ORDER_DATE_OBS.
+	 * @exception IOException Thrown if reading a header fails, when ordering by DATE-OBS.
+	 * @exception FITSException Thrown if a header is not a FITS header, when ordering by DATE-OBS.
+	 * @see #FITSFrameCache(java.util.List,int,int)
+	 */
+	public FITSFrameCache(List<File> files,int order) throws IOException,FITSException
+	{
+		this(files,order,1);
+	}
+
+	/**
+	 * Constructor.
+	 * @param files The frames' files.
+	 * @param order How to order the files, ORDER_FILENAME or ORDER_DATE_OBS.
+	 * @param threadCount The number of prefetch threads.
+	 * @exception IOException Thrown if reading a header fails, when ordering by DATE-OBS.
+	 * @exception FITSException Thrown if a header is not a FITS header, when ordering by DATE-OBS.
+	 * @exception IllegalArgumentException Thrown if the order or thread count is illegal.
+	 * @see #sort
+	 * @see #executor
+	 */
+	public FITSFrameCache(List<File> files,int order,int threadCount) throws IOException,FITSException,
+		IllegalArgumentException
+	{
+		super();
+		if(threadCount < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Illegal thread count:"+threadCount);
+		}
+		fileList = sort(files,order);
+		entryMap = new LinkedHashMap<File,Entry>(16,0.75f,true);
+		executor = Executors.newFixedThreadPool(threadCount,new FITSParallel.DaemonThreadFactory(
+						"org.estar.fits.FITSFrameCache",Thread.MIN_PRIORITY));
+	}
+
+	/**
+	 * Set the number of frames to prefetch.
+	 * @param count The number of frames, 0 to turn prefetching off.
+	 * @exception IllegalArgumentException Thrown if the count is negative.
+	 * @see #prefetchCount
+	 */
+	public synchronized void setPrefetchCount(int count) throws IllegalArgumentException
+	{
+		if(count < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setPrefetchCount:Illegal count:"+
+							   count);
+		}
+		prefetchCount = count;
+	}
+
+	/**
+	 * Set the memory budget. Frames are evicted when the memory they use exceeds this.
+	 * @param bytes The budget, in bytes.
+	 * @exception IllegalArgumentException Thrown if the budget is negative.
+	 * @see #memoryBudget
+	 * @see #evict
+	 */
+	public synchronized void setMemoryBudget(long bytes) throws IllegalArgumentException
+	{
+		if(bytes < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setMemoryBudget:Illegal budget:"+
+							   bytes);
+		}
+		memoryBudget = bytes;
+		evict();
+	}
+
+	/**
+	 * Set whether a preview of each frame is rendered when it is loaded.
+	 * @param b true to render previews.
+	 * @see #renderEnabled
+	 */
+	public void setRenderEnabled(boolean b)
+	{
+		renderEnabled = b;
+	}
+
+	/**
+	 * Get the number of frames in the sequence.
+	 * @return The number of frames.
+	 */
+	public int getFrameCount()
+	{
+		return fileList.size();
+	}
+
+	/**
+	 * Get the file of a frame in the sequence.
+	 * @param index The index of the frame in the sequence.
+	 * @return The file.
+	 */
+	public File getFile(int index)
+	{
+		return fileList.get(index);
+	}
+
+	/**
+	 * Get a frame. If the frame is in the cache (or being prefetched) it is returned when ready, otherwise it is
+	 * loaded on this thread. The next prefetchCount frames in the direction of travel are then prefetched.
+	 * @param index The index of the frame in the sequence.
+	 * @return The frame, with its header, image (with minimum/maximum set) and, if enabled, preview.
+	 * @exception IOException Thrown if reading the frame fails.
+	 * @exception FITSException Thrown if the frame is not a FITS image.
+	 * @see #prefetch
+	 * @see #load
+	 */
+	public FITSFrame get(int index) throws IOException,FITSException
+	{
+		Entry entry = null;
+		File file = null;
+		FITSFrame frame = null;
+		Throwable cause = null;
+
+		file = fileList.get(index);
+		synchronized(this)
+		{
+			if(currentIndex >= 0)
+				direction = (index >= currentIndex) ? 1 : -1;
+			currentIndex = index;
+			entry = entryMap.get(file);
+			if(entry != null)
+				hitCount++;
+			else
+				missCount++;
+			prefetch();
+		}
+		if(entry != null)
+		{
+			if(entry.frame != null)
+				return entry.frame;
+			try
+			{
+				return entry.future.get();
+			}
+			catch(InterruptedException e)
+			{
+				throw new FITSException(this.getClass().getName()+":get:Interrupted:"+file,e);
+			}
+			catch(CancellationException e)
+			{
+				// evicted before it was loaded, load it here
+			}
+			catch(ExecutionException e)
+			{
+				synchronized(this)
+				{
+					remove(file,entry);
+				}
+				cause = e.getCause();
+				if(cause instanceof IOException)
+					throw (IOException)cause;
+				if(cause instanceof FITSException)
+					throw (FITSException)cause;
+				throw new FITSException(this.getClass().getName()+":get:"+file+":"+cause,e);
+			}
+		}
+		frame = load(file);
+		synchronized(this)
+		{
+			entry = new Entry();
+			entry.frame = frame;
+			entry.size = getMemorySize(frame);
+			remove(file,entryMap.get(file));
+			entryMap.put(file,entry);
+			memoryUsed += entry.size;
+			evict();
+		}
+		return frame;
+	}
+
+	/**
+	 * Get the number of gets that found the frame in the cache.
+	 * @return The hit count.
+	 */
+	public synchronized long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * Get the number of gets that had to load the frame.
+	 * @return The miss count.
+	 */
+	public synchronized long getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * Get the number of bytes used by the loaded frames in the cache.
+	 * @return The number of bytes.
+	 */
+	public synchronized long getMemoryUsed()
+	{
+		return memoryUsed;
+	}
+
+	/**
+	 * Get the number of frames in the cache, including those being prefetched.
+	 * @return The number of frames.
+	 */
+	public synchronized int getCachedCount()
+	{
+		return entryMap.size();
+	}
+
+	/**
+	 * Empty the cache, cancelling any prefetches.
+	 */
+	public synchronized void clear()
+	{
+		for(Entry entry : entryMap.values())
+			entry.cancel();
+		entryMap.clear();
+		memoryUsed = 0L;
+	}
+
+	/**
+	 * Empty the cache and stop the prefetch threads. The cache cannot be used afterwards.
+	 */
+	public synchronized void close()
+	{
+		clear();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Return a string describing the cache.
+	 * @return The string.
+	 */
+	public synchronized String toString()
+	{
+		return this.getClass().getName()+": frames="+fileList.size()+" cached="+entryMap.size()+
+			" memory="+memoryUsed+"/"+memoryBudget+" hits="+hitCount+" misses="+missCount;
+	}
+
+	/**
+	 * Order a list of files.
+	 * @param files The files.
+	 * @param order ORDER_FILENAME or ORDER_DATE_OBS.
+	 * @return A new, ordered, list.
+	 * @exception IOException Thrown if reading a header fails, when ordering by DATE-OBS.
+	 * @exception FITSException Thrown if a header is not a FITS header, when ordering by DATE-OBS.
+	 * @exception IllegalArgumentException Thrown if the order is illegal.
+	 */
+	protected List<File> sort(List<File> files,int order) throws IOException,FITSException,
+		IllegalArgumentException
+	{
+		final Map<File,Date> dateMap = new HashMap<File,Date>();
+		List<File> list = null;
+		FITSHeaderLoader header = null;
+
+		list = new ArrayList<File>(files);
+		if(order == ORDER_FILENAME)
+		{
+			Collections.sort(list);
+			return list;
+		}
+		if(order != ORDER_DATE_OBS)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":sort:Illegal order:"+order);
+		}
+		for(File file : list)
+		{
+			header = new FITSHeaderLoader();
+			header.load(file);
+			dateMap.put(file,header.getKeywordValueDate("DATE-OBS"));
+		}
+		Collections.sort(list,new Comparator<File>()
+		{
+			public int compare(File f1,File f2)
+			{
+				Date d1 = dateMap.get(f1);
+				Date d2 = dateMap.get(f2);
+
+				if((d1 != null)&&(d2 != null)&&(d1.equals(d2) == false))
+					return d1.compareTo(d2);
+				if((d1 == null)&&(d2 != null))
+					return 1;
+				if((d1 != null)&&(d2 == null))
+					return -1;
+				return f1.compareTo(f2);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Start prefetching the next prefetchCount frames in the direction of travel that are not in the cache.
+	 * Prefetches of frames outside this window that have not yet started are cancelled. Frames outside the
+	 * window are evicted to make room; no more frames are prefetched once the memory budget is used by frames
+	 * in the window. Called with the cache locked.
+	 * @see #currentIndex
+	 * @see #direction
+	 * @see #prefetchCount
+	 */
+	protected void prefetch()
+	{
+		Set<File> windowSet = null;
+		Iterator<Map.Entry<File,Entry>> iterator = null;
+		Map.Entry<File,Entry> mapEntry = null;
+		Entry entry = null;
+		File file = null;
+		int index;
+
+		windowSet = getWindow();
+		iterator = entryMap.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			mapEntry = iterator.next();
+			if((mapEntry.getValue().isDone() == false)&&(windowSet.contains(mapEntry.getKey()) == false))
+			{
+				mapEntry.getValue().cancel();
+				// release the memory reserved by the prefetch
+				memoryUsed -= mapEntry.getValue().size;
+				iterator.remove();
+			}
+		}
+		for(int i = 1; i <= prefetchCount; i++)
+		{
+			if(memoryUsed >= memoryBudget)
+				evict(memoryBudget-1);
+			if(memoryUsed >= memoryBudget)
+				return;
+			index = currentIndex+(i*direction);
+			if((index < 0)||(index >= fileList.size()))
+				return;
+			file = fileList.get(index);
+			if(entryMap.containsKey(file))
+				continue;
+			entry = new Entry();
+			entry.future = executor.submit(new PrefetchTask(file,entry));
+			entryMap.put(file,entry);
+		}
+	}
+
+	/**
+	 * Get the files of the current frame and the frames that should be prefetched.
+	 * @return The set of files.
+	 */
+	protected Set<File> getWindow()
+	{
+		Set<File> windowSet = null;
+		int index;
+
+		windowSet = new HashSet<File>();
+		for(int i = 0; i <= prefetchCount; i++)
+		{
+			index = currentIndex+(i*direction);
+			if((index >= 0)&&(index < fileList.size()))
+				windowSet.add(fileList.get(index));
+		}
+		return windowSet;
+	}
+
+	/**
+	 * Evict loaded frames until the memory used is within the budget. Called with the cache locked.
+	 * @see #evict(long)
+	 */
+	protected void evict()
+	{
+		evict(memoryBudget);
+	}
+
+	/**
+	 * Evict loaded frames, least recently used first, until the memory used is no more than a limit. Frames in
+	 * the prefetch window are not evicted. Called with the cache locked.
+	 * @param limit The number of bytes the memory used should be reduced to.
+	 * @see #memoryUsed
+	 * @see #getWindow
+	 */
+	protected void evict(long limit)
+	{
+		Set<File> windowSet = null;
+		Iterator<Map.Entry<File,Entry>> iterator = null;
+		Map.Entry<File,Entry> mapEntry = null;
+
+		if(memoryUsed <= limit)
+			return;
+		windowSet = getWindow();
+		iterator = entryMap.entrySet().iterator();
+		while((memoryUsed > limit)&&iterator.hasNext())
+		{
+			mapEntry = iterator.next();
+			if(mapEntry.getValue().isDone()&&(windowSet.contains(mapEntry.getKey()) == false))
+			{
+				memoryUsed -= mapEntry.getValue().size;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove an entry from the cache, if it is still the entry for the file. Called with the cache locked.
+	 * @param file The file.
+	 * @param entry The entry.
+	 */
+	protected void remove(File file,Entry entry)
+	{
+		if((entry != null)&&(entryMap.get(file) == entry))
+		{
+			entryMap.remove(file);
+			memoryUsed -= entry.size;
+		}
+	}
+
+	/**
+	 * Load a frame: its header, image and minimum/maximum pixel values, and (if enabled) preview.
+	 * @param file The frame's file.
+	 * @return The frame.
+	 * @exception IOException Thrown if reading the frame fails.
+	 * @exception FITSException Thrown if the frame is not a FITS image.
+	 * @see #loadHeader
+	 * @see #loadImage
+	 */
+	protected FITSFrame load(File file) throws IOException,FITSException
+	{
+		FITSFrame frame = null;
+
+		frame = loadHeader(file);
+		loadImage(frame,0);
+		return frame;
+	}
+
+	/**
+	 * Create a frame and load its header.
+	 * @param file The frame's file.
+	 * @return The frame, with its header.
+	 * @exception IOException Thrown if reading the header fails.
+	 * @exception FITSException Thrown if the file is not FITS.
+	 */
+	protected FITSFrame loadHeader(File file) throws IOException,FITSException
+	{
+		FITSFrame frame = null;
+
+		frame = new FITSFrame(file);
+		frame.header = new FITSHeaderLoader();
+		frame.header.load(file);
+		return frame;
+	}
+
+	/**
+	 * Load a frame's image, reusing its loaded header, set the image's minimum/maximum pixel values, and
+	 * (if enabled) render its preview.
+	 * @param frame The frame, with its header loaded.
+	 * @param threadCount The number of threads to decode the image with, less than 1 for the default.
+	 * @exception IOException Thrown if reading the image fails.
+	 * @exception FITSException Thrown if the frame is not a FITS image.
+	 * @see #renderEnabled
+	 * @see FITSImage#load(java.lang.String,org.estar.fits.FITSHeaderCards)
+	 */
+	protected void loadImage(FITSFrame frame,int threadCount) throws IOException,FITSException
+	{
+		frame.image = new FITSImage();
+		frame.image.setThreadCount(threadCount);
+		frame.image.load(frame.getFile().getPath(),frame.header.getHeaderCards());
+		frame.image.setMinMaxPixelValue();
+		if(renderEnabled)
+			frame.preview = frame.image.createImageSource();
+	}
+
+	/**
+	 * Get the number of bytes of memory a loaded frame uses: the image data array, and the preview pixels.
+	 * @param frame The frame.
+	 * @return The number of bytes.
+	 * @see #getMemorySize(long)
+	 */
+	protected long getMemorySize(FITSFrame frame)
+	{
+		return getMemorySize(((long)frame.image.getWidth())*frame.image.getHeight());
+	}
+
+	/**
+	 * Get the number of bytes of memory a frame of a number of pixels uses once loaded: the image data array,
+	 * and (if enabled) the preview pixels.
+	 * @param pixelCount The number of pixels.
+	 * @return The number of bytes.
+	 */
+	protected long getMemorySize(long pixelCount)
+	{
+		return (pixelCount*4L)+(renderEnabled ? (pixelCount*4L) : 0L);
+	}
+
+	/**
+	 * An entry in the cache: the (possibly not yet loaded) frame, and the memory it uses once loaded.
+	 */
+	protected static class Entry
+	{
+		/**
+		 * The prefetch loading the frame, or null if the frame was loaded by get.
+		 */
+		Future<FITSFrame> future = null;
+		/**
+		 * The frame, if it was loaded by get rather than prefetched.
+		 */
+		FITSFrame frame = null;
+		/**
+		 * The number of bytes the loaded frame uses, reserved by a prefetch once the header is read, 0 before.
+		 */
+		long size = 0L;
+
+		/**
+		 * Get whether the frame has been loaded (or its prefetch has finished).
+		 * @return true if loaded.
+		 */
+		boolean isDone()
+		{
+			return (frame != null)||future.isDone();
+		}
+
+		/**
+		 * Cancel the prefetch, if it has not started.
+		 */
+		void cancel()
+		{
+			if(future != null)
+				future.cancel(false);
+		}
+	}
+
+	/**
+	 * The task prefetching a frame. Once the header is read, the size the frame will use is reserved (added
+	 * to the memory used, evicting frames if the cache is over budget), before the data is loaded, so
+	 * prefetches in flight count against the budget. The image is decoded on this thread only.
+	 */
+	protected class PrefetchTask implements Callable<FITSFrame>
+	{
+		/**
+		 * The frame's file.
+		 */
+		protected File file = null;
+		/**
+		 * The frame's cache entry.
+		 */
+		protected Entry entry = null;
+
+		/**
+		 * Constructor.
+		 * @param f The frame's file.
+		 * @param e The frame's cache entry.
+		 */
+		PrefetchTask(File f,Entry e)
+		{
+			super();
+			file = f;
+			entry = e;
+		}
+
+		/**
+		 * Load the frame, reserving its memory first.
+		 * @return The frame.
+		 * @exception Exception Thrown if loading fails.
+		 * @see FITSFrameCache#loadHeader
+		 * @see FITSFrameCache#loadImage
+		 */
+		public FITSFrame call() throws Exception
+		{
+			FITSFrame frame = null;
+			FITSHeaderCards cards = null;
+			long size;
+
+			frame = loadHeader(file);
+			cards = frame.header.getHeaderCards();
+			synchronized(FITSFrameCache.this)
+			{
+				// still load if removed meanwhile, get may be waiting for this frame
+				if(entryMap.get(file) == entry)
+				{
+					entry.size = getMemorySize(cards.getLong("NAXIS1")*cards.getLong("NAXIS2"));
+					memoryUsed += entry.size;
+					evict();
+				}
+			}
+			loadImage(frame,1);
+			synchronized(FITSFrameCache.this)
+			{
+				if(entryMap.get(file) == entry)
+				{
+					size = getMemorySize(frame);
+					memoryUsed += size-entry.size;
+					entry.size = size;
+					evict();
+				}
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * Test main method. Steps through the FITS files in a directory, printing the time each get takes.
+	 * @param args The command line arguments: the directory, and optionally "date" to order by DATE-OBS.
+	 */
+	public static void main(String args[])
+	{
+		FITSFrameCache cache = null;
+		List<File> list = null;
+		File fileList[];
+		long startTime;
+
+		if(args.length < 1)
+		{
+			System.err.println("java org.estar.fits.FITSFrameCache <directory> [date]");
+			System.exit(1);
+		}
+		try
+		{
+			fileList = new File(args[0]).listFiles(new FilenameFilter()
+			{
+				public boolean accept(File dir,String name)
+				{
+					return name.endsWith(".fits");
+				}
+			});
+			list = Arrays.asList(fileList);
+			cache = new FITSFrameCache(list,((args.length > 1)&&args[1].equals("date")) ? ORDER_DATE_OBS :
+						   ORDER_FILENAME);
+			for(int i = 0; i < cache.getFrameCount(); i++)
+			{
+				startTime = System.nanoTime();
+				cache.get(i);
+				System.out.println(cache.getFile(i)+":"+((System.nanoTime()-startTime)/1000000.0)+" ms.");
+				Thread.sleep(500);
+			}
+			System.out.println(cache);
+			cache.close();
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSFrameCache failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
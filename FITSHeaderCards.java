@@ -0,0 +1,1043 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSHeaderCards.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+import org.eso.fits.*;
+
+/**
+ * A FITS header held as raw 80 byte cards in one contiguous buffer. Only the keyword names are indexed when
+ * the header is read; a card's value and comment are decoded the first time they are asked for. This makes
+ * parsing a header (of which typically only a few keywords are used) much cheaper in time and retained heap
+ * than decoding every card into a jfits FitsKeyword. A jfits FitsHeader can still be created on demand.
+ * <p>
+ * Values are decoded as the FITS standard describes: quoted strings (with '' as an embedded quote and trailing
+ * spaces removed), logicals (T/F), integers and reals (with E or D exponents). String values that are
+ * ISO-8601 dates ("yyyy-mm-dd[Thh:mm:ss[.sss]]") or old style "dd/mm/yy" dates have type TYPE_DATE,
+ * and are converted to Date's in UTC.
+ * <p>
+ * Decoded values are cached, and decoding is synchronized, so an instance can be shared between threads.
+ * <p>
+ * To reduce retained heap when many headers are held in memory, keyword names, and the short string values
+ * and comments of keywords whose values repeat between frames (INTERN_KEYWORD_LIST), are interned in the
+ * shared FITSInternPool string pool. Values that are nearly unique to a frame (OBJECT, RA, DEC, DATE-OBS...)
+ * are not, so they do not fill the bounded pool. Headers with the same sequence of keywords
+ * share one keyword index (a Layout), and the decoded value arrays are only allocated when a value is first
+ * decoded.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSHeaderParser
+ * @see FITSHeaderLoader
+ * @see FITSInternPool
+ */
+public class FITSHeaderCards
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Value type: the card has no value.
+	 */
+	public final static int TYPE_NONE = 0;
+	/**
+	 * Value type: a logical value.
+	 */
+	public final static int TYPE_BOOLEAN = 1;
+	/**
+	 * Value type: an integer value.
+	 */
+	public final static int TYPE_INTEGER = 2;
+	/**
+	 * Value type: a real value.
+	 */
+	public final static int TYPE_REAL = 3;
+	/**
+	 * Value type: a string value.
+	 */
+	public final static int TYPE_STRING = 4;
+	/**
+	 * Value type: a string value containing a date.
+	 */
+	public final static int TYPE_DATE = 5;
+	/**
+	 * Value type: a commentary card (COMMENT, HISTORY, blank keyword, or any card without a value indicator).
+	 * The value is the card's text.
+	 */
+	public final static int TYPE_COMMENT = 6;
+	/**
+	 * The length of a keyword name.
+	 */
+	public final static int KEYWORD_LENGTH = 8;
+	/**
+	 * String values and comments up to this length are interned, longer ones are assumed to be unique.
+	 */
+	public final static int MAXIMUM_INTERN_LENGTH = 48;
+	/**
+	 * The keywords whose string values and comments are interned: those with few distinct values between
+	 * frames.
+	 */
+	public final static String INTERN_KEYWORD_LIST[] = {"XTENSION","TELESCOP","INSTRUME","DETECTOR","ORIGIN",
+		"OBSERVAT","FILTER","FILTER1","FILTER2","FILTER3","IMAGETYP","OBSTYPE","BUNIT","CTYPE1","CTYPE2",
+		"CUNIT1","CUNIT2","RADESYS","RADECSYS","TIMESYS","SIMPLE","BITPIX","NAXIS","NAXIS1","NAXIS2",
+		"EXTEND","BSCALE","BZERO","EQUINOX","EPOCH","XPS","YPS","GAIN","RDNOISE","CCDXBIN","CCDYBIN"};
+	/**
+	 * The maximum number of distinct keyword layouts shared between headers.
+	 */
+	public final static int MAXIMUM_LAYOUT_COUNT = 1024;
+	/**
+	 * Marker in valueList for a card whose value has not been decoded yet.
+	 */
+	private final static Object NOT_DECODED = new Object();
+	/**
+	 * The pool of keyword layouts, shared between headers with the same sequence of keywords.
+	 */
+	private static FITSInternPool<Layout> layoutPool = new FITSInternPool<Layout>(MAXIMUM_LAYOUT_COUNT);
+	/**
+	 * The set of INTERN_KEYWORD_LIST, for lookup.
+	 */
+	private final static Set<String> internKeywordSet = new HashSet<String>(Arrays.asList(INTERN_KEYWORD_LIST));
+	/**
+	 * The raw cards, CARD_LENGTH bytes each, in ASCII.
+	 */
+	protected byte cardBuffer[] = null;
+	/**
+	 * The number of cards in cardBuffer. The END card is not included.
+	 */
+	protected int cardCount = 0;
+	/**
+	 * The keyword layout: names of each card, and the index of the first card with each name.
+	 * This may be shared with other headers.
+	 */
+	protected Layout layout = null;
+	/**
+	 * The decoded values of each card, or NOT_DECODED. Allocated on first decode.
+	 */
+	protected Object valueList[] = null;
+	/**
+	 * The decoded value types of each card. Allocated on first decode.
+	 */
+	protected int typeList[] = null;
+	/**
+	 * The decoded comments of each card. Allocated on first decode.
+	 */
+	protected String commentList[] = null;
+
+	/**
+	 * Constructor. The buffer is <b>NOT</b> copied. The keyword names are indexed.
+	 * @param buffer The raw cards, CARD_LENGTH bytes each, in ASCII.
+	 * @param count The number of cards in the buffer to use, not including any END card.
+	 * @exception IllegalArgumentException Thrown if the buffer is too short.
+	 * @see #index
+	 */
+	public FITSHeaderCards(byte buffer[],int count) throws IllegalArgumentException
+	{
+		super();
+		if((count < 0)||(buffer.length < (count*FITSCard.CARD_LENGTH)))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Buffer length "+buffer.length+
+							   " too short for "+count+" cards.");
+		}
+		cardBuffer = buffer;
+		cardCount = count;
+		index();
+	}
+
+	/**
+	 * Parse a header string of the form returned in an RTML document, where each card is on a separate
+	 * line, but is not padded to the full 80 character width. Parsing stops at the END card.
+	 * @param headerString The header string.
+	 * @return The header.
+	 * @see FITSHeaderParser#parse
+	 */
+	public static FITSHeaderCards parse(String headerString)
+	{
+		byte buffer[],newBuffer[];
+		int count,length,lineStart,lineEnd,cardOffset;
+		char ch;
+
+		length = headerString.length();
+		buffer = new byte[FITSCard.BLOCK_LENGTH];
+		count = 0;
+		lineStart = 0;
+		while(lineStart < length)
+		{
+			lineEnd = headerString.indexOf('\n',lineStart);
+			if(lineEnd < 0)
+				lineEnd = length;
+			// ignore empty lines, and carriage returns at the end of lines
+			if((lineEnd > lineStart)&&(headerString.charAt(lineEnd-1) == '\r'))
+				lineEnd--;
+			if(lineEnd > lineStart)
+			{
+				if(buffer.length < ((count+1)*FITSCard.CARD_LENGTH))
+				{
+					newBuffer = new byte[buffer.length*2];
+					System.arraycopy(buffer,0,newBuffer,0,count*FITSCard.CARD_LENGTH);
+					buffer = newBuffer;
+				}
+				cardOffset = count*FITSCard.CARD_LENGTH;
+				for(int i = 0; i < FITSCard.CARD_LENGTH; i++)
+				{
+					if((lineStart+i) < lineEnd)
+					{
+						ch = headerString.charAt(lineStart+i);
+						buffer[cardOffset+i] = (byte)(((ch < 32)||(ch > 126)) ? ' ' : ch);
+					}
+					else
+						buffer[cardOffset+i] = (byte)' ';
+				}
+				if(isEndCard(buffer,cardOffset))
+					break;
+				count++;
+			}
+			// skip to start of next line, past the '\r' if we backed over one
+			lineStart = headerString.indexOf('\n',lineStart);
+			if(lineStart < 0)
+				break;
+			lineStart++;
+		}
+		return new FITSHeaderCards(trimBuffer(buffer,count),count);
+	}
+
+	/**
+	 * Read a header from a FITS file or stream. Whole 2880 byte blocks are read, up to and including the block
+	 * containing the END card, so on return the input is positioned at the start of the HDU's data.
+	 * @param di The input to read from.
+	 * @return The header.
+	 * @exception IOException Thrown if reading fails, or the input ends before the END card.
+	 * @exception FITSException Thrown if the input does not start with a SIMPLE or XTENSION card.
+	 */
+	public static FITSHeaderCards read(DataInput di) throws IOException,FITSException
+	{
+		byte buffer[],newBuffer[];
+		int blockCount,count,cardOffset;
+		boolean done;
+
+		buffer = new byte[FITSCard.BLOCK_LENGTH];
+		blockCount = 0;
+		count = 0;
+		done = false;
+		while(done == false)
+		{
+			if(buffer.length < ((blockCount+1)*FITSCard.BLOCK_LENGTH))
+			{
+				newBuffer = new byte[buffer.length*2];
+				System.arraycopy(buffer,0,newBuffer,0,blockCount*FITSCard.BLOCK_LENGTH);
+				buffer = newBuffer;
+			}
+			di.readFully(buffer,blockCount*FITSCard.BLOCK_LENGTH,FITSCard.BLOCK_LENGTH);
+			if(blockCount == 0)
+			{
+				if((startsWith(buffer,0,"SIMPLE  ") == false)&&(startsWith(buffer,0,"XTENSION") == false))
+				{
+					throw new FITSException("org.estar.fits.FITSHeaderCards:read:"+
+								"Not a FITS header, first card:"+
+								new String(buffer,0,FITSCard.CARD_LENGTH,"US-ASCII"));
+				}
+			}
+			blockCount++;
+			while((done == false)&&(count < (blockCount*FITSCard.CARDS_PER_BLOCK)))
+			{
+				cardOffset = count*FITSCard.CARD_LENGTH;
+				if(isEndCard(buffer,cardOffset))
+					done = true;
+				else
+					count++;
+			}
+		}
+		return new FITSHeaderCards(trimBuffer(buffer,count),count);
+	}
+
+	/**
+	 * Get the number of cards, not including the END card.
+	 * @return The number of cards.
+	 */
+	public int getCardCount()
+	{
+		return cardCount;
+	}
+
+	/**
+	 * Get the number of 2880 byte blocks the header occupies in a FITS file, including the END card.
+	 * @return The number of blocks.
+	 */
+	public int getBlockCount()
+	{
+		return (cardCount/FITSCard.CARDS_PER_BLOCK)+1;
+	}
+
+	/**
+	 * Get the length of the HDU's data, from the BITPIX, NAXIS, NAXISn, PCOUNT and GCOUNT keywords:
+	 * |BITPIX|/8 * GCOUNT * (PCOUNT + NAXIS1 * ... * NAXISn). GCOUNT defaults to 1, PCOUNT to 0.
+	 * @return The data length in bytes, not including the padding to a whole number of blocks.
+	 *         0 if NAXIS is 0 or missing.
+	 * @see #getDataBlockCount
+	 */
+	public long getDataLength()
+	{
+		long elementCount,groupCount;
+		int axisCount;
+
+		axisCount = getInt("NAXIS");
+		if(axisCount < 1)
+			return 0L;
+		elementCount = 1L;
+		for(int i = 1; i <= axisCount; i++)
+			elementCount *= getLong("NAXIS"+i);
+		groupCount = containsKeyword("GCOUNT") ? getLong("GCOUNT") : 1L;
+		return (Math.abs(getInt("BITPIX"))/8)*groupCount*(getLong("PCOUNT")+elementCount);
+	}
+
+	/**
+	 * Get the number of 2880 byte blocks the HDU's data occupies in a FITS file.
+	 * @return The number of blocks.
+	 * @see #getDataLength
+	 */
+	public long getDataBlockCount()
+	{
+		return (getDataLength()+FITSCard.BLOCK_LENGTH-1)/FITSCard.BLOCK_LENGTH;
+	}
+
+	/**
+	 * Get whether the header contains a keyword.
+	 * @param keyword The keyword name.
+	 * @return true if the keyword exists.
+	 */
+	public boolean containsKeyword(String keyword)
+	{
+		return layout.getIndexMap().containsKey(keyword);
+	}
+
+	/**
+	 * Get the index of the first card with the specified keyword.
+	 * @param keyword The keyword name.
+	 * @return The card index, or -1 if the keyword does not exist.
+	 */
+	public int indexOf(String keyword)
+	{
+		Integer index = null;
+
+		index = layout.getIndexMap().get(keyword);
+		if(index == null)
+			return -1;
+		return index.intValue();
+	}
+
+	/**
+	 * Get the keyword name of a card.
+	 * @param index The card index.
+	 * @return The keyword name, with trailing spaces removed.
+	 */
+	public String getKeyword(int index)
+	{
+		return layout.keywordList[index];
+	}
+
+	/**
+	 * Get the raw text of a card.
+	 * @param index The card index.
+	 * @return The 80 character card.
+	 */
+	public String getCard(int index)
+	{
+		return ascii(cardBuffer,index*FITSCard.CARD_LENGTH,FITSCard.CARD_LENGTH);
+	}
+
+	/**
+	 * Get the value type of a keyword.
+	 * @param keyword The keyword name.
+	 * @return One of the TYPE_ constants, or TYPE_NONE if the keyword does not exist.
+	 */
+	public int getType(String keyword)
+	{
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return TYPE_NONE;
+		return getType(index);
+	}
+
+	/**
+	 * Get the value type of a card.
+	 * @param index The card index.
+	 * @return One of the TYPE_ constants.
+	 * @see #decode
+	 */
+	public int getType(int index)
+	{
+		decode(index);
+		return typeList[index];
+	}
+
+	/**
+	 * Get the value of a keyword.
+	 * @param keyword The keyword name.
+	 * @return The value: a Boolean, Integer, Long, Double, String or (for TYPE_DATE) Date,
+	 *         or null if the keyword does not exist or has no value.
+	 */
+	public Object getValue(String keyword)
+	{
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return null;
+		return getValue(index);
+	}
+
+	/**
+	 * Get the value of a card.
+	 * @param index The card index.
+	 * @return The value: a Boolean, Integer, Long, Double, String or (for TYPE_DATE) Date, or null.
+	 * @see #decode
+	 */
+	public Object getValue(int index)
+	{
+		Object value = null;
+
+		decode(index);
+		value = valueList[index];
+		if(typeList[index] == TYPE_DATE)
+			return parseDate((String)value);
+		return value;
+	}
+
+	/**
+	 * Get the value of a keyword as a string. String, date and commentary values are returned as is,
+	 * other values as their text in the card.
+	 * @param keyword The keyword name.
+	 * @return The value, or null if the keyword does not exist or has no value.
+	 */
+	public String getString(String keyword)
+	{
+		Object value = null;
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return null;
+		decode(index);
+		value = valueList[index];
+		if(value == null)
+			return null;
+		if(value instanceof Boolean)
+			return (((Boolean)value).booleanValue()) ? "T" : "F";
+		return value.toString();
+	}
+
+	/**
+	 * Get the value of a keyword as an int.
+	 * @param keyword The keyword name.
+	 * @return The value, or 0 if the keyword does not exist or is not numeric. Reals are truncated.
+	 */
+	public int getInt(String keyword)
+	{
+		return (int)getLong(keyword);
+	}
+
+	/**
+	 * Get the value of a keyword as a long.
+	 * @param keyword The keyword name.
+	 * @return The value, or 0 if the keyword does not exist or is not numeric. Reals are truncated.
+	 */
+	public long getLong(String keyword)
+	{
+		Object value = null;
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return 0L;
+		decode(index);
+		value = valueList[index];
+		if(value instanceof Number)
+			return ((Number)value).longValue();
+		return 0L;
+	}
+
+	/**
+	 * Get the value of a keyword as a double.
+	 * @param keyword The keyword name.
+	 * @return The value, or 0.0 if the keyword does not exist or is not numeric.
+	 */
+	public double getDouble(String keyword)
+	{
+		Object value = null;
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return 0.0;
+		decode(index);
+		value = valueList[index];
+		if(value instanceof Number)
+			return ((Number)value).doubleValue();
+		return 0.0;
+	}
+
+	/**
+	 * Get the value of a keyword as a boolean.
+	 * @param keyword The keyword name.
+	 * @return The value, or false if the keyword does not exist or is not a logical.
+	 */
+	public boolean getBoolean(String keyword)
+	{
+		Object value = null;
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return false;
+		decode(index);
+		value = valueList[index];
+		if(value instanceof Boolean)
+			return ((Boolean)value).booleanValue();
+		return false;
+	}
+
+	/**
+	 * Get the value of a keyword as a date (UTC).
+	 * @param keyword The keyword name.
+	 * @return A new Date, or null if the keyword does not exist or is not a date.
+	 * @see #parseDate
+	 */
+	public Date getDate(String keyword)
+	{
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return null;
+		decode(index);
+		if(typeList[index] != TYPE_DATE)
+			return null;
+		return parseDate((String)valueList[index]);
+	}
+
+	/**
+	 * Get the comment of a keyword.
+	 * @param keyword The keyword name.
+	 * @return The comment, or null if the keyword does not exist or has no comment.
+	 */
+	public String getComment(String keyword)
+	{
+		int index;
+
+		index = indexOf(keyword);
+		if(index < 0)
+			return null;
+		decode(index);
+		return commentList[index];
+	}
+
+	/**
+	 * Create a jfits FitsHeader containing all the cards. Each card is decoded by jfits.
+	 * @return The FitsHeader.
+	 * @exception FITSException Thrown if jfits cannot parse a card.
+	 */
+	public FitsHeader createFitsHeader() throws FITSException
+	{
+		FitsHeader fitsHeader = null;
+		String card = null;
+
+		fitsHeader = new FitsHeader();
+		for(int i = 0; i < cardCount; i++)
+		{
+			card = getCard(i);
+			try
+			{
+				fitsHeader.addKeyword(new FitsKeyword(card));
+			}
+			catch(FitsException e)
+			{
+				throw new FITSException(this.getClass().getName()+":createFitsHeader:Failed to parse "+
+							card,e);
+			}
+		}
+		return fitsHeader;
+	}
+
+	/**
+	 * Return the cards, one per line, with trailing spaces removed.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		StringBuffer sb = null;
+		String card = null;
+		int end;
+
+		sb = new StringBuffer();
+		for(int i = 0; i < cardCount; i++)
+		{
+			card = getCard(i);
+			end = card.length();
+			while((end > 0)&&(card.charAt(end-1) == ' '))
+				end--;
+			sb.append(card.substring(0,end));
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Index the keyword names. The (interned) names are collected, and the shared layout with the same names
+	 * is used if there is one.
+	 * @see #layout
+	 * @see #layoutPool
+	 */
+	protected void index()
+	{
+		String keywordList[];
+
+		keywordList = new String[cardCount];
+		for(int i = 0; i < cardCount; i++)
+			keywordList[i] = FITSInternPool.getStringPool().intern(getKeywordName(i));
+		layout = layoutPool.intern(new Layout(keywordList));
+	}
+
+	/**
+	 * Intern a decoded string value or comment in the shared string pool, if its card's keyword has few
+	 * distinct values, and it is short enough to be likely to repeat.
+	 * @param index The card index.
+	 * @param s The string, or null.
+	 * @return The pooled string, or s.
+	 * @see #MAXIMUM_INTERN_LENGTH
+	 * @see #INTERN_KEYWORD_LIST
+	 */
+	protected String intern(int index,String s)
+	{
+		if((s == null)||(s.length() > MAXIMUM_INTERN_LENGTH)||
+		   (internKeywordSet.contains(layout.keywordList[index]) == false))
+			return s;
+		return FITSInternPool.getStringPool().intern(s);
+	}
+
+	/**
+	 * Get the keyword name of a card from the raw buffer.
+	 * @param index The card index.
+	 * @return The name, with trailing spaces removed.
+	 */
+	protected String getKeywordName(int index)
+	{
+		int offset,length;
+
+		offset = index*FITSCard.CARD_LENGTH;
+		length = KEYWORD_LENGTH;
+		while((length > 0)&&(cardBuffer[offset+length-1] == ' '))
+			length--;
+		return ascii(cardBuffer,offset,length);
+	}
+
+	/**
+	 * Decode the value, type and comment of a card, if it has not already been decoded.
+	 * @param index The card index.
+	 * @see #valueList
+	 * @see #typeList
+	 * @see #commentList
+	 */
+	protected synchronized void decode(int index)
+	{
+		StringBuffer sb = null;
+		String token = null;
+		int offset,end,i,tokenStart,tokenEnd;
+		boolean done;
+
+		if(valueList == null)
+		{
+			valueList = new Object[cardCount];
+			Arrays.fill(valueList,NOT_DECODED);
+			typeList = new int[cardCount];
+			commentList = new String[cardCount];
+		}
+		if(valueList[index] != NOT_DECODED)
+			return;
+		offset = index*FITSCard.CARD_LENGTH;
+		end = offset+FITSCard.CARD_LENGTH;
+		// commentary card, no value indicator
+		if((cardBuffer[offset+8] != '=')||(cardBuffer[offset+9] != ' ')||
+		   layout.keywordList[index].equals("COMMENT")||layout.keywordList[index].equals("HISTORY"))
+		{
+			typeList[index] = TYPE_COMMENT;
+			commentList[index] = null;
+			valueList[index] = intern(index,trim(offset+KEYWORD_LENGTH,end));
+			return;
+		}
+		i = offset+10;
+		while((i < end)&&(cardBuffer[i] == ' '))
+			i++;
+		if((i < end)&&(cardBuffer[i] == '\''))
+		{
+			// string value, '' is an embedded quote
+			sb = new StringBuffer();
+			i++;
+			done = false;
+			while((i < end)&&(done == false))
+			{
+				if(cardBuffer[i] == '\'')
+				{
+					if(((i+1) < end)&&(cardBuffer[i+1] == '\''))
+					{
+						sb.append('\'');
+						i += 2;
+					}
+					else
+					{
+						done = true;
+						i++;
+					}
+				}
+				else
+				{
+					sb.append((char)cardBuffer[i]);
+					i++;
+				}
+			}
+			tokenEnd = sb.length();
+			while((tokenEnd > 0)&&(sb.charAt(tokenEnd-1) == ' '))
+				tokenEnd--;
+			sb.setLength(tokenEnd);
+			token = sb.toString();
+			if(parseDate(token) != null)
+			{
+				// dates are nearly unique, don't fill the pool with them
+				typeList[index] = TYPE_DATE;
+				valueList[index] = token;
+			}
+			else
+			{
+				typeList[index] = TYPE_STRING;
+				valueList[index] = intern(index,token);
+			}
+			commentList[index] = intern(index,decodeComment(i,end));
+			return;
+		}
+		tokenStart = i;
+		while((i < end)&&(cardBuffer[i] != '/'))
+			i++;
+		token = trim(tokenStart,i);
+		commentList[index] = intern(index,decodeComment(i,end));
+		if(token.length() == 0)
+		{
+			typeList[index] = TYPE_NONE;
+			valueList[index] = null;
+		}
+		else if(token.equals("T")||token.equals("F"))
+		{
+			typeList[index] = TYPE_BOOLEAN;
+			valueList[index] = Boolean.valueOf(token.equals("T"));
+		}
+		else
+			decodeNumber(index,token);
+	}
+
+	/**
+	 * Decode a number. Integers that fit in an int are stored as Integer, larger ones as Long.
+	 * Reals (with E or D exponents) are stored as Double. Anything else (e.g. complex values) is stored as
+	 * a string.
+	 * @param index The card index.
+	 * @param token The value text.
+	 */
+	protected void decodeNumber(int index,String token)
+	{
+		long l;
+
+		try
+		{
+			l = Long.parseLong((token.charAt(0) == '+') ? token.substring(1) : token);
+			typeList[index] = TYPE_INTEGER;
+			if((l >= Integer.MIN_VALUE)&&(l <= Integer.MAX_VALUE))
+				valueList[index] = Integer.valueOf((int)l);
+			else
+				valueList[index] = Long.valueOf(l);
+			return;
+		}
+		catch(NumberFormatException e)
+		{
+			// not an integer
+		}
+		try
+		{
+			valueList[index] = Double.valueOf(token.replace('D','E').replace('d','e'));
+			typeList[index] = TYPE_REAL;
+		}
+		catch(NumberFormatException e)
+		{
+			typeList[index] = TYPE_STRING;
+			valueList[index] = token;
+		}
+	}
+
+	/**
+	 * Decode the comment, which starts after a '/' at or after the specified position.
+	 * @param start The buffer position to start looking for the '/'.
+	 * @param end The buffer position of the end of the card.
+	 * @return The comment, or null if there is none.
+	 */
+	protected String decodeComment(int start,int end)
+	{
+		String comment = null;
+
+		while((start < end)&&(cardBuffer[start] != '/'))
+			start++;
+		if(start >= end)
+			return null;
+		comment = trim(start+1,end);
+		if(comment.length() == 0)
+			return null;
+		return comment;
+	}
+
+	/**
+	 * Return the text in part of the card buffer with leading and trailing spaces removed.
+	 * @param start The start position.
+	 * @param end The end position (exclusive).
+	 * @return The text.
+	 */
+	protected String trim(int start,int end)
+	{
+		while((start < end)&&(cardBuffer[start] == ' '))
+			start++;
+		while((end > start)&&(cardBuffer[end-1] == ' '))
+			end--;
+		return ascii(cardBuffer,start,end-start);
+	}
+
+	/**
+	 * Parse a FITS date string, in UTC. Accepted forms are "yyyy-mm-dd", "yyyy-mm-ddThh:mm:ss[.s...]",
+	 * and the old (pre-2000) form "dd/mm/yy", which is taken to be in the 20th century.
+	 * @param s The string.
+	 * @return A new Date, or null if the string is not a date.
+	 */
+	public static Date parseDate(String s)
+	{
+		Calendar calendar = null;
+		int year,month,day,hour,minute,second,length;
+		double fraction;
+
+		length = s.length();
+		hour = 0;
+		minute = 0;
+		second = 0;
+		fraction = 0.0;
+		if((length == 8)&&(s.charAt(2) == '/')&&(s.charAt(5) == '/'))
+		{
+			day = parseDigits(s,0,2);
+			month = parseDigits(s,3,5);
+			year = parseDigits(s,6,8);
+			if(year >= 0)
+				year += 1900;
+		}
+		else if((length >= 10)&&(s.charAt(4) == '-')&&(s.charAt(7) == '-'))
+		{
+			year = parseDigits(s,0,4);
+			month = parseDigits(s,5,7);
+			day = parseDigits(s,8,10);
+			if(length > 10)
+			{
+				if((length < 19)||(s.charAt(10) != 'T')||(s.charAt(13) != ':')||(s.charAt(16) != ':'))
+					return null;
+				hour = parseDigits(s,11,13);
+				minute = parseDigits(s,14,16);
+				second = parseDigits(s,17,19);
+				if((hour < 0)||(minute < 0)||(second < 0))
+					return null;
+				if(length > 19)
+				{
+					if((s.charAt(19) != '.')||(length == 20)||(parseDigits(s,20,length) < 0))
+						return null;
+					fraction = Double.parseDouble("0"+s.substring(19));
+				}
+			}
+		}
+		else
+			return null;
+		if((year < 0)||(month < 1)||(month > 12)||(day < 1)||(day > 31))
+			return null;
+		calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(year,month-1,day,hour,minute,second);
+		calendar.set(Calendar.MILLISECOND,(int)Math.round(fraction*1000.0));
+		return calendar.getTime();
+	}
+
+	/**
+	 * Parse a run of decimal digits.
+	 * @param s The string.
+	 * @param start The start position.
+	 * @param end The end position (exclusive).
+	 * @return The value, or -1 if any character is not a digit.
+	 */
+	protected static int parseDigits(String s,int start,int end)
+	{
+		int value;
+		char ch;
+
+		value = 0;
+		for(int i = start; i < end; i++)
+		{
+			ch = s.charAt(i);
+			if((ch < '0')||(ch > '9'))
+				return -1;
+			// limit the value, long fractions are only checked for digits
+			if(value < 100000000)
+				value = (value*10)+(ch-'0');
+		}
+		return value;
+	}
+
+	/**
+	 * Return a buffer holding exactly the specified number of cards, so a header retains no unused space.
+	 * @param buffer The buffer.
+	 * @param count The number of cards.
+	 * @return The buffer, or a trimmed copy of it.
+	 */
+	protected static byte[] trimBuffer(byte buffer[],int count)
+	{
+		byte newBuffer[];
+
+		if(buffer.length == (count*FITSCard.CARD_LENGTH))
+			return buffer;
+		newBuffer = new byte[count*FITSCard.CARD_LENGTH];
+		System.arraycopy(buffer,0,newBuffer,0,newBuffer.length);
+		return newBuffer;
+	}
+
+	/**
+	 * Get whether a card is the END card.
+	 * @param buffer The buffer.
+	 * @param offset The offset of the card.
+	 * @return true if the keyword is END.
+	 */
+	protected static boolean isEndCard(byte buffer[],int offset)
+	{
+		return startsWith(buffer,offset,"END     ");
+	}
+
+	/**
+	 * Get whether the buffer contains the specified string at the specified offset.
+	 * @param buffer The buffer.
+	 * @param offset The offset.
+	 * @param s The string.
+	 * @return true if the string matches.
+	 */
+	protected static boolean startsWith(byte buffer[],int offset,String s)
+	{
+		for(int i = 0; i < s.length(); i++)
+		{
+			if(buffer[offset+i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create a string from ASCII bytes.
+	 * @param buffer The buffer.
+	 * @param offset The offset of the first byte.
+	 * @param length The number of bytes.
+	 * @return The string.
+	 */
+	protected static String ascii(byte buffer[],int offset,int length)
+	{
+		char chars[];
+
+		chars = new char[length];
+		for(int i = 0; i < length; i++)
+			chars[i] = (char)(buffer[offset+i] & 0x7f);
+		return new String(chars);
+	}
+
+	/**
+	 * The keyword names of a header, and an index of the first card with each name. Headers with the same
+	 * sequence of keywords (typically every frame from one instrument) share a Layout, through layoutPool.
+	 * Equality is by keyword list.
+	 */
+	protected static class Layout
+	{
+		/**
+		 * The (interned) keyword names of each card.
+		 */
+		protected String keywordList[] = null;
+		/**
+		 * Map of keyword name to the index of the first card with that name. Created on first use, and
+		 * not changed after, so it is read without locking. Two threads may both create it; either copy
+		 * is correct.
+		 */
+		protected volatile Map<String,Integer> indexMap = null;
+		/**
+		 * The hash code of keywordList.
+		 */
+		protected int hashCode;
+
+		/**
+		 * Constructor.
+		 * @param list The keyword names of each card.
+		 */
+		public Layout(String list[])
+		{
+			super();
+			keywordList = list;
+			hashCode = Arrays.hashCode(list);
+		}
+
+		/**
+		 * Get the keyword index, creating it if necessary. Blank keyword names are not indexed.
+		 * @return The (unmodifiable) map of keyword name to the index of the first card with that name.
+		 */
+		public Map<String,Integer> getIndexMap()
+		{
+			Map<String,Integer> map = null;
+
+			map = indexMap;
+			if(map == null)
+			{
+				map = new HashMap<String,Integer>((keywordList.length*4/3)+1);
+				for(int i = 0; i < keywordList.length; i++)
+				{
+					if((keywordList[i].length() > 0)&&(map.containsKey(keywordList[i]) == false))
+						map.put(keywordList[i],Integer.valueOf(i));
+				}
+				map = Collections.unmodifiableMap(map);
+				indexMap = map;
+			}
+			return map;
+		}
+
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		public boolean equals(Object o)
+		{
+			if(o == this)
+				return true;
+			if((o instanceof Layout) == false)
+				return false;
+			return (hashCode == ((Layout)o).hashCode)&&Arrays.equals(keywordList,((Layout)o).keywordList);
+		}
+	}
+}
@@ -41,13 +41,13 @@ public class FITSHeaderLoader
 	 */
 	public final static String RCSID = "$Id$";
 	/**
-	 * The FITS file we are getting the header from.
+	 * The FITS file we are getting the header from, if loaded using load(FitsFile).
 	 */
 	FitsFile fitsFile = null;
 	/**
-	 * The FITS header object.
+	 * The FITS header cards. Card values are decoded on demand.
 	 */
-	FitsHeader header = null;
+	FITSHeaderCards headerCards = null;
 
 	/**
 	 * Default constructor.
@@ -58,47 +58,44 @@ public class FITSHeaderLoader
 	}
 
 	/**
-	 * Load FITS image.
+	 * Load FITS image header.
 	 * @param filename The filename to load from.
-	 * @see #fitsFile
-	 * @see #load(FitsFile)
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not a FITS file.
+	 * @see #load(java.io.File)
 	 */
 	public void load(String filename) throws IOException,FITSException
 	{
-		try
-		{
-			fitsFile = new FitsFile(new RandomAccessFile(filename,"r"),false);
-			load(fitsFile);
-		}
-		catch(FitsException e)
-		{
-			throw new FITSException(this.getClass().getName()+":load:"+e,e);
-		}
+		load(new File(filename));
 	}
 
 	/**
-	 * Load FITS image.
+	 * Load FITS image header. Only the header blocks are read from the file.
 	 * @param file The file to load from.
-	 * @see #fitsFile
-	 * @see #load(FitsFile)
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not a FITS file.
+	 * @see #load(DataInput)
 	 */
 	public void load(File file) throws IOException,FITSException
 	{
+		RandomAccessFile randomAccessFile = null;
+
+		randomAccessFile = new RandomAccessFile(file,"r");
 		try
 		{
-			fitsFile = new FitsFile(new RandomAccessFile(file,"r"),true);
-			load(fitsFile);
+			load(randomAccessFile);
 		}
-		catch(FitsException e)
+		finally
 		{
-			throw new FITSException(this.getClass().getName()+":load:"+e,e);
+			randomAccessFile.close();
 		}
 	}
 
 	/**
-	 * Load FITS image.
+	 * Load FITS image header.
 	 * @param url The URL to load from.
-	 * @see #fitsFile
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the data is not FITS.
 	 * @see #load(DataInput)
 	 */
 	public void load(URL url) throws IOException,FITSException
@@ -106,26 +103,57 @@ public class FITSHeaderLoader
 		DataInputStream dis = null;
 
 		dis = new DataInputStream(new BufferedInputStream(url.openStream()));
-		load(dis);
+		try
+		{
+			load(dis);
+		}
+		finally
+		{
+			dis.close();
+		}
 	}
 
 	/**
-	 * Load FITS image.
+	 * Load FITS image header. The raw header cards are read up to the END card, only the keyword names
+	 * are indexed, card values are decoded when they are first asked for.
+	 * The DataInput is left positioned at the start of the data.
 	 * @param di The DataInput to load from.
-	 * @see #fitsFile
-	 * @see #load(FitsFile)
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the data is not FITS.
+	 * @see #headerCards
+	 * @see FITSHeaderCards#read
 	 */
 	public void load(DataInput di) throws IOException,FITSException
 	{
+		long startTime;
+
+		startTime = FITSMetrics.start();
 		try
 		{
-			fitsFile = new FitsFile(di,true);
-			load(fitsFile);
+			headerCards = FITSHeaderCards.read(di);
 		}
-		catch(FitsException e)
+		catch(FITSException e)
 		{
-			throw new FITSException(this.getClass().getName()+":load:"+e,e);
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_HEADER_PARSE,e);
+			throw e;
 		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_HEADER_PARSE,e);
+			throw e;
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,startTime);
+		FITSMetrics.recordBytesRead(((long)headerCards.getBlockCount())*FITSCard.BLOCK_LENGTH);
+	}
+
+	/**
+	 * Get the loaded header cards.
+	 * @return The header cards, or null if a header has not been loaded yet.
+	 * @see #headerCards
+	 */
+	public FITSHeaderCards getHeaderCards()
+	{
+		return headerCards;
 	}
 
 	/**
@@ -133,18 +161,13 @@ public class FITSHeaderLoader
 	 * Returns null if a header has not been loaded yet.
 	 * @param keywordString The name of the keyword.
 	 * @return The keyword's value as a string.
-	 * @see #header
+	 * @see #headerCards
 	 */
 	public String getKeywordValueString(String keywordString)
 	{
-		FitsKeyword keyword = null;
-
-		if(header == null)
+		if(headerCards == null)
 			return null;
-		keyword = header.getKeyword(keywordString);
-		if(keyword == null)
-			return null;
-		return keyword.getString();
+		return headerCards.getString(keywordString);
 	}
 
 	/**
@@ -152,18 +175,13 @@ public class FITSHeaderLoader
 	 * Returns 0 if a header has not been loaded yet, or is not an int.
 	 * @param keywordString The name of the keyword.
 	 * @return The keyword's value as an int.
-	 * @see #header
+	 * @see #headerCards
 	 */
 	public int getKeywordValueInt(String keywordString)
 	{
-		FitsKeyword keyword = null;
-
-		if(header == null)
+		if(headerCards == null)
 			return 0;
-		keyword = header.getKeyword(keywordString);
-		if(keyword == null)
-			return 0;
-		return keyword.getInt();
+		return headerCards.getInt(keywordString);
 	}
 
 	/**
@@ -171,18 +189,13 @@ public class FITSHeaderLoader
 	 * Returns 0.0 if a header has not been loaded yet, or is not a double.
 	 * @param keywordString The name of the keyword.
 	 * @return The keyword's value as an double.
-	 * @see #header
+	 * @see #headerCards
 	 */
 	public double getKeywordValueDouble(String keywordString)
 	{
-		FitsKeyword keyword = null;
-
-		if(header == null)
+		if(headerCards == null)
 			return 0.0;
-		keyword = header.getKeyword(keywordString);
-		if(keyword == null)
-			return 0.0;
-		return keyword.getReal();
+		return headerCards.getDouble(keywordString);
 	}
 
 	/**
@@ -190,37 +203,27 @@ public class FITSHeaderLoader
 	 * Returns false if a header has not been loaded yet, or is not a boolean.
 	 * @param keywordString The name of the keyword.
 	 * @return The keyword's value as an boolean.
-	 * @see #header
+	 * @see #headerCards
 	 */
 	public boolean getKeywordValueBoolean(String keywordString)
 	{
-		FitsKeyword keyword = null;
-
-		if(header == null)
+		if(headerCards == null)
 			return false;
-		keyword = header.getKeyword(keywordString);
-		if(keyword == null)
-			return false;
-		return keyword.getBool();
+		return headerCards.getBoolean(keywordString);
 	}
 
 	/**
 	 * Get the value of the specified keyword as a date.
 	 * Returns null if a header has not been loaded yet, or is not a date.
 	 * @param keywordString The name of the keyword.
-	 * @return The keyword's value as a date.
-	 * @see #header
+	 * @return The keyword's value as a date (UTC).
+	 * @see #headerCards
 	 */
 	public Date getKeywordValueDate(String keywordString)
 	{
-		FitsKeyword keyword = null;
-
-		if(header == null)
-			return null;
-		keyword = header.getKeyword(keywordString);
-		if(keyword == null)
+		if(headerCards == null)
 			return null;
-		return keyword.getDate();
+		return headerCards.getDate(keywordString);
 	}
 
 	/**
@@ -241,31 +244,48 @@ public class FITSHeaderLoader
 	public String toString(String prefix)
 	{
 		StringBuffer sb = null;
-		FitsKeyword keyword = null;
 
 		sb = new StringBuffer();
-		if(header == null)
+		if(headerCards == null)
 			return sb.toString();
-		for (Enumeration e = header.getKeywords(); e.hasMoreElements();)
-		{
-			keyword = (FitsKeyword)(e.nextElement());
-			sb.append(prefix+keyword.toString()+"\n");
-		}
+		for(int i = 0; i < headerCards.getCardCount(); i++)
+			sb.append(prefix+headerCards.getCard(i).trim()+"\n");
 		return sb.toString();
 	}
 
 	// protected methods
 	/**
-	 * Method to load the data array from the specified FitsFile
+	 * Method to load the header from the specified (already parsed) jfits FitsFile.
+	 * The jfits keywords are re-formatted into header cards.
 	 * @param ff the Fits File to load.
-	 * @exception FITSException Thrown if HDU type is not image, or number of axes are not 2.
+	 * @exception FITSException Thrown if the file has no primary HDU.
+	 * @see FITSCard#formatKeyword
 	 */
 	protected void load(FitsFile ff) throws FITSException
 	{
 		FitsHDUnit hdu = null;
+		FitsHeader header = null;
+		byte buffer[];
+		String card = null;
+		int count;
 
+		fitsFile = ff;
 		hdu = ff.getHDUnit(0);
+		if(hdu == null)
+		{
+			throw new FITSException(this.getClass().getName()+":load:No primary HDU.");
+		}
 		header = hdu.getHeader();
+		buffer = new byte[header.getNoKeywords()*FITSCard.CARD_LENGTH];
+		count = 0;
+		for(Enumeration e = header.getKeywords(); e.hasMoreElements();)
+		{
+			card = FITSCard.formatKeyword((FitsKeyword)(e.nextElement()));
+			for(int i = 0; i < FITSCard.CARD_LENGTH; i++)
+				buffer[(count*FITSCard.CARD_LENGTH)+i] = (byte)card.charAt(i);
+			count++;
+		}
+		headerCards = new FITSHeaderCards(buffer,count);
 	}
 
 	/**
@@ -37,7 +37,11 @@ public class FITSHeaderParser
 	 */
 	public final static String RCSID = "$Id$";
 	/**
-	 * The FITS header instance.
+	 * The parsed header cards. Card values are decoded on demand.
+	 */
+	protected FITSHeaderCards headerCards = null;
+	/**
+	 * A jfits FITS header instance, created from headerCards on demand by getKeywords.
 	 */
 	protected FitsHeader fitsHeader = null;
 
@@ -53,118 +57,86 @@ public class FITSHeaderParser
 	 * Method to parse the header. 
 	 * <ul>
 	 * <li>The string is tokenised by newline.
-	 * <li>Each line is padded with spaces to 80 bytes.
-	 * <li>A new instance of FitsKeyword is created with the padded string.
-	 * <li>The results are added to fitsHeader.
+	 * <li>Each line is padded with spaces to 80 bytes, and stored in a FITSHeaderCards.
+	 * <li>Only the keyword names are indexed, each card's value is decoded when it is first asked for.
 	 * </ul>
 	 * @param fitsHeaderString A string containing a FITS header.
-	 * @exception FITSException Thrown if a FITS card cannot be parsed.
-	 * @see #fitsHeader
+	 * @exception FITSException Thrown if the header string is null.
+	 * @see #headerCards
+	 * @see FITSHeaderCards#parse
 	 */
 	public void parse(String fitsHeaderString) throws FITSException
 	{
-		FitsKeyword fitsKeyword = null;
-		StringTokenizer st = null;
-		String fitsCardString = null;
-		StringBuffer sb = null;
-		boolean done = false;
+		FITSException fitsException = null;
+		long startTime;
 
-		fitsHeader = new FitsHeader();
-		done = false;
-		st = new StringTokenizer(fitsHeaderString,"\n");
-		while(st.hasMoreTokens())
+		startTime = FITSMetrics.start();
+		if(fitsHeaderString == null)
 		{
-			// get next vard
-			fitsCardString = st.nextToken();
-			// pad card to 80 bytes
-			sb = new StringBuffer(fitsCardString);
-			while(sb.length() < 80)
-				sb.append(" ");
-			fitsCardString = sb.toString();
-			// don't parse the END keyword - this throws the exception:
-			// org.eso.fits.FitsException: END card
-			if(fitsCardString.startsWith("END ") == false)
-			{
-				// create fits keyword
-				try
-				{
-					fitsKeyword = new FitsKeyword(fitsCardString);
-				}
-				catch(FitsException e)
-				{
-					throw new FITSException(this.getClass().getName()+":parse:Failed to parse "+
-								fitsCardString,e);
-				}
-				// add keyword to header list
-				fitsHeader.addKeyword(fitsKeyword);
-			}// end if not END
+			fitsException = new FITSException(this.getClass().getName()+":parse:Header string was null.");
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_HEADER_PARSE,fitsException);
+			throw fitsException;
 		}
+		headerCards = FITSHeaderCards.parse(fitsHeaderString);
+		fitsHeader = null;
+		FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,startTime);
+	}
+
+	/**
+	 * Get the parsed header cards.
+	 * @return The header cards, or null if no header has been parsed.
+	 * @see #headerCards
+	 */
+	public FITSHeaderCards getHeaderCards()
+	{
+		return headerCards;
 	}
 
 	/**
 	 * Get the number of keywords in the header.
 	 * @return The number of keywords.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public int getKeywordCount()
 	{
-		return fitsHeader.getNoKeywords();
+		return headerCards.getCardCount();
 	}
 
 	/**
-	 * Get an enumeration of keywords in the header.
-	 * @return An enumeration keywords.
+	 * Get an enumeration of keywords in the header. This creates a jfits FitsHeader from the header cards
+	 * the first time it is called, which decodes every card, so prefer the getKeywordValue methods.
+	 * @return An enumeration of jfits FitsKeyword's.
+	 * @exception IllegalStateException Thrown if jfits cannot parse a card.
 	 * @see #fitsHeader
+	 * @see FITSHeaderCards#createFitsHeader
 	 */
-	public Enumeration getKeywords()
+	public synchronized Enumeration getKeywords() throws IllegalStateException
 	{
+		if(fitsHeader == null)
+		{
+			try
+			{
+				fitsHeader = headerCards.createFitsHeader();
+			}
+			catch(FITSException e)
+			{
+				throw new IllegalStateException(this.getClass().getName()+":getKeywords:"+e);
+			}
+		}
 		return fitsHeader.getKeywords();
 	}
 
 	/**
 	 * Get the value of the specified keyword.
 	 * @param keyword A string representing the keyword name.
-	 * @return An object representing the keyword's value. Can be of class: Boolean,String,Date,Integer,Double,
-	 *         or null if no value.
-	 * @see #fitsHeader
+	 * @return An object representing the keyword's value. Can be of class: Boolean,String,Date,Integer,
+	 *         Long (integers too large for an int),Double, or null if no value.
+	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
+	 * @see #headerCards
 	 */
-	public Object getKeywordValue(String keyword)
+	public Object getKeywordValue(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		String s = null;
-		Boolean bool = null;
-		Integer intObject = null;
-		Double doubleObject = null;
-		boolean b;
-		int i;
-		double d;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		switch(fitsKeyword.getType())
-		{
-		case FitsKeyword.BOOLEAN:
-			b = fitsKeyword.getBool();
-			bool = new Boolean(b);
-			return bool;
-		case FitsKeyword.COMMENT:
-			return fitsKeyword.getString();
-		case FitsKeyword.DATE:
-			return fitsKeyword.getDate();
-		case FitsKeyword.INTEGER:
-			i = fitsKeyword.getInt();
-			intObject = new Integer(i);
-			return intObject;
-		case FitsKeyword.NONE:
-			return null;
-		case FitsKeyword.REAL:
-			d = fitsKeyword.getReal();
-			doubleObject = new Double(d);
-			return doubleObject;
-		case FitsKeyword.STRING:
-			return fitsKeyword.getString();
-		default:
-			return null;
-		}
+		return headerCards.getValue(getIndex(keyword,"getKeywordValue"));
 	}
 
 	/**
@@ -172,43 +144,25 @@ public class FITSHeaderParser
 	 * @param keyword A string representing the keyword name.
 	 * @return The boolean value.
 	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public boolean getKeywordValueBoolean(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		boolean b;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		if(fitsKeyword == null)
-		{
-			throw new NullPointerException(this.getClass().getName()+
-						       ":getKeywordValueBoolean:No keyword found for:"+keyword+".");
-		}
-		b = fitsKeyword.getBool();
-		return b;
+		getIndex(keyword,"getKeywordValueBoolean");
+		return headerCards.getBoolean(keyword);
 	}
 
 	/**
 	 * Get the date value of the specified keyword.
 	 * @param keyword A string representing the keyword name.
-	 * @return The date value.
+	 * @return The date value (UTC), or null if the value is not a date.
 	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public Date getKeywordValueDate(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		Date d = null;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		if(fitsKeyword == null)
-		{
-			throw new NullPointerException(this.getClass().getName()+
-						       ":getKeywordValueDate:No keyword found for:"+keyword+".");
-		}
-		d = fitsKeyword.getDate();
-		return d;
+		getIndex(keyword,"getKeywordValueDate");
+		return headerCards.getDate(keyword);
 	}
 
 	/**
@@ -216,21 +170,12 @@ public class FITSHeaderParser
 	 * @param keyword A string representing the keyword name.
 	 * @return The integer value.
 	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public int getKeywordValueInteger(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		int i;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		if(fitsKeyword == null)
-		{
-			throw new NullPointerException(this.getClass().getName()+
-						       ":getKeywordValueInteger:No keyword found for:"+keyword+".");
-		}
-		i = fitsKeyword.getInt();
-		return i;
+		getIndex(keyword,"getKeywordValueInteger");
+		return headerCards.getInt(keyword);
 	}
 
 	/**
@@ -238,21 +183,12 @@ public class FITSHeaderParser
 	 * @param keyword A string representing the keyword name.
 	 * @return The double value.
 	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public double getKeywordValueDouble(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		double d;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		if(fitsKeyword == null)
-		{
-			throw new NullPointerException(this.getClass().getName()+
-						       ":getKeywordValueDouble:No keyword found for:"+keyword+".");
-		}
-		d = fitsKeyword.getReal();
-		return d;
+		getIndex(keyword,"getKeywordValueDouble");
+		return headerCards.getDouble(keyword);
 	}
 
 	/**
@@ -260,21 +196,12 @@ public class FITSHeaderParser
 	 * @param keyword A string representing the keyword name.
 	 * @return The string value.
 	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
-	 * @see #fitsHeader
+	 * @see #headerCards
 	 */
 	public String getKeywordValueString(String keyword) throws NullPointerException
 	{
-		FitsKeyword fitsKeyword = null;
-		String s;
-
-		fitsKeyword = fitsHeader.getKeyword(keyword);
-		if(fitsKeyword == null)
-		{
-			throw new NullPointerException(this.getClass().getName()+
-						       ":getKeywordValueString:No keyword found for:"+keyword+".");
-		}
-		s = fitsKeyword.getString();
-		return s;
+		getIndex(keyword,"getKeywordValueString");
+		return headerCards.getString(keyword);
 	}
 
 	/**
@@ -301,6 +228,27 @@ public class FITSHeaderParser
 
 		return sb.toString();
 	}
+
+	/**
+	 * Get the card index of the specified keyword.
+	 * @param keyword A string representing the keyword name.
+	 * @param methodName The calling method name, used in the exception message.
+	 * @return The card index.
+	 * @exception NullPointerException Thrown if the keyword does not exist in the header.
+	 * @see #headerCards
+	 */
+	protected int getIndex(String keyword,String methodName) throws NullPointerException
+	{
+		int index;
+
+		index = headerCards.indexOf(keyword);
+		if(index < 0)
+		{
+			throw new NullPointerException(this.getClass().getName()+":"+methodName+
+						       ":No keyword found for:"+keyword+".");
+		}
+		return index;
+	}
 }
 /*
 ** $Log: not supported by cvs2svn $
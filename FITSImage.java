@@ -43,6 +43,22 @@ public class FITSImage
 	 * Revision control system version id.
 	 */
 	public final static String RCSID = "$Id$";
+	/**
+	 * A suitable number of rows for each band of a progressive load.
+	 * @see #loadProgressive
+	 */
+	public final static int DEFAULT_BAND_HEIGHT = 64;
+	/**
+	 * Binning mode: each binned pixel is the sum of the pixels binned. Partial bins at the right and top
+	 * edges are scaled up to the area of a whole bin.
+	 * @see #loadBinned
+	 */
+	public final static int BIN_SUM = 0;
+	/**
+	 * Binning mode: each binned pixel is the mean of the pixels binned.
+	 * @see #loadBinned
+	 */
+	public final static int BIN_MEAN = 1;
 	/**
 	 * Width of image.
 	 */
@@ -93,6 +109,56 @@ public class FITSImage
 	 * The date the data was taken.
 	 */
 	Date dateObs = null;
+	/**
+	 * The FITS header the image was loaded with, used when writing the image out. When the image was
+	 * loaded from header cards, this is only created (from headerCards) when first needed.
+	 * @see #getFitsHeader
+	 */
+	FitsHeader header = null;
+	/**
+	 * The primary header cards the image was loaded with, or null if it was loaded some other way.
+	 * @see #getFitsHeader
+	 */
+	FITSHeaderCards headerCards = null;
+	/**
+	 * The BITPIX of the loaded FITS data. Images created from a data array default to -32 (float).
+	 */
+	int bitpix = -32;
+	/**
+	 * The BSCALE of the loaded FITS data. Physical value = BZERO + BSCALE * array value.
+	 */
+	double bscale = 1.0;
+	/**
+	 * The BZERO of the loaded FITS data. Physical value = BZERO + BSCALE * array value.
+	 */
+	double bzero = 0.0;
+	/**
+	 * The BLANK value of the loaded (integer) FITS data, which was decoded as NaN.
+	 * @see #blankEnabled
+	 */
+	long blank = 0L;
+	/**
+	 * Whether the loaded FITS data had a BLANK keyword.
+	 * @see #blank
+	 */
+	boolean blankEnabled = false;
+	/**
+	 * The factor the image was binned by when loaded, 1 if it was not binned.
+	 * @see #loadBinned
+	 */
+	int binFactor = 1;
+	/**
+	 * The registration of the data array with the shared memory manager, or null if it is not registered.
+	 * @see #setDataArray
+	 * @see FITSMemoryManager
+	 */
+	FITSMemoryManager.Entry memoryEntry = null;
+	/**
+	 * The number of threads used to decode the data when loading from a file. If less than 1, the default
+	 * thread count is used.
+	 * @see #setThreadCount
+	 */
+	int threadCount = 0;
 
 	/**
 	 * Default constructor.
@@ -103,21 +169,151 @@ public class FITSImage
 	}
 
 	/**
-	 * Load FITS image.
+	 * Constructor from an existing data array. This is used by the image processing classes in this package
+	 * (stacking etc) to return a new image. The data array is <b>NOT</b> copied.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @param a The data array, of length w*h, in FITS row order (row 0 is the bottom of the displayed image).
+	 * @exception IllegalArgumentException Thrown if the array is null or the wrong length.
+	 * @see #width
+	 * @see #height
+	 * @see #dataArray
+	 */
+	public FITSImage(int w,int h,float a[]) throws IllegalArgumentException
+	{
+		super();
+		if(a == null)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Data array was null.");
+		}
+		if(a.length != (w*h))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Data array length "+a.length+
+							   " does not match dimensions "+w+" x "+h+".");
+		}
+		width = w;
+		height = h;
+		setDataArray(a);
+	}
+
+	/**
+	 * Set the number of threads used to decode the data when loading from a file. Background loads (e.g.
+	 * prefetching) can use 1, so they do not compete with foreground work.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Load FITS image. The header is read with FITSHeaderCards, and the data decoded by a FITSDataDecoder,
+	 * which reads and decodes chunks of the data unit concurrently.
 	 * @param filename The filename to load from.
-	 * @see #fitsFile
-	 * @see #load(FitsFile)
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image.
+	 * @see #load(java.lang.String,org.estar.fits.FITSHeaderCards)
 	 */
 	public void load(String filename) throws IOException,FITSException
 	{
+		load(filename,null);
+	}
+
+	/**
+	 * Load FITS image, whose primary header has already been read (e.g. by FITSHeaderLoader), so it is not
+	 * read again. The data is decoded by a FITSDataDecoder, which reads and decodes chunks of the data unit
+	 * concurrently, over threadCount threads.
+	 * @param filename The filename to load from.
+	 * @param cards The file's primary header, or null to read it from the file.
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image.
+	 * @see #loadHeader
+	 * @see #threadCount
+	 * @see FITSDataDecoder#read(java.nio.channels.FileChannel,long,float[],int,int)
+	 * @see FITSMetrics
+	 */
+	public void load(String filename,FITSHeaderCards cards) throws IOException,FITSException
+	{
+		RandomAccessFile randomAccessFile = null;
+		FITSDataDecoder decoder = null;
+		long startTime,headerStartTime,decodeStartTime,dataOffset;
+
+		startTime = FITSMetrics.start();
 		try
 		{
-			fitsFile = new FitsFile(new RandomAccessFile(filename,"r"),true);
-			load(fitsFile);
+			randomAccessFile = new RandomAccessFile(filename,"r");
+			headerStartTime = FITSMetrics.start();
+			if(cards == null)
+			{
+				cards = FITSHeaderCards.read(randomAccessFile);
+				FITSMetrics.recordBytesRead(randomAccessFile.getFilePointer());
+			}
+			dataOffset = ((long)cards.getBlockCount())*FITSCard.BLOCK_LENGTH;
+			decoder = loadHeader(cards);
+			decoder.setThreadCount(threadCount);
+			FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,headerStartTime);
+			decodeStartTime = FITSMetrics.start();
+			decoder.read(randomAccessFile.getChannel(),dataOffset,dataArray,0,dataArray.length);
+			FITSMetrics.stop(FITSMetrics.TIMER_DECODE,decodeStartTime);
+			setDataArray(dataArray);
 		}
-		catch(FitsException e)
+		catch(FITSException e)
 		{
-			throw new FITSException(this.getClass().getName()+":load:"+e);
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		finally
+		{
+			if(randomAccessFile != null)
+				randomAccessFile.close();
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_LOAD,startTime);
+	}
+
+	/**
+	 * Load FITS image, optionally verifying the primary HDU's CHECKSUM and DATASUM keywords. The checksums are
+	 * computed as the file streams through the loader, so verification needs no extra pass over the file.
+	 * Keywords that are not in the header are not checked.
+	 * @param filename The filename to load from.
+	 * @param verifyChecksum true to verify the checksums, false to load as load(String).
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a FITS image, or CHECKSUM or DATASUM is wrong.
+	 * @see #load(java.lang.String)
+	 * @see #load(java.io.DataInput)
+	 * @see FITSChecksumInputStream
+	 */
+	public void load(String filename,boolean verifyChecksum) throws IOException,FITSException
+	{
+		FITSChecksumInputStream checksumStream = null;
+
+		if(verifyChecksum == false)
+		{
+			load(filename);
+			return;
+		}
+		checksumStream = new FITSChecksumInputStream(new FileInputStream(filename));
+		try
+		{
+			load(new DataInputStream(new BufferedInputStream(checksumStream,16*FITSCard.BLOCK_LENGTH)));
+			try
+			{
+				checksumStream.verify(0);
+			}
+			catch(FITSException e)
+			{
+				FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+				throw e;
+			}
+		}
+		finally
+		{
+			checksumStream.close();
 		}
 	}
 
@@ -136,22 +332,240 @@ public class FITSImage
 	}
 
 	/**
-	 * Load FITS image.
+	 * Load FITS image. The data is read sequentially, and decoded by a FITSDataDecoder.
 	 * @param di The DataInput to load from.
-	 * @see #fitsFile
-	 * @see #load(FitsFile)
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the input is not a two dimensional FITS image.
+	 * @see #loadHeader
+	 * @see FITSDataDecoder#read(java.io.DataInput,float[],int,int)
+	 * @see FITSMetrics
 	 */
 	public void load(DataInput di) throws IOException,FITSException
 	{
+		FITSHeaderCards cards = null;
+		FITSDataDecoder decoder = null;
+		long startTime,headerStartTime,decodeStartTime;
+
+		startTime = FITSMetrics.start();
 		try
 		{
-			fitsFile = new FitsFile(di,true);
-			load(fitsFile);
+			headerStartTime = FITSMetrics.start();
+			cards = FITSHeaderCards.read(di);
+			decoder = loadHeader(cards);
+			FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,headerStartTime);
+			FITSMetrics.recordBytesRead(((long)cards.getBlockCount())*FITSCard.BLOCK_LENGTH);
+			decodeStartTime = FITSMetrics.start();
+			decoder.read(di,dataArray,0,dataArray.length);
+			FITSMetrics.stop(FITSMetrics.TIMER_DECODE,decodeStartTime);
+			setDataArray(dataArray);
 		}
-		catch(FitsException e)
+		catch(FITSException e)
 		{
-			throw new FITSException(this.getClass().getName()+":load:"+e);
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
 		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_LOAD,startTime);
+	}
+
+	/**
+	 * Load FITS image progressively, so it can be displayed and processed before the load completes.
+	 * The header is read first, and the listener told; then, if previewFactor is greater than 1, every
+	 * previewFactor'th row is read and subsampled into a preview image; then the whole image is read
+	 * in bands of bandHeight rows, the listener being told as each band arrives. Only the rows of the current
+	 * band are read at once, so time to first pixel is the time to read the header and one band (or the
+	 * preview rows), rather than the whole image. The rows read in the preview pass are read again in the band
+	 * pass, which costs an extra 1/previewFactor of the read time.
+	 * <p>
+	 * This method blocks until the load is complete, so is usually called on a background thread.
+	 * @param filename The filename to load from.
+	 * @param bandHeight The number of rows in each band, at least 1.
+	 * @param previewFactor The subsampling factor of the preview pass, or 1 (or less) for no preview.
+	 * @param listener The listener to tell as the image is loaded.
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image, or decoding fails.
+	 * @exception IllegalArgumentException Thrown if bandHeight is less than 1.
+	 * @see #DEFAULT_BAND_HEIGHT
+	 * @see #loadPreview
+	 * @see FITSLoadListener
+	 * @see FITSRowReader
+	 */
+	public void loadProgressive(String filename,int bandHeight,int previewFactor,FITSLoadListener listener)
+		throws IOException,FITSException,IllegalArgumentException
+	{
+		FITSRowReader reader = null;
+		float rows[] = null;
+		long startTime,headerStartTime;
+		int rowCount;
+
+		if(bandHeight < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":loadProgressive:Illegal band height:"+
+							   bandHeight);
+		}
+		startTime = FITSMetrics.start();
+		reader = new FITSRowReader();
+		try
+		{
+			headerStartTime = FITSMetrics.start();
+			reader.open(filename);
+			FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,headerStartTime);
+			fitsFile = null;
+			width = reader.getWidth();
+			height = reader.getHeight();
+			parseHeader(reader.getHeader());
+			parseDataHeader(reader.getHeader());
+			binFactor = 1;
+			dataArray = createDataArray(width*height);
+			listener.headerLoaded(this);
+			if(previewFactor > 1)
+				listener.previewLoaded(this,loadPreview(reader,previewFactor),previewFactor);
+			for(int startRow = 0; startRow < height; startRow += bandHeight)
+			{
+				rowCount = Math.min(bandHeight,height-startRow);
+				rows = reader.readRows(startRow,rowCount,rows);
+				System.arraycopy(rows,0,dataArray,startRow*width,rowCount*width);
+				listener.rowsLoaded(this,startRow,rowCount,rows);
+			}
+			setDataArray(dataArray);
+		}
+		catch(FITSException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		finally
+		{
+			reader.close();
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_LOAD,startTime);
+		listener.loadComplete(this);
+	}
+
+	/**
+	 * Load FITS image, binning it factor x factor as it is read. Only factor rows of the full resolution
+	 * image are held in memory at once, so memory use scales with the binned size. The width and height are
+	 * the full resolution dimensions divided by factor, rounded up: the partial bins at the right and top
+	 * edges are kept, combining only the pixels that exist, so the binned image covers the whole frame and
+	 * the field centre (FCRA/FCDEC) still applies. The plate scales (and the XPS, YPS, CCDXBIN and CCDYBIN
+	 * keywords of the header) are multiplied by factor, so getPosition maps binned pixels to the sky.
+	 * The binned image is float (BITPIX -32), as binned values may not fit the original data type.
+	 * @param filename The filename to load from.
+	 * @param factor The binning factor, at least 1.
+	 * @param mode How to combine the binned pixels, BIN_SUM or BIN_MEAN.
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image, is smaller than
+	 *            factor x factor, or decoding fails.
+	 * @exception IllegalArgumentException Thrown if the factor or mode is illegal.
+	 * @see #BIN_SUM
+	 * @see #BIN_MEAN
+	 * @see #binFactor
+	 * @see #binRows
+	 * @see #createBinnedHeader
+	 * @see FITSRowReader
+	 */
+	public void loadBinned(String filename,int factor,int mode) throws IOException,FITSException,
+		IllegalArgumentException
+	{
+		FITSRowReader reader = null;
+		float rows[] = null;
+		long startTime,headerStartTime;
+		int fullWidth,fullHeight,rowCount;
+
+		if(factor < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":loadBinned:Illegal factor:"+factor);
+		}
+		if((mode != BIN_SUM)&&(mode != BIN_MEAN))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":loadBinned:Illegal mode:"+mode);
+		}
+		startTime = FITSMetrics.start();
+		reader = new FITSRowReader();
+		try
+		{
+			headerStartTime = FITSMetrics.start();
+			reader.open(filename);
+			FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,headerStartTime);
+			fullWidth = reader.getWidth();
+			fullHeight = reader.getHeight();
+			if((fullWidth < factor)||(fullHeight < factor))
+			{
+				throw new FITSException(this.getClass().getName()+":loadBinned:"+filename+
+							":Image dimensions "+fullWidth+" x "+fullHeight+
+							" are smaller than the binning factor "+factor+".");
+			}
+			fitsFile = null;
+			width = (fullWidth+factor-1)/factor;
+			height = (fullHeight+factor-1)/factor;
+			parseHeader(reader.getHeader());
+			dataArray = createDataArray(width*height);
+			for(int y = 0; y < height; y++)
+			{
+				rowCount = Math.min(factor,fullHeight-(y*factor));
+				rows = reader.readRows(y*factor,rowCount,rows);
+				binRows(rows,fullWidth,rowCount,factor,mode,y*width);
+			}
+			setDataArray(dataArray);
+			header = createBinnedHeader(reader.getHeader(),factor);
+		}
+		catch(FITSException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+			throw e;
+		}
+		finally
+		{
+			reader.close();
+		}
+		xPlateScale *= factor;
+		yPlateScale *= factor;
+		bitpix = -32;
+		bscale = 1.0;
+		bzero = 0.0;
+		blankEnabled = false;
+		binFactor = factor;
+		FITSMetrics.stop(FITSMetrics.TIMER_LOAD,startTime);
+	}
+
+	/**
+	 * Get the factor the image was binned by when it was loaded.
+	 * @return The binning factor, 1 if the image was not binned.
+	 * @see #binFactor
+	 */
+	public int getBinFactor()
+	{
+		return binFactor;
+	}
+
+	/**
+	 * Save the FITS image, with the BITPIX, BSCALE and BZERO it was loaded with, and the keywords from
+	 * the header it was loaded with.
+	 * @param filename The filename to save to.
+	 * @exception IOException Thrown if writing fails.
+	 * @exception FITSException Thrown if the image has no data.
+	 * @see FITSImageWriter
+	 */
+	public void save(String filename) throws IOException,FITSException
+	{
+		FITSImageWriter writer = null;
+
+		writer = new FITSImageWriter();
+		writer.write(this,new File(filename));
 	}
 
 	/**
@@ -164,8 +578,12 @@ public class FITSImage
 	 */
 	public void setMinMaxPixelValue()
 	{
+		float dataArray[];
+		long startTime;
 		int nPixels;
 
+		startTime = FITSMetrics.start();
+		dataArray = getDataArray();
 		minPixelValue = 65535.0f;
 		maxPixelValue = 0.0f;
 		nPixels = dataArray.length;
@@ -176,6 +594,7 @@ public class FITSImage
 			if(dataArray[i] > maxPixelValue)
 				maxPixelValue = dataArray[i];
 		}
+		FITSMetrics.stop(FITSMetrics.TIMER_STATS,startTime);
 	}
 
 	/**
@@ -198,6 +617,119 @@ public class FITSImage
 		return maxPixelValue;
 	}
 
+	/**
+	 * Return the loaded data array. This is package access only, the array is <b>NOT</b> copied, and is in
+	 * FITS row order (row 0 is the bottom of the displayed image). If the array has been spilled by the
+	 * memory manager, it is paged back in. The array must not be modified in place.
+	 * @return The data array, or null if no image has been loaded.
+	 * @see #dataArray
+	 * @see #memoryEntry
+	 * @see FITSMemoryManager#access
+	 */
+	float[] getDataArray()
+	{
+		float a[];
+
+		a = dataArray;
+		if(memoryEntry == null)
+			return a;
+		if(a != null)
+		{
+			memoryEntry.touch();
+			return a;
+		}
+		return FITSMemoryManager.getMemoryManager().access(this);
+	}
+
+	/**
+	 * Allocate a new data array to load into. The registration of the current array (if any) is released, and
+	 * room made for the new one in the memory manager's budget. The new array is not registered until it has
+	 * been loaded, as an array being filled must not be spilled.
+	 * @param n The number of pixels.
+	 * @return The new array.
+	 * @see #setDataArray
+	 * @see FITSMemoryManager#reserve
+	 */
+	protected float[] createDataArray(int n)
+	{
+		FITSMemoryManager memoryManager = null;
+
+		memoryManager = FITSMemoryManager.getMemoryManager();
+		memoryEntry = memoryManager.release(memoryEntry);
+		memoryManager.reserve(((long)n)*4L);
+		return new float[n];
+	}
+
+	/**
+	 * Set the data array, and register it with the shared memory manager. The registration of the previous
+	 * array (if any) is released.
+	 * @param a The data array, which must have been completely loaded.
+	 * @see #dataArray
+	 * @see #memoryEntry
+	 * @see FITSMemoryManager#register
+	 */
+	protected void setDataArray(float a[])
+	{
+		FITSMemoryManager memoryManager = null;
+
+		memoryManager = FITSMemoryManager.getMemoryManager();
+		memoryEntry = memoryManager.release(memoryEntry);
+		dataArray = a;
+		memoryEntry = memoryManager.register(this);
+	}
+
+	/**
+	 * Return the BITPIX of the FITS data the image was loaded from.
+	 * @return The BITPIX, -32 if the image was not loaded from a file.
+	 * @see #bitpix
+	 */
+	public int getBitpix()
+	{
+		return bitpix;
+	}
+
+	/**
+	 * Return the BSCALE of the FITS data the image was loaded from.
+	 * @return The BSCALE, 1.0 if not present.
+	 * @see #bscale
+	 */
+	public double getBScale()
+	{
+		return bscale;
+	}
+
+	/**
+	 * Return the BZERO of the FITS data the image was loaded from.
+	 * @return The BZERO, 0.0 if not present.
+	 * @see #bzero
+	 */
+	public double getBZero()
+	{
+		return bzero;
+	}
+
+	/**
+	 * Return the BLANK value of the FITS data the image was loaded from. Pixels with this value were loaded
+	 * as NaN.
+	 * @return The BLANK value, only meaningful if isBlankEnabled returns true.
+	 * @see #blank
+	 * @see #isBlankEnabled
+	 */
+	public long getBlank()
+	{
+		return blank;
+	}
+
+	/**
+	 * Return whether the FITS data the image was loaded from had a BLANK keyword.
+	 * @return true if there was a BLANK keyword.
+	 * @see #blankEnabled
+	 */
+	public boolean isBlankEnabled()
+	{
+		return blankEnabled;
+	}
+
 	public int getWidth()
 	{
 		return width;
@@ -321,7 +853,92 @@ public class FITSImage
 		nvals = width * height;
 		if((dataArrayIndex < 0)||(dataArrayIndex>=nvals))
 			return 0.0;
-		return dataArray[dataArrayIndex];
+		return getDataArray()[dataArrayIndex];
+	}
+
+	/**
+	 * Measure the flux in circular apertures at a batch of positions, with the sky measured in an annulus
+	 * around each position. The fraction of each pixel inside the aperture is computed exactly, and positions
+	 * are measured in parallel.
+	 * @param x The list of X positions, in the same coordinates as getValue.
+	 * @param y The list of Y positions, in the same coordinates as getValue.
+	 * @param radius The list of aperture radii, in pixels. This can have one element, in which case that
+	 *        radius is used for all positions.
+	 * @param skyInnerRadius The inner radius of the sky annulus, in pixels.
+	 * @param skyOuterRadius The outer radius of the sky annulus, in pixels.
+	 * @return The photometry results, containing flux, flux error and sky arrays.
+	 * @exception FITSException Thrown if the image has not been loaded, or the arrays are inconsistent.
+	 * @see #getValue
+	 * @see FITSPhotometry
+	 */
+	public FITSPhotometryResult measureApertures(double x[],double y[],double radius[],double skyInnerRadius,
+						     double skyOuterRadius) throws FITSException
+	{
+		FITSPhotometry photometry = null;
+
+		photometry = new FITSPhotometry();
+		photometry.setSkyAnnulus(skyInnerRadius,skyOuterRadius);
+		return photometry.measure(this,x,y,radius);
+	}
+
+	/**
+	 * Compute a spatially varying background and noise map for the loaded image, using a mesh of
+	 * square cells. Only the mesh is stored, the full resolution background is interpolated on demand.
+	 * @param meshSize The size of each mesh cell, in pixels.
+	 * @return The background map.
+	 * @exception FITSException Thrown if the image has not been loaded.
+	 * @see FITSBackground
+	 */
+	public FITSBackground computeBackground(int meshSize) throws FITSException
+	{
+		FITSBackground background = null;
+
+		background = new FITSBackground();
+		background.setMeshSize(meshSize);
+		background.compute(this);
+		return background;
+	}
+
+	/**
+	 * Detect and clean cosmic rays in the loaded image, with the default L.A.Cosmic limits. The image is not
+	 * changed.
+	 * @param gain The detector gain, in electrons per ADU.
+	 * @param readNoise The detector read noise, in electrons.
+	 * @return The result, holding a cleaned copy of this image and the cosmic ray mask.
+	 * @exception FITSException Thrown if the image has not been loaded.
+	 * @see FITSCosmicRayCleaner
+	 */
+	public FITSCosmicRayResult cleanCosmicRays(double gain,double readNoise) throws FITSException
+	{
+		FITSCosmicRayCleaner cleaner = null;
+
+		cleaner = new FITSCosmicRayCleaner();
+		cleaner.setDetector(gain,readNoise);
+		return cleaner.clean(this);
+	}
+
+	/**
+	 * Smooth the loaded image with a Gaussian. The image is not changed.
+	 * @param sigma The standard deviation of the Gaussian, in pixels.
+	 * @return A smoothed copy of this image.
+	 * @exception FITSException Thrown if the image has not been loaded.
+	 * @see FITSFilter#gaussian
+	 */
+	public FITSImage smooth(double sigma) throws FITSException
+	{
+		return new FITSFilter().gaussian(this,sigma);
+	}
+
+	/**
+	 * Median filter the loaded image. The image is not changed.
+	 * @param size The size of the square window, in pixels, odd.
+	 * @return A filtered copy of this image.
+	 * @exception FITSException Thrown if the image has not been loaded.
+	 * @see FITSFilter#median
+	 */
+	public FITSImage medianFilter(int size) throws FITSException
+	{
+		return new FITSFilter().median(this,size);
 	}
 
 	/**
@@ -386,6 +1003,20 @@ public class FITSImage
 		return dateObs;
 	}
 
+	/**
+	 * Create an immutable snapshot of this image, which can be shared between threads without locking.
+	 * The data array is shared, not copied: this class never modifies pixel values in place, a subsequent
+	 * load replaces the array rather than overwriting it. The snapshot's cut levels are the current
+	 * minimum/maximum pixel values.
+	 * @return The snapshot.
+	 * @exception IllegalArgumentException Thrown if no image data has been loaded.
+	 * @see FITSImageSnapshot
+	 */
+	public FITSImageSnapshot createSnapshot() throws IllegalArgumentException
+	{
+		return new FITSImageSnapshot(this);
+	}
+
 	/**
 	 * Create a memory image source model suitable for creating an image from.
 	 * @return The memory image source.
@@ -407,19 +1038,43 @@ public class FITSImage
 	 * @see #width
 	 * @see #height
 	 * @see #dataArray
+	 * @see #createImageSource(float,float,org.estar.fits.FITSCancellable)
 	 */
 	public MemoryImageSource createImageSource(float minValue,float maxValue)
 	{
+		return createImageSource(minValue,maxValue,null);
+	}
+
+	/**
+	 * Create a memory image source model suitable for creating an image from, that can be cancelled part way
+	 * through. The cancellable is polled once per row, so a cancelled render stops within a row.
+	 * @param minValue Any dataArray pixel values less than this value are treated as black.
+	 * @param maxValue Any dataArray pixel values greater than this value are treated as white.
+	 * @param cancellable Polled to see whether to stop rendering. Can be null, if the render cannot be
+	 *        cancelled.
+	 * @return The memory image source, or null if the render was cancelled.
+	 * @see #createImageSource(float,float)
+	 * @see FITSRenderService
+	 */
+	public MemoryImageSource createImageSource(float minValue,float maxValue,FITSCancellable cancellable)
+	{
+		MemoryImageSource imageSource = null;
+		float dataArray[];
 		int pixels[];
 		float scaleValue;
+		long startTime;
 		int nvals;
 		int value,dataArrayIndex,pixelsIndex;
 
+		startTime = FITSMetrics.start();
+		dataArray = getDataArray();
 		nvals = width * height;
 		scaleValue = 255.0f / (maxValue-minValue);
 		pixels = new int[nvals];
 		for(int y=0;y < height; y++)
 		{
+			if((cancellable != null)&&cancellable.isCancelled())
+				return null;
 			for(int x = 0;x < width; x++)
 			{
 				dataArrayIndex = (y*width)+x;
@@ -435,7 +1090,9 @@ public class FITSImage
 				pixels[pixelsIndex] = (255 << 24) | (value << 16) | (value << 8) | value;
 			}
 		}
-		return new MemoryImageSource(width, height, pixels, 0, width);
+		imageSource = new MemoryImageSource(width, height, pixels, 0, width);
+		FITSMetrics.stop(FITSMetrics.TIMER_RENDER,startTime);
+		return imageSource;
 	}
 
 	/**
@@ -472,33 +1129,25 @@ public class FITSImage
 
 	// protected methods
 	/**
-	 * Method to load the data array from the specified FitsFile
-	 * @param ff the Fits File to load.
-	 * @exception FITSException Thrown if HDU type is not image, or number of axes are not 2.
-	 * @see #objectName
-	 * @see #width
-	 * @see #height
-	 * @see #dataArray
+	 * Method to set the field centre, plate scale, object name and date of observation from
+	 * the specified FITS header. Keywords that do not exist in the header are ignored.
+	 * @param header The FITS header to retrieve keyword values from.
 	 * @see #fcRA
 	 * @see #fcDec
 	 * @see #xPlateScale
 	 * @see #yPlateScale
+	 * @see #objectName
+	 * @see #dateObs
+	 * @see #header
 	 */
-	protected void load(FitsFile ff) throws FITSException
+	protected void parseHeader(FitsHeader header)
 	{
-		FitsHDUnit hdu = null;
-		FitsHeader header = null;
-		FitsMatrix data = null;
 		FitsKeyword keyword = null;
 		String s = null;
-		int axes[];
-		int nvals;
 
-		hdu = ff.getHDUnit(0);
-		header = hdu.getHeader();
-		width = header.getKeyword("NAXIS1").getInt();
-		height = header.getKeyword("NAXIS2").getInt();
-	        keyword = header.getKeyword("FCRA");
+		this.header = header;
+		headerCards = null;
+		keyword = header.getKeyword("FCRA");
 		if(keyword != null)
 		{
 			s = keyword.getString();
@@ -530,6 +1179,310 @@ public class FITSImage
 		keyword = header.getKeyword("DATE-OBS");
 		if(keyword != null)
 			dateObs = keyword.getDate();
+	}
+
+	/**
+	 * Method to set the field centre, plate scale, object name and date of observation from
+	 * the specified header cards, without creating a jfits header. Keywords that do not exist in the header
+	 * are ignored.
+	 * @param cards The header cards to retrieve keyword values from.
+	 * @see #fcRA
+	 * @see #fcDec
+	 * @see #xPlateScale
+	 * @see #yPlateScale
+	 * @see #objectName
+	 * @see #dateObs
+	 * @see #headerCards
+	 * @see #getFitsHeader
+	 */
+	protected void parseHeader(FITSHeaderCards cards)
+	{
+		String s = null;
+
+		header = null;
+		headerCards = cards;
+		s = cards.getString("FCRA");
+		if(s != null)
+		{
+			fcRA = new RA();
+			fcRA.parseSpace(s);
+		}
+		s = cards.getString("FCDEC");
+		if(s != null)
+		{
+			fcDec = new Dec();
+			fcDec.parseSpace(s);
+		}
+		if(cards.containsKeyword("XPS"))
+			xPlateScale = cards.getDouble("XPS");
+		if(cards.containsKeyword("YPS"))
+			yPlateScale = cards.getDouble("YPS");
+		if(cards.containsKeyword("OBJECT"))
+			objectName = cards.getString("OBJECT");
+		if(cards.containsKeyword("DATE-OBS"))
+			dateObs = cards.getDate("DATE-OBS");
+	}
+
+	/**
+	 * Method to set the data type, scaling and blank value from the specified FITS header.
+	 * @param header The FITS header to retrieve keyword values from.
+	 * @see #bitpix
+	 * @see #bscale
+	 * @see #bzero
+	 * @see #blank
+	 */
+	protected void parseDataHeader(FitsHeader header)
+	{
+		FitsKeyword keyword = null;
+
+		keyword = header.getKeyword("BITPIX");
+		if(keyword != null)
+			bitpix = keyword.getInt();
+		bscale = 1.0;
+		keyword = header.getKeyword("BSCALE");
+		if(keyword != null)
+			bscale = keyword.getReal();
+		bzero = 0.0;
+		keyword = header.getKeyword("BZERO");
+		if(keyword != null)
+			bzero = keyword.getReal();
+		keyword = header.getKeyword("BLANK");
+		blankEnabled = (keyword != null);
+		if(keyword != null)
+			blank = keyword.getInt();
+	}
+
+	/**
+	 * Method to set the data type, scaling and blank value from the specified header cards.
+	 * @param cards The header cards to retrieve keyword values from.
+	 * @see #bitpix
+	 * @see #bscale
+	 * @see #bzero
+	 * @see #blank
+	 */
+	protected void parseDataHeader(FITSHeaderCards cards)
+	{
+		if(cards.containsKeyword("BITPIX"))
+			bitpix = cards.getInt("BITPIX");
+		bscale = 1.0;
+		if(cards.containsKeyword("BSCALE"))
+			bscale = cards.getDouble("BSCALE");
+		bzero = 0.0;
+		if(cards.containsKeyword("BZERO"))
+			bzero = cards.getDouble("BZERO");
+		blankEnabled = cards.containsKeyword("BLANK");
+		if(blankEnabled)
+			blank = cards.getLong("BLANK");
+	}
+
+	/**
+	 * Get the FITS header the image was loaded with. If the image was loaded from header cards, the jfits
+	 * header is created from them the first time this is called.
+	 * @return The header, or null if the image was not loaded from a file.
+	 * @exception FITSException Thrown if jfits cannot parse a card.
+	 * @see #header
+	 * @see #headerCards
+	 * @see FITSHeaderCards#createFitsHeader
+	 */
+	protected synchronized FitsHeader getFitsHeader() throws FITSException
+	{
+		if((header == null)&&(headerCards != null))
+			header = headerCards.createFitsHeader();
+		return header;
+	}
+
+	/**
+	 * Read the preview pass of a progressive load: every factor'th row is read, copied into the data array,
+	 * and every factor'th pixel of it copied into the preview.
+	 * @param reader The open reader to read rows from.
+	 * @param factor The subsampling factor.
+	 * @return The preview image, with minimum/maximum pixel values set, and the header values of this image
+	 *         with the plate scales multiplied by factor.
+	 * @exception FITSException Thrown if reading a row fails.
+	 * @see #loadProgressive
+	 */
+	protected FITSImage loadPreview(FITSRowReader reader,int factor) throws FITSException
+	{
+		FITSImage preview = null;
+		float row[] = null;
+		float previewArray[];
+		int previewWidth,previewHeight,previewIndex;
+
+		previewWidth = (width+factor-1)/factor;
+		previewHeight = (height+factor-1)/factor;
+		previewArray = new float[previewWidth*previewHeight];
+		previewIndex = 0;
+		for(int y = 0; y < previewHeight; y++)
+		{
+			row = reader.readRows(y*factor,1,row);
+			System.arraycopy(row,0,dataArray,y*factor*width,width);
+			for(int x = 0; x < width; x += factor)
+				previewArray[previewIndex++] = row[x];
+		}
+		preview = new FITSImage(previewWidth,previewHeight,previewArray);
+		preview.fcRA = fcRA;
+		preview.fcDec = fcDec;
+		preview.xPlateScale = xPlateScale*factor;
+		preview.yPlateScale = yPlateScale*factor;
+		preview.objectName = objectName;
+		preview.dateObs = dateObs;
+		preview.bitpix = bitpix;
+		preview.bscale = bscale;
+		preview.bzero = bzero;
+		preview.blank = blank;
+		preview.blankEnabled = blankEnabled;
+		preview.setMinMaxPixelValue();
+		return preview;
+	}
+
+	/**
+	 * Bin up to factor full resolution rows into one row of the data array. The last bin of the row, and
+	 * every bin of the top row, can be partial: only the pixels that exist are combined, and for BIN_SUM the
+	 * sum is scaled up to the area of a whole bin.
+	 * @param rows The full resolution rows, rowCount*fullWidth of them.
+	 * @param fullWidth The full resolution width.
+	 * @param rowCount The number of full resolution rows to bin, between 1 and factor.
+	 * @param factor The binning factor.
+	 * @param mode BIN_SUM or BIN_MEAN.
+	 * @param offset The index in the data array of the binned row.
+	 * @see #loadBinned
+	 */
+	protected void binRows(float rows[],int fullWidth,int rowCount,int factor,int mode,int offset)
+	{
+		float sum;
+		int rowOffset,columnCount;
+
+		for(int x = 0; x < width; x++)
+		{
+			columnCount = Math.min(factor,fullWidth-(x*factor));
+			sum = 0.0f;
+			for(int r = 0; r < rowCount; r++)
+			{
+				rowOffset = (r*fullWidth)+(x*factor);
+				for(int c = 0; c < columnCount; c++)
+					sum += rows[rowOffset+c];
+			}
+			if(mode == BIN_MEAN)
+				dataArray[offset+x] = sum/(rowCount*columnCount);
+			else
+				dataArray[offset+x] = sum*(factor*factor)/(rowCount*columnCount);
+		}
+	}
+
+	/**
+	 * Create a copy of a header for a binned image: the plate scale keywords (XPS, YPS) and binning keywords
+	 * (CCDXBIN, CCDYBIN) are multiplied by the binning factor, the others are copied.
+	 * @param fullHeader The header of the full resolution image.
+	 * @param factor The binning factor.
+	 * @return The binned header.
+	 * @exception FITSException Thrown if creating a keyword fails.
+	 * @see #loadBinned
+	 */
+	protected FitsHeader createBinnedHeader(FitsHeader fullHeader,int factor) throws FITSException
+	{
+		FitsHeader binnedHeader = null;
+		FitsKeyword keyword = null;
+		String name = null;
+
+		binnedHeader = new FitsHeader();
+		for(Enumeration e = fullHeader.getKeywords(); e.hasMoreElements();)
+		{
+			keyword = (FitsKeyword)(e.nextElement());
+			name = keyword.getName();
+			try
+			{
+				if(name.equals("XPS")||name.equals("YPS"))
+				{
+					keyword = new FitsKeyword(FITSCard.formatReal(name,keyword.getReal()*factor,
+										      keyword.getComment()));
+				}
+				else if(name.equals("CCDXBIN")||name.equals("CCDYBIN"))
+				{
+					keyword = new FitsKeyword(FITSCard.formatInteger(name,
+								((long)keyword.getInt())*factor,keyword.getComment()));
+				}
+			}
+			catch(FitsException fe)
+			{
+				throw new FITSException(this.getClass().getName()+":createBinnedHeader:Failed to create "+
+							name+":"+fe,fe);
+			}
+			binnedHeader.addKeyword(keyword);
+		}
+		return binnedHeader;
+	}
+
+	/**
+	 * Set up the image from the primary header of a file being loaded: the dimensions, header values and
+	 * data type are set, and the data array allocated. The values are read straight from the cards; the
+	 * jfits header is only created if it is needed later.
+	 * @param cards The primary header.
+	 * @return A decoder for the data that follows the header.
+	 * @exception FITSException Thrown if the header is not of a two dimensional image.
+	 * @see #load(java.lang.String)
+	 * @see #load(java.io.DataInput)
+	 * @see #parseHeader
+	 * @see #parseDataHeader
+	 * @see FITSDataDecoder#create
+	 */
+	protected FITSDataDecoder loadHeader(FITSHeaderCards cards) throws FITSException
+	{
+		FITSDataDecoder decoder = null;
+		long pixelCount;
+
+		if(cards.getInt("NAXIS") != 2)
+		{
+			throw new FITSException(this.getClass().getName()+":loadHeader:Illegal number of axes:"+
+						cards.getInt("NAXIS"));
+		}
+		pixelCount = cards.getLong("NAXIS1")*cards.getLong("NAXIS2");
+		if((pixelCount < 0)||(pixelCount > Integer.MAX_VALUE))
+		{
+			throw new FITSException(this.getClass().getName()+":loadHeader:Illegal dimensions:"+
+						cards.getLong("NAXIS1")+" x "+cards.getLong("NAXIS2"));
+		}
+		decoder = FITSDataDecoder.create(cards);
+		fitsFile = null;
+		width = cards.getInt("NAXIS1");
+		height = cards.getInt("NAXIS2");
+		parseHeader(cards);
+		parseDataHeader(cards);
+		binFactor = 1;
+		dataArray = createDataArray((int)pixelCount);
+		return decoder;
+	}
+
+	/**
+	 * Method to load the data array from the specified FitsFile
+	 * @param ff the Fits File to load.
+	 * @exception FITSException Thrown if HDU type is not image, or number of axes are not 2.
+	 * @see #objectName
+	 * @see #width
+	 * @see #height
+	 * @see #dataArray
+	 * @see #fcRA
+	 * @see #fcDec
+	 * @see #xPlateScale
+	 * @see #yPlateScale
+	 * @see #parseHeader
+	 * @see #parseDataHeader
+	 */
+	protected void load(FitsFile ff) throws FITSException
+	{
+		FitsHDUnit hdu = null;
+		FitsHeader header = null;
+		FitsMatrix data = null;
+		int axes[];
+		long startTime;
+		int nvals;
+
+		hdu = ff.getHDUnit(0);
+		header = hdu.getHeader();
+		width = header.getKeyword("NAXIS1").getInt();
+		height = header.getKeyword("NAXIS2").getInt();
+		parseHeader(header);
+		parseDataHeader(header);
+		binFactor = 1;
 		if(hdu.getData().getType() != Fits.IMAGE)
 		{
 			throw new FITSException(this.getClass().getName()+":load:Illegal HDU type:"+
@@ -546,11 +1499,15 @@ public class FITSImage
 		width = axes[0];
 		height = axes[1];
 		nvals = data.getNoValues();
-		//dataArray = new float[nvals];
-		dataArray = null; // get getFloatValues to allocate buffer
+		dataArray = createDataArray(nvals);
 		try
 		{
+			startTime = FITSMetrics.start();
 			dataArray = data.getFloatValues(0,nvals,dataArray);
+			FITSMetrics.stop(FITSMetrics.TIMER_DECODE,startTime);
+			setDataArray(dataArray);
+			FITSMetrics.recordBytesRead((((long)((header.getNoKeywords()/FITSCard.CARDS_PER_BLOCK)+1))*
+						     FITSCard.BLOCK_LENGTH)+(((long)nvals)*(Math.abs(bitpix)/8)));
 		}
 		catch(FitsException e)
 		{
@@ -0,0 +1,779 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSImageSnapshot.java
+// $Header$
+package org.estar.fits;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import org.estar.astrometry.*;
+
+/**
+ * An immutable view of a loaded FITS image. All fields are final and the pixel buffer is never written after
+ * construction, so a snapshot can be shared between any number of threads (render, photometry, web handlers)
+ * without locking. Derived views, with different cut levels, of a sub-region, flipped, rotated by a multiple
+ * of 90 degrees or transposed, share the underlying pixel buffer and are cheap to create: no pixels are copied.
+ * <p>
+ * As in FITSImage, public pixel coordinates are display coordinates (y increasing down the displayed image).
+ * The pixel at display position (x,y) of a view is at buffer[origin+(x*pixelStride)+(y*rowStride)]; the strides
+ * can be negative, and pixelStride need not be 1, so any orientation is a stride change. Each view also maps its
+ * display coordinates to those of the image it was taken from, which composes the orientation changes, so
+ * getPosition returns the same sky position for the same pixel in any view.
+ * Mutable values (RA, Dec, Date) are returned as new objects.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#createSnapshot
+ */
+public final class FITSImageSnapshot
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The shared pixel buffer.
+	 */
+	private final float buffer[];
+	/**
+	 * The index in the buffer of the pixel at display position (0,0) (top left) of this view.
+	 */
+	private final int origin;
+	/**
+	 * The distance in the buffer between successive pixels along a display row (increasing x).
+	 */
+	private final int pixelStride;
+	/**
+	 * The distance in the buffer between successive display rows (increasing y).
+	 */
+	private final int rowStride;
+	/**
+	 * Width of this view.
+	 */
+	private final int width;
+	/**
+	 * Height of this view.
+	 */
+	private final int height;
+	/**
+	 * Low cut level, pixel values at or below this are rendered black.
+	 */
+	private final float minPixelValue;
+	/**
+	 * High cut level, pixel values at or above this are rendered white.
+	 */
+	private final float maxPixelValue;
+	/**
+	 * Whether the field centre is known.
+	 */
+	private final boolean hasFieldCentre;
+	/**
+	 * Field centre RA, in arc-seconds. From FCRA keyword.
+	 */
+	private final double fcRAArcSeconds;
+	/**
+	 * Field centre Dec, in arc-seconds. From FCDEC keyword.
+	 */
+	private final double fcDecArcSeconds;
+	/**
+	 * The display X pixel position of the field centre, in the image the snapshot was taken of.
+	 */
+	private final int fieldCentreX;
+	/**
+	 * The display Y pixel position of the field centre, in the image the snapshot was taken of.
+	 */
+	private final int fieldCentreY;
+	/**
+	 * The mapping from this view's display coordinates to those of the image the snapshot was taken of:
+	 * imageX = (xx*x)+(xy*y)+x0, imageY = (yx*x)+(yy*y)+y0. The matrix is a signed permutation (each of
+	 * xx, xy, yx, yy is -1, 0 or 1), so its inverse is its transpose.
+	 */
+	private final int xx,xy,x0,yx,yy,y0;
+	/**
+	 * Plate scale - arc-sec/pixel. From XPS keyword.
+	 */
+	private final double xPlateScale;
+	/**
+	 * Plate scale - arc-sec/pixel. From YPS keyword.
+	 */
+	private final double yPlateScale;
+	/**
+	 * The name of the object on this frame. From OBJECT keyword.
+	 */
+	private final String objectName;
+	/**
+	 * The date the data was taken, in milliseconds since the epoch, or Long.MIN_VALUE if not known.
+	 */
+	private final long dateObs;
+	/**
+	 * The BITPIX of the loaded FITS data.
+	 */
+	private final int bitpix;
+	/**
+	 * The BSCALE of the loaded FITS data. Physical value = BZERO + BSCALE * array value.
+	 */
+	private final double bscale;
+	/**
+	 * The BZERO of the loaded FITS data. Physical value = BZERO + BSCALE * array value.
+	 */
+	private final double bzero;
+	/**
+	 * The BLANK value of the loaded (integer) FITS data, if blankEnabled.
+	 */
+	private final long blank;
+	/**
+	 * Whether the loaded FITS data had a BLANK keyword.
+	 */
+	private final boolean blankEnabled;
+
+	/**
+	 * Create a snapshot of an image. The image's data array is shared, not copied; FITSImage never modifies
+	 * pixel values in place (a reload replaces the array), so the snapshot is unaffected by later loads.
+	 * @param image The image.
+	 * @exception IllegalArgumentException Thrown if the image has no data.
+	 * @see FITSImage#createSnapshot
+	 */
+	FITSImageSnapshot(FITSImage image) throws IllegalArgumentException
+	{
+		super();
+		if(image.getDataArray() == null)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Image has no data.");
+		}
+		buffer = image.getDataArray();
+		// display row 0 is the top (last) FITS row
+		origin = (image.height-1)*image.width;
+		pixelStride = 1;
+		rowStride = -image.width;
+		width = image.width;
+		height = image.height;
+		minPixelValue = image.minPixelValue;
+		maxPixelValue = image.maxPixelValue;
+		hasFieldCentre = (image.fcRA != null)&&(image.fcDec != null);
+		fcRAArcSeconds = (image.fcRA != null) ? image.fcRA.toArcSeconds() : 0.0;
+		fcDecArcSeconds = (image.fcDec != null) ? image.fcDec.toArcSeconds() : 0.0;
+		fieldCentreX = image.width/2;
+		fieldCentreY = image.height/2;
+		xx = 1;
+		xy = 0;
+		x0 = 0;
+		yx = 0;
+		yy = 1;
+		y0 = 0;
+		xPlateScale = image.xPlateScale;
+		yPlateScale = image.yPlateScale;
+		objectName = image.objectName;
+		dateObs = (image.dateObs != null) ? image.dateObs.getTime() : Long.MIN_VALUE;
+		bitpix = image.bitpix;
+		bscale = image.bscale;
+		bzero = image.bzero;
+		blank = image.blank;
+		blankEnabled = image.blankEnabled;
+	}
+
+	/**
+	 * Create a view of another snapshot, sharing its buffer and metadata. The new view's display position
+	 * (x,y) is the position ((p*x)+(q*y)+r,(s*x)+(t*y)+u) of the view derived from; the matrix must be a
+	 * signed permutation. The buffer strides and the mapping to image coordinates are composed from it.
+	 * @param v The view to derive from.
+	 * @param p The change in the old x per new x.
+	 * @param q The change in the old x per new y.
+	 * @param r The old x of new position (0,0).
+	 * @param s The change in the old y per new x.
+	 * @param t The change in the old y per new y.
+	 * @param u The old y of new position (0,0).
+	 * @param w The width of this view.
+	 * @param h The height of this view.
+	 * @param min The low cut level.
+	 * @param max The high cut level.
+	 */
+	private FITSImageSnapshot(FITSImageSnapshot v,int p,int q,int r,int s,int t,int u,int w,int h,
+				  float min,float max)
+	{
+		super();
+		buffer = v.buffer;
+		origin = v.origin+(r*v.pixelStride)+(u*v.rowStride);
+		pixelStride = (p*v.pixelStride)+(s*v.rowStride);
+		rowStride = (q*v.pixelStride)+(t*v.rowStride);
+		width = w;
+		height = h;
+		minPixelValue = min;
+		maxPixelValue = max;
+		hasFieldCentre = v.hasFieldCentre;
+		fcRAArcSeconds = v.fcRAArcSeconds;
+		fcDecArcSeconds = v.fcDecArcSeconds;
+		fieldCentreX = v.fieldCentreX;
+		fieldCentreY = v.fieldCentreY;
+		xx = (v.xx*p)+(v.xy*s);
+		xy = (v.xx*q)+(v.xy*t);
+		x0 = (v.xx*r)+(v.xy*u)+v.x0;
+		yx = (v.yx*p)+(v.yy*s);
+		yy = (v.yx*q)+(v.yy*t);
+		y0 = (v.yx*r)+(v.yy*u)+v.y0;
+		xPlateScale = v.xPlateScale;
+		yPlateScale = v.yPlateScale;
+		objectName = v.objectName;
+		dateObs = v.dateObs;
+		bitpix = v.bitpix;
+		bscale = v.bscale;
+		bzero = v.bzero;
+		blank = v.blank;
+		blankEnabled = v.blankEnabled;
+	}
+
+	/**
+	 * Load a FITS image file and return a snapshot of it. The cut levels are set to the data range.
+	 * @param filename The filename to load from.
+	 * @return The snapshot.
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not a 2D FITS image.
+	 * @see FITSImage#load(java.lang.String)
+	 */
+	public static FITSImageSnapshot load(String filename) throws IOException,FITSException
+	{
+		FITSImage image = null;
+
+		image = new FITSImage();
+		image.load(filename);
+		image.setMinMaxPixelValue();
+		return image.createSnapshot();
+	}
+
+	/**
+	 * Load a FITS image from a URL and return a snapshot of it. The cut levels are set to the data range.
+	 * @param url The URL to load from.
+	 * @return The snapshot.
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the data is not a 2D FITS image.
+	 * @see FITSImage#load(java.net.URL)
+	 */
+	public static FITSImageSnapshot load(URL url) throws IOException,FITSException
+	{
+		FITSImage image = null;
+
+		image = new FITSImage();
+		image.load(url);
+		image.setMinMaxPixelValue();
+		return image.createSnapshot();
+	}
+
+	/**
+	 * Return a view of this snapshot with different cut levels, sharing the pixel buffer.
+	 * @param min The low cut level, pixel values at or below this are rendered black.
+	 * @param max The high cut level, pixel values at or above this are rendered white.
+	 * @return The new view.
+	 */
+	public FITSImageSnapshot withCutLevels(float min,float max)
+	{
+		return new FITSImageSnapshot(this,1,0,0,0,1,0,width,height,min,max);
+	}
+
+	/**
+	 * Return a view of this snapshot with its cut levels set to the minimum and maximum pixel values of
+	 * this view (ignoring NaN), sharing the pixel buffer. Only the pixels of this view are scanned.
+	 * @return The new view.
+	 * @see FITSImage#setMinMaxPixelValue
+	 */
+	public FITSImageSnapshot withDataCutLevels()
+	{
+		float min,max,v;
+		long startTime;
+		int rowIndex,index;
+
+		startTime = FITSMetrics.start();
+		min = Float.MAX_VALUE;
+		max = -Float.MAX_VALUE;
+		rowIndex = origin;
+		for(int y = 0; y < height; y++)
+		{
+			index = rowIndex;
+			for(int x = 0; x < width; x++)
+			{
+				v = buffer[index];
+				if(v < min)
+					min = v;
+				if(v > max)
+					max = v;
+				index += pixelStride;
+			}
+			rowIndex += rowStride;
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_STATS,startTime);
+		if(min > max)
+			return withCutLevels(0.0f,0.0f);
+		return withCutLevels(min,max);
+	}
+
+	/**
+	 * Return a view of a sub-region of this snapshot, sharing the pixel buffer. The sub-region keeps the
+	 * cut levels and astrometry of this view, so getPosition returns the same sky position for the same pixel.
+	 * @param x The display X position of the left edge of the region.
+	 * @param y The display Y position of the top edge of the region.
+	 * @param w The width of the region.
+	 * @param h The height of the region.
+	 * @return The new view.
+	 * @exception IllegalArgumentException Thrown if the region is empty or not inside this view.
+	 */
+	public FITSImageSnapshot subregion(int x,int y,int w,int h) throws IllegalArgumentException
+	{
+		if((w < 1)||(h < 1)||(x < 0)||(y < 0)||((x+w) > width)||((y+h) > height))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":subregion:Region "+x+","+y+" "+
+							   w+" x "+h+" not inside "+width+" x "+height+".");
+		}
+		return new FITSImageSnapshot(this,1,0,x,0,1,y,w,h,minPixelValue,maxPixelValue);
+	}
+
+	/**
+	 * Return a view of this snapshot mirrored left to right, sharing the pixel buffer.
+	 * @return The new view.
+	 */
+	public FITSImageSnapshot flipHorizontal()
+	{
+		return new FITSImageSnapshot(this,-1,0,width-1,0,1,0,width,height,minPixelValue,maxPixelValue);
+	}
+
+	/**
+	 * Return a view of this snapshot mirrored top to bottom, sharing the pixel buffer.
+	 * @return The new view.
+	 */
+	public FITSImageSnapshot flipVertical()
+	{
+		return new FITSImageSnapshot(this,1,0,0,0,-1,height-1,width,height,minPixelValue,maxPixelValue);
+	}
+
+	/**
+	 * Return a view of this snapshot rotated clockwise (as displayed) by a multiple of 90 degrees, sharing the
+	 * pixel buffer. Rotations by 90 and 270 degrees swap the width and height.
+	 * @param degrees The rotation, a multiple of 90 (negative values rotate anti-clockwise).
+	 * @return The new view.
+	 * @exception IllegalArgumentException Thrown if the rotation is not a multiple of 90 degrees.
+	 */
+	public FITSImageSnapshot rotate(int degrees) throws IllegalArgumentException
+	{
+		if((degrees % 90) != 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":rotate:Illegal rotation:"+degrees);
+		}
+		switch(((degrees/90) % 4 + 4) % 4)
+		{
+			case 1:
+				// new (x,y) is old (y,height-1-x)
+				return new FITSImageSnapshot(this,0,1,0,-1,0,height-1,height,width,
+							     minPixelValue,maxPixelValue);
+			case 2:
+				return new FITSImageSnapshot(this,-1,0,width-1,0,-1,height-1,width,height,
+							     minPixelValue,maxPixelValue);
+			case 3:
+				// new (x,y) is old (width-1-y,x)
+				return new FITSImageSnapshot(this,0,-1,width-1,1,0,0,height,width,
+							     minPixelValue,maxPixelValue);
+			default:
+				return this;
+		}
+	}
+
+	/**
+	 * Return a view of this snapshot transposed (mirrored about the top left to bottom right diagonal), sharing
+	 * the pixel buffer. The width and height are swapped.
+	 * @return The new view.
+	 */
+	public FITSImageSnapshot transpose()
+	{
+		return new FITSImageSnapshot(this,0,1,0,1,0,0,height,width,minPixelValue,maxPixelValue);
+	}
+
+	/**
+	 * Get the width of the image.
+	 * @return The width, in pixels.
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the image.
+	 * @return The height, in pixels.
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Get the low cut level.
+	 * @return The pixel value rendered black.
+	 */
+	public float getMinPixelValue()
+	{
+		return minPixelValue;
+	}
+
+	/**
+	 * Get the high cut level.
+	 * @return The pixel value rendered white.
+	 */
+	public float getMaxPixelValue()
+	{
+		return maxPixelValue;
+	}
+
+	/**
+	 * Get the BITPIX the image was loaded from.
+	 * @return The BITPIX.
+	 */
+	public int getBitpix()
+	{
+		return bitpix;
+	}
+
+	/**
+	 * Get the BSCALE the image was loaded from.
+	 * @return The BSCALE, 1.0 if not present.
+	 */
+	public double getBScale()
+	{
+		return bscale;
+	}
+
+	/**
+	 * Get the BZERO the image was loaded from.
+	 * @return The BZERO, 0.0 if not present.
+	 */
+	public double getBZero()
+	{
+		return bzero;
+	}
+
+	/**
+	 * Get the BLANK value the image was loaded with.
+	 * @return The BLANK value, only meaningful if isBlankEnabled returns true.
+	 */
+	public long getBlank()
+	{
+		return blank;
+	}
+
+	/**
+	 * Get whether the image was loaded with a BLANK keyword.
+	 * @return true if there was a BLANK keyword.
+	 */
+	public boolean isBlankEnabled()
+	{
+		return blankEnabled;
+	}
+
+	/**
+	 * Get the value of a pixel.
+	 * @param x The display X position.
+	 * @param y The display Y position.
+	 * @return The pixel value, or 0.0 if the position is outside the image.
+	 */
+	public double getValue(int x,int y)
+	{
+		if((x < 0)||(y < 0)||(x >= width)||(y >= height))
+			return 0.0;
+		return buffer[origin+(x*pixelStride)+(y*rowStride)];
+	}
+
+	/**
+	 * Copy a row of pixels.
+	 * @param row The row, in FITS order (row 0 is the bottom of the displayed image).
+	 * @param rowBuffer A buffer to copy into, or null to allocate one.
+	 * @return The buffer, containing the row in its first width elements.
+	 * @exception IllegalArgumentException Thrown if the row is out of range.
+	 */
+	public float[] getRow(int row,float rowBuffer[]) throws IllegalArgumentException
+	{
+		if((row < 0)||(row >= height))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":getRow:Row "+row+
+							   " out of range (0.."+height+").");
+		}
+		if((rowBuffer == null)||(rowBuffer.length < width))
+			rowBuffer = new float[width];
+		copyRow(height-(row+1),rowBuffer,0);
+		return rowBuffer;
+	}
+
+	/**
+	 * Get the field centre RA.
+	 * @return A new RA, or null if the field centre is not known.
+	 */
+	public RA getFCRA()
+	{
+		RA ra = null;
+
+		if(hasFieldCentre == false)
+			return null;
+		ra = new RA();
+		ra.fromArcSeconds(fcRAArcSeconds);
+		return ra;
+	}
+
+	/**
+	 * Get the field centre declination.
+	 * @return A new Dec, or null if the field centre is not known.
+	 */
+	public Dec getFCDec()
+	{
+		Dec dec = null;
+
+		if(hasFieldCentre == false)
+			return null;
+		dec = new Dec();
+		dec.fromArcSeconds(fcDecArcSeconds);
+		return dec;
+	}
+
+	/**
+	 * Get the plate scale along this view's X axis. For a view rotated by 90 or 270 degrees, or transposed,
+	 * this is the image's Y plate scale.
+	 * @return The plate scale, arc-seconds/pixel.
+	 */
+	public double getXPlateScale()
+	{
+		return (xx != 0) ? xPlateScale : yPlateScale;
+	}
+
+	/**
+	 * Get the plate scale along this view's Y axis. For a view rotated by 90 or 270 degrees, or transposed,
+	 * this is the image's X plate scale.
+	 * @return The plate scale, arc-seconds/pixel.
+	 */
+	public double getYPlateScale()
+	{
+		return (yy != 0) ? yPlateScale : xPlateScale;
+	}
+
+	/**
+	 * Get whether this view's axes are swapped relative to the image, i.e. it is rotated by 90 or 270 degrees,
+	 * or transposed. RA then varies along the view's Y axis, and Dec along its X axis.
+	 * @return true if the axes are swapped.
+	 */
+	public boolean isAxisSwapped()
+	{
+		return (xx == 0);
+	}
+
+	/**
+	 * Get the object name.
+	 * @return The value of the OBJECT keyword, or null.
+	 */
+	public String getObjectName()
+	{
+		return objectName;
+	}
+
+	/**
+	 * Get the date of observation.
+	 * @return A new Date, or null if the date is not known.
+	 */
+	public Date getDateObs()
+	{
+		if(dateObs == Long.MIN_VALUE)
+			return null;
+		return new Date(dateObs);
+	}
+
+	/**
+	 * Get the sky position of a pixel, assuming linear plate scaling, as FITSImage.getPosition.
+	 * @param x The display X position.
+	 * @param y The display Y position.
+	 * @return The position, or null if the pixel is outside the image or the field centre is not known.
+	 * @see FITSImage#getPosition(int,int)
+	 */
+	public CelestialObject getPosition(int x,int y)
+	{
+		CelestialObject co = null;
+		RA newRA = null;
+		Dec newDec = null;
+		int imageX,imageY;
+
+		if((x < 0)||(y < 0)||(x > width)||(y > height))
+			return null;
+		if(hasFieldCentre == false)
+			return null;
+		imageX = (xx*x)+(xy*y)+x0;
+		imageY = (yx*x)+(yy*y)+y0;
+		newRA = new RA();
+		newDec = new Dec();
+		newRA.fromArcSeconds(fcRAArcSeconds+(((double)(fieldCentreX-imageX))*xPlateScale));
+		newDec.fromArcSeconds(fcDecArcSeconds+(((double)(fieldCentreY-imageY))*yPlateScale));
+		co = new CelestialObject();
+		co.setRA(newRA);
+		co.setDec(newDec);
+		return co;
+	}
+
+	/**
+	 * Get the pixel position of a sky position, assuming linear plate scaling, as FITSImage.getPosition.
+	 * @param ra The RA.
+	 * @param dec The declination.
+	 * @return The display pixel position, or null if the field centre is not known.
+	 * @see FITSImage#getPosition(org.estar.astrometry.RA,org.estar.astrometry.Dec)
+	 */
+	public Point getPosition(RA ra,Dec dec)
+	{
+		Point p = null;
+		double imageX,imageY;
+
+		if((ra == null)||(dec == null))
+			return null;
+		if(hasFieldCentre == false)
+			return null;
+		imageX = ((fcRAArcSeconds-ra.toArcSeconds())/xPlateScale)+fieldCentreX-x0;
+		imageY = ((fcDecArcSeconds-dec.toArcSeconds())/yPlateScale)+fieldCentreY-y0;
+		// the mapping matrix is a signed permutation, so its inverse is its transpose
+		p = new Point();
+		p.x = (int)((xx*imageX)+(yx*imageY));
+		p.y = (int)((xy*imageX)+(yy*imageY));
+		return p;
+	}
+
+	/**
+	 * Create a memory image source using this view's cut levels.
+	 * @return The memory image source.
+	 * @see #createImageSource(float,float)
+	 */
+	public MemoryImageSource createImageSource()
+	{
+		return createImageSource(minPixelValue,maxPixelValue);
+	}
+
+	/**
+	 * Create a greyscale memory image source, as FITSImage.createImageSource, of this view as displayed.
+	 * Each display row is read along the view's strides, so no orientation needs a copy first.
+	 * @param minValue Pixel values less than this value are treated as black.
+	 * @param maxValue Pixel values greater than this value are treated as white.
+	 * @return The memory image source.
+	 * @see FITSImage#createImageSource(float,float)
+	 */
+	public MemoryImageSource createImageSource(float minValue,float maxValue)
+	{
+		MemoryImageSource imageSource = null;
+		int pixels[];
+		float scaleValue,v;
+		long startTime;
+		int value,index,pixelsIndex;
+
+		startTime = FITSMetrics.start();
+		scaleValue = 255.0f/(maxValue-minValue);
+		pixels = new int[width*height];
+		for(int y = 0; y < height; y++)
+		{
+			index = origin+(y*rowStride);
+			pixelsIndex = y*width;
+			for(int x = 0; x < width; x++)
+			{
+				v = buffer[index];
+				index += pixelStride;
+				if(v < minValue)
+					value = 0;
+				else if(v > maxValue)
+					value = 255;
+				else
+					value = (int)((v-minValue)*scaleValue);
+				pixels[pixelsIndex+x] = (255 << 24)|(value << 16)|(value << 8)|value;
+			}
+		}
+		imageSource = new MemoryImageSource(width,height,pixels,0,width);
+		FITSMetrics.stop(FITSMetrics.TIMER_RENDER,startTime);
+		return imageSource;
+	}
+
+	/**
+	 * Create a new (mutable) FITSImage containing a copy of this view's pixels and metadata, for use with
+	 * the processing classes that take a FITSImage. Each of the copy's plate scales is the scale along that
+	 * display axis (getXPlateScale/getYPlateScale), negated if the axis runs the opposite way to the image
+	 * axis it maps to, so the copy's getPosition matches this view's. This also holds for views whose axes
+	 * are swapped, so their plate scales are never 0; but FITSImage can only vary RA along X, so the copy of
+	 * such a view has no field centre.
+	 * @return The new image.
+	 * @see #isAxisSwapped
+	 */
+	public FITSImage toFITSImage()
+	{
+		FITSImage image = null;
+		CelestialObject centre = null;
+		float dataArray[];
+
+		dataArray = new float[width*height];
+		for(int row = 0; row < height; row++)
+			copyRow(height-(row+1),dataArray,row*width);
+		image = new FITSImage(width,height,dataArray);
+		image.minPixelValue = minPixelValue;
+		image.maxPixelValue = maxPixelValue;
+		// FITSImage assumes the field centre is the centre pixel, which for a sub-region it may not be
+		centre = getPosition(width/2,height/2);
+		if((centre != null)&&(isAxisSwapped() == false))
+		{
+			image.fcRA = centre.getRA();
+			image.fcDec = centre.getDec();
+		}
+		// one of each pair is 0: the sign of the image axis this display axis maps to
+		image.xPlateScale = (xx+yx)*getXPlateScale();
+		image.yPlateScale = (xy+yy)*getYPlateScale();
+		image.objectName = objectName;
+		image.dateObs = getDateObs();
+		image.bitpix = bitpix;
+		image.bscale = bscale;
+		image.bzero = bzero;
+		image.blank = blank;
+		image.blankEnabled = blankEnabled;
+		return image;
+	}
+
+	/**
+	 * Copy a display row of this view into an array.
+	 * @param y The display row.
+	 * @param dst The array to copy into.
+	 * @param dstOffset The index in dst of the first pixel.
+	 */
+	private void copyRow(int y,float dst[],int dstOffset)
+	{
+		int index;
+
+		index = origin+(y*rowStride);
+		if(pixelStride == 1)
+		{
+			System.arraycopy(buffer,index,dst,dstOffset,width);
+			return;
+		}
+		for(int x = 0; x < width; x++)
+		{
+			dst[dstOffset+x] = buffer[index];
+			index += pixelStride;
+		}
+	}
+
+	/**
+	 * Return a string describing the snapshot.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return objectName+" "+getFCRA()+" "+getFCDec()+" X:"+width+" * "+getXPlateScale()+" Y:"+height+" * "+
+			getYPlateScale()+" "+getDateObs();
+	}
+}
@@ -0,0 +1,510 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSImageStacker.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class combines (stacks) a number of FITS images of the same dimensions, pixel by pixel, into
+ * a new FITSImage. This is used for creating master flats/biases and co-adds.
+ * The input frames are <b>NOT</b> loaded into memory. Instead, each input is read in strips of rows,
+ * so the memory used is roughly (number of threads) * (number of frames) * (strip height) * (width) floats,
+ * plus the output image. Strips are combined in parallel.
+ * Pixel values that are NaN (blank) are ignored when combining.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FITSImageStacker
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Combine mode: the output pixel is the mean of the input pixels.
+	 */
+	public final static int COMBINE_MEAN = 0;
+	/**
+	 * Combine mode: the output pixel is the median of the input pixels.
+	 */
+	public final static int COMBINE_MEDIAN = 1;
+	/**
+	 * Combine mode: the output pixel is the mean of the input pixels, after iteratively rejecting pixels
+	 * more than a number of standard deviations from the median.
+	 * @see #setSigmaClip
+	 */
+	public final static int COMBINE_SIGMA_CLIP = 2;
+	/**
+	 * Combine mode: the output pixel is the mean of the input pixels, after rejecting the lowest and
+	 * highest pixels.
+	 * @see #setMinMaxReject
+	 */
+	public final static int COMBINE_MIN_MAX = 3;
+	/**
+	 * The list of files to stack.
+	 */
+	protected List<File> fileList = new Vector<File>();
+	/**
+	 * How to combine the pixels.
+	 * @see #COMBINE_MEAN
+	 * @see #COMBINE_MEDIAN
+	 * @see #COMBINE_SIGMA_CLIP
+	 * @see #COMBINE_MIN_MAX
+	 */
+	protected int combineMode = COMBINE_MEDIAN;
+	/**
+	 * The number of rows read from each input frame at once.
+	 */
+	protected int stripHeight = 32;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * Sigma clipping: pixels less than median-(lowSigma*sigma) are rejected.
+	 */
+	protected double lowSigma = 3.0;
+	/**
+	 * Sigma clipping: pixels greater than median+(highSigma*sigma) are rejected.
+	 */
+	protected double highSigma = 3.0;
+	/**
+	 * Sigma clipping: the maximum number of rejection iterations.
+	 */
+	protected int sigmaClipIterations = 5;
+	/**
+	 * Min/max rejection: the number of lowest pixels to reject.
+	 */
+	protected int rejectLowCount = 1;
+	/**
+	 * Min/max rejection: the number of highest pixels to reject.
+	 */
+	protected int rejectHighCount = 1;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSImageStacker()
+	{
+		super();
+	}
+
+	/**
+	 * Add a file to the list of frames to stack.
+	 * @param filename The filename of a FITS image.
+	 * @see #fileList
+	 */
+	public void addFile(String filename)
+	{
+		fileList.add(new File(filename));
+	}
+
+	/**
+	 * Add a file to the list of frames to stack.
+	 * @param file A FITS image file.
+	 * @see #fileList
+	 */
+	public void addFile(File file)
+	{
+		fileList.add(file);
+	}
+
+	/**
+	 * Get the number of files to be stacked.
+	 * @return The number of files.
+	 * @see #fileList
+	 */
+	public int getFileCount()
+	{
+		return fileList.size();
+	}
+
+	/**
+	 * Set how the pixels are combined.
+	 * @param mode The combine mode.
+	 * @exception IllegalArgumentException Thrown if the mode is not legal.
+	 * @see #combineMode
+	 * @see #COMBINE_MEAN
+	 * @see #COMBINE_MEDIAN
+	 * @see #COMBINE_SIGMA_CLIP
+	 * @see #COMBINE_MIN_MAX
+	 */
+	public void setCombineMode(int mode) throws IllegalArgumentException
+	{
+		if((mode != COMBINE_MEAN)&&(mode != COMBINE_MEDIAN)&&(mode != COMBINE_SIGMA_CLIP)&&
+		   (mode != COMBINE_MIN_MAX))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setCombineMode:Illegal mode:"+mode);
+		}
+		combineMode = mode;
+	}
+
+	/**
+	 * Set the number of rows read from each input at once.
+	 * @param h The strip height, in rows, must be at least 1.
+	 * @exception IllegalArgumentException Thrown if h is less than 1.
+	 * @see #stripHeight
+	 */
+	public void setStripHeight(int h) throws IllegalArgumentException
+	{
+		if(h < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setStripHeight:Illegal strip height:"+h);
+		}
+		stripHeight = h;
+	}
+
+	/**
+	 * Set the number of threads used to combine strips.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Set the sigma clipping parameters, used when the combine mode is COMBINE_SIGMA_CLIP.
+	 * @param low Pixels less than median-(low*sigma) are rejected.
+	 * @param high Pixels greater than median+(high*sigma) are rejected.
+	 * @param iterations The maximum number of rejection iterations.
+	 * @exception IllegalArgumentException Thrown if low or high is not positive, or iterations is negative.
+	 * @see #lowSigma
+	 * @see #highSigma
+	 * @see #sigmaClipIterations
+	 * @see #COMBINE_SIGMA_CLIP
+	 */
+	public void setSigmaClip(double low,double high,int iterations) throws IllegalArgumentException
+	{
+		if(!(low > 0.0)||!(high > 0.0)||Double.isInfinite(low)||Double.isInfinite(high))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setSigmaClip:Illegal sigma limits:"+low+","+high);
+		}
+		if(iterations < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setSigmaClip:Illegal iteration count:"+iterations);
+		}
+		lowSigma = low;
+		highSigma = high;
+		sigmaClipIterations = iterations;
+	}
+
+	/**
+	 * Set the min/max rejection parameters, used when the combine mode is COMBINE_MIN_MAX.
+	 * @param nLow The number of lowest pixels to reject.
+	 * @param nHigh The number of highest pixels to reject.
+	 * @exception IllegalArgumentException Thrown if nLow or nHigh is negative.
+	 * @see #rejectLowCount
+	 * @see #rejectHighCount
+	 * @see #COMBINE_MIN_MAX
+	 */
+	public void setMinMaxReject(int nLow,int nHigh) throws IllegalArgumentException
+	{
+		if((nLow < 0)||(nHigh < 0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setMinMaxReject:Illegal reject counts:"+nLow+","+nHigh);
+		}
+		rejectLowCount = nLow;
+		rejectHighCount = nHigh;
+	}
+
+	/**
+	 * Stack the frames. All the files are opened (but not loaded), and checked to have the same dimensions.
+	 * The output image's field centre, plate scale, object name and date are taken from the first frame.
+	 * @return A new FITSImage containing the combined frame, with the min and max pixel values set.
+	 * @exception IOException Thrown if a file cannot be opened.
+	 * @exception FITSException Thrown if there are no files, the frames have different dimensions,
+	 *            or reading fails.
+	 * @see #fileList
+	 * @see #combineStrip
+	 */
+	public FITSImage stack() throws IOException,FITSException
+	{
+		final FITSRowReader readerList[];
+		final float outputArray[];
+		FITSImage image = null;
+		final int width,height;
+		int stripCount;
+
+		if(fileList.size() == 0)
+		{
+			throw new FITSException(this.getClass().getName()+":stack:No files to stack.");
+		}
+		readerList = new FITSRowReader[fileList.size()];
+		try
+		{
+			for(int i = 0; i < readerList.length; i++)
+			{
+				readerList[i] = new FITSRowReader();
+				readerList[i].open(fileList.get(i));
+				if((readerList[i].getWidth() != readerList[0].getWidth())||
+				   (readerList[i].getHeight() != readerList[0].getHeight()))
+				{
+					throw new FITSException(this.getClass().getName()+":stack:"+fileList.get(i)+
+						" has dimensions "+readerList[i].getWidth()+" x "+
+						readerList[i].getHeight()+" but "+fileList.get(0)+" has dimensions "+
+						readerList[0].getWidth()+" x "+readerList[0].getHeight()+".");
+				}
+			}
+			width = readerList[0].getWidth();
+			height = readerList[0].getHeight();
+			outputArray = new float[width*height];
+			stripCount = FITSParallel.getChunkCount(height,stripHeight);
+			FITSParallel.run(threadCount,stripCount,new FITSParallel.Task()
+			{
+				public void run(int index) throws Exception
+				{
+					combineStrip(readerList,width,height,index,outputArray);
+				}
+			});
+			image = new FITSImage(width,height,outputArray);
+			image.parseHeader(readerList[0].getHeader());
+		}
+		finally
+		{
+			for(int i = 0; i < readerList.length; i++)
+			{
+				if(readerList[i] != null)
+					readerList[i].close();
+			}
+		}
+		image.setMinMaxPixelValue();
+		return image;
+	}
+
+	/**
+	 * Read the specified strip from each input frame, and combine it into the output array.
+	 * @param readerList The list of opened inputs.
+	 * @param width The width of the frames.
+	 * @param height The height of the frames.
+	 * @param strip The strip index.
+	 * @param outputArray The output data array.
+	 * @exception FITSException Thrown if reading a strip fails.
+	 * @see #stripHeight
+	 * @see #combine
+	 */
+	protected void combineStrip(FITSRowReader readerList[],int width,int height,int strip,
+				    float outputArray[]) throws FITSException
+	{
+		float stripList[][];
+		float values[];
+		int startRow,rowCount,nValues,stripPixelCount,outputIndex;
+
+		startRow = strip*stripHeight;
+		rowCount = Math.min(stripHeight,height-startRow);
+		stripPixelCount = rowCount*width;
+		stripList = new float[readerList.length][];
+		for(int i = 0; i < readerList.length; i++)
+			stripList[i] = readerList[i].readRows(startRow,rowCount,null);
+		values = new float[readerList.length];
+		outputIndex = startRow*width;
+		for(int p = 0; p < stripPixelCount; p++)
+		{
+			nValues = 0;
+			for(int i = 0; i < stripList.length; i++)
+			{
+				if(Float.isNaN(stripList[i][p]) == false)
+					values[nValues++] = stripList[i][p];
+			}
+			outputArray[outputIndex+p] = combine(values,nValues);
+		}
+	}
+
+	/**
+	 * Combine a list of values, using the current combine mode.
+	 * @param values The values to combine. The array is used as scratch space, and may be reordered.
+	 * @param n The number of values in the array to use.
+	 * @return The combined value, or NaN if there are no values to combine.
+	 * @see #combineMode
+	 */
+	protected float combine(float values[],int n)
+	{
+		if(n == 0)
+			return Float.NaN;
+		switch(combineMode)
+		{
+			case COMBINE_MEAN:
+				return (float)mean(values,0,n);
+			case COMBINE_MEDIAN:
+				Arrays.sort(values,0,n);
+				return (float)median(values,0,n);
+			case COMBINE_SIGMA_CLIP:
+				return sigmaClip(values,n);
+			case COMBINE_MIN_MAX:
+				return minMaxReject(values,n);
+			default:
+				return Float.NaN;
+		}
+	}
+
+	/**
+	 * Sigma-clipped mean. The values are sorted, then values more than lowSigma/highSigma standard
+	 * deviations from the median are iteratively rejected, until none are rejected or the
+	 * maximum number of iterations is reached. As the values are sorted, the surviving values are always
+	 * a contiguous range.
+	 * @param values The values to combine. These are sorted.
+	 * @param n The number of values in the array to use.
+	 * @return The mean of the surviving values.
+	 * @see #lowSigma
+	 * @see #highSigma
+	 * @see #sigmaClipIterations
+	 */
+	protected float sigmaClip(float values[],int n)
+	{
+		double median,mean,sigma,sum,low,high;
+		int start,end,newStart,newEnd;
+
+		Arrays.sort(values,0,n);
+		start = 0;
+		end = n;
+		for(int iteration = 0; (iteration < sigmaClipIterations)&&((end-start) > 2); iteration++)
+		{
+			median = median(values,start,end);
+			mean = mean(values,start,end);
+			sum = 0.0;
+			for(int i = start; i < end; i++)
+				sum += (values[i]-mean)*(values[i]-mean);
+			sigma = Math.sqrt(sum/(end-start-1));
+			low = median-(lowSigma*sigma);
+			high = median+(highSigma*sigma);
+			newStart = start;
+			while((newStart < end)&&(values[newStart] < low))
+				newStart++;
+			newEnd = end;
+			while((newEnd > newStart)&&(values[newEnd-1] > high))
+				newEnd--;
+			if((newStart == start)&&(newEnd == end))
+				break;
+			start = newStart;
+			end = newEnd;
+		}
+		if(end <= start)
+			return Float.NaN;
+		return (float)mean(values,start,end);
+	}
+
+	/**
+	 * Min/max rejected mean. The values are sorted, and the rejectLowCount lowest and rejectHighCount
+	 * highest values are rejected. If this would leave no values, the median is returned instead.
+	 * @param values The values to combine. These are sorted.
+	 * @param n The number of values in the array to use.
+	 * @return The mean of the remaining values.
+	 * @see #rejectLowCount
+	 * @see #rejectHighCount
+	 */
+	protected float minMaxReject(float values[],int n)
+	{
+		Arrays.sort(values,0,n);
+		if((rejectLowCount+rejectHighCount) >= n)
+			return (float)median(values,0,n);
+		return (float)mean(values,rejectLowCount,n-rejectHighCount);
+	}
+
+	/**
+	 * Return the mean of a range of values.
+	 * @param values The values.
+	 * @param start The index of the first value.
+	 * @param end The index after the last value.
+	 * @return The mean.
+	 */
+	protected static double mean(float values[],int start,int end)
+	{
+		double sum;
+
+		sum = 0.0;
+		for(int i = start; i < end; i++)
+			sum += values[i];
+		return sum/(end-start);
+	}
+
+	/**
+	 * Return the median of a range of <b>sorted</b> values.
+	 * @param values The values, sorted.
+	 * @param start The index of the first value.
+	 * @param end The index after the last value.
+	 * @return The median.
+	 */
+	protected static double median(float values[],int start,int end)
+	{
+		int n,mid;
+
+		n = end-start;
+		mid = start+(n/2);
+		if((n % 2) == 1)
+			return values[mid];
+		return (values[mid-1]+values[mid])/2.0;
+	}
+
+	/**
+	 * Test main method.
+	 * @param args The command line arguments.
+	 */
+	public static void main(String args[])
+	{
+		FITSImageStacker stacker = null;
+		FITSImage image = null;
+
+		if(args.length < 2)
+		{
+			System.err.println("java org.estar.fits.FITSImageStacker <mean|median|sigma|minmax> "+
+					   "<fits filename> [<fits filename>...]");
+			System.exit(1);
+		}
+		stacker = new FITSImageStacker();
+		try
+		{
+			if(args[0].equals("mean"))
+				stacker.setCombineMode(COMBINE_MEAN);
+			else if(args[0].equals("median"))
+				stacker.setCombineMode(COMBINE_MEDIAN);
+			else if(args[0].equals("sigma"))
+				stacker.setCombineMode(COMBINE_SIGMA_CLIP);
+			else if(args[0].equals("minmax"))
+				stacker.setCombineMode(COMBINE_MIN_MAX);
+			else
+			{
+				System.err.println("FITSImageStacker:Illegal combine mode:"+args[0]);
+				System.exit(1);
+			}
+			for(int i = 1; i < args.length; i++)
+				stacker.addFile(args[i]);
+			image = stacker.stack();
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSImageStacker failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println(image.toString()+" min:"+image.getMinPixelValue()+" max:"+
+				   image.getMaxPixelValue());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,241 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSImageWriter.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * This class writes a loaded (or created) FITSImage to a FITS file or channel. By default the image is
+ * written with the BITPIX, BSCALE and BZERO it was loaded with, and the (non-structural) keywords
+ * of the header it was loaded with. For integer output, NaN pixels are written as a BLANK value: the one
+ * the image was loaded with if the BITPIX is unchanged, otherwise the default for the BITPIX. The data array is written directly from memory, with no intermediate copy.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSRowWriter
+ */
+public class FITSImageWriter
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The output BITPIX. If 0, the image's BITPIX is used.
+	 */
+	protected int bitpix = 0;
+	/**
+	 * Whether to use the output BSCALE/BZERO set by setScaling, rather than the image's.
+	 */
+	protected boolean overrideScaling = false;
+	/**
+	 * The output BSCALE, if overrideScaling is true.
+	 */
+	protected double bscale = 1.0;
+	/**
+	 * The output BZERO, if overrideScaling is true.
+	 */
+	protected double bzero = 0.0;
+	/**
+	 * Whether to write CHECKSUM and DATASUM keywords.
+	 */
+	protected boolean checksumEnabled = false;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSImageWriter()
+	{
+		super();
+	}
+
+	/**
+	 * Set the output BITPIX, overriding the image's.
+	 * @param b The BITPIX, one of 8,16,32,64,-32 or -64, or 0 to use the image's BITPIX.
+	 * @see #bitpix
+	 */
+	public void setBitpix(int b)
+	{
+		bitpix = b;
+	}
+
+	/**
+	 * Set the output scaling, overriding the image's.
+	 * @param scale The BSCALE.
+	 * @param zero The BZERO.
+	 * @see #bscale
+	 * @see #bzero
+	 * @see #overrideScaling
+	 */
+	public void setScaling(double scale,double zero)
+	{
+		bscale = scale;
+		bzero = zero;
+		overrideScaling = true;
+	}
+
+	/**
+	 * Set whether CHECKSUM and DATASUM keywords are written. The channel written to must be a FileChannel.
+	 * @param b true to write checksums.
+	 * @see #checksumEnabled
+	 * @see FITSRowWriter#setChecksumEnabled
+	 */
+	public void setChecksumEnabled(boolean b)
+	{
+		checksumEnabled = b;
+	}
+
+	/**
+	 * Write the image to a file.
+	 * @param image The image to write.
+	 * @param file The file to write to.
+	 * @exception IOException Thrown if writing fails.
+	 * @exception FITSException Thrown if the image has no data.
+	 * @see #write(FITSImage,java.nio.channels.WritableByteChannel)
+	 */
+	public void write(FITSImage image,File file) throws IOException,FITSException
+	{
+		FileOutputStream fos = null;
+
+		fos = new FileOutputStream(file);
+		try
+		{
+			write(image,fos.getChannel());
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	/**
+	 * Write the image to a channel. The channel is not closed.
+	 * @param image The image to write.
+	 * @param channel The channel to write to.
+	 * @exception IOException Thrown if writing fails.
+	 * @exception FITSException Thrown if the image has no data.
+	 * @see #createRowWriter
+	 */
+	public void write(FITSImage image,WritableByteChannel channel) throws IOException,FITSException
+	{
+		FITSRowWriter rowWriter = null;
+		float dataArray[];
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":write:Image has no data.");
+		}
+		rowWriter = createRowWriter(image);
+		rowWriter.open(channel,image.getWidth(),image.getHeight());
+		rowWriter.writeRows(dataArray,0,image.getHeight());
+		rowWriter.close();
+	}
+
+	/**
+	 * Create a row writer configured for the specified image.
+	 * @param image The image to be written.
+	 * @return A row writer, with the BITPIX, scaling, blank value and header set, but not opened.
+	 * @exception FITSException Thrown if the image's header cannot be created.
+	 * @see #bitpix
+	 * @see #overrideScaling
+	 * @see #getDefaultBlank
+	 * @see FITSImage#getFitsHeader
+	 */
+	public FITSRowWriter createRowWriter(FITSImage image) throws FITSException
+	{
+		FITSRowWriter rowWriter = null;
+		int outputBitpix;
+
+		rowWriter = new FITSRowWriter();
+		outputBitpix = (bitpix != 0) ? bitpix : image.getBitpix();
+		rowWriter.setBitpix(outputBitpix);
+		if(overrideScaling)
+			rowWriter.setScaling(bscale,bzero);
+		else if((image.getBScale() != 1.0)||(image.getBZero() != 0.0))
+			rowWriter.setScaling(image.getBScale(),image.getBZero());
+		if(outputBitpix > 0)
+		{
+			if(image.isBlankEnabled()&&(outputBitpix == image.getBitpix()))
+				rowWriter.setBlank(image.getBlank());
+			else
+				rowWriter.setBlank(getDefaultBlank(outputBitpix));
+		}
+		rowWriter.setHeader(image.getFitsHeader());
+		rowWriter.setChecksumEnabled(checksumEnabled);
+		return rowWriter;
+	}
+
+	/**
+	 * Get the BLANK value used for integer output when the image has no BLANK value for the BITPIX: the
+	 * most negative value of the type (255 for the unsigned BITPIX 8), which is the least likely to be real data.
+	 * @param b The output BITPIX, 8,16,32 or 64.
+	 * @return The BLANK value.
+	 */
+	public static long getDefaultBlank(int b)
+	{
+		switch(b)
+		{
+			case 8:
+				return 255L;
+			case 16:
+				return Short.MIN_VALUE;
+			case 32:
+				return Integer.MIN_VALUE;
+			default:
+				return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Test main method. Loads a FITS image, and writes it out again.
+	 * @param args The command line arguments.
+	 */
+	public static void main(String args[])
+	{
+		FITSImage image = null;
+		FITSImageWriter writer = null;
+
+		if((args.length != 2)&&(args.length != 3))
+		{
+			System.err.println("java org.estar.fits.FITSImageWriter <input fits filename> "+
+					   "<output fits filename> [<bitpix>]");
+			System.exit(1);
+		}
+		image = new FITSImage();
+		writer = new FITSImageWriter();
+		try
+		{
+			image.load(args[0]);
+			if(args.length == 3)
+				writer.setBitpix(Integer.parseInt(args[2]));
+			writer.write(image,new File(args[1]));
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSImageWriter failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
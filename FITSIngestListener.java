@@ -0,0 +1,49 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSIngestListener.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+
+/**
+ * Interface implemented by objects that want to receive frames from a FITSIngestPipeline.
+ * Methods are called on the pipeline's worker threads, so implementations should be thread safe, and
+ * should not take long, or they hold up the pipeline.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSIngestPipeline#addListener
+ */
+public interface FITSIngestListener
+{
+	/**
+	 * Called when a frame has passed through every stage of the pipeline.
+	 * @param frame The frame, with its header, image (with minimum/maximum set) and (if enabled) preview.
+	 */
+	public void frameIngested(FITSFrame frame);
+
+	/**
+	 * Called when a frame fails a stage, or is still incomplete after the maximum number of retries.
+	 * @param file The frame's file.
+	 * @param stage The stage that failed, one of the FITSIngestPipeline STAGE_ constants.
+	 * @param e The exception that caused the failure.
+	 */
+	public void frameFailed(File file,int stage,Exception e);
+}
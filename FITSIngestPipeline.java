@@ -0,0 +1,901 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSIngestPipeline.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class ingests FITS frames as they arrive in a directory. The directory is watched with a WatchService,
+ * and each new frame passes through four stages: header read, pixel load, statistics (minimum/maximum) and
+ * preview render. Each stage has its own worker threads and its own bounded queue. When a queue is full,
+ * the stage feeding it blocks, so a slow stage holds up the stages before it (back pressure) rather
+ * than letting frames (and their pixel data) pile up in memory.
+ * <p>
+ * Frames that are still being written are detected in the header stage: the header must be complete, and
+ * the file must be as long as its header says (header blocks plus NAXISn * |BITPIX|/8 bytes of data).
+ * Incomplete frames are retried after a delay, up to a maximum number of times.
+ * <p>
+ * Completed frames are passed to FITSIngestListener's. Per stage counts, throughput and latency histograms
+ * are kept, see getStageSummary.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSFrame
+ * @see FITSIngestListener
+ */
+public class FITSIngestPipeline
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The maximum number of ingested files remembered, to ignore repeated events for them.
+	 * @see #completedMap
+	 */
+	public final static int MAXIMUM_COMPLETED_COUNT = 65536;
+	/**
+	 * Stage index: read the frame header, checking the file is complete.
+	 */
+	public final static int STAGE_HEADER = 0;
+	/**
+	 * Stage index: load the pixel data.
+	 */
+	public final static int STAGE_LOAD = 1;
+	/**
+	 * Stage index: compute statistics (minimum/maximum pixel value).
+	 */
+	public final static int STAGE_STATS = 2;
+	/**
+	 * Stage index: render a preview image source.
+	 */
+	public final static int STAGE_RENDER = 3;
+	/**
+	 * The stage names, indexed by the STAGE_ constants.
+	 */
+	public final static String STAGE_NAME_LIST[] = {"header","load","stats","render"};
+	/**
+	 * The number of stages.
+	 */
+	public final static int STAGE_COUNT = STAGE_NAME_LIST.length;
+	/**
+	 * The directory to watch.
+	 */
+	protected File directory = null;
+	/**
+	 * Only files ending in one of these suffixes (case insensitive) are ingested.
+	 */
+	protected String suffixList[] = {".fits",".fit",".fts"};
+	/**
+	 * The number of worker threads of each stage.
+	 */
+	protected int threadCountList[] = {1,2,2,1};
+	/**
+	 * The capacity of each stage's input queue. The load, stats and render queues hold loaded images,
+	 * so are kept small.
+	 */
+	protected int queueCapacityList[] = {64,4,4,4};
+	/**
+	 * The maximum number of times an incomplete frame is retried.
+	 */
+	protected int maximumRetryCount = 20;
+	/**
+	 * The delay before an incomplete frame is retried, in milliseconds.
+	 */
+	protected long retryDelay = 500L;
+	/**
+	 * Whether to render previews. If false, the stats stage is the last stage.
+	 */
+	protected boolean renderEnabled = true;
+	/**
+	 * Whether to ingest frames already in the directory when the pipeline starts.
+	 */
+	protected boolean scanExisting = true;
+	/**
+	 * Whether the pipeline is running.
+	 */
+	protected volatile boolean running = false;
+	/**
+	 * The input queue of each stage.
+	 */
+	protected List<BlockingQueue<FITSFrame>> queueList = null;
+	/**
+	 * The worker threads of each stage.
+	 */
+	protected ExecutorService executorList[] = null;
+	/**
+	 * The executor used to re-queue incomplete frames after a delay.
+	 */
+	protected ScheduledExecutorService retryExecutor = null;
+	/**
+	 * The directory watch service.
+	 */
+	protected WatchService watchService = null;
+	/**
+	 * The thread taking events from the watch service.
+	 */
+	protected Thread watchThread = null;
+	/**
+	 * The files in the pipeline, used to ignore repeated events for a file being written.
+	 */
+	protected Set<File> pendingSet = null;
+	/**
+	 * The files ingested, mapped to their size and modification time when ingested, used to ignore later
+	 * events for a file that has not changed since (a late flush, or a touch). Holds at most
+	 * MAXIMUM_COMPLETED_COUNT files, the least recently ingested are forgotten first.
+	 * @see #getFileStamp
+	 */
+	protected Map<File,String> completedMap = null;
+	/**
+	 * The listeners.
+	 */
+	protected List<FITSIngestListener> listenerList = null;
+	/**
+	 * The latency of each stage.
+	 */
+	protected FITSMetricsHistogram latencyList[] = null;
+	/**
+	 * The number of frames each stage has completed.
+	 */
+	protected AtomicLongArray completedCountList = null;
+	/**
+	 * The number of frames that have failed in each stage.
+	 */
+	protected AtomicLongArray failedCountList = null;
+	/**
+	 * The number of times incomplete frames have been retried.
+	 */
+	protected AtomicLong retryCount = null;
+	/**
+	 * When the pipeline was started, System.nanoTime.
+	 */
+	protected long startTime = 0L;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSIngestPipeline()
+	{
+		super();
+		pendingSet = Collections.newSetFromMap(new ConcurrentHashMap<File,Boolean>());
+		completedMap = Collections.synchronizedMap(new LinkedHashMap<File,String>()
+		{
+			protected boolean removeEldestEntry(Map.Entry<File,String> eldest)
+			{
+				return size() > MAXIMUM_COMPLETED_COUNT;
+			}
+		});
+		listenerList = new CopyOnWriteArrayList<FITSIngestListener>();
+		latencyList = new FITSMetricsHistogram[STAGE_COUNT];
+		for(int i = 0; i < STAGE_COUNT; i++)
+			latencyList[i] = new FITSMetricsHistogram(STAGE_NAME_LIST[i]);
+		completedCountList = new AtomicLongArray(STAGE_COUNT);
+		failedCountList = new AtomicLongArray(STAGE_COUNT);
+		retryCount = new AtomicLong();
+	}
+
+	/**
+	 * Set the directory to watch.
+	 * @param d The directory.
+	 * @see #directory
+	 */
+	public void setDirectory(File d)
+	{
+		directory = d;
+	}
+
+	/**
+	 * Set the filename suffixes of the files to ingest.
+	 * @param list The suffixes, e.g. ".fits". Matching is case insensitive.
+	 * @see #suffixList
+	 */
+	public void setSuffixes(String list[])
+	{
+		suffixList = list.clone();
+	}
+
+	/**
+	 * Set the number of worker threads of a stage. This takes effect the next time the pipeline is started.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @param count The number of threads, at least 1.
+	 * @exception IllegalArgumentException Thrown if the count is less than 1.
+	 * @see #threadCountList
+	 */
+	public void setThreadCount(int stage,int count) throws IllegalArgumentException
+	{
+		if(count < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setThreadCount:Illegal count "+
+							   count+" for stage "+STAGE_NAME_LIST[stage]+".");
+		}
+		threadCountList[stage] = count;
+	}
+
+	/**
+	 * Set the capacity of a stage's input queue. This takes effect the next time the pipeline is started.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @param capacity The capacity, at least 1.
+	 * @exception IllegalArgumentException Thrown if the capacity is less than 1.
+	 * @see #queueCapacityList
+	 */
+	public void setQueueCapacity(int stage,int capacity) throws IllegalArgumentException
+	{
+		if(capacity < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setQueueCapacity:Illegal capacity "+
+							   capacity+" for stage "+STAGE_NAME_LIST[stage]+".");
+		}
+		queueCapacityList[stage] = capacity;
+	}
+
+	/**
+	 * Set how incomplete frames are retried.
+	 * @param count The maximum number of retries, 0 or more.
+	 * @param delay The delay before each retry, in milliseconds.
+	 * @exception IllegalArgumentException Thrown if the count or delay is negative.
+	 * @see #maximumRetryCount
+	 * @see #retryDelay
+	 */
+	public void setRetry(int count,long delay) throws IllegalArgumentException
+	{
+		if((count < 0)||(delay < 0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setRetry:Illegal count "+count+
+							   " or delay "+delay+".");
+		}
+		maximumRetryCount = count;
+		retryDelay = delay;
+	}
+
+	/**
+	 * Set whether previews are rendered.
+	 * @param b true to render previews, false to finish frames after the stats stage.
+	 * @see #renderEnabled
+	 */
+	public void setRenderEnabled(boolean b)
+	{
+		renderEnabled = b;
+	}
+
+	/**
+	 * Set whether frames already in the directory are ingested when the pipeline starts.
+	 * @param b true to ingest existing frames.
+	 * @see #scanExisting
+	 */
+	public void setScanExisting(boolean b)
+	{
+		scanExisting = b;
+	}
+
+	/**
+	 * Add a listener.
+	 * @param l The listener.
+	 * @see #listenerList
+	 */
+	public void addListener(FITSIngestListener l)
+	{
+		listenerList.add(l);
+	}
+
+	/**
+	 * Remove a listener.
+	 * @param l The listener.
+	 * @see #listenerList
+	 */
+	public void removeListener(FITSIngestListener l)
+	{
+		listenerList.remove(l);
+	}
+
+	/**
+	 * Start the pipeline: create the stage queues and workers, start watching the directory,
+	 * and (if scanExisting is set) submit the frames already in the directory.
+	 * @exception IOException Thrown if the directory cannot be watched.
+	 * @exception FITSException Thrown if no directory has been set, or the pipeline is already running.
+	 * @see #runStage
+	 * @see #watch
+	 */
+	public synchronized void start() throws IOException,FITSException
+	{
+		if(running)
+		{
+			throw new FITSException(this.getClass().getName()+":start:Pipeline already running.");
+		}
+		if((directory == null)||(directory.isDirectory() == false))
+		{
+			throw new FITSException(this.getClass().getName()+":start:Not a directory:"+directory);
+		}
+		queueList = new Vector<BlockingQueue<FITSFrame>>();
+		for(int i = 0; i < STAGE_COUNT; i++)
+			queueList.add(new ArrayBlockingQueue<FITSFrame>(queueCapacityList[i]));
+		watchService = FileSystems.getDefault().newWatchService();
+		directory.toPath().register(watchService,StandardWatchEventKinds.ENTRY_CREATE,
+					    StandardWatchEventKinds.ENTRY_MODIFY);
+		running = true;
+		startTime = System.nanoTime();
+		retryExecutor = Executors.newSingleThreadScheduledExecutor(new FITSParallel.DaemonThreadFactory(
+						"org.estar.fits.FITSIngestPipeline:retry",Thread.NORM_PRIORITY));
+		executorList = new ExecutorService[STAGE_COUNT];
+		for(int i = 0; i < STAGE_COUNT; i++)
+		{
+			final int stage = i;
+
+			executorList[i] = Executors.newFixedThreadPool(threadCountList[i],
+					new FITSParallel.DaemonThreadFactory("org.estar.fits.FITSIngestPipeline:"+
+									     STAGE_NAME_LIST[i],Thread.NORM_PRIORITY));
+			for(int j = 0; j < threadCountList[i]; j++)
+			{
+				executorList[i].execute(new Runnable()
+				{
+					public void run()
+					{
+						runStage(stage);
+					}
+				});
+			}
+		}
+		watchThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				watch();
+			}
+		},"org.estar.fits.FITSIngestPipeline:watch");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Stop the pipeline. Frames in the queues are discarded.
+	 * @exception IOException Thrown if closing the watch service fails.
+	 */
+	public synchronized void stop() throws IOException
+	{
+		if(running == false)
+			return;
+		running = false;
+		watchService.close();
+		watchThread.interrupt();
+		retryExecutor.shutdownNow();
+		for(int i = 0; i < STAGE_COUNT; i++)
+			executorList[i].shutdownNow();
+		for(int i = 0; i < STAGE_COUNT; i++)
+			queueList.get(i).clear();
+		pendingSet.clear();
+	}
+
+	/**
+	 * Get whether the pipeline is running.
+	 * @return true if running.
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Submit a file to the pipeline. Files that do not have a FITS suffix, are already in the pipeline, or
+	 * have already been ingested and not changed since, are ignored. If the header stage queue is full, this blocks until there is room.
+	 * @param file The file.
+	 * @return true if the file was submitted, false if it was ignored.
+	 * @exception InterruptedException Thrown if interrupted while waiting for room in the queue.
+	 * @see #isFITSFile
+	 * @see #pendingSet
+	 * @see #completedMap
+	 */
+	public boolean submit(File file) throws InterruptedException
+	{
+		String stamp = null;
+
+		if((running == false)||(isFITSFile(file) == false))
+			return false;
+		if(pendingSet.add(file) == false)
+			return false;
+		stamp = completedMap.get(file);
+		if((stamp != null)&&stamp.equals(getFileStamp(file)))
+		{
+			pendingSet.remove(file);
+			return false;
+		}
+		queueList.get(STAGE_HEADER).put(new FITSFrame(file));
+		return true;
+	}
+
+	/**
+	 * Get the number of frames a stage has completed.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The count.
+	 */
+	public long getCompletedCount(int stage)
+	{
+		return completedCountList.get(stage);
+	}
+
+	/**
+	 * Get the number of frames that have failed in a stage.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The count.
+	 */
+	public long getFailedCount(int stage)
+	{
+		return failedCountList.get(stage);
+	}
+
+	/**
+	 * Get the number of times incomplete frames have been retried.
+	 * @return The count.
+	 */
+	public long getRetryCount()
+	{
+		return retryCount.get();
+	}
+
+	/**
+	 * Get the number of frames waiting in a stage's queue.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The queue length, or 0 if the pipeline has not been started.
+	 */
+	public int getQueueLength(int stage)
+	{
+		if(queueList == null)
+			return 0;
+		return queueList.get(stage).size();
+	}
+
+	/**
+	 * Get the latency histogram of a stage.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The histogram.
+	 */
+	public FITSMetricsHistogram getLatencyHistogram(int stage)
+	{
+		return latencyList[stage];
+	}
+
+	/**
+	 * Get the throughput of a stage since the pipeline was started.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The number of frames completed per second.
+	 */
+	public double getThroughput(int stage)
+	{
+		double seconds;
+
+		if(startTime == 0L)
+			return 0.0;
+		seconds = ((double)(System.nanoTime()-startTime))/1.0e9;
+		if(seconds <= 0.0)
+			return 0.0;
+		return ((double)completedCountList.get(stage))/seconds;
+	}
+
+	/**
+	 * Get a summary of a stage: counts, queue length, throughput and latency.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The summary string.
+	 */
+	public String getStageSummary(int stage)
+	{
+		return STAGE_NAME_LIST[stage]+": completed="+getCompletedCount(stage)+" failed="+getFailedCount(stage)+
+			" queued="+getQueueLength(stage)+" throughput="+getThroughput(stage)+"/s "+
+			latencyList[stage].toString();
+	}
+
+	/**
+	 * Return a summary of every stage.
+	 * @return A multi-line summary string.
+	 * @see #getStageSummary
+	 */
+	public String toString()
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append(this.getClass().getName()+": "+directory+" running="+running+" retries="+getRetryCount()+"\n");
+		for(int i = 0; i < STAGE_COUNT; i++)
+			sb.append(getStageSummary(i)+"\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Get whether a file has one of the FITS suffixes.
+	 * @param file The file.
+	 * @return true if the filename ends with one of the suffixes.
+	 * @see #suffixList
+	 */
+	protected boolean isFITSFile(File file)
+	{
+		String name = null;
+
+		name = file.getName().toLowerCase();
+		for(int i = 0; i < suffixList.length; i++)
+		{
+			if(name.endsWith(suffixList[i].toLowerCase()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The watch thread. Existing frames are submitted (if scanExisting is set), then events are taken from
+	 * the watch service, and the created or modified files submitted. If events overflow, the directory is
+	 * rescanned.
+	 * @see #scan
+	 * @see #submit
+	 */
+	protected void watch()
+	{
+		WatchKey key = null;
+		Path path = null;
+
+		try
+		{
+			if(scanExisting)
+				scan();
+			while(running)
+			{
+				key = watchService.take();
+				for(WatchEvent<?> event : key.pollEvents())
+				{
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+						scan();
+					else
+					{
+						path = (Path)(event.context());
+						submit(new File(directory,path.toString()));
+					}
+				}
+				key.reset();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// stopped
+		}
+		catch(ClosedWatchServiceException e)
+		{
+			// stopped
+		}
+	}
+
+	/**
+	 * Submit every FITS file in the directory, in name order.
+	 * @exception InterruptedException Thrown if interrupted while waiting for room in the queue.
+	 */
+	protected void scan() throws InterruptedException
+	{
+		File fileList[];
+
+		fileList = directory.listFiles();
+		if(fileList == null)
+			return;
+		Arrays.sort(fileList);
+		for(int i = 0; i < fileList.length; i++)
+		{
+			if(fileList[i].isFile())
+				submit(fileList[i]);
+		}
+	}
+
+	/**
+	 * A stage worker thread. Frames are taken from the stage's queue, processed, and put on the next stage's
+	 * queue (blocking if it is full), or passed to the listeners if this is the last stage. Anything thrown
+	 * while processing a frame (including an Error) fails that frame. If anything else escapes, the worker is
+	 * replaced, so the stage keeps its number of threads.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @see #process
+	 * @see #complete
+	 */
+	protected void runStage(final int stage)
+	{
+		FITSFrame frame = null;
+		long stageStartTime;
+		int nextStage;
+
+		try
+		{
+			while(running)
+			{
+				frame = queueList.get(stage).take();
+				stageStartTime = System.nanoTime();
+				try
+				{
+					if(process(stage,frame) == false)
+					{
+						retry(frame);
+						continue;
+					}
+				}
+				catch(Exception e)
+				{
+					failedCountList.incrementAndGet(stage);
+					fail(frame,stage,e);
+					continue;
+				}
+				catch(Throwable t)
+				{
+					failedCountList.incrementAndGet(stage);
+					fail(frame,stage,new FITSException(this.getClass().getName()+":runStage:"+
+									   STAGE_NAME_LIST[stage]+" failed:"+t));
+					continue;
+				}
+				latencyList[stage].record(System.nanoTime()-stageStartTime);
+				completedCountList.incrementAndGet(stage);
+				nextStage = getNextStage(stage);
+				if(nextStage < 0)
+					complete(frame);
+				else
+					queueList.get(nextStage).put(frame);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// stopped
+		}
+		catch(Throwable t)
+		{
+			if(frame != null)
+				pendingSet.remove(frame.getFile());
+			if(running)
+			{
+				try
+				{
+					executorList[stage].execute(new Runnable()
+					{
+						public void run()
+						{
+							runStage(stage);
+						}
+					});
+				}
+				catch(RejectedExecutionException e)
+				{
+					// stopped
+				}
+			}
+		}
+	}
+
+	/**
+	 * Complete a frame: remember its size and modification time, remove it from the pipeline and pass it to
+	 * the listeners. A listener that throws does not stop the others being called.
+	 * @param frame The frame.
+	 * @see #completedMap
+	 */
+	protected void complete(FITSFrame frame)
+	{
+		completedMap.put(frame.getFile(),getFileStamp(frame.getFile()));
+		pendingSet.remove(frame.getFile());
+		for(FITSIngestListener listener : listenerList)
+		{
+			try
+			{
+				listener.frameIngested(frame);
+			}
+			catch(RuntimeException e)
+			{
+				// a failing listener must not stop the others, or the stage
+			}
+		}
+	}
+
+	/**
+	 * Get a stamp of a file's size and modification time, to tell whether it has changed.
+	 * @param file The file.
+	 * @return The stamp.
+	 */
+	protected static String getFileStamp(File file)
+	{
+		return file.length()+":"+file.lastModified();
+	}
+
+	/**
+	 * Process a frame through a stage.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @param frame The frame.
+	 * @return true if the stage completed, false if the frame is incomplete and should be retried.
+	 * @exception Exception Thrown if the stage fails.
+	 * @see #readHeader
+	 */
+	protected boolean process(int stage,FITSFrame frame) throws Exception
+	{
+		switch(stage)
+		{
+			case STAGE_HEADER:
+				return readHeader(frame);
+			case STAGE_LOAD:
+				frame.image = new FITSImage();
+				// the header stage has already read and parsed the header
+				frame.image.load(frame.getFile().getPath(),frame.header.getHeaderCards());
+				return true;
+			case STAGE_STATS:
+				frame.image.setMinMaxPixelValue();
+				return true;
+			case STAGE_RENDER:
+				frame.preview = frame.image.createImageSource();
+				return true;
+			default:
+				throw new FITSException(this.getClass().getName()+":process:Illegal stage:"+stage);
+		}
+	}
+
+	/**
+	 * Read a frame's header, and check the file is complete. The file is incomplete if the header cannot be
+	 * read to the END card, or the file is shorter than the header blocks plus the data size
+	 * (NAXIS1 * ... * NAXISn * |BITPIX|/8, padded to whole blocks) of the primary HDU.
+	 * @param frame The frame.
+	 * @return true if the header was read and the file is complete, false if it is incomplete.
+	 */
+	protected boolean readHeader(FITSFrame frame)
+	{
+		FITSHeaderLoader header = null;
+		FITSHeaderCards cards = null;
+		long expectedLength;
+
+		header = new FITSHeaderLoader();
+		try
+		{
+			header.load(frame.getFile());
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		catch(FITSException e)
+		{
+			// a file that has only just been created may not have a complete first card yet
+			return false;
+		}
+		cards = header.getHeaderCards();
+		expectedLength = (((long)cards.getBlockCount())+cards.getDataBlockCount())*FITSCard.BLOCK_LENGTH;
+		if(frame.getFile().length() < expectedLength)
+			return false;
+		frame.header = header;
+		return true;
+	}
+
+	/**
+	 * Retry an incomplete frame after the retry delay, or fail it if it has been retried the maximum
+	 * number of times.
+	 * @param frame The frame.
+	 * @see #retryDelay
+	 * @see #maximumRetryCount
+	 */
+	protected void retry(final FITSFrame frame)
+	{
+		if(frame.retryCount >= maximumRetryCount)
+		{
+			failedCountList.incrementAndGet(STAGE_HEADER);
+			fail(frame,STAGE_HEADER,new FITSException(this.getClass().getName()+":retry:"+frame.getFile()+
+								   " still incomplete after "+frame.retryCount+" retries."));
+			return;
+		}
+		frame.retryCount++;
+		retryCount.incrementAndGet();
+		try
+		{
+			retryExecutor.schedule(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						queueList.get(STAGE_HEADER).put(frame);
+					}
+					catch(InterruptedException e)
+					{
+						// stopped
+					}
+				}
+			},retryDelay,TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException e)
+		{
+			// stopped
+		}
+	}
+
+	/**
+	 * Fail a frame: remove it from the pipeline and tell the listeners.
+	 * @param frame The frame.
+	 * @param stage The stage that failed.
+	 * @param e The cause of the failure.
+	 */
+	protected void fail(FITSFrame frame,int stage,Exception e)
+	{
+		pendingSet.remove(frame.getFile());
+		for(FITSIngestListener listener : listenerList)
+		{
+			try
+			{
+				listener.frameFailed(frame.getFile(),stage,e);
+			}
+			catch(RuntimeException le)
+			{
+				// a failing listener must not stop the others, or the stage
+			}
+		}
+	}
+
+	/**
+	 * Get the stage after a stage.
+	 * @param stage The stage, one of the STAGE_ constants.
+	 * @return The next stage, or -1 if this is the last stage.
+	 * @see #renderEnabled
+	 */
+	protected int getNextStage(int stage)
+	{
+		if((stage == STAGE_STATS)&&(renderEnabled == false))
+			return -1;
+		if(stage == STAGE_RENDER)
+			return -1;
+		return stage+1;
+	}
+
+	/**
+	 * Test main method. Watches a directory, and prints each frame as it is ingested, and the stage summary.
+	 * @param args The command line arguments.
+	 */
+	public static void main(String args[])
+	{
+		FITSIngestPipeline pipeline = null;
+
+		if(args.length != 1)
+		{
+			System.err.println("java org.estar.fits.FITSIngestPipeline <directory>");
+			System.exit(1);
+		}
+		pipeline = new FITSIngestPipeline();
+		pipeline.setDirectory(new File(args[0]));
+		pipeline.addListener(new FITSIngestListener()
+		{
+			public void frameIngested(FITSFrame frame)
+			{
+				System.out.println("Ingested:"+frame+" min="+frame.getImage().getMinPixelValue()+
+						   " max="+frame.getImage().getMaxPixelValue());
+			}
+
+			public void frameFailed(File file,int stage,Exception e)
+			{
+				System.err.println("Failed:"+file+" in stage "+STAGE_NAME_LIST[stage]+":"+e);
+			}
+		});
+		try
+		{
+			pipeline.start();
+			while(true)
+			{
+				Thread.sleep(10000);
+				System.out.println(pipeline);
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSIngestPipeline failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSInternPool.java
+// $Header$
+package org.estar.fits;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded, concurrent intern pool. intern returns a canonical instance equal to its argument, so
+ * many loaded headers can share one copy of each keyword name and repeated value (TELESCOP, INSTRUME,
+ * FILTER, OBSERVER, comments...), rather than each holding their own.
+ * <p>
+ * The pool is bounded: once it holds maximumSize entries, new values are returned as is (not pooled), and
+ * counted as rejected. Values already in the pool continue to be shared. Unlike String.intern, the pool
+ * can be cleared, sized, and reports its hit rate.
+ * <p>
+ * A shared pool of strings, used by header parsing and loading, is returned by getStringPool.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSHeaderCards
+ */
+public class FITSInternPool<T>
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The default maximum number of entries.
+	 */
+	public final static int DEFAULT_MAXIMUM_SIZE = 65536;
+	/**
+	 * The system property that sets the maximum size of the shared string pool.
+	 */
+	public final static String STRING_POOL_SIZE_PROPERTY = "org.estar.fits.stringPoolSize";
+	/**
+	 * The shared string pool.
+	 */
+	private static FITSInternPool<String> stringPool =
+		new FITSInternPool<String>(Integer.getInteger(STRING_POOL_SIZE_PROPERTY,DEFAULT_MAXIMUM_SIZE).intValue());
+	/**
+	 * The pooled values, each mapped to itself.
+	 */
+	protected ConcurrentHashMap<T,T> map = null;
+	/**
+	 * The maximum number of entries.
+	 */
+	protected volatile int maximumSize = DEFAULT_MAXIMUM_SIZE;
+	/**
+	 * The number of entries. Kept separately, as ConcurrentHashMap.size is not constant time.
+	 */
+	protected AtomicInteger size = null;
+	/**
+	 * The number of intern calls that returned a pooled value.
+	 */
+	protected AtomicLong hitCount = null;
+	/**
+	 * The number of intern calls that added a value to the pool.
+	 */
+	protected AtomicLong missCount = null;
+	/**
+	 * The number of intern calls that could not add a value, as the pool was full.
+	 */
+	protected AtomicLong rejectedCount = null;
+
+	/**
+	 * Constructor.
+	 * @param max The maximum number of entries.
+	 * @see #setMaximumSize
+	 */
+	public FITSInternPool(int max)
+	{
+		super();
+		map = new ConcurrentHashMap<T,T>();
+		size = new AtomicInteger();
+		hitCount = new AtomicLong();
+		missCount = new AtomicLong();
+		rejectedCount = new AtomicLong();
+		setMaximumSize(max);
+	}
+
+	/**
+	 * Get the shared string pool, used for keyword names and low cardinality values by header parsing and
+	 * loading. Its maximum size defaults to DEFAULT_MAXIMUM_SIZE, or can be set with the system property
+	 * org.estar.fits.stringPoolSize.
+	 * @return The pool.
+	 * @see #STRING_POOL_SIZE_PROPERTY
+	 */
+	public static FITSInternPool<String> getStringPool()
+	{
+		return stringPool;
+	}
+
+	/**
+	 * Return the canonical instance of a value.
+	 * @param value The value.
+	 * @return The pooled instance equal to value, or value itself if it is null, was not pooled and has been
+	 *         added, or could not be added as the pool is full.
+	 */
+	public T intern(T value)
+	{
+		T pooledValue = null;
+
+		if(value == null)
+			return null;
+		pooledValue = map.get(value);
+		if(pooledValue != null)
+		{
+			hitCount.incrementAndGet();
+			return pooledValue;
+		}
+		if(size.get() >= maximumSize)
+		{
+			rejectedCount.incrementAndGet();
+			return value;
+		}
+		pooledValue = map.putIfAbsent(value,value);
+		if(pooledValue != null)
+		{
+			hitCount.incrementAndGet();
+			return pooledValue;
+		}
+		size.incrementAndGet();
+		missCount.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * Set the maximum number of entries. Reducing the size does not remove existing entries, call clear to
+	 * do that.
+	 * @param max The maximum, 0 or more.
+	 * @exception IllegalArgumentException Thrown if max is negative.
+	 * @see #maximumSize
+	 */
+	public void setMaximumSize(int max) throws IllegalArgumentException
+	{
+		if(max < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setMaximumSize:Illegal size:"+max);
+		}
+		maximumSize = max;
+	}
+
+	/**
+	 * Get the maximum number of entries.
+	 * @return The maximum.
+	 * @see #maximumSize
+	 */
+	public int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * Get the number of entries.
+	 * @return The size.
+	 * @see #size
+	 */
+	public int getSize()
+	{
+		return size.get();
+	}
+
+	/**
+	 * Get the number of intern calls that returned a pooled value.
+	 * @return The hit count.
+	 */
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	/**
+	 * Get the number of intern calls that added a value to the pool.
+	 * @return The miss count.
+	 */
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	/**
+	 * Get the number of intern calls that could not add a value, as the pool was full.
+	 * @return The rejected count.
+	 */
+	public long getRejectedCount()
+	{
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Get the fraction of intern calls that returned a pooled value.
+	 * @return The hit rate, between 0 and 1, or 0 if intern has not been called.
+	 */
+	public double getHitRate()
+	{
+		long hits,total;
+
+		hits = hitCount.get();
+		total = hits+missCount.get()+rejectedCount.get();
+		if(total == 0)
+			return 0.0;
+		return ((double)hits)/((double)total);
+	}
+
+	/**
+	 * Remove all the entries, and reset the counts. Values already returned remain valid, but will no
+	 * longer be shared with values interned after the clear.
+	 */
+	public void clear()
+	{
+		map.clear();
+		size.set(0);
+		hitCount.set(0);
+		missCount.set(0);
+		rejectedCount.set(0);
+	}
+
+	/**
+	 * Return a summary of the pool.
+	 * @return The summary string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": size="+getSize()+"/"+maximumSize+" hits="+getHitCount()+
+			" misses="+getMissCount()+" rejected="+getRejectedCount()+" hitRate="+getHitRate();
+	}
+}
@@ -0,0 +1,637 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSLightCurveExtractor.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.estar.astrometry.*;
+
+/**
+ * Extracts light curves: aperture photometry of a fixed list of sky positions, on every frame of a sequence.
+ * Frames are not loaded: the header of each frame is read, the targets are mapped to pixels with the same
+ * linear mapping from FCRA/FCDEC and XPS/YPS as FITSImage.getPosition, and only a stamp around each target
+ * (big enough for the aperture and sky annulus) is read and decoded, with positional reads. Stamps are measured
+ * as FITSPhotometry measures a loaded image.
+ * <p>
+ * Frames are measured in parallel, but reported to a FITSLightCurveListener (or written as a table) one at a
+ * time, in order of DATE-OBS. At most windowSize frames are in progress or waiting to be reported at once,
+ * so memory use does not grow with the number of frames; only the frame order (a date per frame, from a
+ * first pass over the headers) does.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSLightCurveListener
+ * @see FITSPhotometry
+ */
+public class FITSLightCurveExtractor
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The RAs of the targets, in degrees.
+	 */
+	protected double targetRA[] = null;
+	/**
+	 * The declinations of the targets, in degrees.
+	 */
+	protected double targetDec[] = null;
+	/**
+	 * The aperture radius, in pixels.
+	 */
+	protected double apertureRadius = 5.0;
+	/**
+	 * The photometry used to measure each stamp, which holds the sky annulus and gain.
+	 */
+	protected FITSPhotometry photometry = null;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * The maximum number of frames in progress or waiting to be reported. If less than 1, twice the
+	 * number of threads is used.
+	 */
+	protected int windowSize = 0;
+	/**
+	 * Whether frames are reported in order of DATE-OBS (true), or in the order they are given (false).
+	 */
+	protected boolean sortByDate = true;
+
+	/**
+	 * Constructor. The arrays are copied.
+	 * @param ra The RAs of the targets, in degrees.
+	 * @param dec The declinations of the targets, in degrees.
+	 * @exception FITSException Thrown if the array lengths differ.
+	 */
+	public FITSLightCurveExtractor(double ra[],double dec[]) throws FITSException
+	{
+		super();
+		if(ra.length != dec.length)
+		{
+			throw new FITSException(this.getClass().getName()+":Array lengths differ:ra:"+ra.length+
+						":dec:"+dec.length);
+		}
+		targetRA = ra.clone();
+		targetDec = dec.clone();
+		photometry = new FITSPhotometry();
+		photometry.setThreadCount(1);
+	}
+
+	/**
+	 * Get the number of targets.
+	 * @return The number of targets.
+	 */
+	public int getTargetCount()
+	{
+		return targetRA.length;
+	}
+
+	/**
+	 * Set the aperture radius.
+	 * @param r The radius, in pixels.
+	 * @exception IllegalArgumentException Thrown if the radius is not positive.
+	 * @see #apertureRadius
+	 */
+	public void setApertureRadius(double r) throws IllegalArgumentException
+	{
+		if(r <= 0.0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setApertureRadius:Illegal radius:"+
+							   r);
+		}
+		apertureRadius = r;
+	}
+
+	/**
+	 * Set the sky annulus.
+	 * @param inner The inner radius of the sky annulus, in pixels.
+	 * @param outer The outer radius of the sky annulus, in pixels.
+	 * @exception IllegalArgumentException Thrown if the outer radius is not greater than the inner radius.
+	 * @see FITSPhotometry#setSkyAnnulus
+	 */
+	public void setSkyAnnulus(double inner,double outer) throws IllegalArgumentException
+	{
+		photometry.setSkyAnnulus(inner,outer);
+	}
+
+	/**
+	 * Set the detector gain.
+	 * @param g The gain, in electrons per ADU.
+	 * @see FITSPhotometry#setGain
+	 */
+	public void setGain(double g)
+	{
+		photometry.setGain(g);
+	}
+
+	/**
+	 * Set the number of threads used, i.e. the number of frames measured at once.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Set the maximum number of frames in progress or waiting to be reported. A bigger window lets fast
+	 * frames get further ahead of a slow one.
+	 * @param n The window size. If less than 1, twice the number of threads is used.
+	 * @see #windowSize
+	 */
+	public void setWindowSize(int n)
+	{
+		windowSize = n;
+	}
+
+	/**
+	 * Set whether frames are reported in order of DATE-OBS. Sorting needs a first pass reading the header of
+	 * every frame; turn it off if the frames are already in time order.
+	 * @param b true to sort by DATE-OBS (frames without DATE-OBS last), false to keep the given order.
+	 * @see #sortByDate
+	 */
+	public void setSortByDate(boolean b)
+	{
+		sortByDate = b;
+	}
+
+	/**
+	 * Measure the targets on a sequence of frames, reporting each frame to the listener as it is completed,
+	 * in order. Frames that fail are reported to the listener, and extraction continues.
+	 * @param frameList The frame files.
+	 * @param listener The listener to report to. It is called on this thread.
+	 * @return The number of frames measured successfully.
+	 * @exception FITSException Thrown if the header pass fails, or this thread is interrupted.
+	 * @see #getFrameOrder
+	 * @see #measureFrame
+	 */
+	public int extract(final List<File> frameList,FITSLightCurveListener listener) throws FITSException
+	{
+		ExecutorService executor = null;
+		LinkedList<Future<Measurement>> futureList = null;
+		Measurement measurement = null;
+		int order[];
+		int nThreads,window,next,measuredCount;
+
+		order = getFrameOrder(frameList);
+		nThreads = (threadCount < 1) ? FITSParallel.getDefaultThreadCount() : threadCount;
+		window = (windowSize < 1) ? (2*nThreads) : windowSize;
+		executor = Executors.newFixedThreadPool(nThreads,new FITSParallel.DaemonThreadFactory(
+								this.getClass().getName(),Thread.NORM_PRIORITY));
+		futureList = new LinkedList<Future<Measurement>>();
+		next = 0;
+		measuredCount = 0;
+		try
+		{
+			while((next < order.length)&&(futureList.size() < window))
+				futureList.add(submit(executor,frameList.get(order[next++])));
+			while(futureList.size() > 0)
+			{
+				measurement = futureList.removeFirst().get();
+				// keep the workers busy while the listener handles this frame
+				if(next < order.length)
+					futureList.add(submit(executor,frameList.get(order[next++])));
+				if(measurement.exception != null)
+					listener.frameFailed(measurement.file,measurement.exception);
+				else
+				{
+					listener.frameMeasured(measuredCount,measurement.file,measurement.dateObs,
+							       measurement.result);
+					measuredCount++;
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new FITSException(this.getClass().getName()+":extract:Interrupted.",e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new FITSException(this.getClass().getName()+":extract:Frame failed:"+e.getCause(),e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return measuredCount;
+	}
+
+	/**
+	 * Measure the targets on a sequence of frames, writing a tab separated table with a line per frame:
+	 * DATE-OBS (ISO 8601, UTC), the filename, then the flux, flux error and flags of each target. Each line
+	 * is written as its frame is completed. Frames that fail are written as comment lines, starting with '#'.
+	 * @param frameList The frame files.
+	 * @param writer The writer to write the table to. It is flushed, not closed.
+	 * @return The number of frames measured successfully.
+	 * @exception FITSException Thrown if the header pass fails, or this thread is interrupted.
+	 * @exception IOException Thrown if writing fails.
+	 * @see #extract(java.util.List,org.estar.fits.FITSLightCurveListener)
+	 */
+	public int extract(List<File> frameList,Writer writer) throws FITSException,IOException
+	{
+		final PrintWriter printWriter;
+		final DateFormat dateFormat;
+		int measuredCount;
+
+		printWriter = new PrintWriter(writer);
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		printWriter.print("# DATE-OBS\tFILE");
+		for(int i = 0; i < targetRA.length; i++)
+			printWriter.print("\tFLUX"+i+"\tERROR"+i+"\tFLAGS"+i);
+		printWriter.println();
+		measuredCount = extract(frameList,new FITSLightCurveListener()
+		{
+			public void frameMeasured(int index,File file,Date dateObs,FITSPhotometryResult result)
+			{
+				printWriter.print((dateObs != null) ? dateFormat.format(dateObs) : "-");
+				printWriter.print("\t"+file.getPath());
+				for(int i = 0; i < result.getCount(); i++)
+				{
+					printWriter.print("\t"+result.flux[i]+"\t"+result.fluxError[i]+"\t"+
+							  result.flags[i]);
+				}
+				printWriter.println();
+			}
+
+			public void frameFailed(File file,Exception e)
+			{
+				printWriter.println("# "+file.getPath()+" failed: "+e);
+			}
+		});
+		printWriter.flush();
+		if(printWriter.checkError())
+		{
+			throw new IOException(this.getClass().getName()+":extract:Writing light curve failed.");
+		}
+		return measuredCount;
+	}
+
+	/**
+	 * Measure the targets on one frame.
+	 * @param file The frame's file.
+	 * @return The photometry of the targets, indexed as the target list. Targets off the frame have
+	 *         FLAG_OFF_IMAGE set.
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image with a sky mapping.
+	 * @see #measureFrame
+	 */
+	public FITSPhotometryResult measure(File file) throws IOException,FITSException
+	{
+		return measureFrame(file).result;
+	}
+
+	/**
+	 * Return a string describing the extractor.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": targets="+targetRA.length+" aperture="+apertureRadius;
+	}
+
+	/**
+	 * Get the order frames are measured and reported in. If sorting by date, the header of each frame is
+	 * read (in parallel) for its DATE-OBS; frames without one, or whose header cannot be read, go last, and
+	 * frames with equal dates keep their given order.
+	 * @param frameList The frame files.
+	 * @return The indices into frameList, in order.
+	 * @exception FITSException Thrown if a parallel task fails.
+	 * @see #sortByDate
+	 */
+	protected int[] getFrameOrder(final List<File> frameList) throws FITSException
+	{
+		final long timeList[];
+		Integer indexList[];
+		int order[];
+
+		order = new int[frameList.size()];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		if(sortByDate == false)
+			return order;
+		timeList = new long[order.length];
+		FITSParallel.run(threadCount,order.length,new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				timeList[index] = readTime(frameList.get(index));
+			}
+		});
+		indexList = new Integer[order.length];
+		for(int i = 0; i < order.length; i++)
+			indexList[i] = Integer.valueOf(i);
+		Arrays.sort(indexList,new Comparator<Integer>()
+		{
+			public int compare(Integer a,Integer b)
+			{
+				long ta = timeList[a.intValue()];
+				long tb = timeList[b.intValue()];
+
+				return (ta < tb) ? -1 : ((ta == tb) ? 0 : 1);
+			}
+		});
+		for(int i = 0; i < order.length; i++)
+			order[i] = indexList[i].intValue();
+		return order;
+	}
+
+	/**
+	 * Read the DATE-OBS of a frame, reading only its header.
+	 * @param file The frame's file.
+	 * @return The date in milliseconds, or Long.MAX_VALUE if there is no DATE-OBS or the header cannot be read
+	 *         (the frame will fail again, and be reported, when it is measured).
+	 */
+	protected long readTime(File file)
+	{
+		DataInputStream dis = null;
+		Date date = null;
+
+		try
+		{
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+									  FITSCard.BLOCK_LENGTH));
+			try
+			{
+				date = FITSHeaderCards.read(dis).getDate("DATE-OBS");
+			}
+			finally
+			{
+				dis.close();
+			}
+		}
+		catch(Exception e)
+		{
+			return Long.MAX_VALUE;
+		}
+		if(date == null)
+			return Long.MAX_VALUE;
+		return date.getTime();
+	}
+
+	/**
+	 * Submit a frame to be measured.
+	 * @param executor The executor to submit to.
+	 * @param file The frame's file.
+	 * @return The future measurement, which never fails: failures are held in the measurement.
+	 */
+	protected Future<Measurement> submit(ExecutorService executor,final File file)
+	{
+		return executor.submit(new Callable<Measurement>()
+		{
+			public Measurement call()
+			{
+				Measurement measurement = null;
+
+				try
+				{
+					measurement = measureFrame(file);
+				}
+				catch(Exception e)
+				{
+					FITSMetrics.recordFailure(FITSMetrics.TIMER_LOAD,e);
+					measurement = new Measurement(file);
+					measurement.exception = e;
+				}
+				return measurement;
+			}
+		});
+	}
+
+	/**
+	 * Measure the targets on one frame: read its header, map the targets to pixels, and read and measure a
+	 * stamp around each.
+	 * @param file The frame's file.
+	 * @return The measurement.
+	 * @exception IOException Thrown if reading the file fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image with a sky mapping.
+	 * @see #measureTarget
+	 */
+	protected Measurement measureFrame(File file) throws IOException,FITSException
+	{
+		RandomAccessFile randomAccessFile = null;
+		FITSHeaderCards cards = null;
+		FITSDataDecoder decoder = null;
+		Measurement measurement = null;
+		RA fcRA = null;
+		Dec fcDec = null;
+		String s = null;
+		float stamp[],skyBuffer[];
+		double xPlateScale,yPlateScale,fcRAArcSec,fcDecArcSec,x,y;
+		long startTime,headerStartTime,decodeStartTime,dataOffset;
+		int width,height,halfSize;
+
+		startTime = FITSMetrics.start();
+		measurement = new Measurement(file);
+		randomAccessFile = new RandomAccessFile(file,"r");
+		try
+		{
+			headerStartTime = FITSMetrics.start();
+			cards = FITSHeaderCards.read(randomAccessFile);
+			FITSMetrics.stop(FITSMetrics.TIMER_HEADER_PARSE,headerStartTime);
+			dataOffset = randomAccessFile.getFilePointer();
+			if(cards.getInt("NAXIS") != 2)
+			{
+				throw new FITSException(this.getClass().getName()+":measureFrame:"+file+
+							":Illegal number of axes:"+cards.getInt("NAXIS"));
+			}
+			width = cards.getInt("NAXIS1");
+			height = cards.getInt("NAXIS2");
+			decoder = FITSDataDecoder.create(cards);
+			decoder.setThreadCount(1);
+			s = cards.getString("FCRA");
+			if(s != null)
+			{
+				fcRA = new RA();
+				fcRA.parseSpace(s);
+			}
+			s = cards.getString("FCDEC");
+			if(s != null)
+			{
+				fcDec = new Dec();
+				fcDec.parseSpace(s);
+			}
+			xPlateScale = cards.getDouble("XPS");
+			yPlateScale = cards.getDouble("YPS");
+			if((fcRA == null)||(fcDec == null)||(xPlateScale == 0.0)||(yPlateScale == 0.0))
+			{
+				throw new FITSException(this.getClass().getName()+":measureFrame:"+file+
+							":No field centre or plate scale.");
+			}
+			measurement.dateObs = cards.getDate("DATE-OBS");
+			measurement.result = new FITSPhotometryResult(targetRA.length);
+			fcRAArcSec = fcRA.toArcSeconds();
+			fcDecArcSec = fcDec.toArcSeconds();
+			halfSize = (int)Math.ceil(Math.max(apertureRadius,photometry.skyOuterRadius))+1;
+			stamp = new float[(2*halfSize+2)*(2*halfSize+2)];
+			skyBuffer = null;
+			decodeStartTime = FITSMetrics.start();
+			for(int i = 0; i < targetRA.length; i++)
+			{
+				// as FITSImage.getPosition(RA,Dec), without rounding to whole pixels
+				x = ((fcRAArcSec-(targetRA[i]*3600.0))/xPlateScale)+(double)(width/2);
+				y = ((fcDecArcSec-(targetDec[i]*3600.0))/yPlateScale)+(double)(height/2);
+				skyBuffer = measureTarget(randomAccessFile.getChannel(),dataOffset,decoder,width,height,
+							  x,y,halfSize,stamp,measurement.result,i,skyBuffer);
+			}
+			FITSMetrics.stop(FITSMetrics.TIMER_DECODE,decodeStartTime);
+			measurement.result.elapsedNanos = System.nanoTime()-startTime;
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		return measurement;
+	}
+
+	/**
+	 * Read the stamp around one target, and measure it. The stamp is clipped to the frame, so apertures or
+	 * annuli that extend off the frame are flagged by the photometry as they would be on the loaded image.
+	 * @param channel The frame's file channel, read with positional reads.
+	 * @param dataOffset The offset in the file of the frame's data.
+	 * @param decoder The decoder for the frame's data.
+	 * @param width The width of the frame.
+	 * @param height The height of the frame.
+	 * @param x The X position of the target, in display pixels.
+	 * @param y The Y position of the target, in display pixels.
+	 * @param halfSize The distance from the target to the edge of the stamp, in pixels.
+	 * @param stamp The buffer to read the stamp into.
+	 * @param result The result to fill in.
+	 * @param i The index in the result to fill in.
+	 * @param skyBuffer A scratch buffer for the sky pixels, can be null.
+	 * @return The scratch sky buffer, which may have been reallocated, for use in the next call.
+	 * @exception FITSException Thrown if reading the stamp fails.
+	 * @see FITSPhotometry#measure(float[],int,int,double,double,double,FITSPhotometryResult,int,float[])
+	 */
+	protected float[] measureTarget(FileChannel channel,long dataOffset,FITSDataDecoder decoder,int width,
+					int height,double x,double y,int halfSize,float stamp[],
+					FITSPhotometryResult result,int i,float skyBuffer[]) throws FITSException
+	{
+		int x0,x1,y0,y1,stampWidth,stampHeight;
+
+		if(Double.isNaN(x)||Double.isNaN(y))
+		{
+			x0 = 0;
+			x1 = -1;
+			y0 = 0;
+			y1 = -1;
+		}
+		else
+		{
+			x0 = Math.max(0,((int)Math.floor(x))-halfSize);
+			x1 = Math.min(width-1,((int)Math.ceil(x))+halfSize);
+			y0 = Math.max(0,((int)Math.floor(y))-halfSize);
+			y1 = Math.min(height-1,((int)Math.ceil(y))+halfSize);
+		}
+		// a target off the frame has an empty stamp, which the photometry flags FLAG_OFF_IMAGE
+		stampWidth = Math.max(0,(x1-x0)+1);
+		stampHeight = Math.max(0,(y1-y0)+1);
+		for(int sy = y0; (sy <= y1)&&(stampWidth > 0); sy++)
+		{
+			// display y to FITS row, in the frame and the stamp
+			decoder.read(channel,dataOffset+(((((long)(height-(sy+1)))*width)+x0)*decoder.getBytesPerPixel()),
+				     stamp,(stampHeight-((sy-y0)+1))*stampWidth,stampWidth);
+		}
+		return photometry.measure(stamp,stampWidth,stampHeight,x-x0,y-y0,apertureRadius,result,i,skyBuffer);
+	}
+
+	/**
+	 * The measurement of one frame, or its failure.
+	 */
+	protected static class Measurement
+	{
+		/**
+		 * The frame's file.
+		 */
+		protected File file = null;
+		/**
+		 * The frame's date of observation, or null.
+		 */
+		protected Date dateObs = null;
+		/**
+		 * The photometry of the targets, or null if the frame failed.
+		 */
+		protected FITSPhotometryResult result = null;
+		/**
+		 * The exception that caused the frame to fail, or null.
+		 */
+		protected Exception exception = null;
+
+		/**
+		 * Constructor.
+		 * @param f The frame's file.
+		 */
+		protected Measurement(File f)
+		{
+			super();
+			file = f;
+		}
+	}
+
+	/**
+	 * Test main method. Writes the light curve of one target over a list of frames to standard output.
+	 * @param args The command line arguments: the target RA and declination (degrees), the aperture radius
+	 *        (pixels), then the frame filenames.
+	 */
+	public static void main(String args[])
+	{
+		FITSLightCurveExtractor extractor = null;
+		List<File> frameList = null;
+		Writer writer = null;
+		long startTime;
+		int measuredCount;
+
+		if(args.length < 4)
+		{
+			System.err.println("java org.estar.fits.FITSLightCurveExtractor <ra> <dec> <radius> <filename>...");
+			System.exit(1);
+		}
+		try
+		{
+			extractor = new FITSLightCurveExtractor(new double[] {Double.parseDouble(args[0])},
+								new double[] {Double.parseDouble(args[1])});
+			extractor.setApertureRadius(Double.parseDouble(args[2]));
+			frameList = new Vector<File>();
+			for(int i = 3; i < args.length; i++)
+				frameList.add(new File(args[i]));
+			writer = new OutputStreamWriter(System.out);
+			startTime = System.nanoTime();
+			measuredCount = extractor.extract(frameList,writer);
+			System.err.println("Measured "+measuredCount+" of "+frameList.size()+" frames in "+
+					   ((System.nanoTime()-startTime)/1000000.0)+" ms.");
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSLightCurveExtractor failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
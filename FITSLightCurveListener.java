@@ -0,0 +1,52 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSLightCurveListener.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Interface implemented by objects that want the measurements made by a FITSLightCurveExtractor.
+ * Methods are called on the thread that called extract, one frame at a time, in the order the frames are
+ * measured (by DATE-OBS, unless sorting is turned off), so an implementation needs no locking.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSLightCurveExtractor
+ */
+public interface FITSLightCurveListener
+{
+	/**
+	 * Called when a frame has been measured.
+	 * @param index The index of the frame, in the order frames are reported.
+	 * @param file The frame's file.
+	 * @param dateObs The frame's date of observation, or null if it has no DATE-OBS.
+	 * @param result The photometry of the targets on the frame, indexed as the target list.
+	 */
+	public void frameMeasured(int index,File file,Date dateObs,FITSPhotometryResult result);
+
+	/**
+	 * Called when a frame could not be measured. Extraction continues with the next frame.
+	 * @param file The frame's file.
+	 * @param e The exception that caused the failure.
+	 */
+	public void frameFailed(File file,Exception e);
+}
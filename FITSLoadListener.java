@@ -0,0 +1,66 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSLoadListener.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * Interface implemented by objects that want to display or process an image while it is being loaded
+ * by FITSImage.loadProgressive. Methods are called on the loading thread, in the order
+ * headerLoaded, previewLoaded (if a preview was requested), rowsLoaded (once per band), loadComplete.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#loadProgressive
+ */
+public interface FITSLoadListener
+{
+	/**
+	 * Called when the header has been read. The image's dimensions, field centre, plate scales etc are set,
+	 * and its data array allocated, but all pixels are zero.
+	 * @param image The image being loaded.
+	 */
+	public void headerLoaded(FITSImage image);
+
+	/**
+	 * Called when the coarse preview pass has been read.
+	 * @param image The image being loaded.
+	 * @param preview A subsampled copy of the image, every factor'th pixel in each axis, with its
+	 *        minimum/maximum pixel values and plate scales set.
+	 * @param factor The subsampling factor.
+	 */
+	public void previewLoaded(FITSImage image,FITSImage preview,int factor);
+
+	/**
+	 * Called when a band of rows has been read into the image. Bands are delivered in FITS row order,
+	 * i.e. from the bottom of the displayed image upwards.
+	 * @param image The image being loaded.
+	 * @param startRow The first row of the band, in FITS order (row 0 is the bottom of the displayed image).
+	 * @param rowCount The number of rows in the band.
+	 * @param rows The band's pixel values, rowCount*width of them starting at index 0. This buffer is
+	 *        re-used for the next band, so must not be kept.
+	 */
+	public void rowsLoaded(FITSImage image,int startRow,int rowCount,float rows[]);
+
+	/**
+	 * Called when every row has been read.
+	 * @param image The loaded image.
+	 */
+	public void loadComplete(FITSImage image);
+}
@@ -0,0 +1,669 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMemoryManager.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A process-wide budget for FITSImage pixel memory. Each image registers its data array when it is loaded;
+ * when the registered arrays exceed the budget, the least recently used are spilled to memory-mapped scratch
+ * files and dropped from the heap, and paged back in when the image's data array is next asked for
+ * (FITSImage.getDataArray). A scratch file is deleted when its array is paged back in or released; any left
+ * when the JVM exits are deleted by a shutdown hook.
+ * <p>
+ * A budget of 0 (the default) means unlimited: arrays are counted, but never spilled. An array being loaded or
+ * paged in is never spilled to make room for itself, so a single array larger than the budget stays in memory. The shared manager's
+ * budget can be set with the system property org.estar.fits.memoryBudget (in bytes), and its scratch directory
+ * with org.estar.fits.scratchDirectory (default java.io.tmpdir). Usage, spills and reloads are reported by
+ * FITSMetrics.
+ * <p>
+ * The arrays to spill are chosen holding the manager's lock, but written to their scratch files after it is
+ * released, so other threads can register, access and release arrays while a spill is being written. Data arrays
+ * are never modified in place, so an array stays valid while it is being written. Reloads are done holding the
+ * lock. Arrays already handed out by getDataArray stay valid after their image is spilled, but their heap is only
+ * freed once they are dropped.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#getDataArray
+ * @see FITSMetrics#getSummary
+ */
+public class FITSMemoryManager
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The system property that sets the budget of the shared manager, in bytes.
+	 */
+	public final static String BUDGET_PROPERTY = "org.estar.fits.memoryBudget";
+	/**
+	 * The system property that sets the scratch directory of the shared manager.
+	 */
+	public final static String SCRATCH_DIRECTORY_PROPERTY = "org.estar.fits.scratchDirectory";
+	/**
+	 * The maximum length of each mapped segment of a scratch file, a multiple of 4 bytes.
+	 */
+	protected final static int SEGMENT_LENGTH = 1<<30;
+	/**
+	 * The shared manager.
+	 */
+	private static FITSMemoryManager memoryManager = new FITSMemoryManager(Long.getLong(BUDGET_PROPERTY,0L).
+		longValue(),new File(System.getProperty(SCRATCH_DIRECTORY_PROPERTY,System.getProperty("java.io.tmpdir"))));
+	/**
+	 * The budget in bytes, 0 for unlimited.
+	 */
+	protected long budget = 0L;
+	/**
+	 * The directory scratch files are created in. Volatile, as spills read it without the manager's lock.
+	 */
+	protected volatile File scratchDirectory = null;
+	/**
+	 * Every registered entry. Entries must be strongly reachable to be put on the reference queue when their
+	 * image is garbage collected.
+	 */
+	protected Set<Entry> entrySet = null;
+	/**
+	 * The entries of images whose arrays are in memory.
+	 */
+	protected List<Entry> residentList = null;
+	/**
+	 * The queue registered entries are put on when their image is garbage collected.
+	 */
+	protected ReferenceQueue<FITSImage> referenceQueue = null;
+	/**
+	 * The scratch files that currently exist, deleted by the shutdown hook. Synchronized on itself rather than
+	 * the manager, so the hook cannot block on the manager's lock.
+	 * @see #shutdownHook
+	 */
+	protected Set<File> scratchFileSet = null;
+	/**
+	 * The shutdown hook that deletes the remaining scratch files, registered when the first array is spilled.
+	 * @see #deleteScratchFiles
+	 */
+	protected Thread shutdownHook = null;
+	/**
+	 * The number of bytes of registered arrays in memory.
+	 */
+	protected long memoryUsed = 0L;
+	/**
+	 * The number of bytes of registered arrays spilled to scratch files.
+	 */
+	protected long spilledBytes = 0L;
+	/**
+	 * The number of arrays spilled.
+	 */
+	protected long spillCount = 0L;
+	/**
+	 * The number of arrays paged back in.
+	 */
+	protected long reloadCount = 0L;
+
+	/**
+	 * Constructor.
+	 * @param bytes The budget in bytes, 0 for unlimited.
+	 * @param directory The directory to create scratch files in.
+	 * @exception IllegalArgumentException Thrown if the budget is negative.
+	 */
+	public FITSMemoryManager(long bytes,File directory) throws IllegalArgumentException
+	{
+		super();
+		entrySet = new HashSet<Entry>();
+		residentList = new ArrayList<Entry>();
+		referenceQueue = new ReferenceQueue<FITSImage>();
+		scratchFileSet = Collections.synchronizedSet(new HashSet<File>());
+		scratchDirectory = directory;
+		setBudget(bytes);
+	}
+
+	/**
+	 * Get the shared manager, which FITSImages register with.
+	 * @return The manager.
+	 * @see #BUDGET_PROPERTY
+	 * @see #SCRATCH_DIRECTORY_PROPERTY
+	 */
+	public static FITSMemoryManager getMemoryManager()
+	{
+		return memoryManager;
+	}
+
+	/**
+	 * Set the budget. If the arrays in memory exceed the new budget, the least recently used are spilled.
+	 * @param bytes The budget in bytes, 0 for unlimited.
+	 * @exception IllegalArgumentException Thrown if the budget is negative.
+	 * @see #budget
+	 */
+	public void setBudget(long bytes) throws IllegalArgumentException
+	{
+		List<Entry> spillList = null;
+
+		if(bytes < 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setBudget:Illegal budget:"+bytes);
+		}
+		synchronized(this)
+		{
+			budget = bytes;
+			spillList = evict(0L,null);
+		}
+		spill(spillList);
+	}
+
+	/**
+	 * Get the budget.
+	 * @return The budget in bytes, 0 for unlimited.
+	 */
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Set the directory scratch files are created in. Existing scratch files are not moved.
+	 * @param directory The directory.
+	 * @see #scratchDirectory
+	 */
+	public synchronized void setScratchDirectory(File directory)
+	{
+		scratchDirectory = directory;
+	}
+
+	/**
+	 * Get the number of bytes of registered arrays in memory.
+	 * @return The number of bytes.
+	 */
+	public synchronized long getMemoryUsed()
+	{
+		return memoryUsed;
+	}
+
+	/**
+	 * Get the number of bytes of registered arrays currently spilled to scratch files.
+	 * @return The number of bytes.
+	 */
+	public synchronized long getSpilledBytes()
+	{
+		return spilledBytes;
+	}
+
+	/**
+	 * Get the number of arrays spilled.
+	 * @return The spill count.
+	 */
+	public synchronized long getSpillCount()
+	{
+		return spillCount;
+	}
+
+	/**
+	 * Get the number of arrays paged back in.
+	 * @return The reload count.
+	 */
+	public synchronized long getReloadCount()
+	{
+		return reloadCount;
+	}
+
+	/**
+	 * Make room in the budget for an array about to be allocated, by spilling the least recently used arrays.
+	 * The bytes are not counted until the array is registered.
+	 * @param bytes The size of the array in bytes.
+	 * @see #register
+	 */
+	public void reserve(long bytes)
+	{
+		List<Entry> spillList = null;
+
+		synchronized(this)
+		{
+			purge();
+			spillList = evict(bytes,null);
+		}
+		spill(spillList);
+	}
+
+	/**
+	 * Register an image's data array, which it has just finished loading. The image's previous array, if any,
+	 * should have been released.
+	 * @param image The image, whose dataArray field is the array.
+	 * @return The image's entry, or null if the array is null.
+	 * @see #release
+	 */
+	public Entry register(FITSImage image)
+	{
+		List<Entry> spillList = null;
+		Entry entry = null;
+
+		synchronized(this)
+		{
+			purge();
+			if(image.dataArray == null)
+				return null;
+			entry = new Entry(image,referenceQueue);
+			spillList = evict(entry.size,null);
+			entrySet.add(entry);
+			residentList.add(entry);
+			memoryUsed += entry.size;
+		}
+		spill(spillList);
+		return entry;
+	}
+
+	/**
+	 * Release an image's entry, because its array is being replaced or it is no longer needed. Its scratch file
+	 * (if any) is deleted.
+	 * @param entry The entry. Can be null, in which case nothing is done.
+	 * @return null, to assign to the image's entry field.
+	 */
+	public synchronized Entry release(Entry entry)
+	{
+		if(entry == null)
+			return null;
+		entry.clear();
+		remove(entry);
+		return null;
+	}
+
+	/**
+	 * Get an image's data array, paging it back in if it has been spilled, and marking it as the most
+	 * recently used. Other arrays are spilled to make room for a reloaded array before it is allocated.
+	 * FITSImage.getDataArray only calls this when its array is not in memory, so accesses to resident
+	 * arrays do not take the manager's lock.
+	 * @param image The image.
+	 * @return The data array.
+	 * @see #reload
+	 * @see Entry#touch
+	 */
+	public float[] access(FITSImage image)
+	{
+		List<Entry> spillList = null;
+		Entry entry = null;
+
+		synchronized(this)
+		{
+			entry = image.memoryEntry;
+			if(entry == null)
+				return image.dataArray;
+			entry.touch();
+			if(entry.resident||entry.spilling)
+				return image.dataArray;
+			spillList = evict(entry.size,entry);
+		}
+		spill(spillList);
+		synchronized(this)
+		{
+			// the array may have been reloaded or released by another thread while others were spilled
+			if((image.memoryEntry == entry)&&(entry.resident == false)&&(entry.spilling == false)&&
+			   (entry.bufferList != null))
+				reload(image,entry);
+			return image.dataArray;
+		}
+	}
+
+	/**
+	 * Return a string describing the manager.
+	 * @return The string.
+	 */
+	public synchronized String toString()
+	{
+		return this.getClass().getName()+": budget="+budget+" used="+memoryUsed+" resident="+residentList.size()+
+			" spilled="+spilledBytes+" spills="+spillCount+" reloads="+reloadCount;
+	}
+
+	/**
+	 * Choose the least recently used arrays to spill until bytes more would fit in the budget. The chosen
+	 * entries are taken out of residentList and their bytes uncounted, so other threads do not choose them
+	 * again, but their arrays stay in memory until written. The caller must pass them to spill(List) after
+	 * releasing the manager's lock. Nothing is chosen if the budget is unlimited.
+	 * @param bytes The number of bytes to make room for.
+	 * @param exclude An entry not to spill, or null.
+	 * @return The list of entries to spill, possibly empty.
+	 * @see #spill(java.util.List)
+	 */
+	protected List<Entry> evict(long bytes,Entry exclude)
+	{
+		List<Entry> spillList = null;
+		Entry entry = null;
+		int lruIndex;
+
+		spillList = new ArrayList<Entry>();
+		if(budget == 0L)
+			return spillList;
+		while((memoryUsed+bytes) > budget)
+		{
+			lruIndex = -1;
+			for(int i = 0; i < residentList.size(); i++)
+			{
+				entry = residentList.get(i);
+				if((entry != exclude)&&
+				   ((lruIndex < 0)||(entry.lastAccess < residentList.get(lruIndex).lastAccess)))
+					lruIndex = i;
+			}
+			if(lruIndex < 0)
+				return spillList;
+			entry = residentList.get(lruIndex);
+			if(entry.get() == null)
+			{
+				remove(entry);
+				continue;
+			}
+			residentList.remove(lruIndex);
+			entry.resident = false;
+			entry.spilling = true;
+			memoryUsed -= entry.size;
+			spillList.add(entry);
+		}
+		return spillList;
+	}
+
+	/**
+	 * Spill the entries chosen by evict. This must be called without holding the manager's lock.
+	 * @param spillList The entries to spill.
+	 * @see #evict
+	 * @see #spill(org.estar.fits.FITSMemoryManager.Entry)
+	 */
+	protected void spill(List<Entry> spillList)
+	{
+		for(int i = 0; i < spillList.size(); i++)
+			spill(spillList.get(i));
+	}
+
+	/**
+	 * Write an entry's array to a new scratch file, without holding the manager's lock, and then drop the
+	 * array from the image. If writing fails, the failure is recorded by FITSMetrics and the entry made resident
+	 * again, so the budget may be exceeded.
+	 * @param entry The entry, chosen by evict.
+	 * @see #endSpill
+	 * @see FITSMetrics#TIMER_SPILL
+	 */
+	protected void spill(Entry entry)
+	{
+		RandomAccessFile randomAccessFile = null;
+		FloatBuffer bufferList[] = null;
+		File scratchFile = null;
+		FITSImage image = null;
+		float dataArray[] = null;
+		long size,position,length,startTime;
+		int offset,count;
+
+		image = entry.get();
+		if(image != null)
+			dataArray = image.dataArray;
+		if(dataArray == null)
+		{
+			endSpill(entry,null,null);
+			return;
+		}
+		size = ((long)dataArray.length)*4L;
+		startTime = FITSMetrics.start();
+		try
+		{
+			scratchFile = File.createTempFile("fits",".scratch",scratchDirectory);
+			randomAccessFile = new RandomAccessFile(scratchFile,"rw");
+			try
+			{
+				bufferList = new FloatBuffer[(int)((size+SEGMENT_LENGTH-1)/SEGMENT_LENGTH)];
+				for(int s = 0; s < bufferList.length; s++)
+				{
+					position = ((long)s)*SEGMENT_LENGTH;
+					length = Math.min(SEGMENT_LENGTH,size-position);
+					bufferList[s] = randomAccessFile.getChannel().
+						map(FileChannel.MapMode.READ_WRITE,position,length).
+						order(ByteOrder.nativeOrder()).asFloatBuffer();
+					offset = (int)(position/4);
+					count = (int)(length/4);
+					bufferList[s].put(dataArray,offset,count);
+				}
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+		}
+		catch(IOException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_SPILL,e);
+			if(scratchFile != null)
+				scratchFile.delete();
+			endSpill(entry,null,null);
+			return;
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_SPILL,startTime);
+		endSpill(entry,scratchFile,bufferList);
+	}
+
+	/**
+	 * Finish spilling an entry. If the spill succeeded, the scratch file is attached to the entry and the array
+	 * dropped from the image; if it failed, or the image was garbage collected, the entry is made resident again.
+	 * If the entry was released while it was being written, the scratch file is deleted.
+	 * @param entry The entry.
+	 * @param scratchFile The scratch file written, or null if the spill failed.
+	 * @param bufferList The mapped segments of the scratch file, or null if the spill failed.
+	 * @see #spill(org.estar.fits.FITSMemoryManager.Entry)
+	 */
+	protected synchronized void endSpill(Entry entry,File scratchFile,FloatBuffer bufferList[])
+	{
+		FITSImage image = null;
+
+		entry.spilling = false;
+		image = entry.get();
+		if(entrySet.contains(entry) == false)
+		{
+			if(scratchFile != null)
+				scratchFile.delete();
+			return;
+		}
+		if((scratchFile == null)||(image == null))
+		{
+			if(scratchFile != null)
+				scratchFile.delete();
+			entry.resident = true;
+			residentList.add(entry);
+			memoryUsed += entry.size;
+			return;
+		}
+		entry.scratchFile = scratchFile;
+		entry.bufferList = bufferList;
+		scratchFileSet.add(scratchFile);
+		addShutdownHook();
+		image.dataArray = null;
+		spilledBytes += entry.size;
+		spillCount++;
+	}
+
+	/**
+	 * Page an image's array back in from its scratch file, and delete the scratch file. Room should have been
+	 * made for it by the caller.
+	 * @param image The image.
+	 * @param entry The image's entry.
+	 * @see #access
+	 * @see #deleteScratchFile
+	 */
+	protected void reload(FITSImage image,Entry entry)
+	{
+		float dataArray[];
+		int offset;
+
+		dataArray = new float[(int)(entry.size/4)];
+		offset = 0;
+		for(int s = 0; s < entry.bufferList.length; s++)
+		{
+			entry.bufferList[s].clear();
+			entry.bufferList[s].get(dataArray,offset,entry.bufferList[s].remaining());
+			offset += entry.bufferList[s].capacity();
+		}
+		deleteScratchFile(entry);
+		image.dataArray = dataArray;
+		entry.resident = true;
+		residentList.add(entry);
+		memoryUsed += entry.size;
+		spilledBytes -= entry.size;
+		reloadCount++;
+	}
+
+	/**
+	 * Remove an entry's accounting, and delete its scratch file. An entry being spilled has already been
+	 * uncounted; its scratch file is deleted when the spill ends.
+	 * @param entry The entry.
+	 * @see #endSpill
+	 */
+	protected void remove(Entry entry)
+	{
+		entrySet.remove(entry);
+		if(entry.resident)
+		{
+			residentList.remove(entry);
+			memoryUsed -= entry.size;
+		}
+		else if(entry.spilling == false)
+			spilledBytes -= entry.size;
+		entry.resident = false;
+		entry.size = 0L;
+		deleteScratchFile(entry);
+	}
+
+	/**
+	 * Delete an entry's scratch file, if it has one, and drop the references to its mapping, which is unmapped
+	 * when it is garbage collected.
+	 * @param entry The entry.
+	 * @see #scratchFileSet
+	 */
+	protected void deleteScratchFile(Entry entry)
+	{
+		entry.bufferList = null;
+		if(entry.scratchFile != null)
+		{
+			scratchFileSet.remove(entry.scratchFile);
+			entry.scratchFile.delete();
+		}
+		entry.scratchFile = null;
+	}
+
+	/**
+	 * Register the shutdown hook that deletes the remaining scratch files, if it has not been already.
+	 * @see #shutdownHook
+	 * @see #deleteScratchFiles
+	 */
+	protected void addShutdownHook()
+	{
+		if(shutdownHook != null)
+			return;
+		shutdownHook = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				deleteScratchFiles();
+			}
+		},"org.estar.fits.FITSMemoryManager");
+		try
+		{
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+		catch(IllegalStateException e)
+		{
+			// the JVM is already shutting down
+		}
+	}
+
+	/**
+	 * Delete the remaining scratch files. Called by the shutdown hook, so does not take the manager's lock.
+	 * @see #scratchFileSet
+	 */
+	protected void deleteScratchFiles()
+	{
+		synchronized(scratchFileSet)
+		{
+			for(File file : scratchFileSet)
+				file.delete();
+			scratchFileSet.clear();
+		}
+	}
+
+	/**
+	 * Remove the entries of images that have been garbage collected.
+	 * @see #referenceQueue
+	 */
+	protected void purge()
+	{
+		Reference<? extends FITSImage> reference = null;
+
+		while((reference = referenceQueue.poll()) != null)
+			remove((Entry)reference);
+	}
+
+	/**
+	 * The registration of one image's data array. The image is weakly referenced, so registration does not
+	 * keep it alive.
+	 */
+	public static class Entry extends WeakReference<FITSImage>
+	{
+		/**
+		 * The size of the array, in bytes.
+		 */
+		protected long size;
+		/**
+		 * Whether the array is in memory, and counted as resident.
+		 */
+		protected boolean resident = true;
+		/**
+		 * Whether the array has been chosen to spill, and is being written to a scratch file.
+		 */
+		protected boolean spilling = false;
+		/**
+		 * The System.nanoTime of the last access to the array, used to find the least recently used.
+		 */
+		protected volatile long lastAccess;
+		/**
+		 * The scratch file, or null if the array has not been spilled.
+		 */
+		protected File scratchFile = null;
+		/**
+		 * The mapped segments of the scratch file, or null if the array has not been spilled.
+		 */
+		protected FloatBuffer bufferList[] = null;
+
+		/**
+		 * Constructor.
+		 * @param image The image.
+		 * @param queue The queue to put the entry on when the image is garbage collected.
+		 */
+		protected Entry(FITSImage image,ReferenceQueue<FITSImage> queue)
+		{
+			super(image,queue);
+			size = ((long)image.dataArray.length)*4L;
+			touch();
+		}
+
+		/**
+		 * Mark the array as accessed now. This does not need the manager's lock.
+		 * @see #lastAccess
+		 */
+		public void touch()
+		{
+			lastAccess = System.nanoTime();
+		}
+	}
+}
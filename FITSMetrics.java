@@ -0,0 +1,556 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMetrics.java
+// $Header$
+package org.estar.fits;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Runtime instrumentation of the FITS I/O and rendering code in this package. Latency histograms are kept
+ * for image loads, header parsing, pixel decoding, statistics and rendering, with counters of bytes read
+ * and of failures by cause. The metrics are exposed through a JMX MBean (registerMBean) and to
+ * FITSMetricsListener's.
+ * <p>
+ * Measurement is off by default. It is turned on by setEnabled, over JMX, or by starting the JVM with
+ * -Dorg.estar.fits.metrics=true (which also registers the MBean). Instrumented code calls start() once per
+ * operation (not per pixel), which when disabled is a single volatile read returning 0, and stop() with
+ * a start time of 0 returns immediately, so disabled metrics cost nothing measurable.
+ * <pre>
+ * long startTime = FITSMetrics.start();
+ * ...
+ * FITSMetrics.stop(FITSMetrics.TIMER_DECODE,startTime);
+ * </pre>
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSMetricsHistogram
+ * @see FITSMetricsListener
+ * @see FITSMetricsMBean
+ */
+public class FITSMetrics
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Timer index: a whole image load (FITSImage.load).
+	 */
+	public final static int TIMER_LOAD = 0;
+	/**
+	 * Timer index: opening a FITS file/stream and parsing its headers.
+	 */
+	public final static int TIMER_HEADER_PARSE = 1;
+	/**
+	 * Timer index: decoding pixel data into floats.
+	 */
+	public final static int TIMER_DECODE = 2;
+	/**
+	 * Timer index: computing image statistics (min/max, background).
+	 */
+	public final static int TIMER_STATS = 3;
+	/**
+	 * Timer index: rendering an image source.
+	 */
+	public final static int TIMER_RENDER = 4;
+	/**
+	 * Timer index: spilling an image's data array to a scratch file (FITSMemoryManager).
+	 */
+	public final static int TIMER_SPILL = 5;
+	/**
+	 * The timer names, indexed by the TIMER_ constants. These are used in the JMX interface.
+	 */
+	public final static String TIMER_NAME_LIST[] = {"load","headerParse","decode","stats","render","spill"};
+	/**
+	 * The system property that enables metrics at startup, and registers the MBean. If registration fails the
+	 * metrics are still kept; calling registerMBean again reports the failure.
+	 * @see #registerMBean
+	 */
+	public final static String ENABLED_PROPERTY = "org.estar.fits.metrics";
+	/**
+	 * The JMX object name the MBean is registered under.
+	 */
+	public final static String OBJECT_NAME = "org.estar.fits:type=FITSMetrics";
+	/**
+	 * Whether measurements are being made.
+	 */
+	private static volatile boolean enabled = false;
+	/**
+	 * The latency histograms, indexed by the TIMER_ constants.
+	 */
+	private static FITSMetricsHistogram histogramList[] = null;
+	/**
+	 * The number of bytes read.
+	 */
+	private static AtomicLong bytesRead = new AtomicLong();
+	/**
+	 * The total number of failures.
+	 */
+	private static AtomicLong failureCount = new AtomicLong();
+	/**
+	 * The number of failures, keyed by cause.
+	 * @see #getCause
+	 */
+	private static ConcurrentHashMap<String,AtomicLong> failureMap = new ConcurrentHashMap<String,AtomicLong>();
+	/**
+	 * The listeners.
+	 */
+	private static CopyOnWriteArrayList<FITSMetricsListener> listenerList =
+		new CopyOnWriteArrayList<FITSMetricsListener>();
+
+	static
+	{
+		histogramList = new FITSMetricsHistogram[TIMER_NAME_LIST.length];
+		for(int i = 0; i < histogramList.length; i++)
+			histogramList[i] = new FITSMetricsHistogram(TIMER_NAME_LIST[i]);
+		if(Boolean.getBoolean(ENABLED_PROPERTY))
+		{
+			enabled = true;
+			try
+			{
+				registerMBean();
+			}
+			catch(FITSException e)
+			{
+				// a class initializer has no caller to report to: the metrics still work without JMX
+			}
+		}
+	}
+
+	/**
+	 * Private constructor, this class has only static methods.
+	 */
+	private FITSMetrics()
+	{
+		super();
+	}
+
+	/**
+	 * Get whether measurements are being made.
+	 * @return true if enabled.
+	 * @see #enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Turn measurements on or off.
+	 * @param b true to enable.
+	 * @see #enabled
+	 */
+	public static void setEnabled(boolean b)
+	{
+		enabled = b;
+	}
+
+	/**
+	 * Start timing an operation.
+	 * @return The start time in nanoseconds, or 0 if metrics are disabled.
+	 * @see #stop
+	 */
+	public static long start()
+	{
+		if(enabled == false)
+			return 0L;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Finish timing an operation, and record the time taken.
+	 * @param timer Which operation, one of the TIMER_ constants.
+	 * @param startTime The value returned by start. If 0 (metrics disabled at the start), nothing is recorded.
+	 * @see #start
+	 */
+	public static void stop(int timer,long startTime)
+	{
+		long nanos;
+
+		if(startTime == 0L)
+			return;
+		nanos = System.nanoTime()-startTime;
+		histogramList[timer].record(nanos);
+		for(FITSMetricsListener listener : listenerList)
+			listener.timing(timer,nanos);
+	}
+
+	/**
+	 * Record bytes read from a FITS file or stream. Nothing is recorded if metrics are disabled.
+	 * @param byteCount The number of bytes read.
+	 */
+	public static void recordBytesRead(long byteCount)
+	{
+		if(enabled == false)
+			return;
+		bytesRead.addAndGet(byteCount);
+		for(FITSMetricsListener listener : listenerList)
+			listener.bytesRead(byteCount);
+	}
+
+	/**
+	 * Record a failed operation. Nothing is recorded if metrics are disabled.
+	 * @param timer Which operation, one of the TIMER_ constants.
+	 * @param e The exception thrown.
+	 * @see #getCause
+	 */
+	public static void recordFailure(int timer,Exception e)
+	{
+		AtomicLong count = null;
+		AtomicLong existingCount = null;
+		String cause = null;
+
+		if(enabled == false)
+			return;
+		cause = getCause(e);
+		count = failureMap.get(cause);
+		if(count == null)
+		{
+			count = new AtomicLong();
+			existingCount = failureMap.putIfAbsent(cause,count);
+			if(existingCount != null)
+				count = existingCount;
+		}
+		count.incrementAndGet();
+		failureCount.incrementAndGet();
+		for(FITSMetricsListener listener : listenerList)
+			listener.failure(timer,cause,e);
+	}
+
+	/**
+	 * Get the cause of a failure, used to group failures. For a FITSException with an underlying exception,
+	 * this is the underlying exception's class name (e.g. "org.eso.fits.FitsException" or "java.io.EOFException").
+	 * For a FITSException without one, it is the class and method that threw it, taken from the message
+	 * (e.g. "org.estar.fits.FITSImage:load"). Otherwise it is the exception's class name.
+	 * @param e The exception.
+	 * @return The cause string.
+	 */
+	public static String getCause(Exception e)
+	{
+		FITSException fe = null;
+		String message = null;
+		int index;
+
+		if(e instanceof FITSException)
+		{
+			fe = (FITSException)e;
+			if(fe.getException() != null)
+				return fe.getException().getClass().getName();
+			message = fe.getMessage();
+			if(message != null)
+			{
+				index = message.indexOf(':');
+				if(index > 0)
+					index = message.indexOf(':',index+1);
+				if(index > 0)
+					return message.substring(0,index);
+			}
+		}
+		return e.getClass().getName();
+	}
+
+	/**
+	 * Get the latency histogram of an operation.
+	 * @param timer Which operation, one of the TIMER_ constants.
+	 * @return The histogram.
+	 */
+	public static FITSMetricsHistogram getHistogram(int timer)
+	{
+		return histogramList[timer];
+	}
+
+	/**
+	 * Get the latency histogram of an operation, by name.
+	 * @param timerName The timer name, from TIMER_NAME_LIST.
+	 * @return The histogram.
+	 * @exception IllegalArgumentException Thrown if the name is not known.
+	 * @see #TIMER_NAME_LIST
+	 */
+	public static FITSMetricsHistogram getHistogram(String timerName) throws IllegalArgumentException
+	{
+		for(int i = 0; i < TIMER_NAME_LIST.length; i++)
+		{
+			if(TIMER_NAME_LIST[i].equals(timerName))
+				return histogramList[i];
+		}
+		throw new IllegalArgumentException("org.estar.fits.FITSMetrics:getHistogram:Unknown timer:"+
+						   timerName);
+	}
+
+	/**
+	 * Get the total number of bytes read.
+	 * @return The byte count.
+	 */
+	public static long getBytesRead()
+	{
+		return bytesRead.get();
+	}
+
+	/**
+	 * Get the total number of failures.
+	 * @return The failure count.
+	 */
+	public static long getFailureCount()
+	{
+		return failureCount.get();
+	}
+
+	/**
+	 * Get the number of failures, by cause.
+	 * @return A sorted copy of the failure counts.
+	 * @see #getCause
+	 */
+	public static Map<String,Long> getFailureCounts()
+	{
+		Map<String,Long> map = null;
+
+		map = new TreeMap<String,Long>();
+		for(Map.Entry<String,AtomicLong> entry : failureMap.entrySet())
+			map.put(entry.getKey(),Long.valueOf(entry.getValue().get()));
+		return map;
+	}
+
+	/**
+	 * Add a listener.
+	 * @param l The listener.
+	 */
+	public static void addListener(FITSMetricsListener l)
+	{
+		listenerList.addIfAbsent(l);
+	}
+
+	/**
+	 * Remove a listener.
+	 * @param l The listener.
+	 */
+	public static void removeListener(FITSMetricsListener l)
+	{
+		listenerList.remove(l);
+	}
+
+	/**
+	 * Clear all the metrics.
+	 */
+	public static void reset()
+	{
+		for(int i = 0; i < histogramList.length; i++)
+			histogramList[i].reset();
+		bytesRead.set(0);
+		failureCount.set(0);
+		failureMap.clear();
+	}
+
+	/**
+	 * Get a summary of all the metrics.
+	 * @return A multi-line summary string.
+	 */
+	public static String getSummary()
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append("FITSMetrics: enabled="+enabled+" bytesRead="+bytesRead.get()+
+			  " failures="+failureCount.get()+"\n");
+		for(int i = 0; i < histogramList.length; i++)
+			sb.append(histogramList[i].toString()+"\n");
+		for(Map.Entry<String,Long> entry : getFailureCounts().entrySet())
+			sb.append("failure: "+entry.getKey()+" = "+entry.getValue()+"\n");
+		sb.append(FITSInternPool.getStringPool().toString()+"\n");
+		sb.append(FITSMemoryManager.getMemoryManager().toString()+"\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Register the metrics MBean with the platform MBean server, if it is not already registered.
+	 * @exception FITSException Thrown if registration fails.
+	 * @see #OBJECT_NAME
+	 * @see MBeanImplementation
+	 */
+	public static synchronized void registerMBean() throws FITSException
+	{
+		MBeanServer server = null;
+		ObjectName objectName = null;
+
+		try
+		{
+			server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(objectName) == false)
+			{
+				server.registerMBean(new StandardMBean(new MBeanImplementation(),FITSMetricsMBean.class),
+						     objectName);
+			}
+		}
+		catch(Exception e)
+		{
+			throw new FITSException("org.estar.fits.FITSMetrics:registerMBean:Failed to register "+
+						OBJECT_NAME+":"+e,e);
+		}
+	}
+
+	/**
+	 * Unregister the metrics MBean from the platform MBean server, if it is registered.
+	 * @exception FITSException Thrown if unregistration fails.
+	 * @see #OBJECT_NAME
+	 */
+	public static synchronized void unregisterMBean() throws FITSException
+	{
+		MBeanServer server = null;
+		ObjectName objectName = null;
+
+		try
+		{
+			server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		}
+		catch(Exception e)
+		{
+			throw new FITSException("org.estar.fits.FITSMetrics:unregisterMBean:Failed to unregister "+
+						OBJECT_NAME+":"+e,e);
+		}
+	}
+
+	/**
+	 * The MBean implementation, which delegates to the static methods.
+	 */
+	protected static class MBeanImplementation implements FITSMetricsMBean
+	{
+		public boolean isEnabled()
+		{
+			return FITSMetrics.isEnabled();
+		}
+
+		public void setEnabled(boolean b)
+		{
+			FITSMetrics.setEnabled(b);
+		}
+
+		public long getBytesRead()
+		{
+			return FITSMetrics.getBytesRead();
+		}
+
+		public long getLoadCount()
+		{
+			return histogramList[TIMER_LOAD].getCount();
+		}
+
+		public long getFailureCount()
+		{
+			return FITSMetrics.getFailureCount();
+		}
+
+		public Map<String,Long> getFailureCounts()
+		{
+			return FITSMetrics.getFailureCounts();
+		}
+
+		public String[] getTimerNames()
+		{
+			return TIMER_NAME_LIST.clone();
+		}
+
+		public long getCount(String timerName)
+		{
+			return getHistogram(timerName).getCount();
+		}
+
+		public double getMeanMillis(String timerName)
+		{
+			return getHistogram(timerName).getMeanNanos()/1.0e6;
+		}
+
+		public double getPercentileMillis(String timerName,double percentile)
+		{
+			return ((double)getHistogram(timerName).getPercentileNanos(percentile))/1.0e6;
+		}
+
+		public double getMaxMillis(String timerName)
+		{
+			return ((double)getHistogram(timerName).getMaxNanos())/1.0e6;
+		}
+
+		public int getStringPoolSize()
+		{
+			return FITSInternPool.getStringPool().getSize();
+		}
+
+		public int getStringPoolMaximumSize()
+		{
+			return FITSInternPool.getStringPool().getMaximumSize();
+		}
+
+		public void setStringPoolMaximumSize(int max)
+		{
+			FITSInternPool.getStringPool().setMaximumSize(max);
+		}
+
+		public double getStringPoolHitRate()
+		{
+			return FITSInternPool.getStringPool().getHitRate();
+		}
+
+		public long getMemoryUsed()
+		{
+			return FITSMemoryManager.getMemoryManager().getMemoryUsed();
+		}
+
+		public long getMemoryBudget()
+		{
+			return FITSMemoryManager.getMemoryManager().getBudget();
+		}
+
+		public void setMemoryBudget(long bytes)
+		{
+			FITSMemoryManager.getMemoryManager().setBudget(bytes);
+		}
+
+		public long getSpilledBytes()
+		{
+			return FITSMemoryManager.getMemoryManager().getSpilledBytes();
+		}
+
+		public long getSpillCount()
+		{
+			return FITSMemoryManager.getMemoryManager().getSpillCount();
+		}
+
+		public long getReloadCount()
+		{
+			return FITSMemoryManager.getMemoryManager().getReloadCount();
+		}
+
+		public String getSummary()
+		{
+			return FITSMetrics.getSummary();
+		}
+
+		public void reset()
+		{
+			FITSMetrics.reset();
+		}
+	}
+}
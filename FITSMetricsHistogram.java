@@ -0,0 +1,224 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMetricsHistogram.java
+// $Header$
+package org.estar.fits;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A lock free latency histogram, with power of two nanosecond buckets. Bucket i counts latencies
+ * in the range [2^i,2^(i+1)) nanoseconds, so percentiles are accurate to within a factor of two, which is
+ * enough to see where time goes, for the cost of two atomic increments per record.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSMetrics
+ */
+public class FITSMetricsHistogram
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of buckets. 2^63 nanoseconds is several centuries.
+	 */
+	public final static int BUCKET_COUNT = 64;
+	/**
+	 * The name of the histogram.
+	 */
+	protected String name = null;
+	/**
+	 * The bucket counts.
+	 */
+	protected AtomicLongArray bucketList = null;
+	/**
+	 * The number of latencies recorded.
+	 */
+	protected AtomicLong count = null;
+	/**
+	 * The sum of the latencies recorded, in nanoseconds.
+	 */
+	protected AtomicLong totalNanos = null;
+	/**
+	 * The largest latency recorded, in nanoseconds.
+	 */
+	protected AtomicLong maxNanos = null;
+
+	/**
+	 * Constructor.
+	 * @param s The name of the histogram.
+	 */
+	public FITSMetricsHistogram(String s)
+	{
+		super();
+		name = s;
+		bucketList = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong();
+		totalNanos = new AtomicLong();
+		maxNanos = new AtomicLong();
+	}
+
+	/**
+	 * Get the name of the histogram.
+	 * @return The name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos The latency in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos)
+	{
+		long max;
+
+		if(nanos < 0)
+			nanos = 0;
+		bucketList.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		max = maxNanos.get();
+		while((nanos > max)&&(maxNanos.compareAndSet(max,nanos) == false))
+			max = maxNanos.get();
+	}
+
+	/**
+	 * Get the number of latencies recorded.
+	 * @return The count.
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Get the sum of the latencies recorded.
+	 * @return The total, in nanoseconds.
+	 */
+	public long getTotalNanos()
+	{
+		return totalNanos.get();
+	}
+
+	/**
+	 * Get the largest latency recorded.
+	 * @return The maximum, in nanoseconds.
+	 */
+	public long getMaxNanos()
+	{
+		return maxNanos.get();
+	}
+
+	/**
+	 * Get the mean latency.
+	 * @return The mean, in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public double getMeanNanos()
+	{
+		long n;
+
+		n = count.get();
+		if(n == 0)
+			return 0.0;
+		return ((double)totalNanos.get())/((double)n);
+	}
+
+	/**
+	 * Get an estimate of a latency percentile. The upper bound of the bucket containing the percentile
+	 * is returned, limited to the maximum latency recorded.
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The latency, in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		long counts[];
+		long total,target,sum;
+
+		counts = new long[BUCKET_COUNT];
+		total = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = bucketList.get(i);
+			total += counts[i];
+		}
+		if(total == 0)
+			return 0;
+		target = (long)Math.ceil((Math.max(0.0,Math.min(100.0,percentile))/100.0)*total);
+		if(target < 1)
+			target = 1;
+		sum = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++)
+		{
+			sum += counts[i];
+			if(sum >= target)
+			{
+				if(i >= 62)
+					return maxNanos.get();
+				return Math.min((1L << (i+1))-1,maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * Clear the histogram.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKET_COUNT; i++)
+			bucketList.set(i,0);
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	/**
+	 * Return a summary of the histogram: count, mean, 50th, 99th percentile and maximum, in milliseconds.
+	 * @return The summary string.
+	 */
+	public String toString()
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		sb.append(name+": count="+getCount());
+		sb.append(" mean="+(getMeanNanos()/1.0e6)+"ms");
+		sb.append(" p50="+(getPercentileNanos(50.0)/1.0e6)+"ms");
+		sb.append(" p99="+(getPercentileNanos(99.0)/1.0e6)+"ms");
+		sb.append(" max="+(getMaxNanos()/1.0e6)+"ms");
+		return sb.toString();
+	}
+
+	/**
+	 * Get the bucket a latency falls in.
+	 * @param nanos The latency in nanoseconds, 0 or more.
+	 * @return The bucket index, floor(log2(nanos)), or 0 for a latency of 0.
+	 */
+	protected static int getBucket(long nanos)
+	{
+		if(nanos == 0)
+			return 0;
+		return 63-Long.numberOfLeadingZeros(nanos);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMetricsListener.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * Interface implemented by objects that want to receive the measurements FITSMetrics makes, for
+ * instance to forward them to an external monitoring system. Methods are called on the thread doing the work,
+ * so implementations should be quick and thread safe.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSMetrics#addListener
+ */
+public interface FITSMetricsListener
+{
+	/**
+	 * Called when a timed operation completes.
+	 * @param timer Which operation, one of the FITSMetrics TIMER_ constants.
+	 * @param nanos How long it took, in nanoseconds.
+	 * @see FITSMetrics#TIMER_NAME_LIST
+	 */
+	public void timing(int timer,long nanos);
+
+	/**
+	 * Called when bytes are read from a FITS file or stream.
+	 * @param byteCount The number of bytes read.
+	 */
+	public void bytesRead(long byteCount);
+
+	/**
+	 * Called when an operation fails.
+	 * @param timer Which operation, one of the FITSMetrics TIMER_ constants.
+	 * @param cause The failure cause, as used as the key in FITSMetrics.getFailureCounts.
+	 * @param e The exception thrown.
+	 * @see FITSMetrics#getCause
+	 */
+	public void failure(int timer,String cause,Exception e);
+}
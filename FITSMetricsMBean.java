@@ -0,0 +1,178 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMetricsMBean.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * JMX management interface of FITSMetrics. Times are returned in milliseconds, timer names are
+ * those in FITSMetrics.TIMER_NAME_LIST ("load","headerParse","decode","stats","render","spill").
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSMetrics
+ */
+public interface FITSMetricsMBean
+{
+	/**
+	 * Get whether measurements are being made.
+	 * @return true if enabled.
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Turn measurements on or off.
+	 * @param b true to enable.
+	 */
+	public void setEnabled(boolean b);
+
+	/**
+	 * Get the total number of bytes read.
+	 * @return The byte count.
+	 */
+	public long getBytesRead();
+
+	/**
+	 * Get the number of images loaded.
+	 * @return The load count.
+	 */
+	public long getLoadCount();
+
+	/**
+	 * Get the total number of failures.
+	 * @return The failure count.
+	 */
+	public long getFailureCount();
+
+	/**
+	 * Get the number of failures, by cause.
+	 * @return A map of cause to count.
+	 */
+	public Map<String,Long> getFailureCounts();
+
+	/**
+	 * Get the timer names.
+	 * @return The names.
+	 */
+	public String[] getTimerNames();
+
+	/**
+	 * Get the number of times an operation has been timed.
+	 * @param timerName The timer name.
+	 * @return The count.
+	 */
+	public long getCount(String timerName);
+
+	/**
+	 * Get the mean time of an operation.
+	 * @param timerName The timer name.
+	 * @return The mean, in milliseconds.
+	 */
+	public double getMeanMillis(String timerName);
+
+	/**
+	 * Get a percentile of the time of an operation.
+	 * @param timerName The timer name.
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The time, in milliseconds.
+	 */
+	public double getPercentileMillis(String timerName,double percentile);
+
+	/**
+	 * Get the maximum time of an operation.
+	 * @param timerName The timer name.
+	 * @return The maximum, in milliseconds.
+	 */
+	public double getMaxMillis(String timerName);
+
+	/**
+	 * Get the number of strings in the shared header string pool.
+	 * @return The pool size.
+	 * @see FITSInternPool#getStringPool
+	 */
+	public int getStringPoolSize();
+
+	/**
+	 * Get the maximum number of strings in the shared header string pool.
+	 * @return The maximum pool size.
+	 */
+	public int getStringPoolMaximumSize();
+
+	/**
+	 * Set the maximum number of strings in the shared header string pool.
+	 * @param max The maximum pool size.
+	 */
+	public void setStringPoolMaximumSize(int max);
+
+	/**
+	 * Get the fraction of lookups in the shared header string pool that found a pooled string.
+	 * @return The hit rate, between 0 and 1.
+	 */
+	public double getStringPoolHitRate();
+
+	/**
+	 * Get the number of bytes of image pixel arrays in memory, registered with the shared memory manager.
+	 * @return The number of bytes.
+	 * @see FITSMemoryManager#getMemoryManager
+	 */
+	public long getMemoryUsed();
+
+	/**
+	 * Get the pixel memory budget of the shared memory manager.
+	 * @return The budget in bytes, 0 for unlimited.
+	 */
+	public long getMemoryBudget();
+
+	/**
+	 * Set the pixel memory budget of the shared memory manager.
+	 * @param bytes The budget in bytes, 0 for unlimited.
+	 */
+	public void setMemoryBudget(long bytes);
+
+	/**
+	 * Get the number of bytes of image pixel arrays currently spilled to scratch files.
+	 * @return The number of bytes.
+	 */
+	public long getSpilledBytes();
+
+	/**
+	 * Get the number of image pixel arrays spilled to scratch files.
+	 * @return The spill count.
+	 */
+	public long getSpillCount();
+
+	/**
+	 * Get the number of spilled image pixel arrays paged back in.
+	 * @return The reload count.
+	 */
+	public long getReloadCount();
+
+	/**
+	 * Get a summary of all the metrics.
+	 * @return A multi-line summary string.
+	 */
+	public String getSummary();
+
+	/**
+	 * Clear all the metrics.
+	 */
+	public void reset();
+}
@@ -0,0 +1,981 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSMosaic.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.estar.astrometry.*;
+
+/**
+ * Reprojects frames from different pointings onto a common sky grid, and co-adds them with weights.
+ * The grid, and each frame, use the linear mapping of FITSImage.getPosition: RA varies along X and
+ * declination along Y, from the field centre (FCRA/FCDEC) at pixel (width/2,height/2), at the plate scales
+ * (XPS/YPS, arc-seconds per pixel). The mapping from mosaic pixels to frame pixels is therefore a scale and
+ * offset on each axis, and each frame is resampled with one of:
+ * <ul>
+ * <li>RESAMPLE_NEAREST: the frame pixel nearest the mosaic pixel centre.
+ * <li>RESAMPLE_BILINEAR: bilinear interpolation between the four frame pixels around the mosaic pixel centre.
+ * <li>RESAMPLE_FLUX: the sum of the frame pixels under the mosaic pixel, each weighted by the fraction of it
+ *     covered, so the total flux is conserved. The other methods conserve surface brightness instead.
+ * </ul>
+ * Each mosaic pixel is the weighted mean of the resampled frames covering it, or NaN if none do. Blank
+ * (NaN) frame pixels are excluded, and partly covered mosaic pixels are down-weighted.
+ * <p>
+ * The mosaic is computed in bands of rows, in parallel. Frames added as files are not loaded: each band reads
+ * only the rows of each frame it overlaps, so a mosaic can be written to disk (with write) without holding
+ * the frames, or the mosaic, in memory. At most windowSize bands are in progress or waiting to be written.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImage#getPosition(int,int)
+ * @see FITSRowWriter
+ */
+public class FITSMosaic
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Resampling method: nearest frame pixel.
+	 */
+	public final static int RESAMPLE_NEAREST = 0;
+	/**
+	 * Resampling method: bilinear interpolation.
+	 */
+	public final static int RESAMPLE_BILINEAR = 1;
+	/**
+	 * Resampling method: flux conserving, by the area of overlap of frame and mosaic pixels.
+	 */
+	public final static int RESAMPLE_FLUX = 2;
+	/**
+	 * The default number of mosaic rows computed by each parallel task.
+	 */
+	public final static int DEFAULT_BAND_HEIGHT = 64;
+	/**
+	 * The mosaic field centre RA, in arc-seconds.
+	 */
+	protected double fcRAArcSeconds = 0.0;
+	/**
+	 * The mosaic field centre declination, in arc-seconds.
+	 */
+	protected double fcDecArcSeconds = 0.0;
+	/**
+	 * The width of the mosaic, in pixels.
+	 */
+	protected int width = 0;
+	/**
+	 * The height of the mosaic, in pixels.
+	 */
+	protected int height = 0;
+	/**
+	 * The mosaic X plate scale, in arc-seconds per pixel.
+	 */
+	protected double xPlateScale = 0.0;
+	/**
+	 * The mosaic Y plate scale, in arc-seconds per pixel.
+	 */
+	protected double yPlateScale = 0.0;
+	/**
+	 * The resampling method.
+	 * @see #RESAMPLE_NEAREST
+	 * @see #RESAMPLE_BILINEAR
+	 * @see #RESAMPLE_FLUX
+	 */
+	protected int resampleMethod = RESAMPLE_BILINEAR;
+	/**
+	 * The number of mosaic rows computed by each parallel task.
+	 */
+	protected int bandHeight = DEFAULT_BAND_HEIGHT;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * The maximum number of bands in progress or waiting to be written. If less than 1, twice the
+	 * number of threads is used.
+	 */
+	protected int windowSize = 0;
+	/**
+	 * The frames to co-add.
+	 */
+	protected List<Input> inputList = null;
+
+	/**
+	 * Constructor. The grid must be set with setGrid or setGridToCover before the mosaic is computed.
+	 */
+	public FITSMosaic()
+	{
+		super();
+		inputList = new Vector<Input>();
+	}
+
+	/**
+	 * Set the mosaic grid.
+	 * @param ra The field centre RA, in degrees, at pixel (w/2,h/2).
+	 * @param dec The field centre declination, in degrees.
+	 * @param w The width of the mosaic, in pixels.
+	 * @param h The height of the mosaic, in pixels.
+	 * @param xps The X plate scale, in arc-seconds per pixel (with the same sign convention as XPS).
+	 * @param yps The Y plate scale, in arc-seconds per pixel (with the same sign convention as YPS).
+	 * @exception IllegalArgumentException Thrown if the size is not positive, or a plate scale is 0.
+	 */
+	public void setGrid(double ra,double dec,int w,int h,double xps,double yps) throws IllegalArgumentException
+	{
+		if((w < 1)||(h < 1))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setGrid:Illegal size:"+w+" x "+h);
+		}
+		if((xps == 0.0)||(yps == 0.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setGrid:Illegal plate scale:"+
+							   xps+","+yps);
+		}
+		fcRAArcSeconds = ra*3600.0;
+		fcDecArcSeconds = dec*3600.0;
+		width = w;
+		height = h;
+		xPlateScale = xps;
+		yPlateScale = yps;
+	}
+
+	/**
+	 * Set the mosaic grid to the smallest grid, at the specified plate scales, covering all the frames added
+	 * so far.
+	 * @param xps The X plate scale, in arc-seconds per pixel.
+	 * @param yps The Y plate scale, in arc-seconds per pixel.
+	 * @exception IllegalArgumentException Thrown if no frames have been added, or a plate scale is 0.
+	 * @see #setGrid
+	 */
+	public void setGridToCover(double xps,double yps) throws IllegalArgumentException
+	{
+		Input input = null;
+		double raMin,raMax,decMin,decMax,ra0,ra1,dec0,dec1;
+		int w,h;
+
+		if(inputList.size() == 0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setGridToCover:No frames.");
+		}
+		if((xps == 0.0)||(yps == 0.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setGridToCover:"+
+							   "Illegal plate scale:"+xps+","+yps);
+		}
+		raMin = Double.MAX_VALUE;
+		raMax = -Double.MAX_VALUE;
+		decMin = Double.MAX_VALUE;
+		decMax = -Double.MAX_VALUE;
+		for(int i = 0; i < inputList.size(); i++)
+		{
+			input = inputList.get(i);
+			// the outer edges of the frame's edge pixels
+			ra0 = input.fcRAArcSeconds+(((input.width/2)+0.5)*input.xPlateScale);
+			ra1 = input.fcRAArcSeconds+(((input.width/2)-(input.width-0.5))*input.xPlateScale);
+			dec0 = input.fcDecArcSeconds+(((input.height/2)+0.5)*input.yPlateScale);
+			dec1 = input.fcDecArcSeconds+(((input.height/2)-(input.height-0.5))*input.yPlateScale);
+			raMin = Math.min(raMin,Math.min(ra0,ra1));
+			raMax = Math.max(raMax,Math.max(ra0,ra1));
+			decMin = Math.min(decMin,Math.min(dec0,dec1));
+			decMax = Math.max(decMax,Math.max(dec0,dec1));
+		}
+		// allow for rounding, so the edge frame pixels are not lost
+		w = Math.max(1,(int)Math.ceil(((raMax-raMin)/Math.abs(xps))-1.0e-6));
+		h = Math.max(1,(int)Math.ceil(((decMax-decMin)/Math.abs(yps))-1.0e-6));
+		// pixel -0.5 is at the edge RA/Dec that the plate scale's sign puts on the left/top
+		ra0 = ((xps > 0.0) ? raMax : raMin)-(((w/2)+0.5)*xps);
+		dec0 = ((yps > 0.0) ? decMax : decMin)-(((h/2)+0.5)*yps);
+		setGrid(ra0/3600.0,dec0/3600.0,w,h,xps,yps);
+	}
+
+	/**
+	 * Set the resampling method.
+	 * @param m The method, one of RESAMPLE_NEAREST, RESAMPLE_BILINEAR or RESAMPLE_FLUX.
+	 * @exception IllegalArgumentException Thrown if the method is not one of those.
+	 * @see #resampleMethod
+	 */
+	public void setResampleMethod(int m) throws IllegalArgumentException
+	{
+		if((m != RESAMPLE_NEAREST)&&(m != RESAMPLE_BILINEAR)&&(m != RESAMPLE_FLUX))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setResampleMethod:"+
+							   "Illegal method:"+m);
+		}
+		resampleMethod = m;
+	}
+
+	/**
+	 * Set the number of mosaic rows computed by each parallel task. Memory use is proportional to the band
+	 * height times the window size.
+	 * @param h The band height, in rows.
+	 * @exception IllegalArgumentException Thrown if the height is less than 1.
+	 * @see #bandHeight
+	 */
+	public void setBandHeight(int h) throws IllegalArgumentException
+	{
+		if(h < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setBandHeight:Illegal height:"+h);
+		}
+		bandHeight = h;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Set the maximum number of bands in progress or waiting to be written.
+	 * @param n The window size. If less than 1, twice the number of threads is used.
+	 * @see #windowSize
+	 */
+	public void setWindowSize(int n)
+	{
+		windowSize = n;
+	}
+
+	/**
+	 * Add a frame, from a file, with weight 1. Only the frame's header is read now.
+	 * @param file The frame's file.
+	 * @exception IOException Thrown if reading the header fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image with a sky mapping.
+	 * @see #addFrame(java.io.File,double)
+	 */
+	public void addFrame(File file) throws IOException,FITSException
+	{
+		addFrame(file,1.0);
+	}
+
+	/**
+	 * Add a frame, from a file. Only the frame's header is read now; its rows are read as they are needed.
+	 * @param file The frame's file.
+	 * @param weight The frame's weight in the co-add (e.g. the inverse of its sky variance).
+	 * @exception IOException Thrown if reading the header fails.
+	 * @exception FITSException Thrown if the file is not a two dimensional FITS image with a sky mapping.
+	 */
+	public void addFrame(File file,double weight) throws IOException,FITSException
+	{
+		RandomAccessFile randomAccessFile = null;
+		FITSHeaderCards cards = null;
+		Input input = null;
+		RA fcRA = null;
+		Dec fcDec = null;
+		String s = null;
+
+		input = new Input();
+		input.file = file;
+		input.weight = weight;
+		randomAccessFile = new RandomAccessFile(file,"r");
+		try
+		{
+			cards = FITSHeaderCards.read(randomAccessFile);
+			input.dataOffset = randomAccessFile.getFilePointer();
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		if(cards.getInt("NAXIS") != 2)
+		{
+			throw new FITSException(this.getClass().getName()+":addFrame:"+file+":Illegal number of axes:"+
+						cards.getInt("NAXIS"));
+		}
+		input.width = cards.getInt("NAXIS1");
+		input.height = cards.getInt("NAXIS2");
+		input.decoder = FITSDataDecoder.create(cards);
+		input.decoder.setThreadCount(1);
+		s = cards.getString("FCRA");
+		if(s != null)
+		{
+			fcRA = new RA();
+			fcRA.parseSpace(s);
+		}
+		s = cards.getString("FCDEC");
+		if(s != null)
+		{
+			fcDec = new Dec();
+			fcDec.parseSpace(s);
+		}
+		addInput(input,fcRA,fcDec,cards.getDouble("XPS"),cards.getDouble("YPS"));
+	}
+
+	/**
+	 * Add a loaded frame.
+	 * @param image The frame. Its data is used when the mosaic is computed, so must not be changed before.
+	 * @param weight The frame's weight in the co-add.
+	 * @exception FITSException Thrown if the image has no data or no sky mapping.
+	 */
+	public void addImage(FITSImage image,double weight) throws FITSException
+	{
+		Input input = null;
+
+		if(image.getDataArray() == null)
+		{
+			throw new FITSException(this.getClass().getName()+":addImage:Image has no data.");
+		}
+		input = new Input();
+		input.image = image;
+		input.weight = weight;
+		input.width = image.getWidth();
+		input.height = image.getHeight();
+		addInput(input,image.getFCRA(),image.getFCDec(),image.getXPlateScale(),image.getYPlateScale());
+	}
+
+	/**
+	 * Get the number of frames added.
+	 * @return The number of frames.
+	 */
+	public int getFrameCount()
+	{
+		return inputList.size();
+	}
+
+	/**
+	 * Get the width of the mosaic.
+	 * @return The width, in pixels.
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the mosaic.
+	 * @return The height, in pixels.
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Compute the mosaic in memory.
+	 * @return A new image holding the mosaic, with its field centre and plate scales set.
+	 * @exception FITSException Thrown if the grid is not set, or reading a frame fails.
+	 * @see #computeBand
+	 */
+	public FITSImage createImage() throws FITSException
+	{
+		final float dataArray[];
+		FITSImage image = null;
+		RA ra = null;
+		Dec dec = null;
+
+		checkGrid("createImage");
+		dataArray = new float[width*height];
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(height,bandHeight),new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				int row = index*bandHeight;
+
+				computeBand(row,Math.min(bandHeight,height-row),dataArray,row*width);
+			}
+		});
+		image = new FITSImage(width,height,dataArray);
+		ra = new RA();
+		ra.fromArcSeconds(fcRAArcSeconds);
+		dec = new Dec();
+		dec.fromArcSeconds(fcDecArcSeconds);
+		image.fcRA = ra;
+		image.fcDec = dec;
+		image.xPlateScale = xPlateScale;
+		image.yPlateScale = yPlateScale;
+		image.bitpix = -32;
+		image.setMinMaxPixelValue();
+		return image;
+	}
+
+	/**
+	 * Compute the mosaic, and write it to a file as a BITPIX -32 image with FCRA, FCDEC, XPS and YPS set.
+	 * Bands are computed in parallel, and written in order as they are completed.
+	 * @param file The file to write to.
+	 * @exception IOException Thrown if writing fails.
+	 * @exception FITSException Thrown if the grid is not set, reading a frame fails, or this thread is
+	 *            interrupted.
+	 * @see #computeBand
+	 */
+	public void write(File file) throws IOException,FITSException
+	{
+		ExecutorService executor = null;
+		LinkedList<Future<float[]>> futureList = null;
+		FITSRowWriter rowWriter = null;
+		float band[];
+		int nThreads,window,bandCount,next;
+
+		checkGrid("write");
+		rowWriter = new FITSRowWriter();
+		rowWriter.setBitpix(-32);
+		rowWriter.addCard(FITSCard.formatString("FCRA",formatSexagesimal(fcRAArcSeconds/15.0,false),
+							"mosaic field centre RA"));
+		rowWriter.addCard(FITSCard.formatString("FCDEC",formatSexagesimal(fcDecArcSeconds,true),
+							"mosaic field centre declination"));
+		rowWriter.addCard(FITSCard.formatReal("XPS",xPlateScale,"arcsec/pixel"));
+		rowWriter.addCard(FITSCard.formatReal("YPS",yPlateScale,"arcsec/pixel"));
+		rowWriter.addCard(FITSCard.formatInteger("NCOMBINE",inputList.size(),"number of frames combined"));
+		nThreads = (threadCount < 1) ? FITSParallel.getDefaultThreadCount() : threadCount;
+		window = (windowSize < 1) ? (2*nThreads) : windowSize;
+		bandCount = FITSParallel.getChunkCount(height,bandHeight);
+		executor = Executors.newFixedThreadPool(nThreads,new FITSParallel.DaemonThreadFactory(
+								this.getClass().getName(),Thread.NORM_PRIORITY));
+		futureList = new LinkedList<Future<float[]>>();
+		rowWriter.open(file,width,height);
+		try
+		{
+			next = 0;
+			while((next < bandCount)&&(futureList.size() < window))
+				futureList.add(submit(executor,next++));
+			while(futureList.size() > 0)
+			{
+				band = futureList.removeFirst().get();
+				if(next < bandCount)
+					futureList.add(submit(executor,next++));
+				rowWriter.writeRows(band,0,band.length/width);
+			}
+			rowWriter.close();
+			rowWriter = null;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new FITSException(this.getClass().getName()+":write:Interrupted.",e);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof FITSException)
+				throw (FITSException)(e.getCause());
+			throw new FITSException(this.getClass().getName()+":write:Band failed:"+e.getCause(),e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			// close the file, even though it is incomplete
+			if(rowWriter != null)
+			{
+				try
+				{
+					rowWriter.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a string describing the mosaic.
+	 * @return The string.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+": "+width+" x "+height+" at "+xPlateScale+","+yPlateScale+
+			" frames="+inputList.size()+" method="+resampleMethod;
+	}
+
+	/**
+	 * Add a frame, with its sky mapping.
+	 * @param input The frame, with its size set.
+	 * @param fcRA The frame's field centre RA, can be null.
+	 * @param fcDec The frame's field centre declination, can be null.
+	 * @param xps The frame's X plate scale.
+	 * @param yps The frame's Y plate scale.
+	 * @exception FITSException Thrown if the field centre is null, or a plate scale is 0.
+	 */
+	protected void addInput(Input input,RA fcRA,Dec fcDec,double xps,double yps) throws FITSException
+	{
+		if((fcRA == null)||(fcDec == null)||(xps == 0.0)||(yps == 0.0))
+		{
+			throw new FITSException(this.getClass().getName()+":addInput:"+
+						((input.file != null) ? input.file.toString() : "image")+
+						":No field centre or plate scale.");
+		}
+		input.fcRAArcSeconds = fcRA.toArcSeconds();
+		input.fcDecArcSeconds = fcDec.toArcSeconds();
+		input.xPlateScale = xps;
+		input.yPlateScale = yps;
+		inputList.add(input);
+	}
+
+	/**
+	 * Check the grid has been set.
+	 * @param methodName The calling method, for the error message.
+	 * @exception FITSException Thrown if the grid has not been set.
+	 */
+	protected void checkGrid(String methodName) throws FITSException
+	{
+		if((width < 1)||(height < 1))
+		{
+			throw new FITSException(this.getClass().getName()+":"+methodName+":Mosaic grid not set.");
+		}
+	}
+
+	/**
+	 * Submit a band to be computed.
+	 * @param executor The executor to submit to.
+	 * @param index The index of the band.
+	 * @return The future band, in FITS row order.
+	 */
+	protected Future<float[]> submit(ExecutorService executor,final int index)
+	{
+		return executor.submit(new Callable<float[]>()
+		{
+			public float[] call() throws Exception
+			{
+				float band[];
+				int row = index*bandHeight;
+
+				band = new float[Math.min(bandHeight,height-row)*width];
+				computeBand(row,band.length/width,band,0);
+				return band;
+			}
+		});
+	}
+
+	/**
+	 * Compute a band of mosaic rows: each frame overlapping the band is resampled onto it, and the weighted
+	 * mean taken.
+	 * @param firstRow The first FITS row (row 0 is the bottom of the displayed mosaic).
+	 * @param rowCount The number of rows.
+	 * @param dst The array to put the rows in, in FITS row order.
+	 * @param dstOffset The index in dst of the first pixel.
+	 * @exception IOException Thrown if reading a frame fails.
+	 * @exception FITSException Thrown if reading a frame fails.
+	 * @see #resample
+	 */
+	protected void computeBand(int firstRow,int rowCount,float dst[],int dstOffset)
+		throws IOException,FITSException
+	{
+		double sum[],weightSum[];
+
+		sum = new double[rowCount*width];
+		weightSum = new double[rowCount*width];
+		for(int i = 0; i < inputList.size(); i++)
+			resample(inputList.get(i),firstRow,rowCount,sum,weightSum);
+		for(int i = 0; i < sum.length; i++)
+			dst[dstOffset+i] = (weightSum[i] > 0.0) ? (float)(sum[i]/weightSum[i]) : Float.NaN;
+	}
+
+	/**
+	 * Resample a frame onto a band of mosaic rows, adding it to the band's weighted sums. Mosaic display
+	 * pixel (X,Y) maps to frame display position (ax*X+bx,ay*Y+by). Only the frame rows the band overlaps
+	 * are read.
+	 * @param input The frame.
+	 * @param firstRow The first FITS row of the band.
+	 * @param rowCount The number of rows in the band.
+	 * @param sum The weighted sum of the band's pixels, in FITS row order.
+	 * @param weightSum The sum of the weights of the band's pixels.
+	 * @exception IOException Thrown if reading the frame fails.
+	 * @exception FITSException Thrown if reading the frame fails.
+	 * @see #readRows
+	 */
+	protected void resample(Input input,int firstRow,int rowCount,double sum[],double weightSum[])
+		throws IOException,FITSException
+	{
+		Rows rows = null;
+		double ax,bx,ay,by,xa,xb,ya,yb,yTop,yBottom;
+		int yFirst,yLast,pixelIndex;
+
+		ax = xPlateScale/input.xPlateScale;
+		bx = ((input.fcRAArcSeconds-fcRAArcSeconds-((width/2)*xPlateScale))/input.xPlateScale)+(input.width/2);
+		ay = yPlateScale/input.yPlateScale;
+		by = ((input.fcDecArcSeconds-fcDecArcSeconds-((height/2)*yPlateScale))/input.yPlateScale)+
+			(input.height/2);
+		// the frame's X range covered by the mosaic's X range, and Y range by the band's display rows
+		xa = (ax*-0.5)+bx;
+		xb = (ax*(width-0.5))+bx;
+		if((Math.max(xa,xb) < -0.5)||(Math.min(xa,xb) > (input.width-0.5)))
+			return;
+		yBottom = height-(firstRow+rowCount);
+		yTop = height-(firstRow+1);
+		ya = (ay*(yBottom-0.5))+by;
+		yb = (ay*(yTop+0.5))+by;
+		yFirst = Math.max(0,(int)Math.floor(Math.min(ya,yb))-1);
+		yLast = Math.min(input.height-1,(int)Math.ceil(Math.max(ya,yb))+1);
+		if(yFirst > yLast)
+			return;
+		rows = readRows(input,yFirst,yLast);
+		for(int row = firstRow; row < firstRow+rowCount; row++)
+		{
+			// display row of the mosaic, and its range on the frame
+			ya = (ay*((height-(row+1))-0.5))+by;
+			yb = (ay*((height-(row+1))+0.5))+by;
+			for(int x = 0; x < width; x++)
+			{
+				xa = (ax*(x-0.5))+bx;
+				xb = (ax*(x+0.5))+bx;
+				pixelIndex = ((row-firstRow)*width)+x;
+				switch(resampleMethod)
+				{
+					case RESAMPLE_NEAREST:
+						addNearest(rows,(xa+xb)/2.0,(ya+yb)/2.0,input.weight,sum,weightSum,pixelIndex);
+						break;
+					case RESAMPLE_BILINEAR:
+						addBilinear(rows,(xa+xb)/2.0,(ya+yb)/2.0,input.weight,sum,weightSum,
+							    pixelIndex);
+						break;
+					default:
+						addFlux(rows,Math.min(xa,xb),Math.max(xa,xb),Math.min(ya,yb),Math.max(ya,yb),
+							input.weight,sum,weightSum,pixelIndex);
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the nearest frame pixel to a mosaic pixel.
+	 * @param rows The frame rows.
+	 * @param x The frame X position of the mosaic pixel centre.
+	 * @param y The frame Y position of the mosaic pixel centre (display).
+	 * @param weight The frame weight.
+	 * @param sum The weighted sums.
+	 * @param weightSum The weight sums.
+	 * @param pixelIndex The index of the mosaic pixel in the sums.
+	 */
+	protected void addNearest(Rows rows,double x,double y,double weight,double sum[],double weightSum[],
+				  int pixelIndex)
+	{
+		float value;
+		int ix,iy;
+
+		ix = (int)Math.floor(x+0.5);
+		iy = (int)Math.floor(y+0.5);
+		if((ix < 0)||(ix >= rows.width)||(iy < rows.yFirst)||(iy > rows.yLast))
+			return;
+		value = rows.get(ix,iy);
+		if(Float.isNaN(value))
+			return;
+		sum[pixelIndex] += weight*value;
+		weightSum[pixelIndex] += weight;
+	}
+
+	/**
+	 * Add the bilinear interpolation of the frame at a mosaic pixel centre. Positions within half a pixel
+	 * of the frame edge use the edge pixels. Blank frame pixels are excluded, and the remainder reweighted.
+	 * @param rows The frame rows.
+	 * @param x The frame X position of the mosaic pixel centre.
+	 * @param y The frame Y position of the mosaic pixel centre (display).
+	 * @param weight The frame weight.
+	 * @param sum The weighted sums.
+	 * @param weightSum The weight sums.
+	 * @param pixelIndex The index of the mosaic pixel in the sums.
+	 */
+	protected void addBilinear(Rows rows,double x,double y,double weight,double sum[],double weightSum[],
+				   int pixelIndex)
+	{
+		double fx,fy,f,valueSum,fSum;
+		float value;
+		int x0,y0,ix,iy;
+
+		if((x < -0.5)||(x > (rows.width-0.5))||(y < -0.5)||(y > (rows.height-0.5)))
+			return;
+		x = Math.min(Math.max(x,0.0),rows.width-1);
+		y = Math.min(Math.max(y,0.0),rows.height-1);
+		x0 = Math.min((int)Math.floor(x),Math.max(rows.width-2,0));
+		y0 = Math.min((int)Math.floor(y),Math.max(rows.height-2,0));
+		fx = x-x0;
+		fy = y-y0;
+		valueSum = 0.0;
+		fSum = 0.0;
+		for(int j = 0; j < 2; j++)
+		{
+			iy = Math.min(y0+j,rows.height-1);
+			for(int i = 0; i < 2; i++)
+			{
+				ix = Math.min(x0+i,rows.width-1);
+				f = ((i == 0) ? (1.0-fx) : fx)*((j == 0) ? (1.0-fy) : fy);
+				if(f == 0.0)
+					continue;
+				value = rows.get(ix,iy);
+				if(Float.isNaN(value))
+					continue;
+				valueSum += f*value;
+				fSum += f;
+			}
+		}
+		if(fSum <= 0.0)
+			return;
+		// value valueSum/fSum, with weight weight*fSum
+		sum[pixelIndex] += weight*valueSum;
+		weightSum[pixelIndex] += weight*fSum;
+	}
+
+	/**
+	 * Add the flux of the frame under a mosaic pixel: the sum of the frame pixels it covers, each weighted by
+	 * the fraction covered. Where part of the mosaic pixel is off the frame or blank, the flux of the rest is
+	 * scaled up to the whole pixel, and the weight scaled down by the fraction covered.
+	 * @param rows The frame rows.
+	 * @param xa The left edge of the mosaic pixel on the frame.
+	 * @param xb The right edge of the mosaic pixel on the frame.
+	 * @param ya The top edge of the mosaic pixel on the frame (display).
+	 * @param yb The bottom edge of the mosaic pixel on the frame (display).
+	 * @param weight The frame weight.
+	 * @param sum The weighted sums.
+	 * @param weightSum The weight sums.
+	 * @param pixelIndex The index of the mosaic pixel in the sums.
+	 */
+	protected void addFlux(Rows rows,double xa,double xb,double ya,double yb,double weight,double sum[],
+			       double weightSum[],int pixelIndex)
+	{
+		double fy,f,valueSum,area,coveredArea;
+		float value;
+		int ix0,ix1,iy0,iy1;
+
+		ix0 = Math.max(0,(int)Math.floor(xa+0.5));
+		ix1 = Math.min(rows.width-1,(int)Math.ceil(xb-0.5));
+		iy0 = Math.max(rows.yFirst,(int)Math.floor(ya+0.5));
+		iy1 = Math.min(rows.yLast,(int)Math.ceil(yb-0.5));
+		valueSum = 0.0;
+		coveredArea = 0.0;
+		for(int iy = iy0; iy <= iy1; iy++)
+		{
+			fy = Math.min(yb,iy+0.5)-Math.max(ya,iy-0.5);
+			if(fy <= 0.0)
+				continue;
+			for(int ix = ix0; ix <= ix1; ix++)
+			{
+				f = fy*(Math.min(xb,ix+0.5)-Math.max(xa,ix-0.5));
+				if(f <= 0.0)
+					continue;
+				value = rows.get(ix,iy);
+				if(Float.isNaN(value))
+					continue;
+				valueSum += f*value;
+				coveredArea += f;
+			}
+		}
+		if(coveredArea <= 0.0)
+			return;
+		area = (xb-xa)*(yb-ya);
+		// flux valueSum*area/coveredArea, with weight weight*coveredArea/area
+		sum[pixelIndex] += weight*valueSum;
+		weightSum[pixelIndex] += weight*(coveredArea/area);
+	}
+
+	/**
+	 * Get a range of a frame's rows. For a frame added as a file, the rows are read (with positional reads);
+	 * for a loaded frame, its data array is used.
+	 * @param input The frame.
+	 * @param yFirst The first display row.
+	 * @param yLast The last display row.
+	 * @return The rows.
+	 * @exception IOException Thrown if reading the frame fails.
+	 * @exception FITSException Thrown if reading the frame fails.
+	 */
+	protected Rows readRows(Input input,int yFirst,int yLast) throws IOException,FITSException
+	{
+		RandomAccessFile randomAccessFile = null;
+		Rows rows = null;
+		int fitsRow,rowCount;
+
+		rows = new Rows();
+		rows.width = input.width;
+		rows.height = input.height;
+		rows.yFirst = yFirst;
+		rows.yLast = yLast;
+		if(input.image != null)
+		{
+			rows.data = input.image.getDataArray();
+			rows.firstRow = 0;
+			return rows;
+		}
+		// display rows yFirst..yLast are FITS rows height-(yLast+1)..height-(yFirst+1)
+		fitsRow = input.height-(yLast+1);
+		rowCount = (yLast-yFirst)+1;
+		rows.data = new float[rowCount*input.width];
+		rows.firstRow = fitsRow;
+		randomAccessFile = new RandomAccessFile(input.file,"r");
+		try
+		{
+			input.decoder.read(randomAccessFile.getChannel(),input.dataOffset+
+					   (((long)fitsRow)*input.width*input.decoder.getBytesPerPixel()),
+					   rows.data,0,rows.data.length);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Format a value in arc-seconds (or seconds of time) as space separated sexagesimal, as read by
+	 * RA.parseSpace and Dec.parseSpace.
+	 * @param seconds The value, in seconds.
+	 * @param signed Whether to always include a sign (for declinations).
+	 * @return The formatted string, "[+-]DD MM SS.sss".
+	 */
+	protected static String formatSexagesimal(double seconds,boolean signed)
+	{
+		String sign = null;
+		long milliseconds;
+
+		sign = (seconds < 0.0) ? "-" : (signed ? "+" : "");
+		milliseconds = Math.round(Math.abs(seconds)*1000.0);
+		return sign+String.format("%02d %02d %02d.%03d",milliseconds/3600000L,(milliseconds/60000L)%60L,
+					  (milliseconds/1000L)%60L,milliseconds%1000L);
+	}
+
+	/**
+	 * A frame to co-add: its size and sky mapping, and either a loaded image, or a file and decoder.
+	 */
+	protected static class Input
+	{
+		/**
+		 * The loaded frame, or null if the frame is read from a file.
+		 */
+		protected FITSImage image = null;
+		/**
+		 * The frame's file, or null if the frame is loaded.
+		 */
+		protected File file = null;
+		/**
+		 * The offset in the file of the frame's data.
+		 */
+		protected long dataOffset = 0L;
+		/**
+		 * The decoder for the frame's data.
+		 */
+		protected FITSDataDecoder decoder = null;
+		/**
+		 * The width of the frame.
+		 */
+		protected int width = 0;
+		/**
+		 * The height of the frame.
+		 */
+		protected int height = 0;
+		/**
+		 * The frame's field centre RA, in arc-seconds.
+		 */
+		protected double fcRAArcSeconds = 0.0;
+		/**
+		 * The frame's field centre declination, in arc-seconds.
+		 */
+		protected double fcDecArcSeconds = 0.0;
+		/**
+		 * The frame's X plate scale, in arc-seconds per pixel.
+		 */
+		protected double xPlateScale = 0.0;
+		/**
+		 * The frame's Y plate scale, in arc-seconds per pixel.
+		 */
+		protected double yPlateScale = 0.0;
+		/**
+		 * The frame's weight in the co-add.
+		 */
+		protected double weight = 1.0;
+	}
+
+	/**
+	 * A range of a frame's rows, addressed by frame display position.
+	 */
+	protected static class Rows
+	{
+		/**
+		 * The row data, in FITS row order.
+		 */
+		protected float data[] = null;
+		/**
+		 * The FITS row of the first row in data.
+		 */
+		protected int firstRow = 0;
+		/**
+		 * The first display row that can be read.
+		 */
+		protected int yFirst = 0;
+		/**
+		 * The last display row that can be read.
+		 */
+		protected int yLast = 0;
+		/**
+		 * The width of the frame.
+		 */
+		protected int width = 0;
+		/**
+		 * The height of the frame.
+		 */
+		protected int height = 0;
+
+		/**
+		 * Get a frame pixel.
+		 * @param x The X position.
+		 * @param y The display Y position, between yFirst and yLast.
+		 * @return The pixel value.
+		 */
+		protected float get(int x,int y)
+		{
+			return data[(((height-(y+1))-firstRow)*width)+x];
+		}
+	}
+
+	/**
+	 * Test main method. Writes a mosaic covering a list of frames.
+	 * @param args The command line arguments: the output filename, the plate scale (arc-seconds per
+	 *        pixel), the resampling method (nearest, bilinear or flux), then the frame filenames.
+	 */
+	public static void main(String args[])
+	{
+		FITSMosaic mosaic = null;
+		double plateScale;
+		long startTime;
+
+		if(args.length < 4)
+		{
+			System.err.println("java org.estar.fits.FITSMosaic <output> <platescale> <nearest|bilinear|flux> "+
+					   "<filename>...");
+			System.exit(1);
+		}
+		try
+		{
+			mosaic = new FITSMosaic();
+			plateScale = Double.parseDouble(args[1]);
+			if(args[2].equals("nearest"))
+				mosaic.setResampleMethod(RESAMPLE_NEAREST);
+			else if(args[2].equals("flux"))
+				mosaic.setResampleMethod(RESAMPLE_FLUX);
+			else
+				mosaic.setResampleMethod(RESAMPLE_BILINEAR);
+			for(int i = 3; i < args.length; i++)
+				mosaic.addFrame(new File(args[i]));
+			mosaic.setGridToCover(plateScale,plateScale);
+			startTime = System.nanoTime();
+			mosaic.write(new File(args[0]));
+			System.out.println(mosaic+" written in "+((System.nanoTime()-startTime)/1000000.0)+" ms.");
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSMosaic failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,311 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSParallel.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class contains utility methods for running a number of independant tasks (strips, tiles, cells...)
+ * concurrently, over a number of threads. It is used by the image processing classes in this package.
+ * The worker threads come from a shared pool of daemon threads, created when first needed, so the many short
+ * parallel operations an image goes through do not each create and destroy threads, and per thread scratch
+ * buffers are reused between operations. The pool grows to the number of threads in use at once (so nested
+ * parallel operations cannot deadlock), and idle threads exit after KEEP_ALIVE_SECONDS.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FITSParallel
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The default number of threads to use, if the caller does not specify one.
+	 * Initialised to the number of available processors.
+	 */
+	private static int defaultThreadCount = Runtime.getRuntime().availableProcessors();
+	/**
+	 * How long an idle pool thread waits for more work before exiting, in seconds.
+	 */
+	public final static long KEEP_ALIVE_SECONDS = 60L;
+	/**
+	 * The shared pool of worker threads, created when first needed.
+	 * @see #getExecutor
+	 */
+	private static ExecutorService executor = null;
+
+	/**
+	 * Interface implemented by a unit of work that can be run in parallel.
+	 */
+	public interface Task
+	{
+		/**
+		 * Run the task with the specified index.
+		 * @param index The index of the task, between 0 and taskCount-1.
+		 * @exception Exception Thrown if the task fails.
+		 */
+		public void run(int index) throws Exception;
+	}
+
+	/**
+	 * Get the default number of threads used by the image processing classes.
+	 * @return The default number of threads.
+	 * @see #defaultThreadCount
+	 */
+	public static int getDefaultThreadCount()
+	{
+		return defaultThreadCount;
+	}
+
+	/**
+	 * Set the default number of threads used by the image processing classes.
+	 * @param n The default number of threads, must be at least 1.
+	 * @exception IllegalArgumentException Thrown if n is less than 1.
+	 * @see #defaultThreadCount
+	 */
+	public static void setDefaultThreadCount(int n) throws IllegalArgumentException
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException("org.estar.fits.FITSParallel:setDefaultThreadCount:"+
+							   "Illegal thread count:"+n);
+		}
+		defaultThreadCount = n;
+	}
+
+	/**
+	 * Run the specified task taskCount times, with indexes 0..taskCount-1, over threadCount threads.
+	 * If threadCount (or taskCount) is 1, the tasks are run in the calling thread. Otherwise the calling
+	 * thread runs tasks alongside threadCount-1 threads from the shared pool. Tasks are taken in index
+	 * order, so lower index tasks start first. This method returns when all the tasks have completed.
+	 * @param threadCount The number of threads to use. If less than 1, the default thread count is used.
+	 * @param taskCount The number of tasks to run.
+	 * @param task The task to run.
+	 * @exception FITSException Thrown if a task fails (the first failure is reported), or the calling thread
+	 *            is interrupted.
+	 * @see #getDefaultThreadCount
+	 * @see #getExecutor
+	 */
+	public static void run(int threadCount,final int taskCount,final Task task) throws FITSException
+	{
+		ExecutorService pool = null;
+		List<Future<Object>> futureList = null;
+		Callable<Object> worker = null;
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		int nThreads;
+
+		if(threadCount < 1)
+			threadCount = defaultThreadCount;
+		nThreads = Math.min(threadCount,taskCount);
+		if(nThreads < 1)
+			return;
+		if(nThreads == 1)
+		{
+			for(int i = 0; i < taskCount; i++)
+			{
+				try
+				{
+					task.run(i);
+				}
+				catch(FITSException e)
+				{
+					throw e;
+				}
+				catch(Exception e)
+				{
+					throw new FITSException("org.estar.fits.FITSParallel:run:Task "+i+" failed:"+e,e);
+				}
+			}
+			return;
+		}
+		worker = new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				int index;
+
+				index = nextTask.getAndIncrement();
+				while(index < taskCount)
+				{
+					try
+					{
+						task.run(index);
+					}
+					catch(Exception e)
+					{
+						// stop other threads picking up new tasks
+						nextTask.set(taskCount);
+						throw e;
+					}
+					index = nextTask.getAndIncrement();
+				}
+				return null;
+			}
+		};
+		pool = getExecutor();
+		futureList = new ArrayList<Future<Object>>(nThreads-1);
+		try
+		{
+			for(int t = 1; t < nThreads; t++)
+				futureList.add(pool.submit(worker));
+			try
+			{
+				worker.call();
+			}
+			catch(FITSException e)
+			{
+				throw e;
+			}
+			catch(Exception e)
+			{
+				throw new FITSException("org.estar.fits.FITSParallel:run:Task failed:"+e,e);
+			}
+			for(int t = 0; t < futureList.size(); t++)
+			{
+				try
+				{
+					futureList.get(t).get();
+				}
+				catch(ExecutionException e)
+				{
+					if(e.getCause() instanceof FITSException)
+						throw (FITSException)(e.getCause());
+					if(e.getCause() instanceof Exception)
+					{
+						throw new FITSException("org.estar.fits.FITSParallel:run:Task failed:"+
+									e.getCause(),(Exception)(e.getCause()));
+					}
+					throw new FITSException("org.estar.fits.FITSParallel:run:Task failed:"+
+								e.getCause(),e);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			nextTask.set(taskCount);
+			Thread.currentThread().interrupt();
+			throw new FITSException("org.estar.fits.FITSParallel:run:Interrupted.",e);
+		}
+		finally
+		{
+			// on failure, stop the tasks still running; completed futures are unaffected
+			nextTask.set(taskCount);
+			for(int t = 0; t < futureList.size(); t++)
+				futureList.get(t).cancel(true);
+		}
+	}
+
+	/**
+	 * Get the shared pool of worker threads, creating it if needed. The pool has no fixed size: a thread is
+	 * created when none is idle, and idle threads exit after KEEP_ALIVE_SECONDS.
+	 * @return The pool.
+	 * @see #executor
+	 * @see #KEEP_ALIVE_SECONDS
+	 */
+	protected static synchronized ExecutorService getExecutor()
+	{
+		if(executor == null)
+		{
+			executor = new ThreadPoolExecutor(0,Integer.MAX_VALUE,KEEP_ALIVE_SECONDS,TimeUnit.SECONDS,
+							  new SynchronousQueue<Runnable>(),new DaemonThreadFactory());
+		}
+		return executor;
+	}
+
+	/**
+	 * Return the number of chunks of chunkSize needed to cover length elements.
+	 * @param length The total number of elements.
+	 * @param chunkSize The size of each chunk (the last chunk may be smaller).
+	 * @return The number of chunks.
+	 */
+	public static int getChunkCount(int length,int chunkSize)
+	{
+		return (length+chunkSize-1)/chunkSize;
+	}
+
+	/**
+	 * Thread factory that creates daemon worker threads, so an outstanding parallel operation
+	 * does not stop the JVM exiting.
+	 */
+	static class DaemonThreadFactory implements ThreadFactory
+	{
+		/**
+		 * The priority given to created threads.
+		 */
+		private int priority = Thread.NORM_PRIORITY;
+		/**
+		 * The name given to created threads.
+		 */
+		private String name = "org.estar.fits.FITSParallel";
+
+		/**
+		 * Default constructor. Threads are created with normal priority.
+		 */
+		DaemonThreadFactory()
+		{
+			super();
+		}
+
+		/**
+		 * Constructor.
+		 * @param p The priority given to created threads.
+		 * @see #priority
+		 */
+		DaemonThreadFactory(int p)
+		{
+			super();
+			priority = p;
+		}
+
+		/**
+		 * Constructor.
+		 * @param n The name given to created threads.
+		 * @param p The priority given to created threads.
+		 * @see #name
+		 * @see #priority
+		 */
+		DaemonThreadFactory(String n,int p)
+		{
+			super();
+			name = n;
+			priority = p;
+		}
+
+		/**
+		 * Create a new daemon thread.
+		 * @param r The runnable to run in the thread.
+		 * @return The new thread.
+		 */
+		public Thread newThread(Runnable r)
+		{
+			Thread t = null;
+
+			t = new Thread(r,name);
+			t.setDaemon(true);
+			t.setPriority(priority);
+			return t;
+		}
+	}
+}
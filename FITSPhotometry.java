@@ -0,0 +1,437 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSPhotometry.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * This class does circular aperture photometry, with the sky measured in a surrounding annulus,
+ * at a batch of positions on a loaded FITSImage. Positions are in the same coordinate system as
+ * FITSImage.getValue, i.e. the displayed image with North at the top, y increasing downwards; pixel (x,y)
+ * covers x-0.5..x+0.5 and y-0.5..y+0.5.
+ * <p>
+ * The fraction of each pixel inside the aperture is computed exactly, from the area of intersection
+ * between the circle and the pixel square. Only the pixels in the bounding box of each aperture/annulus are
+ * read. Positions are measured in parallel.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSPhotometryResult
+ */
+public class FITSPhotometry
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of positions measured by each parallel task.
+	 */
+	protected final static int POSITIONS_PER_TASK = 64;
+	/**
+	 * The minimum number of sky pixels needed to estimate the sky.
+	 */
+	protected final static int MIN_SKY_PIXEL_COUNT = 3;
+	/**
+	 * The inner radius of the sky annulus, in pixels.
+	 */
+	protected double skyInnerRadius = 10.0;
+	/**
+	 * The outer radius of the sky annulus, in pixels.
+	 */
+	protected double skyOuterRadius = 15.0;
+	/**
+	 * The detector gain, in electrons per ADU, used in computing the flux error.
+	 */
+	protected double gain = 1.0;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSPhotometry()
+	{
+		super();
+	}
+
+	/**
+	 * Set the sky annulus. Sky pixels are those whose centre lies between the inner and outer radius.
+	 * @param inner The inner radius of the sky annulus, in pixels.
+	 * @param outer The outer radius of the sky annulus, in pixels.
+	 * @exception IllegalArgumentException Thrown if the outer radius is not greater than the inner radius.
+	 * @see #skyInnerRadius
+	 * @see #skyOuterRadius
+	 */
+	public void setSkyAnnulus(double inner,double outer) throws IllegalArgumentException
+	{
+		if(outer <= inner)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setSkyAnnulus:Outer radius "+
+							   outer+" not greater than inner radius "+inner+".");
+		}
+		skyInnerRadius = inner;
+		skyOuterRadius = outer;
+	}
+
+	/**
+	 * Set the detector gain.
+	 * @param g The gain, in electrons per ADU.
+	 * @see #gain
+	 */
+	public void setGain(double g)
+	{
+		gain = g;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Measure the flux in circular apertures at a list of positions.
+	 * @param image The image to measure. It's data must have been loaded.
+	 * @param x The list of X positions, in display pixels.
+	 * @param y The list of Y positions, in display pixels.
+	 * @param radius The list of aperture radii, in pixels. This can have one element, in which case that
+	 *        radius is used for all positions.
+	 * @return The photometry results.
+	 * @exception FITSException Thrown if the image has no data, the arrays are inconsistent, or a parallel
+	 *            task fails.
+	 * @see #measure(float[],int,int,double,double,double,FITSPhotometryResult,int,float[])
+	 */
+	public FITSPhotometryResult measure(FITSImage image,final double x[],final double y[],
+					    final double radius[]) throws FITSException
+	{
+		final FITSPhotometryResult result;
+		final float dataArray[];
+		final int width,height,count;
+		long startTime;
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":measure:Image has no data.");
+		}
+		if((x.length != y.length)||((radius.length != 1)&&(radius.length != x.length)))
+		{
+			throw new FITSException(this.getClass().getName()+":measure:Array lengths differ:x:"+
+						x.length+":y:"+y.length+":radius:"+radius.length);
+		}
+		width = image.getWidth();
+		height = image.getHeight();
+		count = x.length;
+		result = new FITSPhotometryResult(count);
+		startTime = System.nanoTime();
+		FITSParallel.run(threadCount,FITSParallel.getChunkCount(count,POSITIONS_PER_TASK),
+				 new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				float skyBuffer[] = null;
+				int end;
+
+				end = Math.min(count,(index+1)*POSITIONS_PER_TASK);
+				for(int i = index*POSITIONS_PER_TASK; i < end; i++)
+				{
+					skyBuffer = measure(dataArray,width,height,x[i],y[i],
+							    radius[(radius.length == 1) ? 0 : i],result,i,skyBuffer);
+				}
+			}
+		});
+		result.elapsedNanos = System.nanoTime()-startTime;
+		return result;
+	}
+
+	/**
+	 * Measure the flux in one aperture. An aperture wholly off the image (or with a NaN centre) is not
+	 * measured: its flux, error, sky and sky sigma are NaN, and FLAG_OFF_IMAGE is set.
+	 * @param dataArray The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param cx The X position of the aperture centre, in display pixels.
+	 * @param cy The Y position of the aperture centre, in display pixels.
+	 * @param r The aperture radius, in pixels.
+	 * @param result The result to fill in.
+	 * @param i The index in the result to fill in.
+	 * @param skyBuffer A scratch buffer for the sky pixels, can be null.
+	 * @return The scratch sky buffer, which may have been reallocated, for use in the next call.
+	 * @see #measureSky
+	 * @see #overlapArea
+	 */
+	protected float[] measure(float dataArray[],int width,int height,double cx,double cy,double r,
+				  FITSPhotometryResult result,int i,float skyBuffer[])
+	{
+		double sum,area,fraction,dx,dy,near,far,sky,skySigma,skyVariance;
+		float value;
+		int x0,x1,y0,y1,flags,rowIndex;
+
+		x0 = (int)Math.floor(cx-r+0.5);
+		x1 = (int)Math.ceil(cx+r-0.5);
+		y0 = (int)Math.floor(cy-r+0.5);
+		y1 = (int)Math.ceil(cy+r-0.5);
+		if(Double.isNaN(cx)||Double.isNaN(cy)||(x1 < 0)||(y1 < 0)||(x0 >= width)||(y0 >= height))
+		{
+			result.flux[i] = Double.NaN;
+			result.fluxError[i] = Double.NaN;
+			result.sky[i] = Double.NaN;
+			result.skySigma[i] = Double.NaN;
+			result.skyPixelCount[i] = 0;
+			result.area[i] = 0.0;
+			result.flags[i] = FITSPhotometryResult.FLAG_OFF_IMAGE;
+			return skyBuffer;
+		}
+		skyBuffer = measureSky(dataArray,width,height,cx,cy,result,i,skyBuffer);
+		flags = result.flags[i];
+		sky = result.sky[i];
+		skySigma = result.skySigma[i];
+		if((x0 < 0)||(y0 < 0)||(x1 >= width)||(y1 >= height))
+		{
+			flags |= FITSPhotometryResult.FLAG_EDGE;
+			x0 = Math.max(x0,0);
+			y0 = Math.max(y0,0);
+			x1 = Math.min(x1,width-1);
+			y1 = Math.min(y1,height-1);
+		}
+		sum = 0.0;
+		area = 0.0;
+		for(int y = y0; y <= y1; y++)
+		{
+			// display y to FITS row
+			rowIndex = (height-(y+1))*width;
+			dy = y-cy;
+			for(int x = x0; x <= x1; x++)
+			{
+				dx = x-cx;
+				near = distanceSquared(Math.max(Math.abs(dx)-0.5,0.0),Math.max(Math.abs(dy)-0.5,0.0));
+				if(near >= r*r)
+					continue;
+				far = distanceSquared(Math.abs(dx)+0.5,Math.abs(dy)+0.5);
+				if(far <= r*r)
+					fraction = 1.0;
+				else
+					fraction = overlapArea(dx-0.5,dx+0.5,dy-0.5,dy+0.5,r);
+				value = dataArray[rowIndex+x];
+				if(Float.isNaN(value))
+				{
+					flags |= FITSPhotometryResult.FLAG_BLANK;
+					continue;
+				}
+				sum += fraction*value;
+				area += fraction;
+			}
+		}
+		result.flux[i] = sum-(area*sky);
+		skyVariance = skySigma*skySigma;
+		result.fluxError[i] = Math.sqrt((Math.max(result.flux[i],0.0)/gain)+(area*skyVariance)+
+						(area*area*skyVariance/Math.max(result.skyPixelCount[i],1)));
+		result.area[i] = area;
+		result.flags[i] = flags;
+		return skyBuffer;
+	}
+
+	/**
+	 * Measure the sky in the annulus around a position. The sky is the median of the pixels whose centre
+	 * lies in the annulus, after an iterative 3 sigma clip.
+	 * @param dataArray The image data.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param cx The X position of the aperture centre, in display pixels.
+	 * @param cy The Y position of the aperture centre, in display pixels.
+	 * @param result The result to fill in (sky, skySigma and flags).
+	 * @param i The index in the result to fill in.
+	 * @param skyBuffer A scratch buffer for the sky pixels, can be null.
+	 * @return The scratch sky buffer, which may have been reallocated.
+	 * @see #skyInnerRadius
+	 * @see #skyOuterRadius
+	 */
+	protected float[] measureSky(float dataArray[],int width,int height,double cx,double cy,
+				     FITSPhotometryResult result,int i,float skyBuffer[])
+	{
+		double inner2,outer2,d2,median,mean,sum,sigma;
+		float value;
+		int x0,x1,y0,y1,n,start,end,newStart,newEnd,rowIndex;
+
+		inner2 = skyInnerRadius*skyInnerRadius;
+		outer2 = skyOuterRadius*skyOuterRadius;
+		x0 = (int)Math.ceil(cx-skyOuterRadius);
+		x1 = (int)Math.floor(cx+skyOuterRadius);
+		y0 = (int)Math.ceil(cy-skyOuterRadius);
+		y1 = (int)Math.floor(cy+skyOuterRadius);
+		if((x0 < 0)||(y0 < 0)||(x1 >= width)||(y1 >= height))
+		{
+			result.flags[i] |= FITSPhotometryResult.FLAG_EDGE;
+			x0 = Math.max(x0,0);
+			y0 = Math.max(y0,0);
+			x1 = Math.min(x1,width-1);
+			y1 = Math.min(y1,height-1);
+		}
+		n = Math.max(0,(x1-x0+1)*(y1-y0+1));
+		if((skyBuffer == null)||(skyBuffer.length < n))
+			skyBuffer = new float[n];
+		n = 0;
+		for(int y = y0; y <= y1; y++)
+		{
+			rowIndex = (height-(y+1))*width;
+			for(int x = x0; x <= x1; x++)
+			{
+				d2 = distanceSquared(x-cx,y-cy);
+				if((d2 < inner2)||(d2 > outer2))
+					continue;
+				value = dataArray[rowIndex+x];
+				if(Float.isNaN(value) == false)
+					skyBuffer[n++] = value;
+			}
+		}
+		if(n < MIN_SKY_PIXEL_COUNT)
+		{
+			result.flags[i] |= FITSPhotometryResult.FLAG_NO_SKY;
+			result.sky[i] = 0.0;
+			result.skySigma[i] = 0.0;
+			result.skyPixelCount[i] = n;
+			return skyBuffer;
+		}
+		Arrays.sort(skyBuffer,0,n);
+		start = 0;
+		end = n;
+		median = FITSImageStacker.median(skyBuffer,start,end);
+		sigma = 0.0;
+		for(int iteration = 0; iteration < 5; iteration++)
+		{
+			median = FITSImageStacker.median(skyBuffer,start,end);
+			mean = FITSImageStacker.mean(skyBuffer,start,end);
+			sum = 0.0;
+			for(int j = start; j < end; j++)
+				sum += (skyBuffer[j]-mean)*(skyBuffer[j]-mean);
+			sigma = Math.sqrt(sum/Math.max(1,end-start-1));
+			newStart = start;
+			while((newStart < end)&&(skyBuffer[newStart] < median-(3.0*sigma)))
+				newStart++;
+			newEnd = end;
+			while((newEnd > newStart)&&(skyBuffer[newEnd-1] > median+(3.0*sigma)))
+				newEnd--;
+			if(((newStart == start)&&(newEnd == end))||((newEnd-newStart) < MIN_SKY_PIXEL_COUNT))
+				break;
+			start = newStart;
+			end = newEnd;
+		}
+		result.sky[i] = median;
+		result.skySigma[i] = sigma;
+		result.skyPixelCount[i] = end-start;
+		return skyBuffer;
+	}
+
+	/**
+	 * Return the exact area of intersection between a circle of radius r centred on the origin,
+	 * and the rectangle x0..x1, y0..y1.
+	 * @param x0 The minimum x of the rectangle.
+	 * @param x1 The maximum x of the rectangle.
+	 * @param y0 The minimum y of the rectangle.
+	 * @param y1 The maximum y of the rectangle.
+	 * @param r The radius of the circle.
+	 * @return The area of intersection.
+	 * @see #cornerArea
+	 */
+	public static double overlapArea(double x0,double x1,double y0,double y1,double r)
+	{
+		return cornerArea(x1,y1,r)-cornerArea(x0,y1,r)-cornerArea(x1,y0,r)+cornerArea(x0,y0,r);
+	}
+
+	/**
+	 * Return the area of the part of a circle of radius r centred on the origin, where u &lt;= x and
+	 * v &lt;= y. This is the integral over u from -r to x of the length of the vertical chord below y.
+	 * @param x The x limit.
+	 * @param y The y limit.
+	 * @param r The radius of the circle.
+	 * @return The area.
+	 * @see #chordIntegral
+	 */
+	protected static double cornerArea(double x,double y,double r)
+	{
+		double xc,w,area,midEnd;
+
+		if((x <= -r)||(y <= -r))
+			return 0.0;
+		xc = Math.min(x,r);
+		if(y >= r)
+			return 2.0*chordIntegral(-r,xc,r);
+		// |u| < w: the chord crosses y, the length below y is y+s(u)
+		w = Math.sqrt((r*r)-(y*y));
+		area = 0.0;
+		midEnd = Math.min(xc,w);
+		if(midEnd > -w)
+			area += (y*(midEnd+w))+chordIntegral(-w,midEnd,r);
+		// |u| > w: the whole chord is below y if y is positive, otherwise it is all above
+		if(y > 0.0)
+		{
+			area += 2.0*chordIntegral(-r,Math.min(xc,-w),r);
+			area += 2.0*chordIntegral(w,xc,r);
+		}
+		return area;
+	}
+
+	/**
+	 * Return the integral from a to b of sqrt(r^2-u^2) du, with a and b clipped to -r..r.
+	 * @param a The lower limit.
+	 * @param b The upper limit.
+	 * @param r The radius of the circle.
+	 * @return The integral, or 0 if b is less than a.
+	 */
+	protected static double chordIntegral(double a,double b,double r)
+	{
+		a = Math.max(-r,Math.min(r,a));
+		b = Math.max(-r,Math.min(r,b));
+		if(b <= a)
+			return 0.0;
+		return chordPrimitive(b,r)-chordPrimitive(a,r);
+	}
+
+	/**
+	 * The primitive of sqrt(r^2-u^2): (u*sqrt(r^2-u^2)+r^2*asin(u/r))/2.
+	 * @param u The value to evaluate at, in -r..r.
+	 * @param r The radius of the circle.
+	 * @return The primitive at u.
+	 */
+	protected static double chordPrimitive(double u,double r)
+	{
+		return 0.5*((u*Math.sqrt(Math.max(0.0,(r*r)-(u*u))))+(r*r*Math.asin(Math.max(-1.0,Math.min(1.0,u/r)))));
+	}
+
+	/**
+	 * Return the square of the distance.
+	 * @param dx The x offset.
+	 * @param dy The y offset.
+	 * @return dx*dx+dy*dy.
+	 */
+	protected static double distanceSquared(double dx,double dy)
+	{
+		return (dx*dx)+(dy*dy);
+	}
+}
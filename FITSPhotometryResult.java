@@ -0,0 +1,217 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSPhotometryResult.java
+// $Header$
+package org.estar.fits;
+
+/**
+ * This class holds the results of batch aperture photometry, as primitive arrays with one entry per position.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSPhotometry
+ */
+public class FITSPhotometryResult
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * Flag bit: the aperture or sky annulus extends off the edge of the image.
+	 */
+	public final static int FLAG_EDGE = (1<<0);
+	/**
+	 * Flag bit: the aperture contains blank (NaN) pixels, which were excluded.
+	 */
+	public final static int FLAG_BLANK = (1<<1);
+	/**
+	 * Flag bit: there were not enough pixels in the sky annulus to estimate the sky, it was set to 0.
+	 */
+	public final static int FLAG_NO_SKY = (1<<2);
+	/**
+	 * Flag bit: the position is off the image, nothing was measured (the flux is NaN).
+	 */
+	public final static int FLAG_OFF_IMAGE = (1<<3);
+	/**
+	 * The number of positions measured.
+	 */
+	int count = 0;
+	/**
+	 * The sky subtracted flux in the aperture.
+	 */
+	double flux[];
+	/**
+	 * The error in the flux.
+	 */
+	double fluxError[];
+	/**
+	 * The sky level per pixel.
+	 */
+	double sky[];
+	/**
+	 * The standard deviation of the sky pixels.
+	 */
+	double skySigma[];
+	/**
+	 * The number of sky pixels used to compute the sky level.
+	 */
+	int skyPixelCount[];
+	/**
+	 * The area of the aperture used, in pixels (excluding parts off the image and blank pixels).
+	 */
+	double area[];
+	/**
+	 * Flags for each position.
+	 * @see #FLAG_EDGE
+	 * @see #FLAG_BLANK
+	 * @see #FLAG_NO_SKY
+	 * @see #FLAG_OFF_IMAGE
+	 */
+	int flags[];
+	/**
+	 * The time taken to do the photometry, in nanoseconds.
+	 */
+	long elapsedNanos = 0;
+
+	/**
+	 * Constructor.
+	 * @param n The number of positions.
+	 * @see #count
+	 */
+	FITSPhotometryResult(int n)
+	{
+		super();
+		count = n;
+		flux = new double[n];
+		fluxError = new double[n];
+		sky = new double[n];
+		skySigma = new double[n];
+		skyPixelCount = new int[n];
+		area = new double[n];
+		flags = new int[n];
+	}
+
+	/**
+	 * Get the number of positions measured.
+	 * @return The number of positions.
+	 * @see #count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the array of sky subtracted fluxes. The array is <b>NOT</b> copied.
+	 * @return The flux array.
+	 * @see #flux
+	 */
+	public double[] getFlux()
+	{
+		return flux;
+	}
+
+	/**
+	 * Get the array of flux errors. The array is <b>NOT</b> copied.
+	 * @return The flux error array.
+	 * @see #fluxError
+	 */
+	public double[] getFluxError()
+	{
+		return fluxError;
+	}
+
+	/**
+	 * Get the array of sky levels per pixel. The array is <b>NOT</b> copied.
+	 * @return The sky array.
+	 * @see #sky
+	 */
+	public double[] getSky()
+	{
+		return sky;
+	}
+
+	/**
+	 * Get the array of sky standard deviations. The array is <b>NOT</b> copied.
+	 * @return The sky sigma array.
+	 * @see #skySigma
+	 */
+	public double[] getSkySigma()
+	{
+		return skySigma;
+	}
+
+	/**
+	 * Get the array of the number of sky pixels used. The array is <b>NOT</b> copied.
+	 * @return The sky pixel count array.
+	 * @see #skyPixelCount
+	 */
+	public int[] getSkyPixelCount()
+	{
+		return skyPixelCount;
+	}
+
+	/**
+	 * Get the array of aperture areas. The array is <b>NOT</b> copied.
+	 * @return The area array, in pixels.
+	 * @see #area
+	 */
+	public double[] getArea()
+	{
+		return area;
+	}
+
+	/**
+	 * Get the array of flags. The array is <b>NOT</b> copied.
+	 * @return The flags array.
+	 * @see #flags
+	 * @see #FLAG_EDGE
+	 * @see #FLAG_BLANK
+	 * @see #FLAG_NO_SKY
+	 * @see #FLAG_OFF_IMAGE
+	 */
+	public int[] getFlags()
+	{
+		return flags;
+	}
+
+	/**
+	 * Get the time taken to do the photometry.
+	 * @return The elapsed time, in nanoseconds.
+	 * @see #elapsedNanos
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	/**
+	 * Get the throughput of the photometry.
+	 * @return The number of positions measured per second.
+	 * @see #count
+	 * @see #elapsedNanos
+	 */
+	public double getPositionsPerSecond()
+	{
+		if(elapsedNanos <= 0)
+			return 0.0;
+		return ((double)count)/(((double)elapsedNanos)/1.0e9);
+	}
+}
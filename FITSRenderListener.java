@@ -0,0 +1,52 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSRenderListener.java
+// $Header$
+package org.estar.fits;
+
+import java.awt.image.*;
+
+/**
+ * Interface implemented by objects that want the results of renders requested from a FITSRenderService.
+ * Methods are called on the render service's thread; a Swing viewer should pass the result to the event
+ * dispatch thread (e.g. with SwingUtilities.invokeLater) before using it. Renders that are cancelled,
+ * because a newer render was requested, are not reported.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSRenderService
+ */
+public interface FITSRenderListener
+{
+	/**
+	 * Called when a render has completed.
+	 * @param image The image that was rendered.
+	 * @param minValue The pixel value rendered as black.
+	 * @param maxValue The pixel value rendered as white.
+	 * @param imageSource The rendered image source.
+	 */
+	public void renderComplete(FITSImage image,float minValue,float maxValue,MemoryImageSource imageSource);
+
+	/**
+	 * Called when a render fails.
+	 * @param image The image that was being rendered.
+	 * @param e The exception that caused the failure.
+	 */
+	public void renderFailed(FITSImage image,Exception e);
+}
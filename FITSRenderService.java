@@ -0,0 +1,477 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSRenderService.java
+// $Header$
+package org.estar.fits;
+
+import java.awt.image.*;
+import java.util.concurrent.*;
+
+/**
+ * Renders FITSImages to image sources asynchronously, for interactive viewers. A viewer calls render for every
+ * contrast slider event; the call returns immediately, and the result is delivered to the listener when the
+ * render completes. Bursts of requests are coalesced: a request that has not started when a newer one arrives
+ * is dropped, and a render in progress is cancelled part way through the frame. So at most one render is
+ * running and one waiting, and the time from the last request to its result is at most about two renders.
+ * <p>
+ * Every new request supersedes all earlier ones, whatever image they are for, so a viewer showing several
+ * images independently should use a service per image.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSRenderListener
+ * @see FITSImage#createImageSource(float,float,org.estar.fits.FITSCancellable)
+ */
+public class FITSRenderService
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The listener told the result of each render.
+	 */
+	protected FITSRenderListener listener = null;
+	/**
+	 * The executor the render thread belongs to.
+	 */
+	protected ExecutorService executor = null;
+	/**
+	 * The latest request, that has not been started yet. Null if there is none.
+	 */
+	protected Request pendingRequest = null;
+	/**
+	 * The request being rendered. Null if there is none.
+	 */
+	protected Request currentRequest = null;
+	/**
+	 * Whether a RenderTask has been submitted to the executor, and not yet finished.
+	 */
+	protected boolean renderTaskRunning = false;
+	/**
+	 * Whether the service has been closed.
+	 */
+	protected boolean closed = false;
+	/**
+	 * The number of requests made.
+	 */
+	protected long requestCount = 0L;
+	/**
+	 * The number of renders completed and delivered.
+	 */
+	protected long renderCount = 0L;
+	/**
+	 * The number of requests dropped before they started, because a newer request arrived.
+	 */
+	protected long coalescedCount = 0L;
+	/**
+	 * The number of renders cancelled part way through.
+	 */
+	protected long cancelledCount = 0L;
+	/**
+	 * The number of renders that failed.
+	 */
+	protected long failedCount = 0L;
+
+	/**
+	 * Constructor. The render thread runs at normal priority.
+	 * @param l The listener to tell the result of each render.
+	 * @exception IllegalArgumentException Thrown if the listener is null.
+	 */
+	public FITSRenderService(FITSRenderListener l) throws IllegalArgumentException
+	{
+		super();
+		if(l == null)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Listener was null.");
+		}
+		listener = l;
+		executor = Executors.newSingleThreadExecutor(new FITSParallel.DaemonThreadFactory(
+					"org.estar.fits.FITSRenderService",Thread.NORM_PRIORITY));
+	}
+
+	/**
+	 * Request a render of an image, using its current minimum/maximum pixel values as the cut levels.
+	 * @param image The image.
+	 * @return The request, which can be used to cancel it.
+	 * @exception IllegalStateException Thrown if the service has been closed.
+	 * @see #render(org.estar.fits.FITSImage,float,float)
+	 */
+	public Request render(FITSImage image) throws IllegalStateException
+	{
+		return render(image,image.getMinPixelValue(),image.getMaxPixelValue());
+	}
+
+	/**
+	 * Request a render of an image. The request supersedes any earlier request: one that has not started is
+	 * dropped, one in progress is cancelled. The render thread is started if it is idle.
+	 * @param image The image.
+	 * @param minValue The pixel value to render as black.
+	 * @param maxValue The pixel value to render as white.
+	 * @return The request, which can be used to cancel it.
+	 * @exception IllegalStateException Thrown if the service has been closed.
+	 * @see #pendingRequest
+	 * @see #currentRequest
+	 * @see RenderTask
+	 */
+	public synchronized Request render(FITSImage image,float minValue,float maxValue) throws IllegalStateException
+	{
+		Request request = null;
+
+		if(closed)
+		{
+			throw new IllegalStateException(this.getClass().getName()+":render:Service closed.");
+		}
+		request = new Request(image,minValue,maxValue);
+		requestCount++;
+		if(pendingRequest != null)
+		{
+			pendingRequest.cancel();
+			coalescedCount++;
+		}
+		if(currentRequest != null)
+			currentRequest.cancel();
+		pendingRequest = request;
+		if(renderTaskRunning == false)
+		{
+			renderTaskRunning = true;
+			executor.execute(new RenderTask());
+		}
+		return request;
+	}
+
+	/**
+	 * Get whether the service is idle, i.e. there is no render in progress or waiting.
+	 * @return true if the service is idle.
+	 */
+	public synchronized boolean isIdle()
+	{
+		return (renderTaskRunning == false);
+	}
+
+	/**
+	 * Wait until the service is idle, or a timeout expires.
+	 * @param timeout The maximum time to wait, in milliseconds.
+	 * @return true if the service is idle, false if the timeout expired first.
+	 * @exception InterruptedException Thrown if the calling thread is interrupted.
+	 */
+	public synchronized boolean waitUntilIdle(long timeout) throws InterruptedException
+	{
+		long endTime,remaining;
+
+		endTime = System.currentTimeMillis()+timeout;
+		remaining = timeout;
+		while(renderTaskRunning && (remaining > 0))
+		{
+			wait(remaining);
+			remaining = endTime-System.currentTimeMillis();
+		}
+		return (renderTaskRunning == false);
+	}
+
+	/**
+	 * Get the number of renders completed and delivered to the listener.
+	 * @return The number of renders.
+	 */
+	public synchronized long getRenderCount()
+	{
+		return renderCount;
+	}
+
+	/**
+	 * Cancel any render in progress or waiting, and stop the render thread. The service cannot be used
+	 * afterwards.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		if(pendingRequest != null)
+			pendingRequest.cancel();
+		pendingRequest = null;
+		if(currentRequest != null)
+			currentRequest.cancel();
+		executor.shutdown();
+	}
+
+	/**
+	 * Return a string describing the service.
+	 * @return The string.
+	 */
+	public synchronized String toString()
+	{
+		return this.getClass().getName()+": requests="+requestCount+" rendered="+renderCount+
+			" coalesced="+coalescedCount+" cancelled="+cancelledCount+" failed="+failedCount;
+	}
+
+	/**
+	 * Take the pending request, to render it. If there is none, the render task is finished, and threads
+	 * waiting for the service to be idle are woken.
+	 * @return The request, or null if there is none.
+	 * @see #pendingRequest
+	 * @see #currentRequest
+	 */
+	protected synchronized Request takeRequest()
+	{
+		currentRequest = pendingRequest;
+		pendingRequest = null;
+		if(currentRequest == null)
+		{
+			renderTaskRunning = false;
+			notifyAll();
+		}
+		return currentRequest;
+	}
+
+	/**
+	 * Render a request, and tell the listener the result. Nothing is reported if the request is cancelled
+	 * before or during the render. Runtime exceptions thrown by the listener are ignored.
+	 * @param request The request.
+	 * @see FITSImage#createImageSource(float,float,org.estar.fits.FITSCancellable)
+	 */
+	protected void render(Request request)
+	{
+		MemoryImageSource imageSource = null;
+
+		try
+		{
+			if(request.isCancelled() == false)
+			{
+				imageSource = request.getImage().createImageSource(request.getMinValue(),
+										   request.getMaxValue(),request);
+			}
+		}
+		catch(Exception e)
+		{
+			synchronized(this)
+			{
+				failedCount++;
+			}
+			try
+			{
+				listener.renderFailed(request.getImage(),e);
+			}
+			catch(RuntimeException le)
+			{
+				// a failing listener must not stop the render thread
+			}
+			return;
+		}
+		if((imageSource == null)||request.isCancelled())
+		{
+			synchronized(this)
+			{
+				cancelledCount++;
+			}
+			return;
+		}
+		synchronized(this)
+		{
+			renderCount++;
+		}
+		try
+		{
+			listener.renderComplete(request.getImage(),request.getMinValue(),request.getMaxValue(),imageSource);
+		}
+		catch(RuntimeException e)
+		{
+			// a failing listener must not stop the render thread
+		}
+	}
+
+	/**
+	 * A render request. The render polls it once per row, and stops if it has been cancelled.
+	 */
+	public static class Request implements FITSCancellable
+	{
+		/**
+		 * The image to render.
+		 */
+		protected FITSImage image = null;
+		/**
+		 * The pixel value to render as black.
+		 */
+		protected float minValue;
+		/**
+		 * The pixel value to render as white.
+		 */
+		protected float maxValue;
+		/**
+		 * Whether the request has been cancelled.
+		 */
+		protected volatile boolean cancelled = false;
+
+		/**
+		 * Constructor.
+		 * @param i The image to render.
+		 * @param min The pixel value to render as black.
+		 * @param max The pixel value to render as white.
+		 */
+		public Request(FITSImage i,float min,float max)
+		{
+			super();
+			image = i;
+			minValue = min;
+			maxValue = max;
+		}
+
+		/**
+		 * Get the image to render.
+		 * @return The image.
+		 */
+		public FITSImage getImage()
+		{
+			return image;
+		}
+
+		/**
+		 * Get the pixel value to render as black.
+		 * @return The value.
+		 */
+		public float getMinValue()
+		{
+			return minValue;
+		}
+
+		/**
+		 * Get the pixel value to render as white.
+		 * @return The value.
+		 */
+		public float getMaxValue()
+		{
+			return maxValue;
+		}
+
+		/**
+		 * Cancel the request. If it is being rendered, the render stops at the end of the current row;
+		 * the listener is not told either way.
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		/**
+		 * Get whether the request has been cancelled.
+		 * @return true if the request has been cancelled.
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+
+	/**
+	 * The task run on the render thread: renders the pending request, until there is none.
+	 * @see #takeRequest
+	 */
+	protected class RenderTask implements Runnable
+	{
+		/**
+		 * Render requests until there are none pending. If the loop is left by an error, the service is
+		 * marked idle (and threads waiting for that woken), so a later request starts a new render task.
+		 * @see #render(org.estar.fits.FITSRenderService.Request)
+		 * @see #renderTaskRunning
+		 */
+		public void run()
+		{
+			Request request = null;
+			boolean finished = false;
+
+			try
+			{
+				while((request = takeRequest()) != null)
+					render(request);
+				finished = true;
+			}
+			finally
+			{
+				if(finished == false)
+				{
+					synchronized(FITSRenderService.this)
+					{
+						currentRequest = null;
+						renderTaskRunning = false;
+						FITSRenderService.this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test main method. Loads a FITS image, and simulates dragging a contrast slider by requesting a burst of
+	 * renders with changing cut levels, printing each render delivered and the service statistics.
+	 * @param args The command line arguments: the FITS filename, and optionally the number of requests and the
+	 *        interval between them in milliseconds.
+	 */
+	public static void main(String args[])
+	{
+		FITSRenderService service = null;
+		FITSImage image = null;
+		final long startTime;
+		int requestCount,interval;
+		float minValue,maxValue;
+
+		if(args.length < 1)
+		{
+			System.err.println("java org.estar.fits.FITSRenderService <filename> [<requests> [<interval ms>]]");
+			System.exit(1);
+		}
+		try
+		{
+			requestCount = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+			interval = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+			image = new FITSImage();
+			image.load(args[0]);
+			image.setMinMaxPixelValue();
+			minValue = image.getMinPixelValue();
+			maxValue = image.getMaxPixelValue();
+			startTime = System.nanoTime();
+			service = new FITSRenderService(new FITSRenderListener()
+			{
+				public void renderComplete(FITSImage i,float min,float max,MemoryImageSource imageSource)
+				{
+					System.out.println(((System.nanoTime()-startTime)/1000000.0)+" ms: rendered "+
+							   min+" to "+max);
+				}
+
+				public void renderFailed(FITSImage i,Exception e)
+				{
+					System.err.println("Render failed:"+e);
+				}
+			});
+			for(int i = 0; i < requestCount; i++)
+			{
+				service.render(image,minValue,minValue+((maxValue-minValue)*(i+1))/requestCount);
+				Thread.sleep(interval);
+			}
+			System.out.println(((System.nanoTime()-startTime)/1000000.0)+" ms: last request made.");
+			service.waitUntilIdle(60000);
+			System.out.println(((System.nanoTime()-startTime)/1000000.0)+" ms: "+service);
+			service.close();
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSRenderService failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
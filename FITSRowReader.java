@@ -0,0 +1,247 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSRowReader.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import org.eso.fits.*;
+
+/**
+ * This class reads rows of image data from a FITS file on demand, without loading the whole
+ * data array into memory. Rows are numbered in FITS order, i.e. row 0 is the bottom of the displayed image.
+ * Reads are synchronized, so one reader can be shared between threads. Rows are decoded by a FITSDataDecoder,
+ * reading the file with positional reads.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSDataDecoder
+ */
+public class FITSRowReader
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The random access file the FITS file is read from.
+	 */
+	protected RandomAccessFile randomAccessFile = null;
+	/**
+	 * The header cards of the primary HDU.
+	 */
+	protected FITSHeaderCards cards = null;
+	/**
+	 * The FITS header of the primary HDU, created from the cards when first asked for.
+	 * @see #getHeader
+	 */
+	protected FitsHeader header = null;
+	/**
+	 * The decoder for the primary HDU data.
+	 */
+	protected FITSDataDecoder decoder = null;
+	/**
+	 * The offset in the file of the primary HDU data.
+	 */
+	protected long dataOffset = 0L;
+	/**
+	 * Width of image.
+	 */
+	protected int width;
+	/**
+	 * Height of image.
+	 */
+	protected int height;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSRowReader()
+	{
+		super();
+	}
+
+	/**
+	 * Open the specified FITS file for reading.
+	 * @param filename The filename to read from.
+	 * @exception IOException Thrown if the file cannot be opened.
+	 * @exception FITSException Thrown if the primary HDU is not a two dimensional image.
+	 * @see #open(java.io.File)
+	 */
+	public void open(String filename) throws IOException,FITSException
+	{
+		open(new File(filename));
+	}
+
+	/**
+	 * Open the specified FITS file for reading. Only the header is read, the data matrix is <b>NOT</b>
+	 * loaded into memory.
+	 * @param file The file to read from.
+	 * @exception IOException Thrown if the file cannot be opened, or the header cannot be read.
+	 * @exception FITSException Thrown if the primary HDU is not a two dimensional image.
+	 * @see #randomAccessFile
+	 * @see #cards
+	 * @see #decoder
+	 * @see #dataOffset
+	 * @see #width
+	 * @see #height
+	 */
+	public synchronized void open(File file) throws IOException,FITSException
+	{
+		randomAccessFile = new RandomAccessFile(file,"r");
+		try
+		{
+			cards = FITSHeaderCards.read(randomAccessFile);
+			if(cards.getInt("NAXIS") != 2)
+			{
+				throw new FITSException(this.getClass().getName()+":open:"+file+
+							":Illegal number of axes:"+cards.getInt("NAXIS"));
+			}
+			decoder = FITSDataDecoder.create(cards);
+		}
+		catch(FITSException e)
+		{
+			close();
+			throw e;
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+		dataOffset = randomAccessFile.getFilePointer();
+		header = null;
+		width = cards.getInt("NAXIS1");
+		height = cards.getInt("NAXIS2");
+	}
+
+	/**
+	 * Get the width of the image.
+	 * @return The width, in pixels.
+	 * @see #width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the image.
+	 * @return The height, in pixels.
+	 * @see #height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Get the primary header cards.
+	 * @return The cards, or null if the reader is not open.
+	 * @see #cards
+	 */
+	public FITSHeaderCards getHeaderCards()
+	{
+		return cards;
+	}
+
+	/**
+	 * Get the primary FITS header. The jfits header is created from the cards the first time it is asked for.
+	 * @return The header, or null if the reader is not open.
+	 * @exception FITSException Thrown if jfits cannot parse a card.
+	 * @see #header
+	 * @see FITSHeaderCards#createFitsHeader
+	 */
+	public synchronized FitsHeader getHeader() throws FITSException
+	{
+		if((header == null)&&(cards != null))
+			header = cards.createFitsHeader();
+		return header;
+	}
+
+	/**
+	 * Set the number of threads used to decode each read. Reads of less than a decoder chunk are decoded in
+	 * the calling thread whatever the thread count.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @exception FITSException Thrown if the reader is not open.
+	 * @see FITSDataDecoder#setThreadCount
+	 */
+	public synchronized void setThreadCount(int n) throws FITSException
+	{
+		if(decoder == null)
+		{
+			throw new FITSException(this.getClass().getName()+":setThreadCount:Reader not open.");
+		}
+		decoder.setThreadCount(n);
+	}
+
+	/**
+	 * Read a number of rows of image data.
+	 * @param startRow The first row to read, in FITS order (row 0 is the bottom of the displayed image).
+	 * @param rowCount The number of rows to read.
+	 * @param buffer A buffer to put the data into, of at least rowCount*width elements. Can be null.
+	 * @return The buffer containing the data, starting at index 0. If the passed in buffer was null or
+	 *         too small, a new buffer is allocated.
+	 * @exception FITSException Thrown if the reader is not open, the rows are out of range, or the read fails.
+	 * @see #decoder
+	 * @see FITSDataDecoder#read
+	 */
+	public synchronized float[] readRows(int startRow,int rowCount,float buffer[]) throws FITSException
+	{
+		long startTime;
+
+		if(decoder == null)
+		{
+			throw new FITSException(this.getClass().getName()+":readRows:Reader not open.");
+		}
+		if((startRow < 0)||(rowCount < 0)||((startRow+rowCount) > height))
+		{
+			throw new FITSException(this.getClass().getName()+":readRows:Rows "+startRow+" + "+
+						rowCount+" out of range (0.."+height+").");
+		}
+		if((buffer == null)||(buffer.length < (rowCount*width)))
+			buffer = new float[rowCount*width];
+		startTime = FITSMetrics.start();
+		try
+		{
+			decoder.read(randomAccessFile.getChannel(),
+				     dataOffset+(((long)startRow)*width*decoder.getBytesPerPixel()),buffer,0,rowCount*width);
+		}
+		catch(FITSException e)
+		{
+			FITSMetrics.recordFailure(FITSMetrics.TIMER_DECODE,e);
+			throw e;
+		}
+		FITSMetrics.stop(FITSMetrics.TIMER_DECODE,startTime);
+		return buffer;
+	}
+
+	/**
+	 * Close the reader, and the underlying file.
+	 * @exception IOException Thrown if closing the file fails.
+	 * @see #randomAccessFile
+	 */
+	public synchronized void close() throws IOException
+	{
+		decoder = null;
+		if(randomAccessFile != null)
+			randomAccessFile.close();
+		randomAccessFile = null;
+	}
+}
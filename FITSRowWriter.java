@@ -0,0 +1,689 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSRowWriter.java
+// $Header$
+package org.estar.fits;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import org.eso.fits.*;
+
+/**
+ * This class writes a two dimensional FITS image a number of rows at a time, so images larger than
+ * memory can be produced. Rows are written in FITS order, i.e. row 0 (the bottom of the displayed image) first.
+ * <p>
+ * Pixel values are converted to the output BITPIX (applying the inverse of BSCALE/BZERO, and mapping NaN to
+ * BLANK for integer types) into a large direct big-endian buffer, which is written to the channel when full.
+ * The header is written together with the first data buffer, and the last data buffer together with
+ * the block padding, using gathering writes where the channel supports them.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImageWriter
+ */
+public class FITSRowWriter
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The default size of the data buffer, in FITS blocks (about 1 Mb).
+	 */
+	public final static int DEFAULT_BUFFER_BLOCK_COUNT = 364;
+	/**
+	 * Keywords that are written by this class, and so are not copied from a supplied header.
+	 */
+	protected final static String STRUCTURAL_KEYWORD_LIST[] = {"SIMPLE","BITPIX","NAXIS","NAXIS1","NAXIS2",
+								   "NAXIS3","EXTEND","BSCALE","BZERO","BLANK",
+								   "END","CHECKSUM","DATASUM"};
+	/**
+	 * The channel being written to.
+	 */
+	protected WritableByteChannel channel = null;
+	/**
+	 * Whether the channel was opened by this class, and so should be closed by close().
+	 */
+	protected boolean closeChannel = false;
+	/**
+	 * The output BITPIX: 8,16,32,64,-32 or -64.
+	 */
+	protected int bitpix = -32;
+	/**
+	 * The output BSCALE. Physical value = BZERO + BSCALE * array value.
+	 */
+	protected double bscale = 1.0;
+	/**
+	 * The output BZERO. Physical value = BZERO + BSCALE * array value.
+	 */
+	protected double bzero = 0.0;
+	/**
+	 * The BLANK value written for NaN pixels, for integer BITPIX.
+	 */
+	protected long blank = 0;
+	/**
+	 * Whether a BLANK keyword is written, and NaN pixels written as the blank value, for integer BITPIX.
+	 */
+	protected boolean useBlank = false;
+	/**
+	 * A header to copy non-structural keywords from, can be null.
+	 */
+	protected FitsHeader header = null;
+	/**
+	 * Extra cards to write into the header.
+	 */
+	protected List<String> extraCardList = new Vector<String>();
+	/**
+	 * The number of FITS blocks in the data buffer.
+	 */
+	protected int bufferBlockCount = DEFAULT_BUFFER_BLOCK_COUNT;
+	/**
+	 * The header, waiting to be written with the first data buffer.
+	 */
+	protected ByteBuffer headerBuffer = null;
+	/**
+	 * The data buffer.
+	 */
+	protected ByteBuffer dataBuffer = null;
+	/**
+	 * The width of the image being written.
+	 */
+	protected int width = 0;
+	/**
+	 * The height of the image being written.
+	 */
+	protected int height = 0;
+	/**
+	 * The number of rows written so far.
+	 */
+	protected int rowsWritten = 0;
+	/**
+	 * The number of bytes written to the channel so far.
+	 */
+	protected long bytesWritten = 0;
+	/**
+	 * The position of the header in the file channel when it was opened, if checksumEnabled. The header is
+	 * rewritten there on close.
+	 */
+	protected long headerPosition = 0L;
+	/**
+	 * Whether to write CHECKSUM and DATASUM keywords.
+	 */
+	protected boolean checksumEnabled = false;
+	/**
+	 * The checksum of the data written so far, if checksumEnabled.
+	 */
+	protected FITSChecksum dataChecksum = null;
+	/**
+	 * The CHECKSUM value put in the header.
+	 */
+	protected String checksumValue = FITSChecksum.ZERO_CHECKSUM;
+	/**
+	 * The DATASUM value put in the header.
+	 */
+	protected String datasumValue = "0";
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSRowWriter()
+	{
+		super();
+	}
+
+	/**
+	 * Set the output BITPIX.
+	 * @param b The BITPIX, one of 8,16,32,64,-32 or -64.
+	 * @exception IllegalArgumentException Thrown if the BITPIX is illegal.
+	 * @see #bitpix
+	 */
+	public void setBitpix(int b) throws IllegalArgumentException
+	{
+		if((b != 8)&&(b != 16)&&(b != 32)&&(b != 64)&&(b != -32)&&(b != -64))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setBitpix:Illegal BITPIX:"+b);
+		}
+		bitpix = b;
+	}
+
+	/**
+	 * Set the output scaling. Physical value = BZERO + BSCALE * array value.
+	 * @param scale The BSCALE, must be non-zero.
+	 * @param zero The BZERO.
+	 * @exception IllegalArgumentException Thrown if the scale is zero.
+	 * @see #bscale
+	 * @see #bzero
+	 */
+	public void setScaling(double scale,double zero) throws IllegalArgumentException
+	{
+		if(scale == 0.0)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":setScaling:BSCALE is zero.");
+		}
+		bscale = scale;
+		bzero = zero;
+	}
+
+	/**
+	 * Set the BLANK value, written for NaN pixels when the BITPIX is an integer type.
+	 * @param b The blank value.
+	 * @see #blank
+	 * @see #useBlank
+	 */
+	public void setBlank(long b)
+	{
+		blank = b;
+		useBlank = true;
+	}
+
+	/**
+	 * Set a header to copy keywords from. Structural keywords (SIMPLE, BITPIX, NAXISn, BSCALE, BZERO...) are
+	 * not copied, as they are generated from the image being written.
+	 * @param h The header, can be null.
+	 * @see #header
+	 * @see #STRUCTURAL_KEYWORD_LIST
+	 */
+	public void setHeader(FitsHeader h)
+	{
+		header = h;
+	}
+
+	/**
+	 * Add an extra card to the header.
+	 * @param card An 80 character card, as produced by FITSCard.
+	 * @see #extraCardList
+	 * @see FITSCard
+	 */
+	public void addCard(String card)
+	{
+		extraCardList.add(card);
+	}
+
+	/**
+	 * Set whether CHECKSUM and DATASUM keywords are written. The data checksum is computed as the data
+	 * buffers are written; on close the header is rewritten with the final values, so the channel must be a
+	 * FileChannel.
+	 * @param b true to write checksums.
+	 * @see #checksumEnabled
+	 * @see #writeChecksums
+	 * @see FITSChecksum
+	 */
+	public void setChecksumEnabled(boolean b)
+	{
+		checksumEnabled = b;
+	}
+
+	/**
+	 * Set the size of the data buffer.
+	 * @param n The number of FITS blocks in the buffer, must be at least 1.
+	 * @exception IllegalArgumentException Thrown if n is less than 1.
+	 * @see #bufferBlockCount
+	 */
+	public void setBufferBlockCount(int n) throws IllegalArgumentException
+	{
+		if(n < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setBufferBlockCount:Illegal block count:"+n);
+		}
+		bufferBlockCount = n;
+	}
+
+	/**
+	 * Open a file for writing, and prepare the header.
+	 * @param file The file to write to. It is created, or truncated if it exists.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @exception IOException Thrown if the file cannot be opened.
+	 * @see #open(java.nio.channels.WritableByteChannel,int,int)
+	 */
+	public void open(File file,int w,int h) throws IOException
+	{
+		FileOutputStream fos = null;
+
+		fos = new FileOutputStream(file);
+		open(fos.getChannel(),w,h);
+		closeChannel = true;
+	}
+
+	/**
+	 * Prepare to write to a channel. The header is created, and written with the first data.
+	 * @param c The channel to write to.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @exception IllegalArgumentException Thrown if checksums are enabled, and the channel is not a FileChannel.
+	 * @exception IOException Thrown if checksums are enabled, and getting the channel position fails.
+	 * @see #createHeaderBuffer
+	 * @see #headerPosition
+	 */
+	public void open(WritableByteChannel c,int w,int h) throws IllegalArgumentException,IOException
+	{
+		if(checksumEnabled && ((c instanceof FileChannel) == false))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+					":open:Writing checksums needs a FileChannel, not "+c.getClass().getName()+".");
+		}
+		headerPosition = 0L;
+		if(checksumEnabled)
+			headerPosition = ((FileChannel)c).position();
+		channel = c;
+		closeChannel = false;
+		width = w;
+		height = h;
+		rowsWritten = 0;
+		bytesWritten = 0;
+		dataChecksum = new FITSChecksum();
+		checksumValue = FITSChecksum.ZERO_CHECKSUM;
+		datasumValue = "0";
+		headerBuffer = createHeaderBuffer();
+		dataBuffer = ByteBuffer.allocateDirect(bufferBlockCount*FITSCard.BLOCK_LENGTH);
+		dataBuffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Get the list of header cards that will be written.
+	 * @return A list of 80 character cards, not including END.
+	 * @see #STRUCTURAL_KEYWORD_LIST
+	 */
+	public List<String> getCardList()
+	{
+		List<String> cardList = null;
+		FitsKeyword keyword = null;
+
+		cardList = new Vector<String>();
+		cardList.add(FITSCard.formatLogical("SIMPLE",true,"conforms to FITS standard"));
+		cardList.add(FITSCard.formatInteger("BITPIX",bitpix,"array data type"));
+		cardList.add(FITSCard.formatInteger("NAXIS",2,"number of array dimensions"));
+		cardList.add(FITSCard.formatInteger("NAXIS1",width,null));
+		cardList.add(FITSCard.formatInteger("NAXIS2",height,null));
+		if((bscale != 1.0)||(bzero != 0.0))
+		{
+			cardList.add(FITSCard.formatReal("BSCALE",bscale,null));
+			cardList.add(FITSCard.formatReal("BZERO",bzero,null));
+		}
+		if((bitpix > 0)&&useBlank)
+			cardList.add(FITSCard.formatInteger("BLANK",blank,null));
+		if(checksumEnabled)
+		{
+			cardList.add(FITSCard.formatString("CHECKSUM",checksumValue,"HDU checksum"));
+			cardList.add(FITSCard.formatString("DATASUM",datasumValue,"data unit checksum"));
+		}
+		if(header != null)
+		{
+			for(Enumeration e = header.getKeywords(); e.hasMoreElements();)
+			{
+				keyword = (FitsKeyword)(e.nextElement());
+				if(isStructuralKeyword(keyword.getName()) == false)
+					cardList.add(FITSCard.formatKeyword(keyword));
+			}
+		}
+		cardList.addAll(extraCardList);
+		return cardList;
+	}
+
+	/**
+	 * Write a number of rows of pixel data.
+	 * @param dataArray An array containing the rows, in FITS row order.
+	 * @param offset The index in the array of the first pixel of the first row.
+	 * @param rowCount The number of rows to write.
+	 * @exception IOException Thrown if writing fails, or more rows are written than the image height.
+	 * @see #putPixels
+	 */
+	public void writeRows(float dataArray[],int offset,int rowCount) throws IOException
+	{
+		int pixelsLeft,pixelsPerBuffer,n;
+
+		if(channel == null)
+			throw new IOException(this.getClass().getName()+":writeRows:Writer not open.");
+		if((rowsWritten+rowCount) > height)
+		{
+			throw new IOException(this.getClass().getName()+":writeRows:Too many rows:"+
+					      rowsWritten+" + "+rowCount+" > "+height);
+		}
+		pixelsLeft = rowCount*width;
+		pixelsPerBuffer = dataBuffer.capacity()/getBytesPerPixel();
+		while(pixelsLeft > 0)
+		{
+			n = Math.min(pixelsLeft,dataBuffer.remaining()/getBytesPerPixel());
+			if(n == 0)
+			{
+				flush(null);
+				n = Math.min(pixelsLeft,pixelsPerBuffer);
+			}
+			putPixels(dataArray,offset,n);
+			offset += n;
+			pixelsLeft -= n;
+		}
+		rowsWritten += rowCount;
+	}
+
+	/**
+	 * Finish writing the image: write any remaining data and pad the data unit to a whole number of
+	 * FITS blocks. If the file was opened by this class, it is closed.
+	 * @exception IOException Thrown if writing fails, or not all the rows have been written.
+	 * @see #flush
+	 */
+	public void close() throws IOException
+	{
+		ByteBuffer paddingBuffer = null;
+		long dataLength;
+		int paddingLength;
+
+		if(channel == null)
+			return;
+		try
+		{
+			if(rowsWritten != height)
+			{
+				throw new IOException(this.getClass().getName()+":close:Only "+rowsWritten+" of "+
+						      height+" rows written.");
+			}
+			dataLength = ((long)width)*((long)height)*((long)getBytesPerPixel());
+			paddingLength = (int)((FITSCard.BLOCK_LENGTH-(dataLength % FITSCard.BLOCK_LENGTH)) %
+					      FITSCard.BLOCK_LENGTH);
+			paddingBuffer = ByteBuffer.allocate(paddingLength);
+			flush(paddingBuffer);
+			if(checksumEnabled)
+				writeChecksums();
+		}
+		finally
+		{
+			if(closeChannel)
+				channel.close();
+			channel = null;
+			dataBuffer = null;
+		}
+	}
+
+	/**
+	 * Get the number of bytes written to the channel so far.
+	 * @return The number of bytes.
+	 * @see #bytesWritten
+	 */
+	public long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+
+	/**
+	 * Get the number of bytes per pixel for the output BITPIX.
+	 * @return The number of bytes per pixel.
+	 * @see #bitpix
+	 */
+	public int getBytesPerPixel()
+	{
+		return Math.abs(bitpix)/8;
+	}
+
+	/**
+	 * Create the header, padded to a whole number of FITS blocks, in a buffer ready to be written.
+	 * @return The header buffer.
+	 * @see #getCardList
+	 */
+	protected ByteBuffer createHeaderBuffer()
+	{
+		ByteBuffer buffer = null;
+		List<String> cardList = null;
+		String card = null;
+		int blockCount;
+
+		cardList = getCardList();
+		cardList.add(FITSCard.formatEnd());
+		blockCount = FITSParallel.getChunkCount(cardList.size(),FITSCard.CARDS_PER_BLOCK);
+		buffer = ByteBuffer.allocateDirect(blockCount*FITSCard.BLOCK_LENGTH);
+		for(int i = 0; i < cardList.size(); i++)
+		{
+			card = cardList.get(i);
+			for(int c = 0; c < FITSCard.CARD_LENGTH; c++)
+				buffer.put((byte)(card.charAt(c) & 0x7f));
+		}
+		while(buffer.hasRemaining())
+			buffer.put((byte)' ');
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Convert pixels to the output BITPIX, and put them in the data buffer. There must be room in the
+	 * buffer for all the pixels.
+	 * @param dataArray The pixels.
+	 * @param offset The index of the first pixel to put.
+	 * @param n The number of pixels to put.
+	 */
+	protected void putPixels(float dataArray[],int offset,int n)
+	{
+		double scaleInverse;
+		float value;
+		int end;
+
+		end = offset+n;
+		scaleInverse = 1.0/bscale;
+		switch(bitpix)
+		{
+			case 8:
+				for(int i = offset; i < end; i++)
+					dataBuffer.put((byte)toInteger(dataArray[i],scaleInverse,0,255));
+				break;
+			case 16:
+				for(int i = offset; i < end; i++)
+				{
+					dataBuffer.putShort((short)toInteger(dataArray[i],scaleInverse,
+									     Short.MIN_VALUE,Short.MAX_VALUE));
+				}
+				break;
+			case 32:
+				for(int i = offset; i < end; i++)
+				{
+					dataBuffer.putInt((int)toInteger(dataArray[i],scaleInverse,
+									  Integer.MIN_VALUE,Integer.MAX_VALUE));
+				}
+				break;
+			case 64:
+				for(int i = offset; i < end; i++)
+				{
+					dataBuffer.putLong(toInteger(dataArray[i],scaleInverse,
+								     Long.MIN_VALUE,Long.MAX_VALUE));
+				}
+				break;
+			case -32:
+				if((bscale == 1.0)&&(bzero == 0.0))
+				{
+					dataBuffer.asFloatBuffer().put(dataArray,offset,n);
+					dataBuffer.position(dataBuffer.position()+(n*4));
+				}
+				else
+				{
+					for(int i = offset; i < end; i++)
+					{
+						value = dataArray[i];
+						dataBuffer.putFloat((float)((value-bzero)*scaleInverse));
+					}
+				}
+				break;
+			case -64:
+				for(int i = offset; i < end; i++)
+					dataBuffer.putDouble((dataArray[i]-bzero)*scaleInverse);
+				break;
+		}
+	}
+
+	/**
+	 * Convert a physical pixel value to an integer array value, rounding, and clamping to the
+	 * range of the output type. NaN is converted to the BLANK value (or 0 if none is set).
+	 * @param value The physical pixel value.
+	 * @param scaleInverse 1/BSCALE.
+	 * @param min The minimum value of the output type.
+	 * @param max The maximum value of the output type.
+	 * @return The array value.
+	 * @see #blank
+	 */
+	protected long toInteger(float value,double scaleInverse,long min,long max)
+	{
+		double d;
+
+		if(Float.isNaN(value))
+			return useBlank ? blank : 0;
+		d = Math.rint((value-bzero)*scaleInverse);
+		if(d <= min)
+			return min;
+		if(d >= max)
+			return max;
+		return (long)d;
+	}
+
+	/**
+	 * Write the pending header (if any), the data buffer, and an optional trailing buffer to the channel.
+	 * A gathering write is used if the channel supports it.
+	 * @param trailingBuffer A buffer to write after the data, or null.
+	 * @exception IOException Thrown if writing fails.
+	 * @see #headerBuffer
+	 * @see #dataBuffer
+	 */
+	protected void flush(ByteBuffer trailingBuffer) throws IOException
+	{
+		List<ByteBuffer> bufferList = null;
+		ByteBuffer bufferArray[];
+
+		bufferList = new Vector<ByteBuffer>(3);
+		if(headerBuffer != null)
+			bufferList.add(headerBuffer);
+		dataBuffer.flip();
+		if(checksumEnabled)
+			updateDataChecksum();
+		bufferList.add(dataBuffer);
+		if(trailingBuffer != null)
+			bufferList.add(trailingBuffer);
+		bufferArray = bufferList.toArray(new ByteBuffer[bufferList.size()]);
+		writeFully(bufferArray);
+		headerBuffer = null;
+		dataBuffer.clear();
+	}
+
+	/**
+	 * Add the (flipped) data buffer to the data checksum. Only the last buffer can end part way through a
+	 * 32 bit word; its last word is summed as if padded with zeros, which is what follows it in the file.
+	 * @see #dataChecksum
+	 */
+	protected void updateDataChecksum()
+	{
+		ByteBuffer buffer = null;
+		byte word[];
+		int wholeLength;
+
+		buffer = dataBuffer.duplicate();
+		wholeLength = buffer.remaining() & ~3;
+		buffer.limit(buffer.position()+wholeLength);
+		dataChecksum.update(buffer);
+		if(wholeLength < dataBuffer.remaining())
+		{
+			word = new byte[4];
+			for(int i = 0; i < (dataBuffer.remaining()-wholeLength); i++)
+				word[i] = dataBuffer.get(dataBuffer.position()+wholeLength+i);
+			dataChecksum.update(word,0,word.length);
+		}
+	}
+
+	/**
+	 * Rewrite the header with the DATASUM and CHECKSUM values. The header is summed with CHECKSUM set to
+	 * ZERO_CHECKSUM, and CHECKSUM set to the encoded complement of the HDU sum, so the HDU sums to -0.
+	 * The header is rewritten at the position the channel had when opened.
+	 * @exception IOException Thrown if writing fails.
+	 * @see #headerPosition
+	 * @see FITSChecksum#encode
+	 */
+	protected void writeChecksums() throws IOException
+	{
+		FITSChecksum headerChecksum = null;
+		FileChannel fileChannel = null;
+		ByteBuffer buffer = null;
+		long hduSum,position;
+
+		datasumValue = Long.toString(dataChecksum.getValue());
+		checksumValue = FITSChecksum.ZERO_CHECKSUM;
+		headerChecksum = new FITSChecksum();
+		headerChecksum.update(createHeaderBuffer());
+		hduSum = FITSChecksum.add(headerChecksum.getValue(),dataChecksum.getValue());
+		checksumValue = FITSChecksum.encode(~hduSum & 0xffffffffL);
+		buffer = createHeaderBuffer();
+		fileChannel = (FileChannel)channel;
+		position = headerPosition;
+		while(buffer.hasRemaining())
+			position += fileChannel.write(buffer,position);
+	}
+
+	/**
+	 * Write all the remaining bytes in the buffers to the channel.
+	 * @param bufferArray The buffers to write.
+	 * @exception IOException Thrown if writing fails.
+	 * @see #channel
+	 * @see #bytesWritten
+	 */
+	protected void writeFully(ByteBuffer bufferArray[]) throws IOException
+	{
+		GatheringByteChannel gatheringChannel = null;
+
+		if(channel instanceof GatheringByteChannel)
+		{
+			gatheringChannel = (GatheringByteChannel)channel;
+			while(hasRemaining(bufferArray))
+				bytesWritten += gatheringChannel.write(bufferArray);
+		}
+		else
+		{
+			for(int i = 0; i < bufferArray.length; i++)
+			{
+				while(bufferArray[i].hasRemaining())
+					bytesWritten += channel.write(bufferArray[i]);
+			}
+		}
+	}
+
+	/**
+	 * Return whether any of the buffers have bytes remaining.
+	 * @param bufferArray The buffers.
+	 * @return true if any of the buffers have bytes remaining.
+	 */
+	protected static boolean hasRemaining(ByteBuffer bufferArray[])
+	{
+		for(int i = 0; i < bufferArray.length; i++)
+		{
+			if(bufferArray[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return whether a keyword is generated by this class, and so should not be copied from a header.
+	 * @param name The keyword name.
+	 * @return true if the keyword is structural.
+	 * @see #STRUCTURAL_KEYWORD_LIST
+	 */
+	protected static boolean isStructuralKeyword(String name)
+	{
+		for(int i = 0; i < STRUCTURAL_KEYWORD_LIST.length; i++)
+		{
+			if(STRUCTURAL_KEYWORD_LIST[i].equals(name))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,824 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSSourceDetector.java
+// $Header$
+package org.estar.fits;
+
+import java.util.*;
+
+/**
+ * This class detects sources (stars) on a loaded FITSImage. Pixels more than a number of standard
+ * deviations above the background are grouped into sources using 8-connected component labelling,
+ * and the flux weighted centroid, total flux, peak and FWHM of each source is computed.
+ * <p>
+ * The image is split into bands of rows (tiles), which are labelled in parallel. Each band is labelled
+ * as a list of horizontal runs of pixels above the threshold, joined using union-find.
+ * Runs that touch across the boundary between bands are then joined, so sources spanning several
+ * bands are measured as one source. Finally the source moments are accumulated per band in parallel, and
+ * merged.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSSourceList
+ */
+public class FITSSourceDetector
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The constant used to convert a Gaussian sigma to a FWHM: 2*sqrt(2*ln(2)).
+	 */
+	public final static double SIGMA_TO_FWHM = 2.0*Math.sqrt(2.0*Math.log(2.0));
+	/**
+	 * The maximum number of pixels sampled when estimating a global background.
+	 */
+	protected final static int BACKGROUND_SAMPLE_COUNT = 100000;
+	/**
+	 * Pixels more than thresholdSigma standard deviations above the background are part of a source.
+	 */
+	protected double thresholdSigma = 3.0;
+	/**
+	 * The minimum number of pixels above the threshold for a group of pixels to be a source.
+	 */
+	protected int minPixelCount = 5;
+	/**
+	 * The number of rows in each band (tile) processed in parallel.
+	 */
+	protected int tileHeight = 64;
+	/**
+	 * The number of threads to use. If less than 1, the default thread count is used.
+	 * @see FITSParallel#getDefaultThreadCount
+	 */
+	protected int threadCount = 0;
+	/**
+	 * The background level. If NaN, a global background is estimated from the image.
+	 */
+	protected double background = Double.NaN;
+	/**
+	 * The background standard deviation. If NaN, it is estimated from the image.
+	 */
+	protected double backgroundSigma = Double.NaN;
+	/**
+	 * A spatially varying background map. If non-null, this is used instead of the constant background.
+	 */
+	protected FITSBackground backgroundMap = null;
+
+	/**
+	 * Default constructor.
+	 */
+	public FITSSourceDetector()
+	{
+		super();
+	}
+
+	/**
+	 * Set the detection threshold.
+	 * @param sigma Pixels more than this number of standard deviations above the background are
+	 *        part of a source.
+	 * @see #thresholdSigma
+	 */
+	public void setThresholdSigma(double sigma)
+	{
+		thresholdSigma = sigma;
+	}
+
+	/**
+	 * Set the minimum number of pixels above the threshold for a group of pixels to be a source.
+	 * @param n The minimum number of pixels.
+	 * @see #minPixelCount
+	 */
+	public void setMinPixelCount(int n)
+	{
+		minPixelCount = n;
+	}
+
+	/**
+	 * Set the number of rows in each band (tile) processed in parallel.
+	 * @param h The tile height, in rows, must be at least 1.
+	 * @exception IllegalArgumentException Thrown if h is less than 1.
+	 * @see #tileHeight
+	 */
+	public void setTileHeight(int h) throws IllegalArgumentException
+	{
+		if(h < 1)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":setTileHeight:Illegal tile height:"+h);
+		}
+		tileHeight = h;
+	}
+
+	/**
+	 * Set the number of threads used.
+	 * @param n The number of threads. If less than 1, the default thread count is used.
+	 * @see #threadCount
+	 */
+	public void setThreadCount(int n)
+	{
+		threadCount = n;
+	}
+
+	/**
+	 * Set a constant background level and standard deviation. If either is NaN, the global background
+	 * is estimated from the image (the default).
+	 * @param level The background level.
+	 * @param sigma The background standard deviation.
+	 * @see #background
+	 * @see #backgroundSigma
+	 */
+	public void setBackground(double level,double sigma)
+	{
+		background = level;
+		backgroundSigma = sigma;
+		backgroundMap = null;
+	}
+
+	/**
+	 * Set a spatially varying background map. The detection threshold of each pixel is then the
+	 * interpolated background plus thresholdSigma times the interpolated RMS.
+	 * @param map A background map, computed for the image(s) to be detected on, or null to use a constant
+	 *        background. Its dimensions are checked against the image by detect.
+	 * @see #backgroundMap
+	 */
+	public void setBackground(FITSBackground map)
+	{
+		backgroundMap = map;
+	}
+
+	/**
+	 * Detect sources on the image.
+	 * @param image The image to detect sources on. It's data must have been loaded.
+	 * @return A list of detected sources, sorted into decreasing flux order.
+	 * @exception FITSException Thrown if the image has no data, the background map was not computed for an
+	 *            image of the same dimensions, or a parallel task fails.
+	 * @see #labelBand
+	 * @see #joinBands
+	 * @see #measureBand
+	 */
+	public FITSSourceList detect(FITSImage image) throws FITSException
+	{
+		final float dataArray[];
+		final Band bandList[];
+		final double backgroundLevel,backgroundStdDev;
+		final int width,height;
+		final int runSourceList[];
+		FITSSourceList sourceList = null;
+		double backgroundValues[];
+		int sourceCount;
+
+		dataArray = image.getDataArray();
+		if(dataArray == null)
+		{
+			throw new FITSException(this.getClass().getName()+":detect:Image has no data.");
+		}
+		width = image.getWidth();
+		height = image.getHeight();
+		if(backgroundMap != null)
+		{
+			if((backgroundMap.getWidth() != width)||(backgroundMap.getHeight() != height))
+			{
+				throw new FITSException(this.getClass().getName()+":detect:Background map dimensions "+
+							backgroundMap.getWidth()+" x "+backgroundMap.getHeight()+
+							" do not match image dimensions "+width+" x "+height+".");
+			}
+			backgroundLevel = backgroundMap.getGlobalBackground();
+			backgroundStdDev = backgroundMap.getGlobalRms();
+		}
+		else if(Double.isNaN(background)||Double.isNaN(backgroundSigma))
+		{
+			backgroundValues = estimateBackground(dataArray);
+			backgroundLevel = backgroundValues[0];
+			backgroundStdDev = backgroundValues[1];
+		}
+		else
+		{
+			backgroundLevel = background;
+			backgroundStdDev = backgroundSigma;
+		}
+		bandList = new Band[FITSParallel.getChunkCount(height,tileHeight)];
+		for(int b = 0; b < bandList.length; b++)
+			bandList[b] = new Band(b*tileHeight,Math.min(tileHeight,height-(b*tileHeight)));
+		// label each band in parallel
+		FITSParallel.run(threadCount,bandList.length,new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				labelBand(dataArray,width,bandList[index],backgroundLevel,backgroundStdDev);
+			}
+		});
+		// join runs across band boundaries, and number the sources
+		runSourceList = joinBands(bandList);
+		sourceCount = 0;
+		for(int i = 0; i < runSourceList.length; i++)
+			sourceCount = Math.max(sourceCount,runSourceList[i]+1);
+		// accumulate source moments for each band in parallel
+		FITSParallel.run(threadCount,bandList.length,new FITSParallel.Task()
+		{
+			public void run(int index) throws Exception
+			{
+				measureBand(dataArray,width,bandList[index],runSourceList,backgroundLevel);
+			}
+		});
+		sourceList = mergeBands(bandList,sourceCount,height);
+		return sourceList;
+	}
+
+	/**
+	 * Estimate a global background level and standard deviation from a sample of the image pixels,
+	 * using an iterative 3 sigma clip about the median.
+	 * @param dataArray The image data.
+	 * @return An array of two doubles, the background level and standard deviation.
+	 * @see #BACKGROUND_SAMPLE_COUNT
+	 */
+	protected double[] estimateBackground(float dataArray[])
+	{
+		float sample[];
+		double result[] = new double[2];
+		double median,mean,sum,sigma;
+		int step,n,start,end,newStart,newEnd;
+
+		step = Math.max(1,dataArray.length/BACKGROUND_SAMPLE_COUNT);
+		sample = new float[(dataArray.length/step)+1];
+		n = 0;
+		for(int i = 0; i < dataArray.length; i += step)
+		{
+			if(Float.isNaN(dataArray[i]) == false)
+				sample[n++] = dataArray[i];
+		}
+		if(n == 0)
+			return result;
+		Arrays.sort(sample,0,n);
+		start = 0;
+		end = n;
+		median = FITSImageStacker.median(sample,start,end);
+		sigma = 0.0;
+		for(int iteration = 0; iteration < 5; iteration++)
+		{
+			median = FITSImageStacker.median(sample,start,end);
+			mean = FITSImageStacker.mean(sample,start,end);
+			sum = 0.0;
+			for(int i = start; i < end; i++)
+				sum += (sample[i]-mean)*(sample[i]-mean);
+			sigma = Math.sqrt(sum/Math.max(1,end-start-1));
+			newStart = start;
+			while((newStart < end)&&(sample[newStart] < median-(3.0*sigma)))
+				newStart++;
+			newEnd = end;
+			while((newEnd > newStart)&&(sample[newEnd-1] > median+(3.0*sigma)))
+				newEnd--;
+			if(((newStart == start)&&(newEnd == end))||((newEnd-newStart) < 3))
+				break;
+			start = newStart;
+			end = newEnd;
+		}
+		result[0] = median;
+		result[1] = sigma;
+		return result;
+	}
+
+	/**
+	 * Find the horizontal runs of pixels above the threshold in a band, and join runs in adjacent rows
+	 * that touch (including diagonally).
+	 * @param dataArray The image data.
+	 * @param width The width of the image.
+	 * @param band The band to label.
+	 * @param backgroundLevel The background level, used if there is no background map.
+	 * @param backgroundStdDev The background standard deviation, used if there is no background map.
+	 * @see #getRowBackground
+	 */
+	protected void labelBand(float dataArray[],int width,Band band,double backgroundLevel,
+				 double backgroundStdDev)
+	{
+		float backgroundRow[] = new float[width];
+		float thresholdRow[] = new float[width];
+		int rowIndex,x,start,previousFirstRun;
+
+		for(int r = 0; r < band.rowCount; r++)
+		{
+			band.rowFirstRun[r] = band.runCount;
+			rowIndex = (band.startRow+r)*width;
+			getRowBackground(band.startRow+r,backgroundLevel,backgroundStdDev,backgroundRow,thresholdRow);
+			x = 0;
+			while(x < width)
+			{
+				if(dataArray[rowIndex+x] > thresholdRow[x])
+				{
+					start = x;
+					while((x < width)&&(dataArray[rowIndex+x] > thresholdRow[x]))
+						x++;
+					band.addRun(band.startRow+r,start,x-1);
+				}
+				else
+					x++;
+			}
+			if(r > 0)
+			{
+				previousFirstRun = band.rowFirstRun[r-1];
+				joinRuns(band.parent,band.runStart,band.runEnd,previousFirstRun,band.rowFirstRun[r],
+					 band.rowFirstRun[r],band.runCount,0,0);
+			}
+		}
+		band.rowFirstRun[band.rowCount] = band.runCount;
+	}
+
+	/**
+	 * Get the background level and detection threshold for each pixel in a row. If a background map
+	 * has been set this is interpolated from the map, otherwise the constant background is used.
+	 * @param row The row, in FITS order.
+	 * @param backgroundLevel The constant background level.
+	 * @param backgroundStdDev The constant background standard deviation.
+	 * @param backgroundRow An array of width elements, filled with the background level of each pixel.
+	 * @param thresholdRow An array of width elements, filled with the detection threshold of each pixel.
+	 *        Can be null, if only the background is needed.
+	 * @see #backgroundMap
+	 * @see #thresholdSigma
+	 */
+	protected void getRowBackground(int row,double backgroundLevel,double backgroundStdDev,
+					float backgroundRow[],float thresholdRow[])
+	{
+		float mapRow[];
+
+		if(backgroundMap != null)
+		{
+			// the map returns a new array if the buffer is too small, so copy that back
+			mapRow = backgroundMap.getBackgroundRow(row,backgroundRow);
+			if(mapRow != backgroundRow)
+				System.arraycopy(mapRow,0,backgroundRow,0,backgroundRow.length);
+			if(thresholdRow != null)
+			{
+				mapRow = backgroundMap.getRmsRow(row,thresholdRow);
+				if(mapRow != thresholdRow)
+					System.arraycopy(mapRow,0,thresholdRow,0,thresholdRow.length);
+				for(int x = 0; x < thresholdRow.length; x++)
+					thresholdRow[x] = (float)(backgroundRow[x]+(thresholdSigma*thresholdRow[x]));
+			}
+		}
+		else
+		{
+			Arrays.fill(backgroundRow,(float)backgroundLevel);
+			if(thresholdRow != null)
+				Arrays.fill(thresholdRow,(float)(backgroundLevel+(thresholdSigma*backgroundStdDev)));
+		}
+	}
+
+	/**
+	 * Join the runs in one row with the runs in the next row, where they touch (8-connected).
+	 * Both lists of runs are in increasing x order.
+	 * @param parent The union-find parent array.
+	 * @param runStart The start x of each run.
+	 * @param runEnd The end x (inclusive) of each run.
+	 * @param aFirst The index of the first run in the lower row.
+	 * @param aEnd The index after the last run in the lower row.
+	 * @param bFirst The index of the first run in the upper row.
+	 * @param bEnd The index after the last run in the upper row.
+	 * @param aOffset Offset added to run indexes in the lower row to get the parent array index.
+	 * @param bOffset Offset added to run indexes in the upper row to get the parent array index.
+	 */
+	protected static void joinRuns(int parent[],int runStart[],int runEnd[],int aFirst,int aEnd,
+				       int bFirst,int bEnd,int aOffset,int bOffset)
+	{
+		joinRuns(parent,runStart,runEnd,aFirst,aEnd,runStart,runEnd,bFirst,bEnd,aOffset,bOffset);
+	}
+
+	/**
+	 * Join the runs in one row with the runs in the next row, where they touch (8-connected).
+	 * Both lists of runs are in increasing x order.
+	 * @param parent The union-find parent array.
+	 * @param aStart The start x of each run in the lower row's list.
+	 * @param aStop The end x (inclusive) of each run in the lower row's list.
+	 * @param aFirst The index of the first run in the lower row.
+	 * @param aEnd The index after the last run in the lower row.
+	 * @param bStart The start x of each run in the upper row's list.
+	 * @param bStop The end x (inclusive) of each run in the upper row's list.
+	 * @param bFirst The index of the first run in the upper row.
+	 * @param bEnd The index after the last run in the upper row.
+	 * @param aOffset Offset added to run indexes in the lower row to get the parent array index.
+	 * @param bOffset Offset added to run indexes in the upper row to get the parent array index.
+	 */
+	protected static void joinRuns(int parent[],int aStart[],int aStop[],int aFirst,int aEnd,
+				       int bStart[],int bStop[],int bFirst,int bEnd,int aOffset,int bOffset)
+	{
+		int a,b;
+
+		a = aFirst;
+		b = bFirst;
+		while((a < aEnd)&&(b < bEnd))
+		{
+			if((aStart[a] <= bStop[b]+1)&&(bStart[b] <= aStop[a]+1))
+				union(parent,a+aOffset,b+bOffset);
+			if(aStop[a] < bStop[b])
+				a++;
+			else
+				b++;
+		}
+	}
+
+	/**
+	 * Join runs in the last row of each band with runs in the first row of the next band, and assign
+	 * a source number to each run.
+	 * @param bandList The list of labelled bands.
+	 * @return An array, with one entry per run (the runs of all the bands concatenated in band order),
+	 *         containing the source number of that run.
+	 */
+	protected int[] joinBands(Band bandList[])
+	{
+		int parent[];
+		int sourceIdList[];
+		int runSourceList[];
+		int total,offset,root,sourceCount;
+		Band previousBand = null;
+
+		total = 0;
+		for(int b = 0; b < bandList.length; b++)
+		{
+			bandList[b].runOffset = total;
+			total += bandList[b].runCount;
+		}
+		parent = new int[total];
+		for(int b = 0; b < bandList.length; b++)
+		{
+			offset = bandList[b].runOffset;
+			for(int i = 0; i < bandList[b].runCount; i++)
+				parent[offset+i] = bandList[b].parent[i]+offset;
+		}
+		for(int b = 1; b < bandList.length; b++)
+		{
+			previousBand = bandList[b-1];
+			if((previousBand.rowCount < 1)||(bandList[b].rowCount < 1))
+				continue;
+			joinRuns(parent,previousBand.runStart,previousBand.runEnd,
+				 previousBand.rowFirstRun[previousBand.rowCount-1],
+				 previousBand.rowFirstRun[previousBand.rowCount],
+				 bandList[b].runStart,bandList[b].runEnd,
+				 bandList[b].rowFirstRun[0],bandList[b].rowFirstRun[1],
+				 previousBand.runOffset,bandList[b].runOffset);
+		}
+		sourceIdList = new int[total];
+		Arrays.fill(sourceIdList,-1);
+		runSourceList = new int[total];
+		sourceCount = 0;
+		for(int i = 0; i < total; i++)
+		{
+			root = find(parent,i);
+			if(sourceIdList[root] < 0)
+				sourceIdList[root] = sourceCount++;
+			runSourceList[i] = sourceIdList[root];
+		}
+		return runSourceList;
+	}
+
+	/**
+	 * Accumulate the moments of each source in the band.
+	 * @param dataArray The image data.
+	 * @param width The width of the image.
+	 * @param band The band to measure.
+	 * @param runSourceList The source number of each run.
+	 * @param backgroundLevel The background level, used if there is no background map.
+	 * @see #getRowBackground
+	 */
+	protected void measureBand(float dataArray[],int width,Band band,int runSourceList[],double backgroundLevel)
+	{
+		Map<Integer,Integer> slotMap = null;
+		Integer slotObject = null;
+		float backgroundRow[] = new float[width];
+		double f;
+		int sourceId,slot,rowIndex,row,backgroundRowNumber;
+
+		slotMap = new HashMap<Integer,Integer>();
+		band.allocateMoments();
+		backgroundRowNumber = -1;
+		for(int i = 0; i < band.runCount; i++)
+		{
+			sourceId = runSourceList[band.runOffset+i];
+			slotObject = slotMap.get(Integer.valueOf(sourceId));
+			if(slotObject == null)
+			{
+				slot = band.addSource(sourceId);
+				slotMap.put(Integer.valueOf(sourceId),Integer.valueOf(slot));
+			}
+			else
+				slot = slotObject.intValue();
+			row = band.runRow[i];
+			rowIndex = row*width;
+			if(row != backgroundRowNumber)
+			{
+				getRowBackground(row,backgroundLevel,0.0,backgroundRow,null);
+				backgroundRowNumber = row;
+			}
+			for(int x = band.runStart[i]; x <= band.runEnd[i]; x++)
+			{
+				f = dataArray[rowIndex+x]-backgroundRow[x];
+				band.sum[slot] += f;
+				band.sumX[slot] += f*x;
+				band.sumY[slot] += f*row;
+				band.sumXX[slot] += f*x*x;
+				band.sumYY[slot] += f*row*row;
+				if(f > band.peak[slot])
+					band.peak[slot] = (float)f;
+			}
+			band.pixelCount[slot] += band.runEnd[i]-band.runStart[i]+1;
+		}
+	}
+
+	/**
+	 * Merge the moments accumulated for each band, and create the source list.
+	 * Sources with less than minPixelCount pixels are rejected.
+	 * @param bandList The list of measured bands.
+	 * @param sourceCount The total number of sources.
+	 * @param height The height of the image, used to convert to display coordinates.
+	 * @return The source list, sorted into decreasing flux order.
+	 * @see #minPixelCount
+	 */
+	protected FITSSourceList mergeBands(Band bandList[],int sourceCount,int height)
+	{
+		FITSSourceList sourceList = null;
+		Band band = null;
+		Integer orderList[];
+		final double sum[] = new double[sourceCount];
+		double sumX[] = new double[sourceCount];
+		double sumY[] = new double[sourceCount];
+		double sumXX[] = new double[sourceCount];
+		double sumYY[] = new double[sourceCount];
+		float peak[] = new float[sourceCount];
+		int pixelCount[] = new int[sourceCount];
+		double xc,yc,variance;
+		int s,n,id;
+
+		for(int b = 0; b < bandList.length; b++)
+		{
+			band = bandList[b];
+			for(int slot = 0; slot < band.sourceCount; slot++)
+			{
+				id = band.sourceId[slot];
+				sum[id] += band.sum[slot];
+				sumX[id] += band.sumX[slot];
+				sumY[id] += band.sumY[slot];
+				sumXX[id] += band.sumXX[slot];
+				sumYY[id] += band.sumYY[slot];
+				peak[id] = Math.max(peak[id],band.peak[slot]);
+				pixelCount[id] += band.pixelCount[slot];
+			}
+		}
+		n = 0;
+		orderList = new Integer[sourceCount];
+		for(int i = 0; i < sourceCount; i++)
+		{
+			if((pixelCount[i] >= minPixelCount)&&(sum[i] > 0.0))
+				orderList[n++] = Integer.valueOf(i);
+		}
+		Arrays.sort(orderList,0,n,new Comparator<Integer>()
+		{
+			public int compare(Integer a,Integer b)
+			{
+				return Double.compare(sum[b.intValue()],sum[a.intValue()]);
+			}
+		});
+		sourceList = new FITSSourceList(n);
+		for(int i = 0; i < n; i++)
+		{
+			s = orderList[i].intValue();
+			xc = sumX[s]/sum[s];
+			yc = sumY[s]/sum[s];
+			variance = (((sumXX[s]/sum[s])-(xc*xc))+((sumYY[s]/sum[s])-(yc*yc)))/2.0;
+			sourceList.x[i] = xc;
+			// convert from FITS row to display y
+			sourceList.y[i] = (height-1)-yc;
+			sourceList.flux[i] = sum[s];
+			sourceList.peak[i] = peak[s];
+			sourceList.fwhm[i] = (float)(SIGMA_TO_FWHM*Math.sqrt(Math.max(0.0,variance)));
+			sourceList.pixelCount[i] = pixelCount[s];
+		}
+		return sourceList;
+	}
+
+	/**
+	 * Union-find: find the root of the specified element, halving the path as we go.
+	 * @param parent The parent array.
+	 * @param i The element.
+	 * @return The root element.
+	 */
+	protected static int find(int parent[],int i)
+	{
+		while(parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Union-find: join the sets containing the two elements. The root with the lower index becomes the
+	 * root of the joined set.
+	 * @param parent The parent array.
+	 * @param a The first element.
+	 * @param b The second element.
+	 */
+	protected static void union(int parent[],int a,int b)
+	{
+		int rootA,rootB;
+
+		rootA = find(parent,a);
+		rootB = find(parent,b);
+		if(rootA < rootB)
+			parent[rootB] = rootA;
+		else if(rootB < rootA)
+			parent[rootA] = rootB;
+	}
+
+	/**
+	 * Test main method.
+	 * @param args The command line arguments.
+	 */
+	public static void main(String args[])
+	{
+		FITSImage image = null;
+		FITSSourceDetector detector = null;
+		FITSSourceList sourceList = null;
+
+		if(args.length != 1)
+		{
+			System.err.println("java org.estar.fits.FITSSourceDetector <fits filename>");
+			System.exit(1);
+		}
+		image = new FITSImage();
+		detector = new FITSSourceDetector();
+		try
+		{
+			image.load(args[0]);
+			sourceList = detector.detect(image);
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSSourceDetector failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		for(int i = 0; i < sourceList.getCount(); i++)
+		{
+			System.out.println(i+" "+sourceList.getX(i)+" "+sourceList.getY(i)+" "+sourceList.getFlux(i)+
+					   " "+sourceList.getPeak(i)+" "+sourceList.getFWHM(i)+" "+
+					   sourceList.getPosition(image,i));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * A band (tile) of image rows, and the runs of pixels above the threshold found within it.
+	 */
+	protected static class Band
+	{
+		/**
+		 * The first row of the band, in FITS order.
+		 */
+		int startRow;
+		/**
+		 * The number of rows in the band.
+		 */
+		int rowCount;
+		/**
+		 * The number of runs found in the band.
+		 */
+		int runCount = 0;
+		/**
+		 * The index of this band's first run in the list of all runs.
+		 */
+		int runOffset = 0;
+		/**
+		 * The row of each run.
+		 */
+		int runRow[] = new int[256];
+		/**
+		 * The start x of each run.
+		 */
+		int runStart[] = new int[256];
+		/**
+		 * The end x (inclusive) of each run.
+		 */
+		int runEnd[] = new int[256];
+		/**
+		 * The union-find parent of each run, local to this band.
+		 */
+		int parent[] = new int[256];
+		/**
+		 * The index of the first run in each row of the band. Has rowCount+1 entries.
+		 */
+		int rowFirstRun[];
+		/**
+		 * The number of sources touched by this band.
+		 */
+		int sourceCount = 0;
+		/**
+		 * The source number of each source touched by this band.
+		 */
+		int sourceId[];
+		/**
+		 * Sum of flux above background, per source.
+		 */
+		double sum[];
+		/**
+		 * Sum of flux times x, per source.
+		 */
+		double sumX[];
+		/**
+		 * Sum of flux times FITS row, per source.
+		 */
+		double sumY[];
+		/**
+		 * Sum of flux times x squared, per source.
+		 */
+		double sumXX[];
+		/**
+		 * Sum of flux times FITS row squared, per source.
+		 */
+		double sumYY[];
+		/**
+		 * Peak flux above background, per source.
+		 */
+		float peak[];
+		/**
+		 * Number of pixels, per source.
+		 */
+		int pixelCount[];
+
+		/**
+		 * Constructor.
+		 * @param s The first row of the band.
+		 * @param n The number of rows in the band.
+		 */
+		Band(int s,int n)
+		{
+			super();
+			startRow = s;
+			rowCount = n;
+			rowFirstRun = new int[n+1];
+		}
+
+		/**
+		 * Add a run to the band. The run starts as the root of it's own set.
+		 * @param row The row of the run.
+		 * @param start The start x of the run.
+		 * @param end The end x (inclusive) of the run.
+		 */
+		void addRun(int row,int start,int end)
+		{
+			if(runCount == runRow.length)
+			{
+				runRow = Arrays.copyOf(runRow,runCount*2);
+				runStart = Arrays.copyOf(runStart,runCount*2);
+				runEnd = Arrays.copyOf(runEnd,runCount*2);
+				parent = Arrays.copyOf(parent,runCount*2);
+			}
+			runRow[runCount] = row;
+			runStart[runCount] = start;
+			runEnd[runCount] = end;
+			parent[runCount] = runCount;
+			runCount++;
+		}
+
+		/**
+		 * Allocate the moment arrays. At most runCount sources can touch this band.
+		 */
+		void allocateMoments()
+		{
+			sourceCount = 0;
+			sourceId = new int[runCount];
+			sum = new double[runCount];
+			sumX = new double[runCount];
+			sumY = new double[runCount];
+			sumXX = new double[runCount];
+			sumYY = new double[runCount];
+			peak = new float[runCount];
+			pixelCount = new int[runCount];
+		}
+
+		/**
+		 * Add a source to the list of sources touched by this band.
+		 * @param id The source number.
+		 * @return The slot in the moment arrays for this source.
+		 */
+		int addSource(int id)
+		{
+			sourceId[sourceCount] = id;
+			return sourceCount++;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSSourceList.java
+// $Header$
+package org.estar.fits;
+
+import org.estar.astrometry.*;
+
+/**
+ * This class holds a list of sources detected on a FITSImage, stored as primitive arrays.
+ * Positions are in the same coordinate system as FITSImage.getValue and FITSImage.getPosition, i.e.
+ * the displayed image with North at the top, y increasing downwards.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSSourceDetector
+ */
+public class FITSSourceList
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of sources in the list.
+	 */
+	int count = 0;
+	/**
+	 * The flux weighted centroid X position of each source, in display pixels.
+	 */
+	double x[];
+	/**
+	 * The flux weighted centroid Y position of each source, in display pixels.
+	 */
+	double y[];
+	/**
+	 * The total flux of each source above the background.
+	 */
+	double flux[];
+	/**
+	 * The peak pixel value of each source above the background.
+	 */
+	float peak[];
+	/**
+	 * The full width half maximum of each source, in pixels, derived from the second moments.
+	 */
+	float fwhm[];
+	/**
+	 * The number of pixels above the threshold in each source.
+	 */
+	int pixelCount[];
+
+	/**
+	 * Constructor.
+	 * @param n The number of sources in the list.
+	 * @see #count
+	 */
+	FITSSourceList(int n)
+	{
+		super();
+		count = n;
+		x = new double[n];
+		y = new double[n];
+		flux = new double[n];
+		peak = new float[n];
+		fwhm = new float[n];
+		pixelCount = new int[n];
+	}
+
+	/**
+	 * Get the number of sources in the list.
+	 * @return The number of sources.
+	 * @see #count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the centroid X position of a source.
+	 * @param i The index of the source in the list.
+	 * @return The X position, in display pixels.
+	 * @see #x
+	 */
+	public double getX(int i)
+	{
+		return x[i];
+	}
+
+	/**
+	 * Get the centroid Y position of a source.
+	 * @param i The index of the source in the list.
+	 * @return The Y position, in display pixels.
+	 * @see #y
+	 */
+	public double getY(int i)
+	{
+		return y[i];
+	}
+
+	/**
+	 * Get the flux of a source.
+	 * @param i The index of the source in the list.
+	 * @return The total flux above the background.
+	 * @see #flux
+	 */
+	public double getFlux(int i)
+	{
+		return flux[i];
+	}
+
+	/**
+	 * Get the peak pixel value of a source.
+	 * @param i The index of the source in the list.
+	 * @return The peak pixel value above the background.
+	 * @see #peak
+	 */
+	public float getPeak(int i)
+	{
+		return peak[i];
+	}
+
+	/**
+	 * Get the full width half maximum of a source.
+	 * @param i The index of the source in the list.
+	 * @return The FWHM, in pixels.
+	 * @see #fwhm
+	 */
+	public float getFWHM(int i)
+	{
+		return fwhm[i];
+	}
+
+	/**
+	 * Get the number of pixels above the threshold in a source.
+	 * @param i The index of the source in the list.
+	 * @return The number of pixels.
+	 * @see #pixelCount
+	 */
+	public int getPixelCount(int i)
+	{
+		return pixelCount[i];
+	}
+
+	/**
+	 * Get the array of X positions. The array is <b>NOT</b> copied, and may be longer than getCount().
+	 * @return The array of X positions.
+	 * @see #x
+	 */
+	public double[] getXArray()
+	{
+		return x;
+	}
+
+	/**
+	 * Get the array of Y positions. The array is <b>NOT</b> copied, and may be longer than getCount().
+	 * @return The array of Y positions.
+	 * @see #y
+	 */
+	public double[] getYArray()
+	{
+		return y;
+	}
+
+	/**
+	 * Get the array of fluxes. The array is <b>NOT</b> copied, and may be longer than getCount().
+	 * @return The array of fluxes.
+	 * @see #flux
+	 */
+	public double[] getFluxArray()
+	{
+		return flux;
+	}
+
+	/**
+	 * Gets the position on the sky of a source, using the image's pixel to RA/Dec mapping.
+	 * The centroid is rounded to the nearest pixel.
+	 * @param image The image the sources were detected on.
+	 * @param i The index of the source in the list.
+	 * @return An instance of CelestialObject, or null if the image has no field centre.
+	 * @see FITSImage#getPosition(int,int)
+	 */
+	public CelestialObject getPosition(FITSImage image,int i)
+	{
+		return image.getPosition((int)Math.round(x[i]),(int)Math.round(y[i]));
+	}
+
+	/**
+	 * Method to print out a string representation of this node.
+	 * @return The string.
+	 * @see #toString(java.lang.String)
+	 */
+	public String toString()
+	{
+		return toString("");
+	}
+
+	/**
+	 * Method to print out a string representation of this node, with a prefix.
+	 * Each source is printed on a separate line.
+	 * @param prefix A string to prefix to each line of data we print out.
+	 * @return The string.
+	 */
+	public String toString(String prefix)
+	{
+		StringBuffer sb = null;
+
+		sb = new StringBuffer();
+		for(int i = 0; i < count; i++)
+		{
+			sb.append(prefix+i+" X:"+x[i]+" Y:"+y[i]+" Flux:"+flux[i]+" Peak:"+peak[i]+
+				  " FWHM:"+fwhm[i]+" Pixels:"+pixelCount[i]+"\n");
+		}
+		return sb.toString();
+	}
+}
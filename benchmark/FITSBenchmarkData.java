@@ -0,0 +1,258 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSBenchmarkData.java
+// $Header$
+package org.estar.fits.benchmark;
+
+import java.io.*;
+import java.util.*;
+import org.estar.fits.*;
+
+/**
+ * This class generates the synthetic FITS inputs used by the benchmarks: images of a given size and BITPIX,
+ * containing a sky background with noise and a field of Gaussian stars, and headers with a given number of cards.
+ * The data is generated from a fixed random seed, so every run (and machine) benchmarks the same input.
+ * Generated files are cached in a directory under java.io.tmpdir, and reused if they already exist.
+ * @author Chris Mottram
+ * @version $Revision$
+ */
+public class FITSBenchmarkData
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The random seed used to generate the data.
+	 */
+	public final static long SEED = 20061122L;
+	/**
+	 * The sky background level of generated images.
+	 */
+	public final static float SKY_LEVEL = 1000.0f;
+	/**
+	 * The sky noise of generated images.
+	 */
+	public final static float SKY_NOISE = 20.0f;
+	/**
+	 * The number of stars per million pixels in generated images.
+	 */
+	public final static int STARS_PER_MEGAPIXEL = 500;
+
+	/**
+	 * Get the directory generated files are cached in, creating it if necessary.
+	 * @return The directory.
+	 * @exception IOException Thrown if the directory cannot be created.
+	 */
+	public static File getDataDirectory() throws IOException
+	{
+		File directory = null;
+
+		directory = new File(System.getProperty("java.io.tmpdir"),"org_estar_fits_benchmark");
+		if((directory.exists() == false)&&(directory.mkdirs() == false))
+		{
+			throw new IOException("org.estar.fits.benchmark.FITSBenchmarkData:getDataDirectory:"+
+					      "Failed to create:"+directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Get a synthetic square image file, generating it if it does not already exist.
+	 * @param size The width and height of the image.
+	 * @param bitpix The BITPIX of the image data.
+	 * @param cardCount The number of non-structural header cards to add.
+	 * @return The image file.
+	 * @exception IOException Thrown if generating the file fails.
+	 * @see #writeImage
+	 */
+	public static File getImageFile(int size,int bitpix,int cardCount) throws IOException
+	{
+		File file = null;
+		File tmpFile = null;
+
+		file = new File(getDataDirectory(),"image_"+size+"_"+((bitpix < 0) ? "m" : "")+Math.abs(bitpix)+
+				"_"+cardCount+".fits");
+		if(file.exists())
+			return file;
+		tmpFile = new File(file.getPath()+".tmp");
+		writeImage(tmpFile,size,size,bitpix,cardCount);
+		if(tmpFile.renameTo(file) == false)
+		{
+			throw new IOException("org.estar.fits.benchmark.FITSBenchmarkData:getImageFile:"+
+					      "Failed to rename "+tmpFile+" to "+file);
+		}
+		return file;
+	}
+
+	/**
+	 * Write a synthetic image. The image is written a row at a time, so large images can be generated
+	 * without holding them in memory. Integer BITPIX images are written with a BSCALE/BZERO that maps
+	 * the pixel range onto the integer type.
+	 * @param file The file to write to.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param bitpix The BITPIX of the image data.
+	 * @param cardCount The number of non-structural header cards to add.
+	 * @exception IOException Thrown if writing fails.
+	 * @see #createCardList
+	 * @see #fillRow
+	 */
+	public static void writeImage(File file,int width,int height,int bitpix,int cardCount) throws IOException
+	{
+		FITSRowWriter writer = null;
+		List<String> cardList = null;
+		Random random = null;
+		double starX[],starY[],starFlux[];
+		float row[];
+		int starCount;
+
+		random = new Random(SEED);
+		starCount = (int)((((long)width)*((long)height)*STARS_PER_MEGAPIXEL)/1000000L);
+		starX = new double[starCount];
+		starY = new double[starCount];
+		starFlux = new double[starCount];
+		for(int i = 0; i < starCount; i++)
+		{
+			starX[i] = random.nextDouble()*width;
+			starY[i] = random.nextDouble()*height;
+			starFlux[i] = 1000.0*Math.exp(random.nextDouble()*5.0);
+		}
+		writer = new FITSRowWriter();
+		writer.setBitpix(bitpix);
+		if(bitpix == 8)
+			writer.setScaling(1000.0/255.0,0.0);
+		else if(bitpix == 16)
+			writer.setScaling(1.0,32768.0);
+		cardList = createCardList(cardCount);
+		for(int i = 0; i < cardList.size(); i++)
+			writer.addCard(cardList.get(i));
+		writer.open(file,width,height);
+		row = new float[width];
+		for(int y = 0; y < height; y++)
+		{
+			fillRow(row,y,random,starX,starY,starFlux);
+			writer.writeRows(row,0,1);
+		}
+		writer.close();
+	}
+
+	/**
+	 * Fill an image row with sky, noise and the light from nearby stars (Gaussian, sigma 1.5 pixels).
+	 * @param row The row to fill.
+	 * @param y The row number.
+	 * @param random The random number generator.
+	 * @param starX The star X positions.
+	 * @param starY The star Y positions.
+	 * @param starFlux The star fluxes.
+	 */
+	protected static void fillRow(float row[],int y,Random random,double starX[],double starY[],
+				      double starFlux[])
+	{
+		double sigma2,dy,dx,norm;
+
+		sigma2 = 2.0*1.5*1.5;
+		norm = 1.0/(Math.PI*sigma2);
+		for(int x = 0; x < row.length; x++)
+			row[x] = (float)(SKY_LEVEL+(SKY_NOISE*random.nextGaussian()));
+		for(int i = 0; i < starX.length; i++)
+		{
+			dy = y-starY[i];
+			if(Math.abs(dy) > 6.0)
+				continue;
+			for(int x = Math.max(0,(int)starX[i]-6); x < Math.min(row.length,(int)starX[i]+7); x++)
+			{
+				dx = x-starX[i];
+				row[x] += (float)(starFlux[i]*norm*Math.exp(-((dx*dx)+(dy*dy))/sigma2));
+			}
+		}
+	}
+
+	/**
+	 * Create a list of header cards, typical of a reduced frame: the keywords FITSImage uses (OBJECT,
+	 * DATE-OBS, FCRA, FCDEC, XPS, YPS) followed by a mix of string, integer, real, logical and commentary cards.
+	 * @param cardCount The number of cards to create (at least 6).
+	 * @return The list of 80 character cards.
+	 */
+	public static List<String> createCardList(int cardCount)
+	{
+		List<String> cardList = null;
+		int i;
+
+		cardList = new Vector<String>();
+		cardList.add(FITSCard.formatString("OBJECT","M31 field","Name of object"));
+		cardList.add(FITSCard.formatDate("DATE-OBS",new Date(1164153600000L),"Start of observation"));
+		cardList.add(FITSCard.formatString("FCRA","00 42 44.30","Field centre RA"));
+		cardList.add(FITSCard.formatString("FCDEC","+41 16 09.0","Field centre declination"));
+		cardList.add(FITSCard.formatReal("XPS",0.278,"X plate scale arcsec/pixel"));
+		cardList.add(FITSCard.formatReal("YPS",0.278,"Y plate scale arcsec/pixel"));
+		for(i = cardList.size(); i < cardCount; i++)
+		{
+			switch(i % 5)
+			{
+				case 0:
+					cardList.add(FITSCard.formatString("STR"+i,"value "+i,"String card "+i));
+					break;
+				case 1:
+					cardList.add(FITSCard.formatInteger("INT"+i,i*1000,"Integer card "+i));
+					break;
+				case 2:
+					cardList.add(FITSCard.formatReal("REAL"+i,i*0.125,"Real card "+i));
+					break;
+				case 3:
+					cardList.add(FITSCard.formatLogical("BOOL"+i,(i % 2) == 0,"Logical card "+i));
+					break;
+				default:
+					cardList.add(FITSCard.formatCommentary("COMMENT","Commentary card "+i));
+					break;
+			}
+		}
+		return cardList;
+	}
+
+	/**
+	 * Create a header string of the form returned in an RTML document, where each card is on a separate
+	 * line, and trailing spaces are removed. This is the input format of FITSHeaderParser.
+	 * @param cardCount The number of cards to create.
+	 * @return The header string.
+	 * @see #createCardList
+	 */
+	public static String createHeaderString(int cardCount)
+	{
+		StringBuffer sb = null;
+		List<String> cardList = null;
+
+		cardList = new Vector<String>();
+		cardList.add(FITSCard.formatLogical("SIMPLE",true,null));
+		cardList.add(FITSCard.formatInteger("BITPIX",16,null));
+		cardList.add(FITSCard.formatInteger("NAXIS",2,null));
+		cardList.add(FITSCard.formatInteger("NAXIS1",1024,null));
+		cardList.add(FITSCard.formatInteger("NAXIS2",1024,null));
+		cardList.addAll(createCardList(cardCount));
+		cardList.add(FITSCard.formatEnd());
+		sb = new StringBuffer();
+		for(int i = 0; i < cardList.size(); i++)
+		{
+			sb.append(cardList.get(i).replaceAll(" +$",""));
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+}
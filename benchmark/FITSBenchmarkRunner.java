@@ -0,0 +1,99 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSBenchmarkRunner.java
+// $Header$
+package org.estar.fits.benchmark;
+
+import java.util.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.results.format.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Command line runner for the org.estar.fits benchmarks. The first argument is the JSON results filename;
+ * any further arguments are normal JMH command line options (for instance a benchmark regexp, or
+ * "-p size=1024" to restrict the parameters). If no benchmark regexp is given, all the benchmarks in this
+ * package are run. The GC profiler is always added, so the results include the allocation rate.
+ * The JSON results can be compared between runs to catch performance regressions.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSImageBenchmark
+ * @see FITSHeaderBenchmark
+ */
+public class FITSBenchmarkRunner
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+
+	/**
+	 * Main method.
+	 * @param args The command line arguments.
+	 * @see #createOptions
+	 */
+	public static void main(String args[])
+	{
+		Options options = null;
+
+		if(args.length < 1)
+		{
+			System.err.println("java org.estar.fits.benchmark.FITSBenchmarkRunner <json results filename> "+
+					   "[<jmh options>]");
+			System.exit(1);
+		}
+		try
+		{
+			options = createOptions(args[0],Arrays.copyOfRange(args,1,args.length));
+			new Runner(options).run();
+		}
+		catch(Exception e)
+		{
+			System.err.println("FITSBenchmarkRunner failed:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Create the JMH options.
+	 * @param resultsFilename The filename to write the JSON results to.
+	 * @param jmhArgs The JMH command line options.
+	 * @return The options.
+	 * @exception CommandLineOptionException Thrown if the JMH options cannot be parsed.
+	 */
+	public static Options createOptions(String resultsFilename,String jmhArgs[])
+		throws CommandLineOptionException
+	{
+		CommandLineOptions commandLineOptions = null;
+		ChainedOptionsBuilder builder = null;
+
+		commandLineOptions = new CommandLineOptions(jmhArgs);
+		builder = new OptionsBuilder().parent(commandLineOptions);
+		if(commandLineOptions.getIncludes().isEmpty())
+			builder.include(FITSBenchmarkRunner.class.getPackage().getName()+".*");
+		builder.addProfiler(GCProfiler.class);
+		builder.resultFormat(ResultFormatType.JSON);
+		builder.result(resultsFilename);
+		return builder.build();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSHeaderBenchmark.java
+// $Header$
+package org.estar.fits.benchmark;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.estar.fits.*;
+
+/**
+ * JMH benchmarks of FITS header parsing: FITSHeaderParser.parse of an RTML style header string,
+ * and FITSHeaderLoader.load of a file, over a range of header sizes. Each benchmark also reads a few
+ * keyword values, as a typical caller would.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSBenchmarkData
+ * @see FITSBenchmarkRunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3,time = 2,timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5,time = 2,timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class FITSHeaderBenchmark
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The number of non-structural cards in the header.
+	 */
+	@Param({"36","200","1000"})
+	public int cardCount;
+	/**
+	 * The RTML style header string.
+	 */
+	protected String headerString = null;
+	/**
+	 * A small image file with the header.
+	 */
+	protected File file = null;
+
+	/**
+	 * Generate the header string, and (or find the cached) header file.
+	 * @exception IOException Thrown if generating the file fails.
+	 * @see FITSBenchmarkData#createHeaderString
+	 * @see FITSBenchmarkData#getImageFile
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		headerString = FITSBenchmarkData.createHeaderString(cardCount);
+		file = FITSBenchmarkData.getImageFile(16,16,cardCount);
+	}
+
+	/**
+	 * Benchmark FITSHeaderParser.parse, then read some keyword values.
+	 * @return The parser, so the parse is not optimised away.
+	 * @exception FITSException Thrown if parsing fails.
+	 */
+	@Benchmark
+	public FITSHeaderParser parse() throws FITSException
+	{
+		FITSHeaderParser parser = null;
+
+		parser = new FITSHeaderParser();
+		parser.parse(headerString);
+		parser.getKeywordValueString("OBJECT");
+		parser.getKeywordValueDouble("XPS");
+		parser.getKeywordValueInteger("NAXIS1");
+		return parser;
+	}
+
+	/**
+	 * Benchmark FITSHeaderLoader.load, then read some keyword values.
+	 * @return The loader, so the load is not optimised away.
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not FITS.
+	 */
+	@Benchmark
+	public FITSHeaderLoader load() throws IOException,FITSException
+	{
+		FITSHeaderLoader loader = null;
+
+		loader = new FITSHeaderLoader();
+		loader.load(file.getPath());
+		loader.getKeywordValueString("OBJECT");
+		loader.getKeywordValueDouble("XPS");
+		loader.getKeywordValueInt("NAXIS1");
+		return loader;
+	}
+}
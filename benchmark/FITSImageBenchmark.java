@@ -0,0 +1,130 @@
+/*
+    Copyright 2006, Astrophysics Research Institute, Liverpool John Moores University.
+
+    This file is part of org.estar.fits.
+
+    org.estar.fits is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    org.estar.fits is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with org.estar.fits; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+// FITSImageBenchmark.java
+// $Header$
+package org.estar.fits.benchmark;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.estar.fits.*;
+
+/**
+ * JMH benchmarks of the FITSImage load, statistics and render paths, over a range of image sizes and BITPIX.
+ * Each benchmark is measured for throughput and sampled latency; run with the GC profiler
+ * (as FITSBenchmarkRunner does) to get the allocation rate per operation.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FITSBenchmarkData
+ * @see FITSBenchmarkRunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3,time = 2,timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5,time = 2,timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,jvmArgsAppend = {"-Xmx6g"})
+public class FITSImageBenchmark
+{
+	/**
+	 * Revision control system version id.
+	 */
+	public final static String RCSID = "$Id$";
+	/**
+	 * The width and height of the synthetic image.
+	 */
+	@Param({"1024","2048","4096","8192"})
+	public int size;
+	/**
+	 * The BITPIX of the synthetic image.
+	 */
+	@Param({"8","16","32","-32","-64"})
+	public int bitpix;
+	/**
+	 * The synthetic image file.
+	 */
+	protected File file = null;
+	/**
+	 * A loaded image, used by the statistics and render benchmarks.
+	 */
+	protected FITSImage image = null;
+
+	/**
+	 * Generate (or find the cached) synthetic image, and load it for the statistics and render benchmarks.
+	 * @exception IOException Thrown if generating the file fails.
+	 * @exception FITSException Thrown if loading the file fails.
+	 * @see FITSBenchmarkData#getImageFile
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException,FITSException
+	{
+		file = FITSBenchmarkData.getImageFile(size,bitpix,100);
+		image = new FITSImage();
+		image.load(file.getPath());
+		image.setMinMaxPixelValue();
+	}
+
+	/**
+	 * Release the loaded image, so it is not held during the next trial.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		image = null;
+	}
+
+	/**
+	 * Benchmark FITSImage.load, from a file.
+	 * @return The loaded image, so the load is not optimised away.
+	 * @exception IOException Thrown if reading fails.
+	 * @exception FITSException Thrown if the file is not a 2D image.
+	 */
+	@Benchmark
+	public FITSImage load() throws IOException,FITSException
+	{
+		FITSImage loadImage = null;
+
+		loadImage = new FITSImage();
+		loadImage.load(file.getPath());
+		return loadImage;
+	}
+
+	/**
+	 * Benchmark FITSImage.setMinMaxPixelValue, on the loaded image.
+	 * @return The maximum pixel value, so the scan is not optimised away.
+	 */
+	@Benchmark
+	public float setMinMaxPixelValue()
+	{
+		image.setMinMaxPixelValue();
+		return image.getMaxPixelValue();
+	}
+
+	/**
+	 * Benchmark FITSImage.createImageSource, on the loaded image.
+	 * @return The image source, so the render is not optimised away.
+	 */
+	@Benchmark
+	public MemoryImageSource createImageSource()
+	{
+		return image.createImageSource();
+	}
+}